@@ -9,10 +9,13 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.util.Log;
 
+import com.homesoft.encoder.BitmapFrameSource;
+import com.homesoft.encoder.CodecPool;
 import com.homesoft.encoder.EncoderConfig;
 import com.homesoft.encoder.FrameEncoder;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 /*
  * Copyright (C) 2019 Homesoft, LLC
@@ -33,16 +36,20 @@ import java.io.IOException;
 public class CreateRunnable implements Runnable {
     private static final int[] IMAGE_IDS = {R.raw.im1, R.raw.im2, R.raw.im3, R.raw.im4};
     private static final int FRAMES = 30;
+    private static final int PREFETCH = 4;
     private static final String TAG = CreateRunnable.class.getSimpleName();
     private final MainActivity mMainActivity;
     private final EncoderConfig mEncoderConfig;
+    private final CodecPool mCodecPool;
     private final Paint mPaint;
 
     private String mOutputPath;
 
-    CreateRunnable(final MainActivity activity, final EncoderConfig encoderConfig, final boolean addText) {
+    CreateRunnable(final MainActivity activity, final EncoderConfig encoderConfig,
+                   final CodecPool codecPool, final boolean addText) {
         mMainActivity = activity;
         mEncoderConfig = encoderConfig;
+        mCodecPool = codecPool;
 
         if (addText) {
             mPaint = new Paint();
@@ -54,28 +61,58 @@ public class CreateRunnable implements Runnable {
 
     @Override
     public void run() {
-        final FrameEncoder frameEncoder = new FrameEncoder(mEncoderConfig);
+        final FrameEncoder frameEncoder = new FrameEncoder(mEncoderConfig, mCodecPool, false);
         try {
             frameEncoder.start();
         } catch (IOException e) {
             Log.e(TAG, "Start Encoder Failed", e);
+            frameEncoder.release();
             return;
         }
-        mPaint.setTextSize(mEncoderConfig.getHeight() / 2);
+        Log.d(TAG, frameEncoder.getCodecName() + " started in " + frameEncoder.getStartLatencyNs() / 1000000 + "ms, " +
+                mCodecPool.getStats());
+        if (mPaint != null) {
+            mPaint.setTextSize(mEncoderConfig.getHeight() / 2);
+        }
         final Resources resources = mMainActivity.getResources();
-        for (int i=0;i<FRAMES;i++) {
-            final Bitmap bitmap = BitmapFactory.decodeStream(resources.openRawResource(IMAGE_IDS[i&3]));
-            if (mPaint == null) {
-                frameEncoder.createFrame(bitmap);
-            } else {
-                final Canvas canvas = frameEncoder.getCanvas();
-                canvas.drawBitmap(bitmap, 0f, 0f, null);
-                final String text = Character.toString((char)('A' + i));
-                canvas.drawText(text, 0, mEncoderConfig.getHeight(), mPaint);
-                frameEncoder.createFrame(canvas);
+        final BitmapFrameSource.Decoder decoder = new BitmapFrameSource.Decoder() {
+            @Override
+            public Object getKey(int frame) {
+                return IMAGE_IDS[frame & 3];
             }
-        }
 
+            @Override
+            public Bitmap decode(int frame, BitmapFactory.Options options) throws IOException {
+                final InputStream in = resources.openRawResource(IMAGE_IDS[frame & 3]);
+                try {
+                    return BitmapFactory.decodeStream(in, null, options);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+        final BitmapFrameSource frameSource = new BitmapFrameSource(decoder, FRAMES, PREFETCH,
+                (int)(Runtime.getRuntime().maxMemory() / 8)) {
+            @Override
+            protected void drawFrame(FrameEncoder frameEncoder, int frame, Bitmap bitmap) {
+                if (mPaint == null) {
+                    frameEncoder.createFrame(bitmap);
+                } else {
+                    final Canvas canvas = frameEncoder.getCanvas();
+                    canvas.drawBitmap(bitmap, 0f, 0f, null);
+                    final String text = Character.toString((char)('A' + frame));
+                    canvas.drawText(text, 0, mEncoderConfig.getHeight(), mPaint);
+                    frameEncoder.createFrame(canvas);
+                }
+            }
+        };
+        try {
+            for (int i=0;i<frameSource.getFrameCount();i++) {
+                frameSource.renderFrame(frameEncoder, i);
+            }
+        } finally {
+            frameSource.release();
+        }
 
         mOutputPath = mEncoderConfig.getPath();
         frameEncoder.release();
@@ -23,6 +23,7 @@ import androidx.appcompat.widget.Toolbar;
 
 import com.homesoft.drawable.PathRoundedRectShape;
 import com.homesoft.encoder.AvcEncoderConfig;
+import com.homesoft.encoder.CodecPool;
 import com.homesoft.encoder.EncoderConfig;
 import com.homesoft.encoder.HevcEncoderConfig;
 
@@ -53,6 +54,8 @@ public class MainActivity extends AppCompatActivity {
     private CheckBox mAudio;
     private RadioGroup mCodec;
     private RadioButton mAvc, mHevc;
+    // Keeps the last codec around, so making another video skips codec creation
+    private final CodecPool mCodecPool = new CodecPool(1);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,7 +81,7 @@ public class MainActivity extends AppCompatActivity {
 
                 AsyncTask.THREAD_POOL_EXECUTOR.execute(
                         mCreateRunnable = new CreateRunnable(MainActivity.this,
-                                encoderConfig, true));
+                                encoderConfig, mCodecPool, true));
             }
         });
         mVideoPlayer = findViewById(R.id.player);
@@ -103,6 +106,12 @@ public class MainActivity extends AppCompatActivity {
         extractAssets();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCodecPool.close();
+    }
+
     private void extractAssets() {
         File f = new File(getCacheDir()+"/test.m4a");
         if (!f.exists()) try {
@@ -0,0 +1,55 @@
+package com.homesoft.encoder.benchmark;
+
+import java.io.IOException;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * One operation to time: processing every frame of a {@link SyntheticStream} once
+ */
+public abstract class Benchmark {
+    private final String mName;
+    protected final SyntheticStream mStream;
+
+    protected Benchmark(final String name, final SyntheticStream stream) {
+        mName = name;
+        mStream = stream;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public SyntheticStream getStream() {
+        return mStream;
+    }
+
+    public void setUp() throws IOException {
+    }
+
+    public abstract void run() throws IOException;
+
+    /**
+     * @return bytes processed per run, for MB/s.  0 if it doesn't apply.
+     */
+    public long getBytes() {
+        return mStream.getTotalBytes();
+    }
+
+    public void tearDown() throws IOException {
+    }
+}
@@ -0,0 +1,208 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.YuvConverter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Runs the benchmarks and reports samples/s and MB/s.
+ * <p>
+ * Arguments, all optional:
+ * <pre>
+ * name,name...         only run these benchmarks
+ * --save file          store the results as a baseline
+ * --compare file       exit with 1 if any benchmark is slower than the baseline by more than the tolerance
+ * --tolerance percent  default 15
+ * </pre>
+ */
+public class Benchmarks {
+    private static final long WARMUP_NS = 2000000000L;
+    private static final long BATCH_NS = 200000000L;
+    private static final int BATCHES = 10;
+    private static final double DEFAULT_TOLERANCE = 15;
+
+    // 1080p30 at 8Mbps with a key frame every second, 5 minutes
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int FRAMES = 9000;
+    private static final float FPS = 30f;
+    private static final int BIT_RATE = 8000000;
+    private static final int GOP = 30;
+    private static final long SEED = 0x6d703466L;
+
+    static class Result {
+        final String mName;
+        final double mNsPerRun;
+        final double mSpread;
+        final double mSamplesPerSecond;
+        final double mMbPerSecond;
+
+        Result(final Benchmark benchmark, final double nsPerRun, final double spread) {
+            mName = benchmark.getName();
+            mNsPerRun = nsPerRun;
+            mSpread = spread;
+            mSamplesPerSecond = benchmark.getStream().getCount() * 1e9 / nsPerRun;
+            mMbPerSecond = benchmark.getBytes() * 1e3 / nsPerRun;
+        }
+    }
+
+    public static List<Benchmark> getBenchmarks() {
+        final SyntheticStream stream = new SyntheticStream(WIDTH, HEIGHT, FRAMES, FPS, BIT_RATE, GOP, 0, SEED);
+        final SyntheticStream bFrameStream = new SyntheticStream(WIDTH, HEIGHT, FRAMES, FPS, BIT_RATE, GOP, 2, SEED);
+        final ArrayList<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new SampleTableBenchmark(stream));
+        benchmarks.add(new SampleTableBenchmark("sampleTableSpill", stream, 0));
+        benchmarks.add(new SampleTimingBenchmark(bFrameStream));
+        benchmarks.add(new BufferCopyBenchmark(stream));
+        benchmarks.add(new Mp4WriterBenchmark(stream, false));
+        benchmarks.add(new Mp4WriterBenchmark(stream, true));
+        benchmarks.add(new Mp4WriterBenchmark("mp4Journaled", stream, false, 10000000L));
+        benchmarks.add(new FragmentedMp4WriterBenchmark(stream));
+        benchmarks.add(new TsWriterBenchmark(bFrameStream));
+        benchmarks.add(new ConcatBenchmark(stream));
+
+        // A second of raw frames, since each one is a full 1080p conversion
+        final SyntheticStream frames = new SyntheticStream(WIDTH, HEIGHT, (int)FPS, FPS, BIT_RATE, GOP, 0, SEED);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        benchmarks.add(new YuvConverterBenchmark("rgbaToNv12", frames, YuvConverter.FORMAT_NV12, cores));
+        benchmarks.add(new YuvConverterBenchmark("rgbaToI420", frames, YuvConverter.FORMAT_I420, cores));
+        benchmarks.add(new YuvConverterBenchmark("rgbaToNv12x1", frames, YuvConverter.FORMAT_NV12, 1));
+        return benchmarks;
+    }
+
+    /**
+     * Warm up, then time batches of runs
+     * @return the median batch
+     */
+    public static Result measure(final Benchmark benchmark) throws IOException {
+        benchmark.setUp();
+        try {
+            final long warmupEnd = System.nanoTime() + WARMUP_NS;
+            long runs = 0;
+            do {
+                benchmark.run();
+                runs++;
+            } while (System.nanoTime() < warmupEnd);
+            final int runsPerBatch = (int)Math.max(1, runs * BATCH_NS / WARMUP_NS);
+
+            final double[] nsPerRun = new double[BATCHES];
+            for (int b = 0; b < BATCHES; b++) {
+                final long start = System.nanoTime();
+                for (int r = 0; r < runsPerBatch; r++) {
+                    benchmark.run();
+                }
+                nsPerRun[b] = (System.nanoTime() - start) / (double)runsPerBatch;
+            }
+            Arrays.sort(nsPerRun);
+            final double median = nsPerRun[BATCHES / 2];
+            return new Result(benchmark, median, (nsPerRun[BATCHES - 1] - nsPerRun[0]) / median);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final HashSet<String> names = new HashSet<>();
+        File saveFile = null;
+        File compareFile = null;
+        double tolerance = DEFAULT_TOLERANCE;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--save":
+                    saveFile = new File(args[++i]);
+                    break;
+                case "--compare":
+                    compareFile = new File(args[++i]);
+                    break;
+                case "--tolerance":
+                    tolerance = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    names.addAll(Arrays.asList(args[i].split(",")));
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "%-16s %12s %10s %12s %8s",
+                "benchmark", "samples/s", "MB/s", "ms/run", "spread"));
+        final ArrayList<Result> results = new ArrayList<>();
+        for (Benchmark benchmark : getBenchmarks()) {
+            if (!names.isEmpty() && !names.contains(benchmark.getName())) {
+                continue;
+            }
+            final Result result = measure(benchmark);
+            results.add(result);
+            System.out.println(String.format(Locale.US, "%-16s %12.0f %10s %12.3f %7.1f%%",
+                    result.mName, result.mSamplesPerSecond,
+                    result.mMbPerSecond == 0 ? "-" : String.format(Locale.US, "%.1f", result.mMbPerSecond),
+                    result.mNsPerRun / 1e6, result.mSpread * 100));
+        }
+
+        if (saveFile != null) {
+            save(results, saveFile);
+        }
+        if (compareFile != null && !compare(results, compareFile, tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    private static void save(final List<Result> results, final File file) throws IOException {
+        final Properties properties = new Properties();
+        for (Result result : results) {
+            properties.setProperty(result.mName, Double.toString(result.mSamplesPerSecond));
+        }
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            properties.store(outputStream, "samples/s");
+        }
+    }
+
+    /**
+     * @return false if any benchmark regressed
+     */
+    private static boolean compare(final List<Result> results, final File file, final double tolerance)
+            throws IOException {
+        final Properties baseline = new Properties();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            baseline.load(inputStream);
+        }
+        boolean passed = true;
+        for (Result result : results) {
+            final String value = baseline.getProperty(result.mName);
+            if (value == null) {
+                continue;
+            }
+            final double change = (result.mSamplesPerSecond / Double.parseDouble(value) - 1) * 100;
+            final boolean regressed = change < -tolerance;
+            System.out.println(String.format(Locale.US, "%-16s %+7.1f%% %s", result.mName, change,
+                    regressed ? "REGRESSED" : "ok"));
+            passed &= !regressed;
+        }
+        return passed;
+    }
+}
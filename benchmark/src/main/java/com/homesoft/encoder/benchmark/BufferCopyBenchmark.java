@@ -0,0 +1,68 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.ByteBufferPool;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Copying codec output into a ring of pooled direct buffers, as PipelinedFrameMuxer does
+ * before handing frames to the I/O thread
+ */
+public class BufferCopyBenchmark extends Benchmark {
+    private static final int SLOTS = 8;
+
+    private final ByteBufferPool mPool = new ByteBufferPool(SLOTS);
+    private final ByteBuffer[] mSlots = new ByteBuffer[SLOTS];
+
+    public BufferCopyBenchmark(final SyntheticStream stream) {
+        super("bufferCopy", stream);
+    }
+
+    @Override
+    public void setUp() {
+        final int slotCapacity = (int)Math.max(64 * 1024, mStream.getTotalBytes() / mStream.getCount() * 4);
+        for (int i = 0; i < SLOTS; i++) {
+            mSlots[i] = mPool.acquire(slotCapacity);
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < mStream.getCount(); i++) {
+            final ByteBuffer sample = mStream.getSample(i, true);
+            final int slot = i % SLOTS;
+            if (mSlots[slot].capacity() < sample.remaining()) {
+                mPool.release(mSlots[slot]);
+                mSlots[slot] = mPool.acquire(sample.remaining());
+            }
+            final ByteBuffer copy = mSlots[slot];
+            copy.clear();
+            copy.put(sample);
+            copy.flip();
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        for (int i = 0; i < SLOTS; i++) {
+            mPool.release(mSlots[i]);
+            mSlots[i] = null;
+        }
+    }
+}
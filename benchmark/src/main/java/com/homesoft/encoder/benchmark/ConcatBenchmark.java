@@ -0,0 +1,101 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.Mp4Concatenator;
+import com.homesoft.encoder.mp4.Mp4Track;
+import com.homesoft.encoder.mp4.Mp4Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Joining key frame aligned MP4 chunks into one file, the last step of a parallel encode
+ */
+public class ConcatBenchmark extends Benchmark {
+    private static final int CHUNKS = 4;
+
+    private final File[] mChunks = new File[CHUNKS];
+    private File mFile;
+
+    public ConcatBenchmark(final SyntheticStream stream) {
+        super("concat", stream);
+    }
+
+    /**
+     * Write the stream as chunks of whole GOPs, each starting at time 0 as a chunk encoder would
+     */
+    @Override
+    public void setUp() throws IOException {
+        final int count = mStream.getCount();
+        int first = 0;
+        for (int c = 0; c < CHUNKS; c++) {
+            int end = c == CHUNKS - 1 ? count : Math.max(first + 1, count * (c + 1) / CHUNKS);
+            while (end < count && !mStream.isSync(end)) {
+                end++;
+            }
+            mChunks[c] = File.createTempFile("chunk" + c, ".mp4");
+            final Mp4Writer writer = new Mp4Writer(mChunks[c]);
+            try {
+                final Mp4Track track = writer.addTrack(new AvcSampleEntry(mStream.getWidth(), mStream.getHeight(),
+                        Collections.singletonList(SyntheticStream.SPS),
+                        Collections.singletonList(SyntheticStream.PPS)), mStream.getFrameUs());
+                writer.start();
+                for (int i = first; i < end; i++) {
+                    writer.writeSample(track, mStream.getSample(i, false),
+                            mStream.getPtsUs(i) - mStream.getPtsUs(first), mStream.isSync(i));
+                }
+                writer.finish();
+            } finally {
+                writer.close();
+            }
+            first = end;
+        }
+        mFile = File.createTempFile("benchmark", ".mp4");
+    }
+
+    @Override
+    public void run() throws IOException {
+        final Mp4Concatenator concatenator = new Mp4Concatenator();
+        try {
+            for (File chunk : mChunks) {
+                concatenator.addChunk(chunk);
+            }
+            final Mp4Writer writer = new Mp4Writer(mFile);
+            try {
+                final Mp4Track track = concatenator.addTrack(writer);
+                writer.start();
+                concatenator.writeAll(writer, track);
+                writer.finish();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            concatenator.close();
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        for (File chunk : mChunks) {
+            chunk.delete();
+        }
+        mFile.delete();
+    }
+}
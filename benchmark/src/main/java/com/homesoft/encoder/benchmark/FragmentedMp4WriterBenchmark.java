@@ -0,0 +1,64 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.FragmentedMp4Writer;
+import com.homesoft.encoder.mp4.Mp4Track;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writing a fragmented MP4 file with the default fragment duration
+ */
+public class FragmentedMp4WriterBenchmark extends Benchmark {
+    private File mFile;
+
+    public FragmentedMp4WriterBenchmark(final SyntheticStream stream) {
+        super("fragmentedMp4", stream);
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("benchmark", ".mp4");
+    }
+
+    @Override
+    public void run() throws IOException {
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(new FileOutputStream(mFile).getChannel());
+        try {
+            final Mp4Track track = writer.addTrack(new AvcSampleEntry(mStream.getWidth(), mStream.getHeight(),
+                    Collections.singletonList(SyntheticStream.SPS), Collections.singletonList(SyntheticStream.PPS)),
+                    mStream.getFrameUs());
+            writer.start();
+            for (int i = 0; i < mStream.getCount(); i++) {
+                writer.writeSample(track, mStream.getSample(i, false), mStream.getPtsUs(i), mStream.isSync(i));
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        mFile.delete();
+    }
+}
@@ -0,0 +1,85 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.Mp4Track;
+import com.homesoft.encoder.mp4.Mp4Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writing a progressive MP4 file, as the ISO muxer does, including the moov at the end
+ */
+public class Mp4WriterBenchmark extends Benchmark {
+    private final boolean mFaststart;
+    private final long mCheckpointIntervalUs;
+    private File mFile;
+    private File mJournal;
+
+    /**
+     * @param faststart reserve room for the moov before the mdat
+     */
+    public Mp4WriterBenchmark(final SyntheticStream stream, final boolean faststart) {
+        this(faststart ? "mp4Faststart" : "mp4Writer", stream, faststart, 0);
+    }
+
+    /**
+     * @param checkpointIntervalUs journal the sample index this often, 0 for no journal
+     */
+    public Mp4WriterBenchmark(final String name, final SyntheticStream stream, final boolean faststart,
+                              final long checkpointIntervalUs) {
+        super(name, stream);
+        mFaststart = faststart;
+        mCheckpointIntervalUs = checkpointIntervalUs;
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("benchmark", ".mp4");
+        mJournal = new File(mFile.getPath() + ".journal");
+    }
+
+    @Override
+    public void run() throws IOException {
+        final Mp4Writer writer = mCheckpointIntervalUs > 0 ?
+                Mp4Writer.openJournaled(mFile, mJournal, mCheckpointIntervalUs) : new Mp4Writer(mFile);
+        try {
+            if (mFaststart) {
+                writer.setMoovReserve(Mp4Writer.estimateMoovSize(mStream.getCount(), 0));
+            }
+            final Mp4Track track = writer.addTrack(new AvcSampleEntry(mStream.getWidth(), mStream.getHeight(),
+                    Collections.singletonList(SyntheticStream.SPS), Collections.singletonList(SyntheticStream.PPS)),
+                    mStream.getFrameUs());
+            writer.start();
+            for (int i = 0; i < mStream.getCount(); i++) {
+                writer.writeSample(track, mStream.getSample(i, false), mStream.getPtsUs(i), mStream.isSync(i));
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        mFile.delete();
+        mJournal.delete();
+    }
+}
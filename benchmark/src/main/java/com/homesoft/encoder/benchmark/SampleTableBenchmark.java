@@ -0,0 +1,60 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.mp4.SampleTable;
+
+import java.io.IOException;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Building the sample table, as the MP4 writer does for every sample
+ */
+public class SampleTableBenchmark extends Benchmark {
+    private final int mMemorySamples;
+    private long mOffset;
+
+    public SampleTableBenchmark(final SyntheticStream stream) {
+        this("sampleTable", stream, SampleTable.DEFAULT_MEMORY_SAMPLES);
+    }
+
+    /**
+     * @param memorySamples below the stream length to time spilling to disk
+     */
+    public SampleTableBenchmark(final String name, final SyntheticStream stream, final int memorySamples) {
+        super(name, stream);
+        mMemorySamples = memorySamples;
+    }
+
+    @Override
+    public void run() throws IOException {
+        final SampleTable sampleTable = new SampleTable(mMemorySamples, null);
+        long offset = 0;
+        for (int i = 0; i < mStream.getCount(); i++) {
+            final int size = mStream.getSize(i);
+            sampleTable.add(offset, size, mStream.getPtsUs(i), mStream.isSync(i));
+            offset += size;
+        }
+        // Keep the table from being optimized away
+        mOffset += sampleTable.getOffset(sampleTable.getCount() - 1);
+        sampleTable.release();
+    }
+
+    @Override
+    public long getBytes() {
+        return 0;
+    }
+}
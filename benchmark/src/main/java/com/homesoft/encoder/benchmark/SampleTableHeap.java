@@ -0,0 +1,142 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.mp4.AacSampleEntry;
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.Mp4Track;
+import com.homesoft.encoder.mp4.Mp4Writer;
+import com.homesoft.encoder.mp4.SampleTable;
+import com.homesoft.encoder.mp4.SampleTiming;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Locale;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Heap used by the sample table and its timing as a recording gets longer.
+ * <p>
+ * Builds tables of up to 24 hours of 60fps video with B-frames and exits with 1 if the heap grows
+ * past the in-memory part of the table, i.e. if it isn't flat once the table spills to disk.
+ * <p>
+ * Then writes files of the same lengths, with an audio sample after each video frame so every
+ * sample is a chunk of its own, and times {@link Mp4Writer#finish()}.  Run with a small heap
+ * (the sampleTableHeap task uses 128MB): a moov built in the heap reserved 48 bytes a sample and
+ * ran out at 12 hours, so this exits with 1 if finish() runs out of memory.
+ */
+public class SampleTableHeap {
+    private static final int[] HOURS = {1, 2, 6, 12, 24};
+    private static final float FPS = 60f;
+    private static final int GOP = 60;
+    private static final long SLACK_BYTES = 1024 * 1024;
+    // What the table cost before, as growing long[], long[], int[] and boolean[] arrays
+    private static final int ARRAY_BYTES_PER_SAMPLE = 21;
+
+    public static void main(final String[] args) throws IOException {
+        final SyntheticStream stream = new SyntheticStream(1920, 1080, GOP, FPS, 8000000, GOP, 2, 0);
+        final AvcSampleEntry sampleEntry = new AvcSampleEntry(stream.getWidth(), stream.getHeight(),
+                Collections.singletonList(SyntheticStream.SPS), Collections.singletonList(SyntheticStream.PPS));
+
+        System.out.println(String.format(Locale.US, "%-6s %10s %10s %10s %12s",
+                "hours", "samples", "spilled", "heap MB", "arrays MB"));
+        final long baseline = getUsedHeap();
+        long maxHeap = 0;
+        for (int hours : HOURS) {
+            final int count = (int)(hours * 3600 * FPS);
+            final Mp4Track track = new Mp4Track(1, sampleEntry, stream.getFrameUs());
+            final SampleTable sampleTable = track.getSampleTable();
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                // Repeat the GOP, B-frame reordering included
+                final int frame = i % GOP;
+                final long gopUs = (i - frame) * stream.getFrameUs();
+                final int size = stream.getSize(frame);
+                sampleTable.add(offset, size, gopUs + stream.getPtsUs(frame), stream.isSync(frame));
+                offset += size;
+            }
+            final SampleTiming timing = new SampleTiming(track);
+            final long heap = getUsedHeap() - baseline;
+            maxHeap = Math.max(maxHeap, heap);
+            System.out.println(String.format(Locale.US, "%-6d %10d %10d %10.1f %12.1f", hours, count,
+                    sampleTable.getSpilledCount(), heap / 1e6, count * (double)ARRAY_BYTES_PER_SAMPLE / 1e6));
+            timing.release();
+            sampleTable.release();
+        }
+
+        // 20 byte table records plus 8 byte sorted times, up to the in-memory sample limit
+        final long limit = SampleTable.DEFAULT_MEMORY_SAMPLES * 28L + SLACK_BYTES;
+        System.out.println(String.format(Locale.US, "max heap %.1f MB, limit %.1f MB", maxHeap / 1e6, limit / 1e6));
+        if (maxHeap > limit) {
+            System.exit(1);
+        }
+
+        System.out.println(String.format(Locale.US, "%-6s %10s %10s %10s",
+                "hours", "samples", "moov MB", "finish ms"));
+        for (int hours : HOURS) {
+            try {
+                finish(stream, sampleEntry, hours);
+            } catch (OutOfMemoryError e) {
+                System.out.println(hours + " hours: finish() ran out of heap");
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void finish(final SyntheticStream stream, final AvcSampleEntry sampleEntry, final int hours)
+            throws IOException {
+        final int frames = (int)(hours * 3600 * FPS);
+        final File file = File.createTempFile("heap", ".mp4");
+        try {
+            final Mp4Writer writer = new Mp4Writer(file);
+            final Mp4Track video = writer.addTrack(sampleEntry, stream.getFrameUs());
+            final Mp4Track audio = writer.addTrack(new AacSampleEntry(48000, 2,
+                    new byte[]{0x11, (byte)0x90}), stream.getFrameUs());
+            writer.start();
+            // The payload doesn't matter to the moov, keep the file small
+            final ByteBuffer sample = ByteBuffer.allocate(1);
+            for (int i = 0; i < frames; i++) {
+                final int frame = i % GOP;
+                final long gopUs = (i - frame) * stream.getFrameUs();
+                sample.clear();
+                writer.writeSample(video, sample, gopUs + stream.getPtsUs(frame), stream.isSync(frame));
+                sample.clear();
+                writer.writeSample(audio, sample, i * stream.getFrameUs(), true);
+            }
+            writer.flush();
+            final long mdatEnd = writer.getPosition();
+            final long start = System.nanoTime();
+            writer.finish();
+            final long finishNs = System.nanoTime() - start;
+            System.out.println(String.format(Locale.US, "%-6d %10d %10.1f %10d", hours, frames * 2,
+                    (file.length() - mdatEnd) / 1e6, finishNs / 1000000));
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,68 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.Mp4Track;
+import com.homesoft.encoder.mp4.SampleTable;
+import com.homesoft.encoder.mp4.SampleTiming;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Deriving decode times and composition offsets from presentation times, done once per track
+ * when the moov is written.  Use a stream with B-frames for the reordering case.
+ */
+public class SampleTimingBenchmark extends Benchmark {
+    private Mp4Track mTrack;
+    private long mDuration;
+
+    public SampleTimingBenchmark(final SyntheticStream stream) {
+        super("sampleTiming", stream);
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        final AvcSampleEntry sampleEntry = new AvcSampleEntry(mStream.getWidth(), mStream.getHeight(),
+                Collections.singletonList(SyntheticStream.SPS), Collections.singletonList(SyntheticStream.PPS));
+        mTrack = new Mp4Track(1, sampleEntry, mStream.getFrameUs());
+        final SampleTable sampleTable = mTrack.getSampleTable();
+        long offset = 0;
+        for (int i = 0; i < mStream.getCount(); i++) {
+            sampleTable.add(offset, mStream.getSize(i), mStream.getPtsUs(i), mStream.isSync(i));
+            offset += mStream.getSize(i);
+        }
+    }
+
+    @Override
+    public void run() {
+        final SampleTiming timing = new SampleTiming(mTrack);
+        mDuration += timing.getMediaDuration();
+        timing.release();
+    }
+
+    @Override
+    public void tearDown() {
+        mTrack.getSampleTable().release();
+    }
+
+    @Override
+    public long getBytes() {
+        return 0;
+    }
+}
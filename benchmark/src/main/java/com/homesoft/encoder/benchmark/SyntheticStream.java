@@ -0,0 +1,192 @@
+package com.homesoft.encoder.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Encoded H.264 frames as a hardware encoder would produce them, without the encoder.
+ * <p>
+ * Frame sizes average out to the bit rate, with key frames several times larger than the
+ * frames between them and some jitter.  With B-frames, frames are in decode order and
+ * presentation times are reordered like I P B B P B B.  The payload is a single NAL unit of
+ * filler, only the sizes, timestamps and flags are realistic.
+ */
+public class SyntheticStream {
+    // Relative frame sizes, typical of a camera or screen encode
+    private static final float KEY_FRAME_WEIGHT = 6f;
+    private static final float B_FRAME_WEIGHT = 0.5f;
+    private static final float JITTER = 0.25f;
+
+    private static final byte NAL_IDR = 0x65;
+    private static final byte NAL_SLICE = 0x41;
+
+    static final byte[] SPS = {0x67, 0x64, 0x00, 0x28, (byte)0xac, (byte)0xd9, 0x40, 0x78, 0x02, 0x27,
+            (byte)0xe5, (byte)0x84, 0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00, 0x03, 0x00, (byte)0xf0,
+            0x3c, 0x60, (byte)0xc6, 0x58};
+    static final byte[] PPS = {0x68, (byte)0xeb, (byte)0xe3, (byte)0xcb, 0x22, (byte)0xc0};
+
+    private final int mWidth;
+    private final int mHeight;
+    private final long mFrameUs;
+    private final int mBFrames;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final boolean[] mSync;
+    private final long mTotalBytes;
+    private final ByteBuffer mPayload;
+
+    /**
+     * @param gopFrames frames from one key frame to the next
+     * @param bFrames B-frames between reference frames, 0 for none
+     * @param seed the same seed gives the same stream
+     */
+    public SyntheticStream(final int width, final int height, final int frames, final float framesPerSecond,
+                           final int bitRate, final int gopFrames, final int bFrames, final long seed) {
+        mWidth = width;
+        mHeight = height;
+        mFrameUs = (long)(1000000 / framesPerSecond);
+        mBFrames = bFrames;
+        mSizes = new int[frames];
+        mPtsUs = new long[frames];
+        mSync = new boolean[frames];
+
+        final Random random = new Random(seed);
+        final float averageBytes = bitRate / 8f / framesPerSecond;
+        // Scale the weights so a whole GOP averages out to the bit rate
+        final int bPerGop = bFrames == 0 ? 0 : (gopFrames - 1) / (bFrames + 1) * bFrames;
+        final float gopWeight = KEY_FRAME_WEIGHT + B_FRAME_WEIGHT * bPerGop + (gopFrames - 1 - bPerGop);
+        final float unitBytes = averageBytes * gopFrames / gopWeight;
+
+        long totalBytes = 0;
+        int maxSize = 0;
+        for (int gopStart = 0; gopStart < frames; gopStart += gopFrames) {
+            final int gopLength = Math.min(gopFrames, frames - gopStart);
+            for (int i = 0; i < gopLength; i++) {
+                final int display = getDisplayIndex(i, gopLength);
+                final float weight;
+                if (i == 0) {
+                    weight = KEY_FRAME_WEIGHT;
+                } else if (display < i) {
+                    weight = B_FRAME_WEIGHT;
+                } else {
+                    weight = 1f;
+                }
+                final float jitter = 1f + (float)Math.max(-2, Math.min(2, random.nextGaussian())) * JITTER / 2;
+                final int size = Math.max(16, Math.round(unitBytes * weight * jitter));
+                final int frame = gopStart + i;
+                mSizes[frame] = size;
+                mSync[frame] = i == 0;
+                // Delay presentation by a frame with B-frames, so no frame is shown before it is decoded
+                mPtsUs[frame] = (gopStart + display + (bFrames == 0 ? 0 : 1)) * mFrameUs;
+                totalBytes += size;
+                maxSize = Math.max(maxSize, size);
+            }
+        }
+        mTotalBytes = totalBytes;
+        mPayload = ByteBuffer.allocateDirect(maxSize);
+        while (mPayload.hasRemaining()) {
+            mPayload.put((byte)random.nextInt());
+        }
+    }
+
+    /**
+     * @param i decode order index in the GOP
+     * @return display order index in the GOP
+     */
+    private int getDisplayIndex(final int i, final int gopLength) {
+        if (i == 0 || mBFrames == 0) {
+            return i;
+        }
+        final int group = (i - 1) / (mBFrames + 1);
+        final int groupStart = group * (mBFrames + 1);
+        final int anchor = groupStart + mBFrames + 1;
+        if (anchor >= gopLength) {
+            // Not enough frames left for a full group, the rest are P-frames
+            return i;
+        }
+        final int j = (i - 1) % (mBFrames + 1);
+        return j == 0 ? anchor : groupStart + j;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getFrameUs() {
+        return mFrameUs;
+    }
+
+    public int getCount() {
+        return mSizes.length;
+    }
+
+    public int getSize(final int frame) {
+        return mSizes[frame];
+    }
+
+    public long getPtsUs(final int frame) {
+        return mPtsUs[frame];
+    }
+
+    /**
+     * @return decode time, one frame apart
+     */
+    public long getDtsUs(final int frame) {
+        return frame * mFrameUs;
+    }
+
+    public boolean isSync(final int frame) {
+        return mSync[frame];
+    }
+
+    public boolean hasBFrames() {
+        return mBFrames > 0;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @param annexB start code prefixed, as MediaCodec outputs, otherwise 4 byte length prefixed as in MP4
+     * @return a shared direct buffer holding the frame from position to limit
+     */
+    public ByteBuffer getSample(final int frame, final boolean annexB) {
+        final int size = mSizes[frame];
+        mPayload.clear();
+        mPayload.putInt(annexB ? 1 : size - 4);
+        mPayload.put(mSync[frame] ? NAL_IDR : NAL_SLICE);
+        mPayload.position(0);
+        mPayload.limit(size);
+        return mPayload;
+    }
+
+    /**
+     * @return SPS and PPS with start codes, for {@link com.homesoft.encoder.ts.TsWriter}
+     */
+    public static byte[] getAnnexBParameterSets() {
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(8 + SPS.length + PPS.length);
+        byteBuffer.putInt(1).put(SPS).putInt(1).put(PPS);
+        return byteBuffer.array();
+    }
+}
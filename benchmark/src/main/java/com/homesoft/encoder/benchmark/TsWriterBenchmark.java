@@ -0,0 +1,60 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.ts.TsWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Packetizing into MPEG-TS, with decode times when the stream has B-frames
+ */
+public class TsWriterBenchmark extends Benchmark {
+    private File mFile;
+
+    public TsWriterBenchmark(final SyntheticStream stream) {
+        super("tsWriter", stream);
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("benchmark", ".ts");
+    }
+
+    @Override
+    public void run() throws IOException {
+        final TsWriter writer = new TsWriter(new FileOutputStream(mFile).getChannel());
+        try {
+            final int stream = writer.addVideoStream(TsWriter.STREAM_TYPE_H264,
+                    SyntheticStream.getAnnexBParameterSets());
+            final boolean bFrames = mStream.hasBFrames();
+            for (int i = 0; i < mStream.getCount(); i++) {
+                writer.writeSample(stream, mStream.getSample(i, true), mStream.getPtsUs(i),
+                        bFrames ? mStream.getDtsUs(i) : -1, mStream.isSync(i));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        mFile.delete();
+    }
+}
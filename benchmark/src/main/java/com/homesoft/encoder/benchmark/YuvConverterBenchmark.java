@@ -0,0 +1,104 @@
+package com.homesoft.encoder.benchmark;
+
+import com.homesoft.encoder.YuvConverter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Converting RGBA frames of the stream's size to NV12 or I420, as FrameEncoder does for
+ * EncoderConfig.INPUT_BUFFER.  Each sample is one frame.
+ */
+public class YuvConverterBenchmark extends Benchmark {
+    private final int mFormat;
+    private final int mThreads;
+
+    private YuvConverter mYuvConverter;
+    private ByteBuffer mRgba;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+
+    /**
+     * @param format {@link YuvConverter#FORMAT_NV12} or {@link YuvConverter#FORMAT_I420}
+     */
+    public YuvConverterBenchmark(final String name, final SyntheticStream stream, final int format, final int threads) {
+        super(name, stream);
+        mFormat = format;
+        mThreads = threads;
+    }
+
+    @Override
+    public void setUp() {
+        final int width = mStream.getWidth();
+        final int height = mStream.getHeight();
+        mYuvConverter = new YuvConverter(mThreads);
+        mRgba = ByteBuffer.allocateDirect(YuvConverter.getFrameSize(YuvConverter.FORMAT_RGBA, width, height));
+        final Random random = new Random(width * height);
+        while (mRgba.remaining() >= 8) {
+            mRgba.putLong(random.nextLong());
+        }
+
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaSize = chromaWidth * ((height + 1) / 2);
+        final ByteBuffer yuv = ByteBuffer.allocateDirect(width * height + chromaSize * 2).order(ByteOrder.nativeOrder());
+        mY = yuv;
+        if (mFormat == YuvConverter.FORMAT_NV12) {
+            mU = slice(yuv, width * height);
+            mV = slice(yuv, width * height + 1);
+            mUvRowStride = chromaWidth * 2;
+            mUvPixelStride = 2;
+        } else {
+            mU = slice(yuv, width * height);
+            mV = slice(yuv, width * height + chromaSize);
+            mUvRowStride = chromaWidth;
+            mUvPixelStride = 1;
+        }
+    }
+
+    private static ByteBuffer slice(final ByteBuffer byteBuffer, final int offset) {
+        final ByteBuffer duplicate = byteBuffer.duplicate();
+        duplicate.position(offset);
+        return duplicate.slice().order(byteBuffer.order());
+    }
+
+    @Override
+    public void run() {
+        final int width = mStream.getWidth();
+        final int height = mStream.getHeight();
+        for (int i = 0; i < mStream.getCount(); i++) {
+            mYuvConverter.convert(mRgba, YuvConverter.FORMAT_RGBA, width, height,
+                    mY, width, mU, mV, mUvRowStride, mUvPixelStride);
+        }
+    }
+
+    @Override
+    public long getBytes() {
+        return (long)mStream.getCount() * mRgba.capacity();
+    }
+
+    @Override
+    public void tearDown() {
+        mYuvConverter.close();
+        mYuvConverter = null;
+    }
+}
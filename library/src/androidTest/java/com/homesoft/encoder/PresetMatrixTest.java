@@ -0,0 +1,295 @@
+package com.homesoft.encoder;
+
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * File size vs quality of the encoder presets on the device's default AVC encoder.
+ * <p>
+ * A synthetic scene is fed as I420 frames, so the reference luma is exact.  Each file is decoded
+ * back and compared with the reference for the Y PSNR.  Presets the encoder rejects are skipped.
+ * The matrix is logged, e.g. adb logcat -s PresetMatrixTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class PresetMatrixTest {
+    private static final String TAG = PresetMatrixTest.class.getSimpleName();
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final float FPS = 30f;
+    private static final int FRAMES = 90;
+    private static final int[] BIT_RATES = {1000000, 4000000};
+    private static final long TIMEOUT_US = 10000;
+
+    private abstract static class Preset {
+        final String mName;
+
+        Preset(final String name) {
+            mName = name;
+        }
+
+        abstract void apply(final EncoderConfig config);
+    }
+
+    private static List<Preset> getPresets() {
+        final List<Preset> presets = new ArrayList<>();
+        presets.add(new Preset("all key") {
+            @Override
+            void apply(EncoderConfig config) {
+                config.setKeyFrameInterval(0f);
+            }
+        });
+        presets.add(new Preset("gop 1s") {
+            @Override
+            void apply(EncoderConfig config) {
+                config.setKeyFrameInterval(1f);
+            }
+        });
+        presets.add(new Preset("gop 5s") {
+            @Override
+            void apply(EncoderConfig config) {
+                config.setKeyFrameInterval(5f);
+            }
+        });
+        presets.add(new Preset("gop 1s cbr") {
+            @Override
+            void apply(EncoderConfig config) {
+                config.setKeyFrameInterval(1f).setBitrateMode(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+            }
+        });
+        presets.add(new Preset("gop 1s vbr") {
+            @Override
+            void apply(EncoderConfig config) {
+                config.setKeyFrameInterval(1f).setBitrateMode(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+            }
+        });
+        presets.add(new Preset("gop 1s high") {
+            @Override
+            void apply(EncoderConfig config) {
+                config.setKeyFrameInterval(1f).setProfileLevel(MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                        EncoderConfig.CODEC_DEFAULT);
+            }
+        });
+        presets.add(new Preset("gop 1s b2") {
+            @Override
+            void apply(EncoderConfig config) {
+                config.setKeyFrameInterval(1f).setProfileLevel(MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                        EncoderConfig.CODEC_DEFAULT).setMaxBFrames(2);
+            }
+        });
+        return presets;
+    }
+
+    /**
+     * Moving gradient with a textured square crossing it, and flat chroma
+     */
+    private static void drawFrame(final int frame, final ByteBuffer i420, final byte[] luma) {
+        final int squareX = frame * 4 % (WIDTH - 128);
+        final int squareY = HEIGHT / 4 + (int)(Math.sin(frame / 10.0) * HEIGHT / 8);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = 16 + ((x + y + frame * 2) & 0x7f);
+                if (x >= squareX && x < squareX + 128 && y >= squareY && y < squareY + 128) {
+                    // Fine texture, so the bit rate matters
+                    value = ((x ^ y) & 8) == 0 ? 40 + (x * 7 + y * 13) % 60 : 200 - (x * 5 + y * 3) % 50;
+                }
+                luma[y * WIDTH + x] = (byte)value;
+            }
+        }
+        i420.clear();
+        i420.put(luma);
+        final int chromaSize = WIDTH * HEIGHT / 4;
+        for (int i = 0; i < chromaSize * 2; i++) {
+            i420.put((byte)(i < chromaSize ? 110 : 140));
+        }
+        i420.flip();
+    }
+
+    private static byte[][] encode(final EncoderConfig config) throws IOException {
+        final byte[][] reference = new byte[FRAMES][WIDTH * HEIGHT];
+        final ByteBuffer i420 = ByteBuffer.allocateDirect(
+                YuvConverter.getFrameSize(YuvConverter.FORMAT_I420, WIDTH, HEIGHT));
+        final FrameEncoder frameEncoder = new FrameEncoder(config);
+        try {
+            frameEncoder.start();
+            for (int i = 0; i < FRAMES; i++) {
+                drawFrame(i, i420, reference[i]);
+                frameEncoder.createFrame(i420, YuvConverter.FORMAT_I420);
+            }
+        } finally {
+            frameEncoder.release();
+        }
+        return reference;
+    }
+
+    /**
+     * @return mean Y PSNR of the decoded frames, and the number of frames decoded
+     */
+    private static double[] measurePsnr(final File file, final byte[][] reference) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        try {
+            extractor.setDataSource(file.getPath());
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                final MediaFormat trackFormat = extractor.getTrackFormat(i);
+                if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                }
+            }
+            assertTrue("No video track in " + file, format != null);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+
+            final long frameUs = FrameEncoder.getFrameTime(FPS);
+            final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            double psnrSum = 0;
+            int frames = 0;
+            while (true) {
+                if (!inputDone) {
+                    final int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        final int size = extractor.readSampleData(decoder.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                final int index = decoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_US);
+                if (index < 0) {
+                    continue;
+                }
+                if (bufferInfo.size > 0) {
+                    final Image image = decoder.getOutputImage(index);
+                    final int frame = (int)((bufferInfo.presentationTimeUs + frameUs / 2) / frameUs);
+                    psnrSum += psnr(image, reference[frame]);
+                    image.close();
+                    frames++;
+                }
+                decoder.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+            return new double[] {frames == 0 ? 0 : psnrSum / frames, frames};
+        } finally {
+            if (decoder != null) {
+                decoder.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private static double psnr(final Image image, final byte[] luma) {
+        final Image.Plane plane = image.getPlanes()[0];
+        final ByteBuffer buffer = plane.getBuffer();
+        final int rowStride = plane.getRowStride();
+        final int pixelStride = plane.getPixelStride();
+        final Rect crop = image.getCropRect();
+        long squaredError = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            final int row = (crop.top + y) * rowStride + crop.left * pixelStride;
+            for (int x = 0; x < WIDTH; x++) {
+                final int error = (buffer.get(row + x * pixelStride) & 0xff) - (luma[y * WIDTH + x] & 0xff);
+                squaredError += error * error;
+            }
+        }
+        if (squaredError == 0) {
+            return 100;
+        }
+        final double mse = squaredError / (double)(WIDTH * HEIGHT);
+        return 10 * Math.log10(255 * 255 / mse);
+    }
+
+    @Test
+    public void sizeVsQuality() throws IOException {
+        // Raw frames and decoder Images need API 21
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+        final File dir = InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir();
+        final File file = new File(dir, "preset.mp4");
+        final StringBuilder matrix = new StringBuilder("\npreset        kbit/s  target   kB     Y PSNR  encode ms");
+        int measured = 0;
+        try {
+            for (int bitRate : BIT_RATES) {
+                for (Preset preset : getPresets()) {
+                    file.delete();
+                    final EncoderConfig config = new AvcEncoderConfig(file.getPath(), WIDTH, HEIGHT, FPS, bitRate, "")
+                            .setMuxer(EncoderConfig.MUXER_ISO)
+                            .setInputMode(EncoderConfig.INPUT_BUFFER);
+                    preset.apply(config);
+                    final long start = System.nanoTime();
+                    final byte[][] reference;
+                    try {
+                        reference = encode(config);
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        // Rejected by validate() or by the codec's configure()
+                        matrix.append(String.format(Locale.US, "\n%-12s %7d  unsupported: %s", preset.mName,
+                                bitRate / 1000, e.getMessage()));
+                        continue;
+                    }
+                    final long encodeMs = (System.nanoTime() - start) / 1000000;
+                    final double[] psnr = measurePsnr(file, reference);
+                    assertEquals(preset.mName + " frames", FRAMES, (int)psnr[1]);
+                    final long bytes = file.length();
+                    final long kbps = bytes * 8 * (long)FPS / FRAMES / 1000;
+                    matrix.append(String.format(Locale.US, "\n%-12s %7d %7d %6d %8.2f %10d", preset.mName,
+                            kbps, bitRate / 1000, bytes / 1024, psnr[0], encodeMs));
+                    assertTrue(preset.mName + " PSNR " + psnr[0], psnr[0] > 20);
+                    measured++;
+                }
+            }
+        } finally {
+            file.delete();
+            Log.i(TAG, matrix.toString());
+        }
+        assertFalse("No preset was supported", measured == 0);
+    }
+}
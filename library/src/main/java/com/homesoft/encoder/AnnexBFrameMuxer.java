@@ -0,0 +1,116 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes the raw H.264/H.265 elementary stream (Annex-B), no container.
+ * The parameter sets are repeated before each key frame, so playback can start at any of them.
+ * There is no audio.
+ */
+public class AnnexBFrameMuxer implements FrameMuxer {
+    private static final String TAG = AnnexBFrameMuxer.class.getSimpleName();
+
+    /**
+     * Writes to {@link EncoderConfig#getPath()}
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public FrameMuxer createFrameMuxer(EncoderConfig encoderConfig) throws IOException {
+            return new AnnexBFrameMuxer(new FileOutputStream(encoderConfig.getPath()).getChannel());
+        }
+    };
+
+    private final WritableByteChannel mChannel;
+    private ByteBuffer mParameterSets;
+    private long mBytesWritten;
+
+    public AnnexBFrameMuxer(final OutputStream outputStream) {
+        this(Channels.newChannel(outputStream));
+    }
+
+    public AnnexBFrameMuxer(final WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mParameterSets != null;
+    }
+
+    @Override
+    public void start(FrameEncoder frameEncoder) {
+        final MediaFormat format = frameEncoder.getOutputFormat();
+        // AVC has SPS and PPS in csd-0 and csd-1, HEVC has VPS, SPS and PPS in csd-0
+        final ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        final ByteBuffer csd1 = format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null;
+        mParameterSets = ByteBuffer.allocate(csd0.remaining() + (csd1 == null ? 0 : csd1.remaining()));
+        mParameterSets.put(csd0.duplicate());
+        if (csd1 != null) {
+            mParameterSets.put(csd1.duplicate());
+        }
+        mParameterSets.flip();
+    }
+
+    @Override
+    public void copyAudio() {
+        // No audio in an elementary stream
+    }
+
+    @Override
+    public void muxVideoFrame(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        byteBuffer.position(bufferInfo.offset);
+        byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+        try {
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                write(mParameterSets.duplicate());
+            }
+            write(byteBuffer);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write video frame", e);
+        }
+    }
+
+    private void write(final ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(byteBuffer);
+        }
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void release() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close", e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.homesoft.encoder;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The audio track for a video: one or more files, mixed and trimmed to the video.
+ * <p>
+ * A single AAC file at full volume is copied unchanged.  Anything else (several files, a gain,
+ * or a codec the muxers can't take, like MP3 or Opus) is decoded, mixed and re-encoded to AAC-LC
+ * with MediaCodec as the video is encoded.
+ */
+public class AudioConfig {
+    private static final String TAG = AudioConfig.class.getSimpleName();
+
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    public static final int DEFAULT_CHANNEL_COUNT = 2;
+    public static final int DEFAULT_BIT_RATE = 128000;
+
+    /**
+     * An audio file in the mix
+     */
+    public static class Source {
+        private final String mPath;
+        private final float mGain;
+
+        Source(final String path, final float gain) {
+            mPath = path;
+            mGain = gain;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public float getGain() {
+            return mGain;
+        }
+    }
+
+    private final ArrayList<Source> mSources = new ArrayList<>();
+    private boolean mTranscode;
+    private boolean mTrimToVideo = true;
+    private int mSampleRate = DEFAULT_SAMPLE_RATE;
+    private int mChannelCount = DEFAULT_CHANNEL_COUNT;
+    private int mBitRate = DEFAULT_BIT_RATE;
+
+    public AudioConfig() {
+    }
+
+    public AudioConfig(final String path) {
+        addSource(path);
+    }
+
+    /**
+     * @return a config for the path, or null if it is empty
+     */
+    static AudioConfig fromPath(final String path) {
+        return path == null || path.length() == 0 ? null : new AudioConfig(path);
+    }
+
+    public AudioConfig addSource(final String path) {
+        return addSource(path, 1f);
+    }
+
+    /**
+     * Mix in the first audio track of a file
+     * @param gain 1 for unchanged.  Mixes that add up to more than full scale are clipped.
+     */
+    public AudioConfig addSource(final String path, final float gain) {
+        if (gain < 0f) {
+            throw new IllegalArgumentException("Gain can't be negative: " + gain);
+        }
+        mSources.add(new Source(path, gain));
+        return this;
+    }
+
+    public List<Source> getSources() {
+        return Collections.unmodifiableList(mSources);
+    }
+
+    /**
+     * Re-encode even a single AAC source, i.e. to change its sample rate or bit rate
+     */
+    public AudioConfig setTranscode(final boolean transcode) {
+        mTranscode = transcode;
+        return this;
+    }
+
+    public boolean isTranscode() {
+        return mTranscode;
+    }
+
+    /**
+     * End the audio with the last video frame, rather than letting a longer file run on.  On by default.
+     */
+    public AudioConfig setTrimToVideo(final boolean trimToVideo) {
+        mTrimToVideo = trimToVideo;
+        return this;
+    }
+
+    public boolean isTrimToVideo() {
+        return mTrimToVideo;
+    }
+
+    /**
+     * Output format when re-encoding, sources are resampled to it
+     */
+    public AudioConfig setFormat(final int sampleRate, final int channelCount, final int bitRate) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mBitRate = bitRate;
+        return this;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * @param frameUsec duration of the last video frame, 0 if unknown
+     */
+    AudioSource createAudioSource(final long frameUsec) throws IOException {
+        if (mSources.isEmpty()) {
+            throw new IOException("No audio sources");
+        }
+        if (mSources.size() == 1 && !mTranscode && mSources.get(0).getGain() == 1f) {
+            final AudioPassthrough passthrough = new AudioPassthrough(mSources.get(0).getPath(), frameUsec, mTrimToVideo);
+            final String mime = passthrough.getFormat().getString(MediaFormat.KEY_MIME);
+            if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+                return passthrough;
+            }
+            passthrough.release();
+            Log.d(TAG, "Transcoding " + mime + " to AAC");
+        }
+        return new AudioTranscoder(this, frameUsec);
+    }
+}
@@ -0,0 +1,112 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Copies the first audio track of a file into a muxer unchanged.
+ * <p>
+ * Samples are read into a pooled direct buffer and handed out in timestamp order, so the muxer
+ * can interleave them with the video as it is encoded instead of copying it all at the end.
+ * Trimming cuts at the first sample that starts after the video, so it is accurate to a frame
+ * of audio (about 23ms for AAC at 44.1kHz).
+ */
+class AudioPassthrough extends AudioSource {
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 64 * 1024;
+
+    private final MediaExtractor mExtractor;
+    private final MediaFormat mFormat;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer mBuffer;
+
+    AudioPassthrough(final String path, final long frameUsec, final boolean trim) throws IOException {
+        super(frameUsec, trim);
+        mExtractor = new MediaExtractor();
+        final int track;
+        try {
+            mExtractor.setDataSource(path);
+            track = selectAudioTrack(mExtractor);
+        } catch (IOException e) {
+            mExtractor.release();
+            throw e;
+        }
+        mFormat = mExtractor.getTrackFormat(track);
+        mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        final int maxSampleSize = mFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                mFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_MAX_SAMPLE_SIZE;
+        mBuffer = ByteBufferPool.getShared().acquire(maxSampleSize);
+    }
+
+    /**
+     * Select the first audio track
+     * @return its index
+     * @throws IOException if there is none
+     */
+    static int selectAudioTrack(final MediaExtractor extractor) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return i;
+            }
+        }
+        throw new IOException("No audio track");
+    }
+
+    @Override
+    MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    void write(final long untilUs, final Writer writer) {
+        while (true) {
+            final long sampleTime = mExtractor.getSampleTime();
+            if (sampleTime < 0 || sampleTime >= untilUs) {
+                break;
+            }
+            final int size = mExtractor.readSampleData(mBuffer, 0);
+            if (size < 0) {
+                break;
+            }
+            mBuffer.position(0).limit(size);
+            mBufferInfo.set(0, size, sampleTime, mExtractor.getSampleFlags());
+            writer.writeAudioSample(mBuffer, mBufferInfo);
+            mExtractor.advance();
+        }
+    }
+
+    @Override
+    void writeRemaining(final long endUs, final Writer writer) {
+        write(endUs, writer);
+    }
+
+    @Override
+    void release() {
+        mExtractor.release();
+        if (mBuffer != null) {
+            ByteBufferPool.getShared().release(mBuffer);
+            mBuffer = null;
+        }
+    }
+}
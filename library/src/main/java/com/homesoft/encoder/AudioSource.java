@@ -0,0 +1,101 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * AAC samples for a muxer's audio track, handed out in timestamp order as the video is muxed.
+ * <p>
+ * Tracks the video times passed to {@link #writeUntil(long, Writer)}, so {@link #finish(Writer)}
+ * can end the audio with the video.
+ */
+abstract class AudioSource {
+    interface Writer {
+        void writeAudioSample(final ByteBuffer byteBuffer, final MediaCodec.BufferInfo bufferInfo);
+    }
+
+    private final long mFrameUsec;
+    private final boolean mTrim;
+    private long mLastVideoPtsUs = -1;
+    private long mVideoDeltaUs;
+
+    /**
+     * @param frameUsec duration of the last video frame, 0 to take it from the frames before
+     * @param trim end the audio with the video
+     */
+    AudioSource(final long frameUsec, final boolean trim) {
+        mFrameUsec = frameUsec;
+        mTrim = trim;
+    }
+
+    /**
+     * @return the track's format, AAC with its csd-0
+     */
+    abstract MediaFormat getFormat();
+
+    /**
+     * Write the samples that start before untilUs
+     */
+    abstract void write(final long untilUs, final Writer writer);
+
+    /**
+     * Write the rest of the samples, cut at endUs
+     * @param endUs Long.MAX_VALUE for all of them
+     */
+    abstract void writeRemaining(final long endUs, final Writer writer);
+
+    abstract void release();
+
+    /**
+     * Drop the samples that start before untilUs, i.e. those already in a resumed file
+     */
+    void skip(final long untilUs) {
+        write(untilUs, new Writer() {
+            @Override
+            public void writeAudioSample(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+            }
+        });
+    }
+
+    /**
+     * Write all samples with a timestamp up to and including the video frame's
+     */
+    void writeUntil(final long videoPtsUs, final Writer writer) {
+        if (videoPtsUs > mLastVideoPtsUs) {
+            if (mLastVideoPtsUs >= 0) {
+                mVideoDeltaUs = videoPtsUs - mLastVideoPtsUs;
+            }
+            mLastVideoPtsUs = videoPtsUs;
+        }
+        write(videoPtsUs + 1, writer);
+    }
+
+    /**
+     * Write the rest of the audio, up to the end of the last video frame if trimming
+     */
+    void finish(final Writer writer) {
+        long endUs = Long.MAX_VALUE;
+        if (mTrim && mLastVideoPtsUs >= 0) {
+            endUs = mLastVideoPtsUs + (mFrameUsec > 0 ? mFrameUsec : mVideoDeltaUs);
+        }
+        writeRemaining(endUs, writer);
+    }
+}
@@ -0,0 +1,383 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.homesoft.encoder.audio.PcmMixer;
+import com.homesoft.encoder.audio.PcmResampler;
+import com.homesoft.encoder.mp4.AacSampleEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Decodes one or more audio files, mixes them and encodes the mix to AAC-LC, as the video is muxed.
+ * <p>
+ * Each source is decoded to 16 bit PCM and resampled to the output format into a pooled buffer,
+ * then the sources are mixed into the encoder's input a chunk of {@link #AAC_SAMPLES_PER_FRAME}
+ * frames at a time.  Only a chunk or so is decoded ahead of the video.  Trimming cuts the mix at the
+ * exact sample the video ends, with a short fade out.
+ */
+class AudioTranscoder extends AudioSource {
+    private static final String TAG = AudioTranscoder.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    static final int AAC_SAMPLES_PER_FRAME = 1024;
+    private static final long TIMEOUT_USEC = 10000;
+    private static final int FADE_MS = 10;
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final MediaFormat mFormat;
+    private final Input[] mInputs;
+    private final PcmMixer mMixer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaCodec mEncoder;
+    // Before API 21
+    private ByteBuffer[] mEncoderInputBuffers;
+    private ByteBuffer[] mEncoderOutputBuffers;
+
+    private boolean mEndOfInput;
+    private boolean mEndOfStream;
+
+    /**
+     * One decoded source
+     */
+    private static class Input {
+        final float mGain;
+        final MediaExtractor mExtractor = new MediaExtractor();
+        final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        MediaCodec mDecoder;
+        ByteBuffer[] mInputBuffers;
+        ByteBuffer[] mOutputBuffers;
+        PcmResampler mResampler;
+
+        // Resampled PCM waiting to be mixed, in write mode
+        ByteBuffer mPcmBuffer;
+        ShortBuffer mPcm;
+
+        // Decoder output not resampled yet
+        int mOutputIndex = -1;
+        ShortBuffer mOutput;
+
+        boolean mExtractorDone;
+        boolean mDecoderDone;
+
+        Input(final float gain) {
+            mGain = gain;
+        }
+
+        boolean isDone() {
+            return mDecoderDone && mOutput == null;
+        }
+
+        void release() {
+            if (mDecoder != null) {
+                try {
+                    mDecoder.stop();
+                } catch (IllegalStateException e) {
+                    // Never started
+                }
+                mDecoder.release();
+                mDecoder = null;
+            }
+            mExtractor.release();
+            if (mPcmBuffer != null) {
+                ByteBufferPool.getShared().release(mPcmBuffer);
+                mPcmBuffer = null;
+            }
+        }
+    }
+
+    AudioTranscoder(final AudioConfig audioConfig, final long frameUsec) throws IOException {
+        super(frameUsec, audioConfig.isTrimToVideo());
+        mSampleRate = audioConfig.getSampleRate();
+        mChannelCount = audioConfig.getChannelCount();
+        mMixer = new PcmMixer(mChannelCount, AAC_SAMPLES_PER_FRAME);
+        final int chunkBytes = AAC_SAMPLES_PER_FRAME * mChannelCount * 2;
+
+        mFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, mSampleRate, mChannelCount);
+        mFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioConfig.getBitRate());
+        // The muxers need csd-0 before the encoder has made any, it is the same for AAC-LC
+        mFormat.setByteBuffer("csd-0",
+                ByteBuffer.wrap(AacSampleEntry.createAudioSpecificConfig(mSampleRate, mChannelCount)));
+
+        final List<AudioConfig.Source> sources = audioConfig.getSources();
+        mInputs = new Input[sources.size()];
+        try {
+            for (int i = 0; i < mInputs.length; i++) {
+                final AudioConfig.Source source = sources.get(i);
+                mInputs[i] = new Input(source.getGain());
+                openInput(mInputs[i], source.getPath(), chunkBytes);
+            }
+
+            final MediaFormat encoderFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                    mSampleRate, mChannelCount);
+            encoderFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioConfig.getBitRate());
+            encoderFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, chunkBytes);
+            mEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            mEncoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoder.start();
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                mEncoderInputBuffers = mEncoder.getInputBuffers();
+                mEncoderOutputBuffers = mEncoder.getOutputBuffers();
+            }
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void openInput(final Input input, final String path, final int chunkBytes) throws IOException {
+        input.mExtractor.setDataSource(path);
+        final int track = AudioPassthrough.selectAudioTrack(input.mExtractor);
+        final MediaFormat format = input.mExtractor.getTrackFormat(track);
+        input.mResampler = createResampler(format);
+        input.mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        input.mDecoder.configure(format, null, null, 0);
+        input.mDecoder.start();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            input.mInputBuffers = input.mDecoder.getInputBuffers();
+            input.mOutputBuffers = input.mDecoder.getOutputBuffers();
+        }
+        // Room for a chunk to mix and the one being resampled
+        input.mPcmBuffer = ByteBufferPool.getShared().acquire(chunkBytes * 2);
+        input.mPcmBuffer.order(ByteOrder.nativeOrder());
+        input.mPcm = input.mPcmBuffer.asShortBuffer();
+    }
+
+    private PcmResampler createResampler(final MediaFormat format) {
+        return new PcmResampler(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), mSampleRate, mChannelCount);
+    }
+
+    @Override
+    MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    void write(final long untilUs, final Writer writer) {
+        encode(PcmMixer.toFrames(untilUs, mSampleRate), writer);
+        drainEncoder(false, writer);
+    }
+
+    @Override
+    void writeRemaining(final long endUs, final Writer writer) {
+        if (endUs != Long.MAX_VALUE) {
+            mMixer.setEnd(PcmMixer.toFrames(endUs, mSampleRate), mSampleRate * FADE_MS / 1000);
+        }
+        encode(Long.MAX_VALUE, writer);
+        if (!mEndOfInput) {
+            signalEndOfInput(writer);
+        }
+        drainEncoder(true, writer);
+    }
+
+    /**
+     * Mix and queue chunks until the mix reaches untilFrame, the end, or the sources run out
+     */
+    private void encode(final long untilFrame, final Writer writer) {
+        while (!mEndOfInput && mMixer.getPosition() < untilFrame) {
+            int available = 0;
+            for (Input input : mInputs) {
+                fill(input, AAC_SAMPLES_PER_FRAME);
+                available = Math.max(available, input.mPcm.position() / mChannelCount);
+            }
+            if (available == 0 || mMixer.isEnded()) {
+                signalEndOfInput(writer);
+                break;
+            }
+            final int index = dequeueEncoderInput(writer);
+            final ByteBuffer inputBuffer = getEncoderInputBuffer(index);
+            inputBuffer.clear();
+            final ShortBuffer pcm = inputBuffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+            final long ptsUs = PcmMixer.toTimeUs(mMixer.getPosition(), mSampleRate);
+            mMixer.begin(available);
+            for (Input input : mInputs) {
+                input.mPcm.flip();
+                mMixer.add(input.mPcm, input.mGain);
+                input.mPcm.compact();
+            }
+            final int frames = mMixer.end(pcm);
+            mEncoder.queueInputBuffer(index, 0, frames * mChannelCount * 2, ptsUs, 0);
+            drainEncoder(false, writer);
+        }
+    }
+
+    /**
+     * Decode and resample until the input has frames ready to mix, or has ended
+     */
+    private void fill(final Input input, final int frames) {
+        final int samples = frames * mChannelCount;
+        while (input.mPcm.position() < samples && !input.isDone()) {
+            if (input.mOutput != null) {
+                input.mResampler.resample(input.mOutput, input.mPcm);
+                if (input.mOutput.remaining() < input.mResampler.getInChannels()) {
+                    input.mDecoder.releaseOutputBuffer(input.mOutputIndex, false);
+                    input.mOutput = null;
+                    input.mOutputIndex = -1;
+                    if (input.mDecoderDone) {
+                        input.mResampler.flush(input.mPcm);
+                    }
+                }
+                continue;
+            }
+            queueDecoderInput(input);
+            dequeueDecoderOutput(input);
+        }
+    }
+
+    private void queueDecoderInput(final Input input) {
+        if (input.mExtractorDone) {
+            return;
+        }
+        final int index = input.mDecoder.dequeueInputBuffer(0);
+        if (index < 0) {
+            return;
+        }
+        final ByteBuffer inputBuffer = input.mInputBuffers == null ?
+                input.mDecoder.getInputBuffer(index) : input.mInputBuffers[index];
+        inputBuffer.clear();
+        final int size = input.mExtractor.readSampleData(inputBuffer, 0);
+        if (size < 0) {
+            input.mDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            input.mExtractorDone = true;
+        } else {
+            input.mDecoder.queueInputBuffer(index, 0, size, input.mExtractor.getSampleTime(), 0);
+            input.mExtractor.advance();
+        }
+    }
+
+    private void dequeueDecoderOutput(final Input input) {
+        final MediaCodec.BufferInfo bufferInfo = input.mBufferInfo;
+        final int index = input.mDecoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            final MediaFormat format = input.mDecoder.getOutputFormat();
+            if (VERBOSE) Log.d(TAG, "decoder output format " + format);
+            final PcmResampler resampler = input.mResampler;
+            if (resampler.getInRate() != format.getInteger(MediaFormat.KEY_SAMPLE_RATE) ||
+                    resampler.getInChannels() != format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)) {
+                input.mResampler = createResampler(format);
+            }
+        } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            if (input.mOutputBuffers != null) {
+                input.mOutputBuffers = input.mDecoder.getOutputBuffers();
+            }
+        } else if (index >= 0) {
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                input.mDecoderDone = true;
+            }
+            if (bufferInfo.size > 0) {
+                final ByteBuffer outputBuffer = input.mOutputBuffers == null ?
+                        input.mDecoder.getOutputBuffer(index) : input.mOutputBuffers[index];
+                outputBuffer.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+                input.mOutput = outputBuffer.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+                input.mOutputIndex = index;
+            } else {
+                input.mDecoder.releaseOutputBuffer(index, false);
+                if (input.mDecoderDone) {
+                    input.mResampler.flush(input.mPcm);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer getEncoderInputBuffer(final int index) {
+        return mEncoderInputBuffers == null ? mEncoder.getInputBuffer(index) : mEncoderInputBuffers[index];
+    }
+
+    /**
+     * Waits for an encoder input buffer, writing encoded output to make room
+     */
+    private int dequeueEncoderInput(final Writer writer) {
+        while (true) {
+            final int index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index >= 0) {
+                return index;
+            }
+            drainEncoder(false, writer);
+        }
+    }
+
+    private void signalEndOfInput(final Writer writer) {
+        if (VERBOSE) Log.d(TAG, "sending EOS to encoder at " + mMixer.getPosition());
+        final int index = dequeueEncoderInput(writer);
+        mEncoder.queueInputBuffer(index, 0, 0, PcmMixer.toTimeUs(mMixer.getPosition(), mSampleRate),
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        mEndOfInput = true;
+    }
+
+    /**
+     * @param endOfStream wait for the encoder to finish, otherwise only write what is ready
+     */
+    private void drainEncoder(final boolean endOfStream, final Writer writer) {
+        while (!mEndOfStream) {
+            final int index = mEncoder.dequeueOutputBuffer(mBufferInfo, endOfStream ? TIMEOUT_USEC : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    break;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                if (mEncoderOutputBuffers != null) {
+                    mEncoderOutputBuffers = mEncoder.getOutputBuffers();
+                }
+            } else if (index >= 0) {
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mEndOfStream = true;
+                }
+                // The codec config is already in the format
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && mBufferInfo.size > 0) {
+                    final ByteBuffer outputBuffer = mEncoderOutputBuffers == null ?
+                            mEncoder.getOutputBuffer(index) : mEncoderOutputBuffers[index];
+                    outputBuffer.limit(mBufferInfo.offset + mBufferInfo.size).position(mBufferInfo.offset);
+                    writer.writeAudioSample(outputBuffer, mBufferInfo);
+                }
+                mEncoder.releaseOutputBuffer(index, false);
+            }
+            // INFO_OUTPUT_FORMAT_CHANGED needs nothing, the csd was made up front
+        }
+    }
+
+    @Override
+    void release() {
+        for (Input input : mInputs) {
+            if (input != null) {
+                input.release();
+            }
+        }
+        if (mEncoder != null) {
+            try {
+                mEncoder.stop();
+            } catch (IllegalStateException e) {
+                // Never started
+            }
+            mEncoder.release();
+            mEncoder = null;
+        }
+    }
+}
@@ -1,11 +1,8 @@
 package com.homesoft.encoder;
 
-import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
 import android.os.Environment;
 
 import java.io.File;
-import java.io.IOException;
 
 /*
  * Copyright (C) 2019 Homesoft, LLC
@@ -25,7 +22,6 @@ import java.io.IOException;
 
 public class AvcEncoderConfig extends EncoderConfig {
     public static final String MIME_TYPE = "video/avc";
-    private static final int IFRAME_INTERVAL = 0;          // 10 seconds between I-frames
 
     //Defaults from the BigFlake Sample
     public static final int DEFAULT_WIDTH = 320;
@@ -43,22 +39,7 @@ public class AvcEncoderConfig extends EncoderConfig {
 
 
     @Override
-    public MediaFormat getVideoMediaFormat() {
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, getWidth(), getHeight());
-
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, getBitRate());
-        format.setFloat(MediaFormat.KEY_FRAME_RATE, getFramePerSecond());
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-
-        return format;
-    }
-
-    @Override
-    public FrameMuxer getFrameMuxer() throws IOException {
-        return new Mp4FrameMuxer(getPath(), getAudioPath(), getFramePerSecond());
+    public String getMimeType() {
+        return MIME_TYPE;
     }
 }
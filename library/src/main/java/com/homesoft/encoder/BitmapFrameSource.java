@@ -0,0 +1,242 @@
+package com.homesoft.encoder;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * {@link FrameSource} that decodes Bitmaps ahead of the encoder on a worker pool.
+ * <p>
+ * Up to prefetch frames are decoded in advance, so the encoding thread only waits when the
+ * decoders fall behind.  Frames with a key (i.e. the same image shown many times) are decoded once
+ * and cached.  Frames without a key are decoded into recycled Bitmaps via inBitmap.
+ */
+public class BitmapFrameSource implements FrameSource {
+    private static final String TAG = BitmapFrameSource.class.getSimpleName();
+
+    public interface Decoder {
+        /**
+         * @return identifies the frame's image, frames with equal keys share one decoded Bitmap.
+         * null if the image is unique and should not be cached.
+         */
+        Object getKey(final int frame);
+
+        /**
+         * Decode the frame's image, called on a worker thread
+         * @param options has inBitmap set if there is a Bitmap to reuse
+         */
+        Bitmap decode(final int frame, final BitmapFactory.Options options) throws IOException;
+    }
+
+    private final Decoder mDecoder;
+    private final int mFrameCount;
+    private final int mPrefetch;
+    private final ExecutorService mExecutor;
+    private final LruCache<Object, Bitmap> mCache;
+    private final ArrayBlockingQueue<Bitmap> mFreeBitmaps;
+    private final HashMap<Integer, Future<Bitmap>> mPending = new HashMap<>();
+    // Keyed images being decoded, so a second frame with the key waits rather than decoding it too
+    private final HashMap<Object, Future<Bitmap>> mDecoding = new HashMap<>();
+    private int mNextScheduled;
+
+    /**
+     * @param prefetch frames to decode ahead of the encoder
+     * @param cacheBytes memory for Bitmaps with a key
+     */
+    public BitmapFrameSource(final Decoder decoder, final int frameCount, final int prefetch, final int cacheBytes) {
+        mDecoder = decoder;
+        mFrameCount = frameCount;
+        mPrefetch = prefetch;
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(prefetch,
+                Runtime.getRuntime().availableProcessors() - 1)));
+        mCache = new LruCache<Object, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(Object key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mFreeBitmaps = new ArrayBlockingQueue<>(prefetch + 1);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    public void renderFrame(final FrameEncoder frameEncoder, final int frame) {
+        final Bitmap bitmap;
+        try {
+            bitmap = next(frame).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted decoding frame " + frame, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to decode frame " + frame, e.getCause());
+        }
+        drawFrame(frameEncoder, frame, bitmap);
+        if (mDecoder.getKey(frame) == null) {
+            // Drawn, so the pixels can be reused
+            mFreeBitmaps.offer(bitmap);
+        }
+    }
+
+    /**
+     * Draw the decoded Bitmap.  Override to draw over it, i.e. with FrameEncoder.getCanvas()
+     */
+    protected void drawFrame(final FrameEncoder frameEncoder, final int frame, final Bitmap bitmap) {
+        frameEncoder.createFrame(bitmap);
+    }
+
+    private synchronized Future<Bitmap> next(final int frame) {
+        Future<Bitmap> future = mPending.remove(frame);
+        if (future == null) {
+            // Not the frame we expected, start over from here
+            for (Future<Bitmap> pending : mPending.values()) {
+                pending.cancel(false);
+            }
+            mPending.clear();
+            future = submit(frame);
+            mNextScheduled = frame + 1;
+        }
+        while (mNextScheduled < mFrameCount && mNextScheduled <= frame + mPrefetch) {
+            mPending.put(mNextScheduled, submit(mNextScheduled));
+            mNextScheduled++;
+        }
+        return future;
+    }
+
+    private Future<Bitmap> submit(final int frame) {
+        return mExecutor.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                return decode(frame);
+            }
+        });
+    }
+
+    private Bitmap decode(final int frame) throws IOException, InterruptedException {
+        final Object key = mDecoder.getKey(frame);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (key != null) {
+            return decodeKeyed(key, frame, options);
+        }
+        final Bitmap reuse = mFreeBitmaps.poll();
+        if (reuse != null) {
+            options.inBitmap = reuse;
+            options.inMutable = true;
+            try {
+                return mDecoder.decode(frame, options);
+            } catch (IllegalArgumentException e) {
+                // Doesn't fit the new image, free its pixels now rather than on the next GC
+                Log.d(TAG, "inBitmap not reusable for frame " + frame);
+                options.inBitmap = null;
+                reuse.recycle();
+            }
+        }
+        options.inMutable = true;
+        return mDecoder.decode(frame, options);
+    }
+
+    /**
+     * Decode and cache the image, or wait for the worker already decoding it
+     */
+    private Bitmap decodeKeyed(final Object key, final int frame, final BitmapFactory.Options options)
+            throws IOException, InterruptedException {
+        final Future<Bitmap> inFlight;
+        final FutureTask<Bitmap> task;
+        synchronized (mDecoding) {
+            // Cached before it is removed from mDecoding, so this sees one or the other
+            final Bitmap cached = mCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            inFlight = mDecoding.get(key);
+            if (inFlight == null) {
+                task = new FutureTask<>(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        final Bitmap bitmap = mDecoder.decode(frame, options);
+                        mCache.put(key, bitmap);
+                        return bitmap;
+                    }
+                });
+                mDecoding.put(key, task);
+            } else {
+                task = null;
+            }
+        }
+        if (inFlight != null) {
+            return getDecoded(inFlight);
+        }
+        try {
+            task.run();
+            return getDecoded(task);
+        } finally {
+            synchronized (mDecoding) {
+                mDecoding.remove(key);
+            }
+        }
+    }
+
+    private static Bitmap getDecoded(final Future<Bitmap> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Stop the decoders and drop the cached Bitmaps
+     */
+    public void release() {
+        synchronized (this) {
+            final Iterator<Map.Entry<Integer, Future<Bitmap>>> iterator = mPending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                iterator.next().getValue().cancel(false);
+                iterator.remove();
+            }
+        }
+        mExecutor.shutdownNow();
+        mCache.evictAll();
+        mFreeBitmaps.clear();
+    }
+}
@@ -0,0 +1,65 @@
+package com.homesoft.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Recycles direct ByteBuffers, which are expensive to allocate and slow to be collected
+ */
+public class ByteBufferPool {
+    private static final ByteBufferPool sShared = new ByteBufferPool(8);
+
+    private final ArrayList<ByteBuffer> mFree = new ArrayList<>();
+    private final int mMaxFree;
+
+    public ByteBufferPool(final int maxFree) {
+        mMaxFree = maxFree;
+    }
+
+    public static ByteBufferPool getShared() {
+        return sShared;
+    }
+
+    /**
+     * @return a cleared direct buffer of at least capacity bytes
+     */
+    public synchronized ByteBuffer acquire(final int capacity) {
+        ByteBuffer best = null;
+        int bestIndex = -1;
+        for (int i=0;i<mFree.size();i++) {
+            final ByteBuffer byteBuffer = mFree.get(i);
+            if (byteBuffer.capacity() >= capacity && (best == null || byteBuffer.capacity() < best.capacity())) {
+                best = byteBuffer;
+                bestIndex = i;
+            }
+        }
+        if (best == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        mFree.remove(bestIndex);
+        best.clear();
+        return best;
+    }
+
+    public synchronized void release(final ByteBuffer byteBuffer) {
+        if (mFree.size() < mMaxFree) {
+            mFree.add(byteBuffer);
+        }
+    }
+}
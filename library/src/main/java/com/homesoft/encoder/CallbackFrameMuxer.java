@@ -0,0 +1,93 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Hands the encoded frames to a {@link Callback}, i.e. for a custom packager or network sender.
+ * Frames are Annex-B as they come from the encoder.  There is no audio.
+ */
+public class CallbackFrameMuxer implements FrameMuxer {
+    public interface Callback {
+        /**
+         * @param format encoder output format, the parameter sets are in csd-0 (and csd-1 for AVC)
+         */
+        void onStart(final MediaFormat format);
+
+        /**
+         * Called on the thread draining the encoder.
+         * @param byteBuffer position and limit set to the frame, only valid during the call
+         * @param bufferInfo presentationTimeUs is the frame's time, flags mark key frames
+         */
+        void onFrame(final ByteBuffer byteBuffer, final MediaCodec.BufferInfo bufferInfo);
+
+        /**
+         * The encoder is released, no more frames
+         */
+        void onEnd();
+    }
+
+    private final Callback mCallback;
+    private boolean mStarted;
+
+    public CallbackFrameMuxer(final Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @return a factory for {@link EncoderConfig#setFrameMuxerFactory(Factory)} that sends the frames to callback
+     */
+    public static Factory factory(final Callback callback) {
+        return new Factory() {
+            @Override
+            public FrameMuxer createFrameMuxer(EncoderConfig encoderConfig) {
+                return new CallbackFrameMuxer(callback);
+            }
+        };
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void start(FrameEncoder frameEncoder) {
+        mCallback.onStart(frameEncoder.getOutputFormat());
+        mStarted = true;
+    }
+
+    @Override
+    public void copyAudio() {
+    }
+
+    @Override
+    public void muxVideoFrame(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        byteBuffer.position(bufferInfo.offset);
+        byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+        mCallback.onFrame(byteBuffer, bufferInfo);
+    }
+
+    @Override
+    public void release() {
+        mCallback.onEnd();
+    }
+}
@@ -0,0 +1,73 @@
+package com.homesoft.encoder;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.Surface;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Draws on the Surface's Canvas: hardware accelerated on API 23+, software before that
+ */
+public class CanvasInputSurface implements InputSurface {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public InputSurface createInputSurface(Surface surface, EncoderConfig encoderConfig) {
+            return new CanvasInputSurface(surface, encoderConfig.getWidth(), encoderConfig.getHeight());
+        }
+    };
+
+    private final Surface mSurface;
+    private final Rect mCanvasRect;
+
+    public CanvasInputSurface(final Surface surface, final int width, final int height) {
+        mSurface = surface;
+        mCanvasRect = new Rect(0, 0, width, height);
+    }
+
+    @Override
+    public Canvas lockCanvas() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return mSurface.lockHardwareCanvas();
+        } else {
+            return mSurface.lockCanvas(mCanvasRect);
+        }
+    }
+
+    @Override
+    public void post(final Canvas canvas, final long ptsUs) {
+        mSurface.unlockCanvasAndPost(canvas);
+    }
+
+    @Override
+    public void post(final Bitmap bitmap, final long ptsUs) {
+        final Canvas canvas = lockCanvas();
+        canvas.drawBitmap(bitmap, 0f, 0f, null);
+        post(canvas, ptsUs);
+    }
+
+    @Override
+    public boolean isTimestamped() {
+        return false;
+    }
+
+    @Override
+    public void release() {
+    }
+}
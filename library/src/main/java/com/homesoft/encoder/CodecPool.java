@@ -0,0 +1,457 @@
+package com.homesoft.encoder;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Limits the number of live encoders and recycles stopped ones.
+ * <p>
+ * Codecs handed out by createEncoder() go back to the pool on release() instead of
+ * being destroyed.  A stopped MediaCodec is back in the uninitialized state, so the next encode
+ * with the same codec just configures it again, skipping codec creation (often 50-300ms).
+ * When every codec is in use, createEncoder() blocks until one is released.
+ * <p>
+ * With a {@link EncoderCodec.NamedFactory} (the default), codecs are chosen per config and kept by
+ * codec name, and each codec is limited to the instances it supports.
+ * <p>
+ * To reuse a codec across consecutive encodes, pass the same pool to each {@link FrameEncoder}
+ * and {@link #close()} it when done.
+ */
+public class CodecPool implements EncoderCodec.NamedFactory {
+    private static final String TAG = CodecPool.class.getSimpleName();
+
+    private final EncoderCodec.Factory mFactory;
+    private final int mMaxInstances;
+    private final ArrayList<PooledCodec> mIdle = new ArrayList<>();
+    // Live codecs and their limits, by codec name (or MIME type if created by type)
+    private final HashMap<String, Integer> mLiveByKey = new HashMap<>();
+    private final HashMap<String, Integer> mMaxByName = new HashMap<>();
+    private int mLive;
+    private boolean mClosed;
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private long mCreateNs;
+
+    /**
+     * Snapshot of the pool's reuse counters
+     */
+    public static class Stats {
+        private final int mHits;
+        private final int mMisses;
+        private final int mEvictions;
+        private final long mCreateNs;
+
+        Stats(final int hits, final int misses, final int evictions, final long createNs) {
+            mHits = hits;
+            mMisses = misses;
+            mEvictions = evictions;
+            mCreateNs = createNs;
+        }
+
+        /**
+         * @return codecs handed out that were reused
+         */
+        public int getHits() {
+            return mHits;
+        }
+
+        /**
+         * @return codecs handed out that had to be created
+         */
+        public int getMisses() {
+            return mMisses;
+        }
+
+        /**
+         * @return idle codecs destroyed to make room for another type
+         */
+        public int getEvictions() {
+            return mEvictions;
+        }
+
+        /**
+         * @return total time spent creating codecs
+         */
+        public long getCreateNs() {
+            return mCreateNs;
+        }
+
+        public float getHitRate() {
+            final int total = mHits + mMisses;
+            return total == 0 ? 0f : mHits / (float)total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions +
+                    " createMs=" + (mCreateNs / 1000000);
+        }
+    }
+
+    /**
+     * Creates hardware encoders where there are any, see {@link EncoderSelector}
+     */
+    public CodecPool(final int maxInstances) {
+        this(EncoderSelector.getDefault(), maxInstances);
+    }
+
+    /**
+     * @param factory creates codecs when there is no idle one to reuse
+     */
+    public CodecPool(final EncoderCodec.Factory factory, final int maxInstances) {
+        if (maxInstances < 1) {
+            throw new IllegalArgumentException("maxInstances must be > 0");
+        }
+        mFactory = factory;
+        mMaxInstances = maxInstances;
+    }
+
+    /**
+     * @return how many instances of the encoder {@link EncoderSelector} picks for this type the device supports.
+     * Before API 23 this is unknown, so 1 is returned.
+     */
+    public static int getMaxSupportedInstances(final String mimeType) {
+        final EncoderSelector.Candidate candidate = EncoderSelector.getDefault().getPreferred(mimeType);
+        return candidate == null ? 1 : Math.max(1, candidate.getMaxSupportedInstances(mimeType));
+    }
+
+    public int getMaxInstances() {
+        return mMaxInstances;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mHits, mMisses, mEvictions, mCreateNs);
+    }
+
+    /**
+     * Reuse an idle codec for this type, or create one.  Blocks while the pool is exhausted.
+     */
+    @Override
+    public EncoderCodec createEncoder(final String mimeType) throws IOException {
+        return acquire(mimeType, null, mimeType);
+    }
+
+    @Override
+    public String select(final EncoderConfig config) {
+        return mFactory instanceof EncoderCodec.NamedFactory ?
+                ((EncoderCodec.NamedFactory)mFactory).select(config) : null;
+    }
+
+    /**
+     * Reuse an idle instance of the codec, or create one.  Blocks while the pool is exhausted
+     * or the codec is at its own instance limit.
+     * Without a {@link EncoderCodec.NamedFactory}, the name is ignored and the codec is created by type.
+     */
+    @Override
+    public EncoderCodec createEncoder(final String codecName, final String mimeType) throws IOException {
+        if (!(mFactory instanceof EncoderCodec.NamedFactory)) {
+            Log.w(TAG, "Factory can't create codecs by name, creating " + mimeType + " instead of " + codecName);
+            return createEncoder(mimeType);
+        }
+        return acquire(codecName, codecName, mimeType);
+    }
+
+    @Override
+    public int getMaxSupportedInstances(final String codecName, final String mimeType) {
+        return mFactory instanceof EncoderCodec.NamedFactory ?
+                ((EncoderCodec.NamedFactory)mFactory).getMaxSupportedInstances(codecName, mimeType) : 0;
+    }
+
+    /**
+     * @param key codec name, or MIME type if created by type
+     */
+    private EncoderCodec acquire(final String key, final String codecName, final String mimeType) throws IOException {
+        final int maxForKey = codecName == null ? 0 : getMaxInstances(codecName, mimeType);
+        PooledCodec evict = null;
+        synchronized (this) {
+            try {
+                while (true) {
+                    if (mClosed) {
+                        throw new IllegalStateException("CodecPool is closed");
+                    }
+                    for (int i = 0; i < mIdle.size(); i++) {
+                        final PooledCodec pooledCodec = mIdle.get(i);
+                        if (pooledCodec.mKey.equals(key)) {
+                            mIdle.remove(i);
+                            pooledCodec.mReleased = false;
+                            mHits++;
+                            return pooledCodec;
+                        }
+                    }
+                    final boolean keyFull = maxForKey > 0 && getLive(key) >= maxForKey;
+                    if (!keyFull && (mLive < mMaxInstances || !mIdle.isEmpty())) {
+                        break;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for a codec", e);
+            }
+            mMisses++;
+            if (mLive >= mMaxInstances) {
+                // Make room by destroying an idle codec of another type
+                evict = mIdle.remove(0);
+                addLive(evict.mKey, -1);
+                mEvictions++;
+            } else {
+                mLive++;
+            }
+            addLive(key, 1);
+        }
+        if (evict != null) {
+            evict.mCodec.release();
+        }
+        try {
+            final long start = System.nanoTime();
+            final EncoderCodec codec = codecName == null ? mFactory.createEncoder(mimeType) :
+                    ((EncoderCodec.NamedFactory)mFactory).createEncoder(codecName, mimeType);
+            final long createNs = System.nanoTime() - start;
+            synchronized (this) {
+                mCreateNs += createNs;
+            }
+            return new PooledCodec(key, codec);
+        } catch (IOException | RuntimeException e) {
+            onDestroyed(key);
+            throw e;
+        }
+    }
+
+    private synchronized int getMaxInstances(final String codecName, final String mimeType) {
+        Integer max = mMaxByName.get(codecName);
+        if (max == null) {
+            max = getMaxSupportedInstances(codecName, mimeType);
+            mMaxByName.put(codecName, max);
+        }
+        return max;
+    }
+
+    private int getLive(final String key) {
+        final Integer live = mLiveByKey.get(key);
+        return live == null ? 0 : live;
+    }
+
+    private void addLive(final String key, final int delta) {
+        final int live = getLive(key) + delta;
+        if (live == 0) {
+            mLiveByKey.remove(key);
+        } else {
+            mLiveByKey.put(key, live);
+        }
+    }
+
+    private synchronized void recycle(final PooledCodec pooledCodec) {
+        if (mClosed) {
+            pooledCodec.mCodec.release();
+            mLive--;
+            addLive(pooledCodec.mKey, -1);
+        } else {
+            mIdle.add(pooledCodec);
+        }
+        notifyAll();
+    }
+
+    private synchronized void onDestroyed(final String key) {
+        mLive--;
+        addLive(key, -1);
+        notifyAll();
+    }
+
+    /**
+     * Destroy the idle codecs.  Codecs still in use are destroyed when they are released.
+     * Creating a codec afterwards, or one still waiting for a codec, throws IllegalStateException.
+     */
+    public void close() {
+        final ArrayList<PooledCodec> idle;
+        synchronized (this) {
+            mClosed = true;
+            idle = new ArrayList<>(mIdle);
+            mLive -= mIdle.size();
+            for (PooledCodec pooledCodec : mIdle) {
+                addLive(pooledCodec.mKey, -1);
+            }
+            mIdle.clear();
+            notifyAll();
+        }
+        for (PooledCodec pooledCodec : idle) {
+            pooledCodec.mCodec.release();
+        }
+    }
+
+    private class PooledCodec implements EncoderCodec {
+        final String mKey;
+        final EncoderCodec mCodec;
+        boolean mCallbackSet;
+        boolean mFailed;
+        boolean mReleased;
+
+        PooledCodec(final String key, final EncoderCodec codec) {
+            mKey = key;
+            mCodec = codec;
+        }
+
+        @Override
+        public void setCallback(final Callback callback, Handler handler) {
+            mCallbackSet = true;
+            mCodec.setCallback(new Callback() {
+                @Override
+                public void onInputBufferAvailable(EncoderCodec codec, int index) {
+                    callback.onInputBufferAvailable(PooledCodec.this, index);
+                }
+
+                @Override
+                public void onOutputBufferAvailable(EncoderCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+                    callback.onOutputBufferAvailable(PooledCodec.this, index, bufferInfo);
+                }
+
+                @Override
+                public void onOutputFormatChanged(EncoderCodec codec, MediaFormat format) {
+                    callback.onOutputFormatChanged(PooledCodec.this, format);
+                }
+
+                @Override
+                public void onError(EncoderCodec codec, Exception e) {
+                    mFailed = true;
+                    callback.onError(PooledCodec.this, e);
+                }
+            }, handler);
+        }
+
+        @Override
+        public void configure(MediaFormat mediaFormat) {
+            try {
+                mCodec.configure(mediaFormat);
+            } catch (RuntimeException e) {
+                mFailed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public Surface createInputSurface() {
+            return mCodec.createInputSurface();
+        }
+
+        @Override
+        public void start() {
+            mCodec.start();
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs) {
+            return mCodec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return mCodec.dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return mCodec.getInputBuffer(index);
+        }
+
+        @Override
+        public Image getInputImage(int index) {
+            return mCodec.getInputImage(index);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+            mCodec.queueInputBuffer(index, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mCodec.releaseOutputBuffer(index);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mCodec.getOutputFormat();
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            mCodec.signalEndOfInputStream();
+        }
+
+        @Override
+        public void stop() {
+            try {
+                mCodec.stop();
+            } catch (RuntimeException e) {
+                mFailed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void reset() {
+            mCodec.reset();
+            mFailed = false;
+            mCallbackSet = false;
+        }
+
+        /**
+         * Return the codec to the pool, reset first if it failed or is in async mode
+         */
+        @Override
+        public void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            if (mFailed || mCallbackSet) {
+                try {
+                    reset();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Codec reset failed, destroying it", e);
+                    mCodec.release();
+                    onDestroyed(mKey);
+                    return;
+                }
+            }
+            recycle(this);
+        }
+
+        @Override
+        public MediaCodecInfo getCodecInfo() {
+            return mCodec.getCodecInfo();
+        }
+    }
+}
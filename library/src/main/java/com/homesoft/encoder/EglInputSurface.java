@@ -0,0 +1,301 @@
+package com.homesoft.encoder;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Draws frames into the encoder's Surface with OpenGL ES 2.0.
+ * <p>
+ * Bitmaps are uploaded into one reused texture and drawn as a quad, with no Canvas lock.
+ * The presentation time is set with eglPresentationTimeANDROID, so the codec outputs the
+ * caller's exact timestamps.  {@link #lockCanvas()} gives a Canvas on an offscreen Bitmap that
+ * is uploaded the same way, so Canvas drawing still works.
+ * <p>
+ * The EGL context is current on the thread that creates this, which must also post the frames.
+ */
+public class EglInputSurface implements InputSurface {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public InputSurface createInputSurface(Surface surface, EncoderConfig encoderConfig) {
+            return new EglInputSurface(surface, encoderConfig.getWidth(), encoderConfig.getHeight());
+        }
+    };
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final int FLOAT_SIZE = 4;
+    private static final int VERTEX_STRIDE = 4 * FLOAT_SIZE;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTexCoord = aTexCoord;\n" +
+            "}\n";
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
+            "}\n";
+    // x, y, s, t as a triangle strip.  The first row of the Bitmap is t=0, so it goes at the top.
+    private static final float[] QUAD = {
+            -1f, -1f, 0f, 1f,
+             1f, -1f, 1f, 1f,
+            -1f,  1f, 0f, 0f,
+             1f,  1f, 1f, 0f,
+    };
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mTexture = new int[1];
+    private final FloatBuffer mQuad;
+
+    private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
+    private int mProgram;
+    private int mPositionLocation;
+    private int mTexCoordLocation;
+    private int mTextureLocation;
+
+    // Size and format of the texture's storage, so same sized Bitmaps are uploaded in place
+    private int mTextureWidth;
+    private int mTextureHeight;
+    private Bitmap.Config mTextureConfig;
+
+    private Bitmap mCanvasBitmap;
+    private Canvas mCanvas;
+
+    public EglInputSurface(final Surface surface, final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+        mQuad = ByteBuffer.allocateDirect(QUAD.length * FLOAT_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mQuad.put(QUAD).position(0);
+
+        mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mEglDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("No EGL display");
+        }
+        final int[] version = new int[2];
+        if (!EGL14.eglInitialize(mEglDisplay, version, 0, version, 1)) {
+            mEglDisplay = EGL14.EGL_NO_DISPLAY;
+            throw new RuntimeException("eglInitialize failed");
+        }
+        try {
+            final int[] configAttributes = {
+                    EGL14.EGL_RED_SIZE, 8,
+                    EGL14.EGL_GREEN_SIZE, 8,
+                    EGL14.EGL_BLUE_SIZE, 8,
+                    EGL14.EGL_ALPHA_SIZE, 8,
+                    EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                    EGL_RECORDABLE_ANDROID, 1,
+                    EGL14.EGL_NONE
+            };
+            final EGLConfig[] configs = new EGLConfig[1];
+            final int[] configCount = new int[1];
+            if (!EGL14.eglChooseConfig(mEglDisplay, configAttributes, 0, configs, 0, 1, configCount, 0) ||
+                    configCount[0] == 0) {
+                throw new RuntimeException("No recordable EGL config");
+            }
+            final int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+            mEglContext = EGL14.eglCreateContext(mEglDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+            checkEgl("eglCreateContext");
+            mEglSurface = EGL14.eglCreateWindowSurface(mEglDisplay, configs[0], surface, new int[]{EGL14.EGL_NONE}, 0);
+            checkEgl("eglCreateWindowSurface");
+            if (!EGL14.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
+                checkEgl("eglMakeCurrent");
+            }
+
+            mProgram = createProgram();
+            mPositionLocation = GLES20.glGetAttribLocation(mProgram, "aPosition");
+            mTexCoordLocation = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+            mTextureLocation = GLES20.glGetUniformLocation(mProgram, "sTexture");
+
+            GLES20.glGenTextures(1, mTexture, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            checkGl("texture setup");
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private static int compileShader(final int type, final String source) {
+        final int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        final int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            final String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new RuntimeException("Shader compile failed: " + log);
+        }
+        return shader;
+    }
+
+    private static int createProgram() {
+        final int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        final int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        final int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        // Flagged for deletion, freed with the program
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        final int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            final String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new RuntimeException("Program link failed: " + log);
+        }
+        return program;
+    }
+
+    private void checkEgl(final String operation) {
+        final int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new RuntimeException(operation + ": EGL error 0x" + Integer.toHexString(error));
+        }
+    }
+
+    private static void checkGl(final String operation) {
+        final int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new RuntimeException(operation + ": GL error 0x" + Integer.toHexString(error));
+        }
+    }
+
+    /**
+     * @return a Canvas on an offscreen Bitmap, which keeps the previous frame's content
+     */
+    @Override
+    public Canvas lockCanvas() {
+        if (mCanvas == null) {
+            mCanvasBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            mCanvas = new Canvas(mCanvasBitmap);
+        }
+        return mCanvas;
+    }
+
+    @Override
+    public void post(final Canvas canvas, final long ptsUs) {
+        if (canvas != mCanvas) {
+            throw new IllegalArgumentException("Canvas is not from lockCanvas()");
+        }
+        post(mCanvasBitmap, ptsUs);
+    }
+
+    @Override
+    public void post(final Bitmap bitmap, final long ptsUs) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        if (width == mTextureWidth && height == mTextureHeight && bitmap.getConfig() == mTextureConfig) {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+        } else {
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            mTextureWidth = width;
+            mTextureHeight = height;
+            mTextureConfig = bitmap.getConfig();
+        }
+
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        // Unscaled at the top left, like Canvas.drawBitmap(bitmap, 0, 0, null).  GL's origin is the bottom left.
+        GLES20.glViewport(0, mHeight - height, width, height);
+        GLES20.glUseProgram(mProgram);
+        GLES20.glUniform1i(mTextureLocation, 0);
+        mQuad.position(0);
+        GLES20.glVertexAttribPointer(mPositionLocation, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE, mQuad);
+        GLES20.glEnableVertexAttribArray(mPositionLocation);
+        mQuad.position(2);
+        GLES20.glVertexAttribPointer(mTexCoordLocation, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE, mQuad);
+        GLES20.glEnableVertexAttribArray(mTexCoordLocation);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        checkGl("draw");
+
+        EGLExt.eglPresentationTimeANDROID(mEglDisplay, mEglSurface, ptsUs * 1000);
+        if (!EGL14.eglSwapBuffers(mEglDisplay, mEglSurface)) {
+            checkEgl("eglSwapBuffers");
+        }
+    }
+
+    @Override
+    public boolean isTimestamped() {
+        return true;
+    }
+
+    @Override
+    public void release() {
+        if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
+            if (mEglContext != EGL14.EGL_NO_CONTEXT) {
+                if (mProgram != 0) {
+                    GLES20.glDeleteProgram(mProgram);
+                    mProgram = 0;
+                }
+                if (mTexture[0] != 0) {
+                    GLES20.glDeleteTextures(1, mTexture, 0);
+                    mTexture[0] = 0;
+                }
+            }
+            EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (mEglSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
+                mEglSurface = EGL14.EGL_NO_SURFACE;
+            }
+            if (mEglContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(mEglDisplay, mEglContext);
+                mEglContext = EGL14.EGL_NO_CONTEXT;
+            }
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mEglDisplay);
+            mEglDisplay = EGL14.EGL_NO_DISPLAY;
+        }
+        if (mCanvasBitmap != null) {
+            mCanvasBitmap.recycle();
+            mCanvasBitmap = null;
+            mCanvas = null;
+        }
+    }
+}
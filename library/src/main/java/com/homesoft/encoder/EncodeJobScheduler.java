@@ -0,0 +1,246 @@
+package com.homesoft.encoder;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Encodes a queue of videos, running at most as many encoders at once as the device supports.
+ * <p>
+ * Codecs come from a {@link CodecPool}, so a finished job's codec is reused by the next job.
+ */
+public class EncodeJobScheduler {
+    private static final String TAG = EncodeJobScheduler.class.getSimpleName();
+
+    public interface Listener {
+        /**
+         * Called on the encoding thread
+         */
+        void onJobComplete(final EncoderConfig encoderConfig, final JobStats jobStats);
+        void onJobFailed(final EncoderConfig encoderConfig, final Exception e);
+    }
+
+    public static class JobStats {
+        private final int mFrames;
+        private final long mElapsedNs;
+
+        JobStats(final int frames, final long elapsedNs) {
+            mFrames = frames;
+            mElapsedNs = elapsedNs;
+        }
+
+        public int getFrames() {
+            return mFrames;
+        }
+
+        public long getElapsedNs() {
+            return mElapsedNs;
+        }
+
+        public float getFramesPerSecond() {
+            return mElapsedNs == 0 ? 0f : mFrames * 1e9f / mElapsedNs;
+        }
+
+        @Override
+        public String toString() {
+            return mFrames + " frames in " + (mElapsedNs / 1000000) + "ms (" + getFramesPerSecond() + " fps)";
+        }
+    }
+
+    /**
+     * Future.get() returns as soon as a job is cancelled, while its worker may still be writing
+     * the output.  {@link #awaitFinished()} also waits for the worker.
+     */
+    static class Job extends FutureTask<JobStats> {
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        // Set by whichever comes first, the worker starting or a cancel before it did
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+
+        Job(final Callable<JobStats> callable) {
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                super.run();
+            } finally {
+                mFinished.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (mClaimed.compareAndSet(false, true)) {
+                // Never started, so there is no worker to wait for
+                mFinished.countDown();
+            }
+            return cancelled;
+        }
+
+        /**
+         * Wait until the worker is done with the job, however it ended.  An interrupt doesn't end
+         * the wait, it is restored once done.
+         */
+        void awaitFinished() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mFinished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final CodecPool mCodecPool;
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mActive = new AtomicInteger();
+    private Listener mListener;
+
+    /**
+     * @return a scheduler limited by the encoder capabilities for this type
+     */
+    public static EncodeJobScheduler create(final String mimeType) {
+        return new EncodeJobScheduler(new CodecPool(CodecPool.getMaxSupportedInstances(mimeType)));
+    }
+
+    /**
+     * @param codecPool jobs run concurrently up to the pool's max instances
+     */
+    public EncodeJobScheduler(final CodecPool codecPool) {
+        mCodecPool = codecPool;
+        mExecutor = Executors.newFixedThreadPool(codecPool.getMaxInstances(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG + "-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    public void setListener(final Listener listener) {
+        mListener = listener;
+    }
+
+    public CodecPool getCodecPool() {
+        return mCodecPool;
+    }
+
+    /**
+     * @return number of jobs currently encoding
+     */
+    public int getActiveJobs() {
+        return mActive.get();
+    }
+
+    /**
+     * Queue a video to encode
+     */
+    public Future<JobStats> submit(final EncoderConfig encoderConfig, final FrameSource frameSource) {
+        return schedule(encoderConfig, frameSource);
+    }
+
+    Job schedule(final EncoderConfig encoderConfig, final FrameSource frameSource) {
+        final Job job = new Job(new Callable<JobStats>() {
+            @Override
+            public JobStats call() throws Exception {
+                mActive.incrementAndGet();
+                try {
+                    final JobStats jobStats = encode(encoderConfig, frameSource);
+                    Log.d(TAG, encoderConfig.getPath() + ": " + jobStats);
+                    if (mListener != null) {
+                        mListener.onJobComplete(encoderConfig, jobStats);
+                    }
+                    return jobStats;
+                } catch (Exception e) {
+                    Log.e(TAG, "Encoding failed: " + encoderConfig.getPath(), e);
+                    if (mListener != null) {
+                        mListener.onJobFailed(encoderConfig, e);
+                    }
+                    throw e;
+                } finally {
+                    mActive.decrementAndGet();
+                }
+            }
+        });
+        mExecutor.execute(job);
+        return job;
+    }
+
+    private JobStats encode(final EncoderConfig encoderConfig, final FrameSource frameSource) throws Exception {
+        final long start = System.nanoTime();
+        final FrameEncoder frameEncoder = new FrameEncoder(encoderConfig, mCodecPool, false);
+        final int frames = frameSource.getFrameCount();
+        try {
+            frameEncoder.start();
+            for (int i = 0; i < frames; i++) {
+                frameSource.renderFrame(frameEncoder, i);
+            }
+        } catch (Exception e) {
+            // Still hands the codec back to the pool, without hiding why the job failed
+            try {
+                frameEncoder.release();
+            } catch (RuntimeException releaseError) {
+                Log.w(TAG, "Release after a failed job failed", releaseError);
+            }
+            throw e;
+        }
+        frameEncoder.release();
+        return new JobStats(frames, System.nanoTime() - start);
+    }
+
+    /**
+     * Stop accepting jobs.  Queued jobs still run.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Wait for the queued jobs after {@link #shutdown()}, then destroy the pooled codecs
+     * @return true if all jobs finished
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final boolean terminated = mExecutor.awaitTermination(timeout, unit);
+        if (terminated) {
+            mCodecPool.close();
+        }
+        return terminated;
+    }
+}
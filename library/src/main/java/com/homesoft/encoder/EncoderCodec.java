@@ -0,0 +1,113 @@
+package com.homesoft.encoder;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The subset of {@link MediaCodec} used by {@link FrameEncoder}.
+ * Lets the drain logic run against a fake codec off-device.
+ */
+public interface EncoderCodec {
+
+    interface Factory {
+        EncoderCodec createEncoder(final String mimeType) throws IOException;
+    }
+
+    /**
+     * Picks the codec by name for each config, so {@link EncoderConfig#setCodecName(String)} is honoured
+     * and a {@link CodecPool} can reuse and limit codecs per name
+     */
+    interface NamedFactory extends Factory {
+        /**
+         * @return the codec for the config, null to use {@link #createEncoder(String)}
+         */
+        String select(final EncoderConfig config);
+        EncoderCodec createEncoder(final String codecName, final String mimeType) throws IOException;
+
+        /**
+         * @return how many instances of the codec can run at once, 0 if unknown
+         */
+        int getMaxSupportedInstances(final String codecName, final String mimeType);
+    }
+
+    /**
+     * Mirrors {@link MediaCodec.Callback}
+     */
+    interface Callback {
+        /**
+         * Only for input buffers, see {@link EncoderConfig#INPUT_BUFFER}
+         */
+        void onInputBufferAvailable(final EncoderCodec codec, final int index);
+        void onOutputBufferAvailable(final EncoderCodec codec, final int index, final MediaCodec.BufferInfo bufferInfo);
+        void onOutputFormatChanged(final EncoderCodec codec, final MediaFormat format);
+        void onError(final EncoderCodec codec, final Exception e);
+    }
+
+    /**
+     * Must be called before {@link #configure(MediaFormat)} to put the codec in asynchronous mode.
+     * @param handler the callbacks are delivered on this Handler's thread
+     */
+    void setCallback(final Callback callback, final Handler handler);
+    void configure(final MediaFormat mediaFormat);
+    Surface createInputSurface();
+    void start();
+
+    /**
+     * Synchronous mode only
+     * @return buffer index or one of the MediaCodec.INFO_ constants
+     */
+    int dequeueOutputBuffer(final MediaCodec.BufferInfo bufferInfo, final long timeoutUs);
+    ByteBuffer getOutputBuffer(final int index);
+
+    /**
+     * Synchronous mode only, for {@link EncoderConfig#INPUT_BUFFER}
+     * @return buffer index, or MediaCodec.INFO_TRY_AGAIN_LATER
+     */
+    int dequeueInputBuffer(final long timeoutUs);
+    ByteBuffer getInputBuffer(final int index);
+
+    /**
+     * @return the input buffer as YUV planes, needs API 21
+     */
+    Image getInputImage(final int index);
+    void queueInputBuffer(final int index, final int size, final long presentationTimeUs, final int flags);
+    void releaseOutputBuffer(final int index);
+    MediaFormat getOutputFormat();
+    void signalEndOfInputStream();
+    void stop();
+
+    /**
+     * Return to the uninitialized state, i.e. after an error, so the codec can be configured again
+     * @throws UnsupportedOperationException if the codec can't be reset (before API 21)
+     */
+    void reset();
+    void release();
+
+    /**
+     * @return the codec's capabilities, or null if unknown
+     */
+    MediaCodecInfo getCodecInfo();
+}
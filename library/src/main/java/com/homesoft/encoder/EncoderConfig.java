@@ -1,10 +1,18 @@
 package com.homesoft.encoder;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Build;
 
+import com.homesoft.encoder.mp4.FragmentedMp4Writer;
+import com.homesoft.encoder.mp4.Mp4Writer;
+import com.homesoft.encoder.mp4.SegmentedMp4Writer;
+import com.homesoft.encoder.ts.TsWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /*
  * Copyright (C) 2019 Homesoft, LLC
@@ -23,36 +31,209 @@ import java.io.IOException;
  */
 
 public abstract class EncoderConfig {
+    /** Android's MediaMuxer, see {@link Mp4FrameMuxer} */
+    public static final int MUXER_MEDIA_MUXER = 0;
+    /** Pure Java MP4 writer, see {@link IsoFrameMuxer} */
+    public static final int MUXER_ISO = 1;
+    /** Fragmented MP4, playable while it is being written, see {@link FragmentedMp4Writer} */
+    public static final int MUXER_FRAGMENTED = 2;
+    /**
+     * fMP4 segments in the path's directory, with an HLS playlist and DASH manifest kept up to date
+     * for live playback, see {@link SegmentedMp4Writer}
+     */
+    public static final int MUXER_SEGMENTED = 3;
+    /** MPEG-TS to the path or {@link #setOutputStream(OutputStream)}, see {@link TsFrameMuxer} */
+    public static final int MUXER_TS = 4;
+
+    /** Frames are drawn into the codec's input Surface, see {@link InputSurface} */
+    public static final int INPUT_SURFACE = 0;
+    /**
+     * Frames are written into the codec's input buffers as flexible YUV 4:2:0, see
+     * {@link FrameEncoder#createFrameAt(java.nio.ByteBuffer, int, long)}.  Needs API 21.
+     */
+    public static final int INPUT_BUFFER = 1;
+
+    /** Seconds between key frames */
+    public static final float DEFAULT_KEY_FRAME_INTERVAL = 1f;
+    /** Leave the setting to the codec */
+    public static final int CODEC_DEFAULT = -1;
 
     private final String mPath;
     private final String mAudioPath;
+    private AudioConfig mAudioConfig;
     private final int mWidth;
     private final int mHeight;
     private final float mFramesPerSecond;
     private final int mBitRate;
+    private int mMuxer = MUXER_MEDIA_MUXER;
+    private long mFragmentDurationUs = FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US;
+    private int mFragmentFrames = Integer.MAX_VALUE;
+    private OutputStream mOutputStream;
+    private long mFaststartDurationMs;
+    private long mCheckpointIntervalMs;
 
-    abstract FrameMuxer getFrameMuxer() throws IOException;
-    abstract MediaFormat getVideoMediaFormat();
+    private float mKeyFrameInterval = DEFAULT_KEY_FRAME_INTERVAL;
+    private int mBitrateMode = CODEC_DEFAULT;
+    private int mQuality = CODEC_DEFAULT;
+    private int mProfile = CODEC_DEFAULT;
+    private int mLevel = CODEC_DEFAULT;
+    private int mMaxBFrames;
+    private int mLatency = CODEC_DEFAULT;
+    private int mPriority = CODEC_DEFAULT;
+    private float mOperatingRate = CODEC_DEFAULT;
+    private String mCodecName;
+    private FrameMuxer.Factory mFrameMuxerFactory;
+    private InputSurface.Factory mInputSurfaceFactory;
+    private int mInputMode = INPUT_SURFACE;
+    private int mMuxerQueueFrames;
 
-    public static boolean isSupported(final String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+    public abstract String getMimeType();
 
-            if (!codecInfo.isEncoder()) {
-                continue;
+    public MediaFormat getVideoMediaFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(getMimeType(), mWidth, mHeight);
+
+        // Set some properties.  Failing to specify some of these can cause the MediaCodec
+        // configure() call to throw an unhelpful exception.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mInputMode == INPUT_BUFFER ?
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible :
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setFloat(MediaFormat.KEY_FRAME_RATE, mFramesPerSecond);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
+        } else {
+            // Whole seconds only, 0 makes every frame a key frame
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, (int)Math.ceil(mKeyFrameInterval));
+        }
+        if (mBitrateMode != CODEC_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+            if (mBitrateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ && mQuality != CODEC_DEFAULT) {
+                format.setInteger(MediaFormat.KEY_QUALITY, mQuality);
+            }
+        }
+        if (mProfile != CODEC_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+            if (mLevel != CODEC_DEFAULT) {
+                format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
             }
+        }
+        if (mMaxBFrames > 0) {
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, mMaxBFrames);
+        }
+        if (mLatency != CODEC_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_LATENCY, mLatency);
+        }
+        if (mPriority != CODEC_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, mPriority);
+        }
+        if (mOperatingRate != CODEC_DEFAULT) {
+            format.setFloat(MediaFormat.KEY_OPERATING_RATE, mOperatingRate);
+        }
+        return format;
+    }
 
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    return true;
-                }
+    /**
+     * Check the settings against the encoder, rather than let configure() fail without saying why.
+     * Needs API 21, does nothing on older devices.
+     * @throws IllegalArgumentException if the encoder can't do what is asked
+     */
+    public void validate(final MediaCodecInfo.CodecCapabilities capabilities) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        final MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        if (!videoCapabilities.areSizeAndRateSupported(mWidth, mHeight, mFramesPerSecond)) {
+            throw new IllegalArgumentException(mWidth + "x" + mHeight + " at " + mFramesPerSecond +
+                    "fps is not supported");
+        }
+        if (!videoCapabilities.getBitrateRange().contains(mBitRate)) {
+            throw new IllegalArgumentException("Bit rate " + mBitRate + " is not in " +
+                    videoCapabilities.getBitrateRange());
+        }
+        final MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+        if (mBitrateMode != CODEC_DEFAULT && !encoderCapabilities.isBitrateModeSupported(mBitrateMode)) {
+            throw new IllegalArgumentException("Bit rate mode " + mBitrateMode + " is not supported");
+        }
+        if (mBitrateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ && mQuality != CODEC_DEFAULT &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.P &&
+                !encoderCapabilities.getQualityRange().contains(mQuality)) {
+            throw new IllegalArgumentException("Quality " + mQuality + " is not in " +
+                    encoderCapabilities.getQualityRange());
+        }
+        if (mProfile != CODEC_DEFAULT && !isProfileLevelSupported(capabilities)) {
+            throw new IllegalArgumentException("Profile " + mProfile + " level " + mLevel +
+                    " is not supported");
+        }
+    }
+
+    private boolean isProfileLevelSupported(final MediaCodecInfo.CodecCapabilities capabilities) {
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+            // Levels are bit flags in increasing order
+            if (profileLevel.profile == mProfile && (mLevel == CODEC_DEFAULT || profileLevel.level >= mLevel)) {
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * @return the muxer from the factory if one is set, otherwise one for {@link #getMuxer()}
+     */
+    public FrameMuxer getFrameMuxer() throws IOException {
+        final FrameMuxer frameMuxer = createFrameMuxer();
+        if (mMuxerQueueFrames > 0) {
+            return new PipelinedFrameMuxer(frameMuxer, mMuxerQueueFrames, getMuxerSlotCapacity());
+        }
+        return frameMuxer;
+    }
+
+    private FrameMuxer createFrameMuxer() throws IOException {
+        if (mFrameMuxerFactory != null) {
+            return mFrameMuxerFactory.createFrameMuxer(this);
+        }
+        if (mCheckpointIntervalMs > 0 && (mMuxer == MUXER_MEDIA_MUXER || mMuxer == MUXER_ISO)) {
+            // MediaMuxer's file can't be recovered
+            final Mp4Writer writer = Mp4Writer.openJournaled(new File(getPath()), getJournalFile(),
+                    mCheckpointIntervalMs * 1000);
+            if (mFaststartDurationMs > 0) {
+                writer.setMoovReserve(getMoovReserve());
+            }
+            return new IsoFrameMuxer(writer, getAudioConfig(), getFramePerSecond());
+        }
+        if (mFaststartDurationMs > 0 && (mMuxer == MUXER_MEDIA_MUXER || mMuxer == MUXER_ISO)) {
+            // MediaMuxer can't put the moov first
+            final Mp4Writer writer = new Mp4Writer(new File(getPath()));
+            writer.setMoovReserve(getMoovReserve());
+            return new IsoFrameMuxer(writer, getAudioConfig(), getFramePerSecond());
+        }
+        switch (mMuxer) {
+            case MUXER_ISO:
+                return new IsoFrameMuxer(getPath(), getAudioConfig(), getFramePerSecond());
+            case MUXER_FRAGMENTED:
+                final FragmentedMp4Writer writer = mOutputStream == null ?
+                        new FragmentedMp4Writer(new FileOutputStream(getPath())) :
+                        new FragmentedMp4Writer(mOutputStream);
+                writer.setFragmentLimits(mFragmentDurationUs, mFragmentFrames);
+                return new IsoFrameMuxer(writer, getAudioConfig(), getFramePerSecond());
+            case MUXER_SEGMENTED:
+                final SegmentedMp4Writer segmentedWriter = new SegmentedMp4Writer(new File(getPath()),
+                        SegmentedMp4Writer.PLAYLIST_HLS | SegmentedMp4Writer.PLAYLIST_DASH);
+                segmentedWriter.setFragmentLimits(mFragmentDurationUs, mFragmentFrames);
+                return new IsoFrameMuxer(segmentedWriter, getAudioConfig(), getFramePerSecond());
+            case MUXER_TS:
+                final TsWriter tsWriter = mOutputStream == null ?
+                        new TsWriter(new FileOutputStream(getPath())) :
+                        new TsWriter(mOutputStream);
+                return new TsFrameMuxer(tsWriter, getAudioConfig(), getFramePerSecond(), getMaxBFrames());
+            default:
+                return new Mp4FrameMuxer(getPath(), getAudioConfig(), getFramePerSecond());
+        }
+    }
+
+    public static boolean isSupported(final String mimeType) {
+        return EncoderSelector.getDefault().isSupported(mimeType);
+    }
+
     public EncoderConfig(final String path, final int width, final int height, final float framesPerSecond, final int bitRate, final String audioPath) {
         mPath = path;
         mAudioPath = audioPath;
@@ -62,6 +243,13 @@ public abstract class EncoderConfig {
         mBitRate = bitRate;
     }
 
+    private int getMoovReserve() {
+        final long videoSamples = (long)(mFaststartDurationMs * mFramesPerSecond / 1000);
+        // AAC frames at up to 48kHz
+        final long audioSamples = getAudioConfig() != null ? mFaststartDurationMs * 48 / 1024 : 0;
+        return Mp4Writer.estimateMoovSize(videoSamples, audioSamples);
+    }
+
     public int getWidth() {
         return mWidth;
     }
@@ -86,4 +274,263 @@ public abstract class EncoderConfig {
         return mAudioPath;
     }
 
+    /**
+     * Mix, trim or re-encode the audio, instead of copying the audio path as it is
+     * @param audioConfig null for the audio path
+     */
+    public EncoderConfig setAudioConfig(final AudioConfig audioConfig) {
+        mAudioConfig = audioConfig;
+        return this;
+    }
+
+    /**
+     * @return the audio config set, or one for the audio path.  null if there is no audio.
+     */
+    public AudioConfig getAudioConfig() {
+        if (mAudioConfig == null) {
+            mAudioConfig = AudioConfig.fromPath(mAudioPath);
+        }
+        return mAudioConfig;
+    }
+
+    public int getMuxer() {
+        return mMuxer;
+    }
+
+    /**
+     * @param muxer {@link #MUXER_MEDIA_MUXER}, {@link #MUXER_ISO}, {@link #MUXER_FRAGMENTED}, {@link #MUXER_SEGMENTED}
+     *              or {@link #MUXER_TS}
+     */
+    public EncoderConfig setMuxer(final int muxer) {
+        mMuxer = muxer;
+        return this;
+    }
+
+    /**
+     * Fragment size for {@link #MUXER_FRAGMENTED}, segment size for {@link #MUXER_SEGMENTED}.
+     * A fragment is closed at the first keyframe after either limit is reached.
+     * @param durationMs maximum fragment duration
+     * @param frames maximum frames per fragment
+     */
+    public EncoderConfig setFragmentLimits(final long durationMs, final int frames) {
+        mFragmentDurationUs = durationMs * 1000;
+        mFragmentFrames = frames;
+        return this;
+    }
+
+    /**
+     * Write the moov at the front of the file, so it can be played while downloading.
+     * Space for the moov is reserved up front, so no second pass over the file is needed.
+     * Uses the pure Java MP4 writer, as MediaMuxer can't do this.
+     * @param maxDurationMs expected maximum length of the video.  If the video is longer,
+     *                      the moov is written at the end as usual.  0 disables faststart.
+     */
+    public EncoderConfig setFaststart(final long maxDurationMs) {
+        mFaststartDurationMs = maxDurationMs;
+        return this;
+    }
+
+    public boolean isFaststart() {
+        return mFaststartDurationMs > 0;
+    }
+
+    /**
+     * Journal the MP4's sample index next to it (see {@link #getJournalFile()}) at the first key frame
+     * after every intervalMs of video, so a crash doesn't leave an unplayable file.  Starting an encoder
+     * with the same config again recovers the file up to the last checkpoint and continues from there,
+     * see {@link FrameEncoder#getResumeFrame()}.  The journal is deleted once the file is finished.
+     * Uses the pure Java MP4 writer, as MediaMuxer's output can't be recovered.
+     * @param intervalMs 0 disables checkpoints
+     */
+    public EncoderConfig setCheckpointInterval(final long intervalMs) {
+        mCheckpointIntervalMs = intervalMs;
+        return this;
+    }
+
+    public long getCheckpointInterval() {
+        return mCheckpointIntervalMs;
+    }
+
+    public File getJournalFile() {
+        return new File(getPath() + ".journal");
+    }
+
+    /**
+     * Stream {@link #MUXER_FRAGMENTED} or {@link #MUXER_TS} output here instead of the path, i.e. to upload while encoding.
+     * The stream is closed when the encoder is released.
+     */
+    public EncoderConfig setOutputStream(final OutputStream outputStream) {
+        mOutputStream = outputStream;
+        return this;
+    }
+
+    /**
+     * Send the encoded frames somewhere other than the built in muxers,
+     * i.e. an {@link AnnexBFrameMuxer} or {@link CallbackFrameMuxer}
+     * @param factory null for {@link #getMuxer()}
+     */
+    public EncoderConfig setFrameMuxerFactory(final FrameMuxer.Factory factory) {
+        mFrameMuxerFactory = factory;
+        return this;
+    }
+
+    public FrameMuxer.Factory getFrameMuxerFactory() {
+        return mFrameMuxerFactory;
+    }
+
+    /**
+     * How frames are drawn into the encoder's Surface,
+     * i.e. {@link EglInputSurface#FACTORY} to draw with OpenGL ES and set exact presentation times
+     * @param factory null for {@link CanvasInputSurface#FACTORY}
+     */
+    public EncoderConfig setInputSurfaceFactory(final InputSurface.Factory factory) {
+        mInputSurfaceFactory = factory;
+        return this;
+    }
+
+    public InputSurface.Factory getInputSurfaceFactory() {
+        return mInputSurfaceFactory;
+    }
+
+    /**
+     * @param inputMode {@link #INPUT_SURFACE} or {@link #INPUT_BUFFER}, which needs API 21
+     */
+    public EncoderConfig setInputMode(final int inputMode) {
+        if (inputMode != INPUT_SURFACE && inputMode != INPUT_BUFFER) {
+            throw new IllegalArgumentException("Unknown input mode " + inputMode);
+        }
+        if (inputMode == INPUT_BUFFER && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // No MediaCodec.getInputBuffer(int) to fill
+            throw new IllegalArgumentException("INPUT_BUFFER requires API 21");
+        }
+        mInputMode = inputMode;
+        return this;
+    }
+
+    public int getInputMode() {
+        return mInputMode;
+    }
+
+    /**
+     * Mux on its own thread, so a slow disk or stream doesn't stall the encoder.
+     * See {@link PipelinedFrameMuxer}
+     * @param frames encoded frames that can be waiting to be muxed, 0 to mux on the encoder's thread
+     */
+    public EncoderConfig setMuxerQueue(final int frames) {
+        mMuxerQueueFrames = frames;
+        return this;
+    }
+
+    public int getMuxerQueue() {
+        return mMuxerQueueFrames;
+    }
+
+    /**
+     * Room for a key frame, a few times the average frame
+     */
+    private int getMuxerSlotCapacity() {
+        final int averageFrame = (int)(mBitRate / 8 / mFramesPerSecond);
+        return Math.max(64 * 1024, averageFrame * 4);
+    }
+
+    /**
+     * Use this encoder instead of letting {@link EncoderSelector} choose
+     * @param codecName i.e. "OMX.qcom.video.encoder.avc", null to choose
+     */
+    public EncoderConfig setCodecName(final String codecName) {
+        mCodecName = codecName;
+        return this;
+    }
+
+    public String getCodecName() {
+        return mCodecName;
+    }
+
+    /**
+     * @param seconds between key frames, 0 makes every frame a key frame.
+     *                Fractions need API 25, older devices round up.
+     */
+    public EncoderConfig setKeyFrameInterval(final float seconds) {
+        mKeyFrameInterval = seconds;
+        return this;
+    }
+
+    public float getKeyFrameInterval() {
+        return mKeyFrameInterval;
+    }
+
+    /**
+     * @param bitrateMode one of MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_ or {@link #CODEC_DEFAULT}
+     */
+    public EncoderConfig setBitrateMode(final int bitrateMode) {
+        mBitrateMode = bitrateMode;
+        return this;
+    }
+
+    public int getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    /**
+     * Quality for BITRATE_MODE_CQ, the range depends on the encoder
+     */
+    public EncoderConfig setQuality(final int quality) {
+        mQuality = quality;
+        return this;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @param profile i.e. MediaCodecInfo.CodecProfileLevel.AVCProfileHigh
+     * @param level i.e. MediaCodecInfo.CodecProfileLevel.AVCLevel41 or {@link #CODEC_DEFAULT}
+     */
+    public EncoderConfig setProfileLevel(final int profile, final int level) {
+        mProfile = profile;
+        mLevel = level;
+        return this;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * B-frames save bits, but need a profile that allows them (i.e. AVC Main or High).
+     * Needs API 29.
+     */
+    public EncoderConfig setMaxBFrames(final int maxBFrames) {
+        mMaxBFrames = maxBFrames;
+        return this;
+    }
+
+    public int getMaxBFrames() {
+        return mMaxBFrames;
+    }
+
+    /**
+     * @param frames the encoder may hold before it outputs one.  Needs API 26.
+     */
+    public EncoderConfig setLatency(final int frames) {
+        mLatency = frames;
+        return this;
+    }
+
+    /**
+     * @param priority 0 for realtime, 1 for best effort.  Needs API 23.
+     * @param operatingRate frames per second the encoder should run at, i.e. higher than the frame
+     *                      rate to encode faster than realtime.  {@link #CODEC_DEFAULT} to leave it.
+     */
+    public EncoderConfig setPriority(final int priority, final float operatingRate) {
+        mPriority = priority;
+        mOperatingRate = operatingRate;
+        return this;
+    }
+
 }
@@ -0,0 +1,271 @@
+package com.homesoft.encoder;
+
+import android.os.Trace;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Pipeline timings and output stats for a {@link FrameEncoder}, see {@link FrameEncoder#setMetrics(EncoderMetrics)}.
+ * <p>
+ * Everything is recorded into preallocated {@link Histogram}s and counters, so collecting metrics
+ * doesn't allocate per frame.  Canvas lock times are recorded on the caller's thread, the rest on
+ * the thread that drains the encoder, so read them from the {@link Listener} or after release().
+ * Reuse an instance across encodes by calling {@link #reset()}.
+ */
+public class EncoderMetrics {
+    private static final long SECOND_IN_USEC = 1000000;
+    // Frames kept for the instantaneous bitrate, it covers less than a second above this frame rate
+    private static final int BITRATE_WINDOW = 256;
+
+    public interface Listener {
+        /**
+         * Called for every encoded frame, on the thread that drains the encoder.  Keep it short.
+         * @param latencyUs time from posting the frame to the encoder returning it
+         */
+        void onFrame(final EncoderMetrics metrics, final long ptsUs, final int size, final boolean keyFrame,
+                     final long latencyUs);
+
+        /**
+         * Called once the encoder is released
+         */
+        void onFinish(final EncoderMetrics metrics);
+    }
+
+    private final Histogram mCanvasLockNs = new Histogram();
+    private final Histogram mLatencyUs = new Histogram();
+    private final Histogram mMuxNs = new Histogram();
+    private final Histogram mFrameBytes = new Histogram();
+    private final Histogram mKeyFrameInterval = new Histogram();
+
+    private final long[] mWindowPtsUs = new long[BITRATE_WINDOW];
+    private final int[] mWindowBytes = new int[BITRATE_WINDOW];
+    private int mWindowStart;
+    private int mWindowSize;
+    private long mWindowTotal;
+
+    private Listener mListener;
+    private boolean mTrace;
+
+    private long mStartNs;
+    private long mWallNs;
+    private long mDrainSpins;
+    private long mBytes;
+    private long mKeyFrames;
+    private int mFramesSinceKeyFrame;
+
+    public void setListener(final Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Mark the lock, post, drain and mux steps as {@link Trace} sections, to view them in systrace / Perfetto
+     */
+    public void setTraceEnabled(final boolean trace) {
+        mTrace = trace;
+    }
+
+    public boolean isTraceEnabled() {
+        return mTrace;
+    }
+
+    void beginSection(final String name) {
+        if (mTrace) {
+            Trace.beginSection(name);
+        }
+    }
+
+    void endSection() {
+        if (mTrace) {
+            Trace.endSection();
+        }
+    }
+
+    void onStart() {
+        mStartNs = System.nanoTime();
+        mFramesSinceKeyFrame = 0;
+        mWindowStart = 0;
+        mWindowSize = 0;
+        mWindowTotal = 0;
+    }
+
+    void onCanvasLocked(final long ns) {
+        mCanvasLockNs.record(ns);
+    }
+
+    void onDrainSpin() {
+        mDrainSpins++;
+    }
+
+    void onFrame(final long ptsUs, final int size, final boolean keyFrame, final long latencyUs, final long muxNs) {
+        mLatencyUs.record(latencyUs);
+        mMuxNs.record(muxNs);
+        mFrameBytes.record(size);
+        mBytes += size;
+        if (keyFrame) {
+            if (mKeyFrames > 0) {
+                mKeyFrameInterval.record(mFramesSinceKeyFrame);
+            }
+            mKeyFrames++;
+            mFramesSinceKeyFrame = 0;
+        }
+        mFramesSinceKeyFrame++;
+        addToWindow(ptsUs, size);
+        if (mListener != null) {
+            mListener.onFrame(this, ptsUs, size, keyFrame, latencyUs);
+        }
+    }
+
+    void onFinish() {
+        if (mStartNs != 0) {
+            mWallNs += System.nanoTime() - mStartNs;
+            mStartNs = 0;
+        }
+        if (mListener != null) {
+            mListener.onFinish(this);
+        }
+    }
+
+    /**
+     * Keep the last second of frames, or the last {@link #BITRATE_WINDOW}
+     */
+    private void addToWindow(final long ptsUs, final int size) {
+        if (mWindowSize == BITRATE_WINDOW) {
+            dropFromWindow();
+        }
+        final int i = (mWindowStart + mWindowSize) % BITRATE_WINDOW;
+        mWindowPtsUs[i] = ptsUs;
+        mWindowBytes[i] = size;
+        mWindowSize++;
+        mWindowTotal += size;
+        // With B-frames pts isn't monotonic, but it is close enough for a rate
+        while (mWindowSize > 1 && ptsUs - mWindowPtsUs[mWindowStart] > SECOND_IN_USEC) {
+            dropFromWindow();
+        }
+    }
+
+    private void dropFromWindow() {
+        mWindowTotal -= mWindowBytes[mWindowStart];
+        mWindowStart = (mWindowStart + 1) % BITRATE_WINDOW;
+        mWindowSize--;
+    }
+
+    /**
+     * @return time to lock the Surface's Canvas in {@link FrameEncoder#getCanvas()}
+     */
+    public Histogram getCanvasLockNs() {
+        return mCanvasLockNs;
+    }
+
+    /**
+     * @return time from posting a frame to the encoder returning it.
+     * Includes frames the encoder holds back, i.e. for B-frames or rate control.
+     */
+    public Histogram getLatencyUs() {
+        return mLatencyUs;
+    }
+
+    /**
+     * @return time spent in {@link FrameMuxer#muxVideoFrame} per frame
+     */
+    public Histogram getMuxNs() {
+        return mMuxNs;
+    }
+
+    public Histogram getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * @return frames between key frames
+     */
+    public Histogram getKeyFrameInterval() {
+        return mKeyFrameInterval;
+    }
+
+    /**
+     * @return times the drain loop polled the encoder without getting output
+     */
+    public long getDrainSpins() {
+        return mDrainSpins;
+    }
+
+    /**
+     * @return encoded video bytes sent to the muxer
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getFrames() {
+        return mFrameBytes.getCount();
+    }
+
+    public long getKeyFrames() {
+        return mKeyFrames;
+    }
+
+    /**
+     * @return bits per second over the last second of video
+     */
+    public long getBitrate() {
+        if (mWindowSize < 2) {
+            return 0;
+        }
+        final int last = (mWindowStart + mWindowSize - 1) % BITRATE_WINDOW;
+        // Each frame lasts until the next, so the span covers all but the last frame
+        final long spanUs = mWindowPtsUs[last] - mWindowPtsUs[mWindowStart];
+        if (spanUs <= 0) {
+            return 0;
+        }
+        return (mWindowTotal - mWindowBytes[last]) * 8 * SECOND_IN_USEC / spanUs;
+    }
+
+    /**
+     * @return time from start() to the end of release(), so far if still encoding
+     */
+    public long getWallNs() {
+        return mStartNs == 0 ? mWallNs : mWallNs + System.nanoTime() - mStartNs;
+    }
+
+    public void reset() {
+        mCanvasLockNs.reset();
+        mLatencyUs.reset();
+        mMuxNs.reset();
+        mFrameBytes.reset();
+        mKeyFrameInterval.reset();
+        mWindowStart = 0;
+        mWindowSize = 0;
+        mWindowTotal = 0;
+        mStartNs = 0;
+        mWallNs = 0;
+        mDrainSpins = 0;
+        mBytes = 0;
+        mKeyFrames = 0;
+        mFramesSinceKeyFrame = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + getFrames() + " keyFrames=" + mKeyFrames + " bytes=" + mBytes +
+                " wallMs=" + (getWallNs() / 1000000) + " drainSpins=" + mDrainSpins +
+                "\n canvasLockNs " + mCanvasLockNs +
+                "\n latencyUs " + mLatencyUs +
+                "\n muxNs " + mMuxNs +
+                "\n frameBytes " + mFrameBytes +
+                "\n keyFrameInterval " + mKeyFrameInterval;
+    }
+}
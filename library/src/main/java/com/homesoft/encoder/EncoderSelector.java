@@ -0,0 +1,323 @@
+package com.homesoft.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Picks the fastest encoder for an {@link EncoderConfig}.
+ * <p>
+ * createEncoderByType() returns the first encoder for the type, which may be a slow software one.
+ * The codec list is read once, encoders are ranked hardware first, then by how fast they can encode
+ * the config's size (from performance points on API 29+).
+ */
+public class EncoderSelector implements EncoderCodec.NamedFactory {
+    private static final String TAG = EncoderSelector.class.getSimpleName();
+    private static final int[] SPEED_MULTIPLES = {8, 4, 2, 1};
+
+    private static EncoderSelector sDefault;
+
+    /**
+     * An encoder from the codec list
+     */
+    public interface Candidate {
+        String getName();
+        boolean supportsType(final String mimeType);
+        boolean isHardwareAccelerated();
+
+        /**
+         * @return true if the encoder can encode the config's size, rate, bit rate and profile
+         */
+        boolean isSupported(final EncoderConfig config);
+
+        /**
+         * @return frames per second the encoder can sustain at the config's size, 0 if unknown
+         */
+        double getFrameRate(final EncoderConfig config);
+
+        /**
+         * @return how many instances can run at once, 0 if unknown
+         */
+        int getMaxSupportedInstances(final String mimeType);
+    }
+
+    private final List<Candidate> mCandidates;
+    private final HashMap<String, List<Candidate>> mByType = new HashMap<>();
+
+    /**
+     * @param candidates all encoders, in codec list order
+     */
+    public EncoderSelector(final List<Candidate> candidates) {
+        mCandidates = candidates;
+    }
+
+    /**
+     * @return a selector over the device's encoders, the codec list is only read once
+     */
+    public static synchronized EncoderSelector getDefault() {
+        if (sDefault == null) {
+            sDefault = new EncoderSelector(getDeviceEncoders());
+        }
+        return sDefault;
+    }
+
+    private static List<Candidate> getDeviceEncoders() {
+        final ArrayList<Candidate> list = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+                addEncoder(list, codecInfo);
+            }
+        } else {
+            final int numCodecs = MediaCodecList.getCodecCount();
+            for (int i = 0; i < numCodecs; i++) {
+                addEncoder(list, MediaCodecList.getCodecInfoAt(i));
+            }
+        }
+        return list;
+    }
+
+    private static void addEncoder(final List<Candidate> list, final MediaCodecInfo codecInfo) {
+        if (!codecInfo.isEncoder()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && codecInfo.isAlias()) {
+            // Same codec under another name
+            return;
+        }
+        list.add(new MediaCodecCandidate(codecInfo));
+    }
+
+    /**
+     * @return the encoders for the type, in codec list order
+     */
+    public synchronized List<Candidate> getEncoders(final String mimeType) {
+        final String key = mimeType.toLowerCase(Locale.US);
+        List<Candidate> list = mByType.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            for (Candidate candidate : mCandidates) {
+                if (candidate.supportsType(mimeType)) {
+                    list.add(candidate);
+                }
+            }
+            list = Collections.unmodifiableList(list);
+            mByType.put(key, list);
+        }
+        return list;
+    }
+
+    public boolean isSupported(final String mimeType) {
+        return !getEncoders(mimeType).isEmpty();
+    }
+
+    /**
+     * @return the encoders that can handle the config, best first
+     */
+    public List<Candidate> rank(final EncoderConfig config) {
+        final ArrayList<Candidate> list = new ArrayList<>();
+        final HashMap<Candidate, Double> frameRates = new HashMap<>();
+        for (Candidate candidate : getEncoders(config.getMimeType())) {
+            if (candidate.isSupported(config)) {
+                list.add(candidate);
+                frameRates.put(candidate, candidate.getFrameRate(config));
+            }
+        }
+        // Stable, so ties stay in codec list order
+        Collections.sort(list, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate c1, Candidate c2) {
+                if (c1.isHardwareAccelerated() != c2.isHardwareAccelerated()) {
+                    return c1.isHardwareAccelerated() ? -1 : 1;
+                }
+                return Double.compare(frameRates.get(c2), frameRates.get(c1));
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return the config's pinned encoder, else the best one for it, or null if none can handle it
+     */
+    @Override
+    public String select(final EncoderConfig config) {
+        if (config.getCodecName() != null) {
+            return config.getCodecName();
+        }
+        final List<Candidate> ranked = rank(config);
+        return ranked.isEmpty() ? null : ranked.get(0).getName();
+    }
+
+    /**
+     * @return a factory for the encoder chosen by {@link #select(EncoderConfig)}
+     */
+    public EncoderCodec.Factory getFactory(final EncoderConfig config) {
+        final String name = select(config);
+        if (name == null) {
+            Log.w(TAG, "No encoder supports " + config.getWidth() + "x" + config.getHeight() +
+                    ", falling back to the default");
+            return MediaCodecEncoder.FACTORY;
+        }
+        Log.d(TAG, "Selected " + name);
+        return MediaCodecEncoder.forName(name);
+    }
+
+    /**
+     * @return the first hardware encoder for the type, else the first one, null if there are none
+     */
+    public Candidate getPreferred(final String mimeType) {
+        final List<Candidate> encoders = getEncoders(mimeType);
+        for (Candidate candidate : encoders) {
+            if (candidate.isHardwareAccelerated()) {
+                return candidate;
+            }
+        }
+        return encoders.isEmpty() ? null : encoders.get(0);
+    }
+
+    /**
+     * Best encoder for the type, without knowing the size
+     */
+    @Override
+    public EncoderCodec createEncoder(final String mimeType) throws IOException {
+        final Candidate candidate = getPreferred(mimeType);
+        if (candidate == null) {
+            return MediaCodecEncoder.FACTORY.createEncoder(mimeType);
+        }
+        return createEncoder(candidate.getName(), mimeType);
+    }
+
+    @Override
+    public EncoderCodec createEncoder(final String codecName, final String mimeType) throws IOException {
+        return MediaCodecEncoder.forName(codecName).createEncoder(mimeType);
+    }
+
+    @Override
+    public int getMaxSupportedInstances(final String codecName, final String mimeType) {
+        for (Candidate candidate : getEncoders(mimeType)) {
+            if (candidate.getName().equals(codecName)) {
+                return candidate.getMaxSupportedInstances(mimeType);
+            }
+        }
+        return 0;
+    }
+
+    private static class MediaCodecCandidate implements Candidate {
+        private final MediaCodecInfo mCodecInfo;
+        private final boolean mHardwareAccelerated;
+
+        MediaCodecCandidate(final MediaCodecInfo codecInfo) {
+            mCodecInfo = codecInfo;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                mHardwareAccelerated = codecInfo.isHardwareAccelerated();
+            } else {
+                // Android's own encoders are software
+                final String name = codecInfo.getName().toLowerCase(Locale.US);
+                mHardwareAccelerated = !name.startsWith("omx.google.") && !name.startsWith("c2.android.");
+            }
+        }
+
+        @Override
+        public String getName() {
+            return mCodecInfo.getName();
+        }
+
+        @Override
+        public boolean supportsType(final String mimeType) {
+            for (String type : mCodecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isHardwareAccelerated() {
+            return mHardwareAccelerated;
+        }
+
+        @Override
+        public boolean isSupported(final EncoderConfig config) {
+            try {
+                config.validate(mCodecInfo.getCapabilitiesForType(config.getMimeType()));
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public double getFrameRate(final EncoderConfig config) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                final double frameRate = getMeasuredFrameRate(config);
+                if (frameRate > 0) {
+                    return frameRate;
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // What the codec claims, not measured
+                return mCodecInfo.getCapabilitiesForType(config.getMimeType()).getVideoCapabilities()
+                        .getSupportedFrameRatesFor(config.getWidth(), config.getHeight()).getUpper();
+            }
+            return 0;
+        }
+
+        @Override
+        public int getMaxSupportedInstances(final String mimeType) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                return 0;
+            }
+            return mCodecInfo.getCapabilitiesForType(mimeType).getMaxSupportedInstances();
+        }
+
+        /**
+         * Performance points are measured by the vendor, find the highest multiple of the frame rate covered
+         */
+        @TargetApi(Build.VERSION_CODES.Q)
+        private double getMeasuredFrameRate(final EncoderConfig config) {
+            final List<MediaCodecInfo.VideoCapabilities.PerformancePoint> points =
+                    mCodecInfo.getCapabilitiesForType(config.getMimeType()).getVideoCapabilities()
+                            .getSupportedPerformancePoints();
+            if (points == null || points.isEmpty()) {
+                return 0;
+            }
+            for (int multiple : SPEED_MULTIPLES) {
+                final int frameRate = (int)Math.ceil(config.getFramePerSecond() * multiple);
+                final MediaCodecInfo.VideoCapabilities.PerformancePoint needed =
+                        new MediaCodecInfo.VideoCapabilities.PerformancePoint(config.getWidth(), config.getHeight(), frameRate);
+                for (MediaCodecInfo.VideoCapabilities.PerformancePoint point : points) {
+                    if (point.covers(needed)) {
+                        return frameRate;
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+}
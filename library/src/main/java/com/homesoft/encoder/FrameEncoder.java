@@ -2,15 +2,22 @@ package com.homesoft.encoder;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Rect;
+import android.graphics.Color;
+import android.media.Image;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /*
  * Copyright (C) 2019 Homesoft, LLC
@@ -35,54 +42,291 @@ public class FrameEncoder {
     private final static long SECOND_IN_USEC = 1000000;
 
     private static final int TIMEOUT_USEC = 10000;
+    // How long release() waits for the codec's last buffer in async mode
+    private static final long END_OF_STREAM_TIMEOUT_MS = 10000;
 
     private final EncoderConfig mEncoderConfing;
+    private final EncoderCodec.Factory mCodecFactory;
+    private final boolean mAsync;
 
     private MediaCodec.BufferInfo mBufferInfo;
-    private MediaCodec mEncoder;
+    private EncoderCodec mEncoder;
     private Surface mSurface;
-    private Rect mCanvasRect;
+    private InputSurface mInputSurface;
+
+    // EncoderConfig.INPUT_BUFFER only
+    private YuvConverter mYuvConverter;
+    private ByteBuffer mRgbaBuffer;
+    private final LinkedBlockingQueue<Integer> mInputBuffers = new LinkedBlockingQueue<>();
 
     private FrameMuxer mFrameMuxer;
+    private EncoderMetrics mMetrics;
+
+    private boolean mStarted;
+    private long mStartLatencyNs;
+
+    private final long mFrameUsec;
+    private final TimestampQueue mTimestamps = new TimestampQueue();
+    private long mNextPtsUs;
+    private long mLastPtsUs;
+    private long mResumePtsUs;
+
+    private boolean mDeduplicate;
+    private boolean mLastHashValid;
+    private long mLastHash;
+    private int[] mHashRow;
+
+    // Copy of the last frame, if it is shown for more than one frame
+    private Bitmap mHoldBitmap;
+    // Reused for every hold, so a slideshow doesn't allocate a Bitmap per slide
+    private Bitmap mHoldCopy;
+    private Canvas mHoldCanvas;
+    private long mHoldStartUs;
+
+    private HandlerThread mCallbackThread;
+    private CountDownLatch mEndOfStream;
+    private long mEndOfStreamTimeoutMs = END_OF_STREAM_TIMEOUT_MS;
+    private volatile RuntimeException mAsyncError;
+
+    private final EncoderCodec.Callback mCallback = new EncoderCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(EncoderCodec codec, int index) {
+            mInputBuffers.add(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(EncoderCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+            if (mAsyncError != null) {
+                codec.releaseOutputBuffer(index);
+                return;
+            }
+            try {
+                if (handleOutputBuffer(index, bufferInfo)) {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached");
+                    mEndOfStream.countDown();
+                }
+            } catch (RuntimeException e) {
+                onAsyncError(e);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(EncoderCodec codec, MediaFormat format) {
+            try {
+                startMuxer();
+            } catch (RuntimeException e) {
+                onAsyncError(e);
+            }
+        }
+
+        @Override
+        public void onError(EncoderCodec codec, Exception e) {
+            onAsyncError(new RuntimeException("Encoder error", e));
+        }
+    };
 
     public static long getFrameTime(final float framesPerSecond) {
         return (long)(SECOND_IN_USEC / framesPerSecond);
     }
 
     public FrameEncoder(final EncoderConfig encoderConfig) {
+        this(encoderConfig, false);
+    }
+
+    /**
+     * @param async if true, encoded frames are drained and muxed on a dedicated thread
+     *              using MediaCodec callbacks, so createFrame() returns as soon as the frame is posted.
+     *              Requires API 23, ignored on older devices.
+     */
+    public FrameEncoder(final EncoderConfig encoderConfig, final boolean async) {
+        this(encoderConfig, EncoderSelector.getDefault().getFactory(encoderConfig),
+                async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+    }
+
+    /**
+     * @param codecFactory source of the codec, i.e. a {@link CodecPool}
+     * @param async see {@link #FrameEncoder(EncoderConfig, boolean)}.  MediaCodec needs API 23 for this.
+     */
+    public FrameEncoder(final EncoderConfig encoderConfig, final EncoderCodec.Factory codecFactory, final boolean async) {
         mEncoderConfing = encoderConfig;
+        mCodecFactory = codecFactory;
+        mAsync = async;
+        mFrameUsec = getFrameTime(encoderConfig.getFramePerSecond());
     }
 
     public void start() throws IOException {
+        final long startNs = System.nanoTime();
         mBufferInfo = new MediaCodec.BufferInfo();
         final MediaFormat mediaFormat = mEncoderConfing.getVideoMediaFormat();
-        mEncoder = MediaCodec.createEncoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
-        mEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-            mCanvasRect = new Rect(0,0,mEncoderConfing.getWidth(), mEncoderConfing.getHeight());
+        final String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
+        mEncoder = createEncoder(mimeType);
+        final MediaCodecInfo codecInfo = mEncoder.getCodecInfo();
+        if (codecInfo != null) {
+            mEncoderConfing.validate(codecInfo.getCapabilitiesForType(mimeType));
+        }
+        // A reused FrameEncoder starts afresh, even if the last run failed
+        mAsyncError = null;
+        if (mAsync) {
+            mEndOfStream = new CountDownLatch(1);
+            mCallbackThread = new HandlerThread(TAG);
+            mCallbackThread.start();
+            mEncoder.setCallback(mCallback, new Handler(mCallbackThread.getLooper()));
+        }
+        mInputBuffers.clear();
+        mEncoder.configure(mediaFormat);
+        if (mEncoderConfing.getInputMode() == EncoderConfig.INPUT_BUFFER) {
+            if (mYuvConverter == null) {
+                mYuvConverter = YuvConverter.getShared();
+            }
+        } else {
+            mSurface = mEncoder.createInputSurface();
+            final InputSurface.Factory inputSurfaceFactory = mEncoderConfing.getInputSurfaceFactory();
+            mInputSurface = (inputSurfaceFactory == null ? CanvasInputSurface.FACTORY : inputSurfaceFactory)
+                    .createInputSurface(mSurface, mEncoderConfing);
         }
-        mSurface = mEncoder.createInputSurface();
         mFrameMuxer = mEncoderConfing.getFrameMuxer();
         mEncoder.start();
-        drainEncoder(false);
+        mStarted = true;
+        mStartLatencyNs = System.nanoTime() - startNs;
+        mTimestamps.clear();
+        mNextPtsUs = 0;
+        mLastPtsUs = Long.MIN_VALUE;
+        mResumePtsUs = mFrameMuxer instanceof FrameMuxer.Resumable ?
+                Math.max(0, ((FrameMuxer.Resumable)mFrameMuxer).getResumePtsUs()) : 0;
+        if (mResumePtsUs > 0) {
+            // The output already has the frames before this
+            mNextPtsUs = mResumePtsUs;
+            mLastPtsUs = mResumePtsUs - 1;
+            Log.d(TAG, "resuming at frame " + getResumeFrame());
+        }
+        mLastHashValid = false;
+        mHoldBitmap = null;
+        if (mMetrics != null) {
+            mMetrics.onStart();
+        }
+        if (VERBOSE) Log.d(TAG, "encoder started in " + (mStartLatencyNs / 1000) + "us");
+        if (!mAsync) {
+            drainEncoder(false);
+        }
+    }
+
+    /**
+     * @return the encoder's output format, with the codec specific data once the first frame is out.
+     * For {@link FrameMuxer#start(FrameEncoder)}.
+     */
+    public MediaFormat getOutputFormat() {
+        return mEncoder.getOutputFormat();
+    }
+
+    /**
+     * @return time start() took to get a codec, configure and start it.
+     * Much lower when the codec is reused, see {@link CodecPool}.
+     */
+    public long getStartLatencyNs() {
+        return mStartLatencyNs;
+    }
+
+    /**
+     * @return name of the encoder in use, null if not started
+     */
+    public String getCodecName() {
+        if (mEncoder == null || mEncoder.getCodecInfo() == null) {
+            return null;
+        }
+        return mEncoder.getCodecInfo().getName();
     }
 
-    MediaCodec getVideoMediaCodec() {
-        return mEncoder;
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * @return the first frame to encode after start(), at the configured frame rate.  0 unless the
+     * output was recovered from a checkpoint, see {@link EncoderConfig#setCheckpointInterval(long)}.
+     */
+    public int getResumeFrame() {
+        return (int)Math.round(mResumePtsUs / (double)mFrameUsec);
+    }
+
+    /**
+     * @return presentation time of the first frame to encode after start(), for {@link #createFrameAt(Bitmap, long)}
+     */
+    public long getResumePtsUs() {
+        return mResumePtsUs;
+    }
+
+    /**
+     * Collect timings and output stats, see {@link EncoderMetrics}.  Set before start().
+     * @param metrics null to stop collecting
+     */
+    public void setMetrics(final EncoderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public EncoderMetrics getMetrics() {
+        return mMetrics;
     }
 
     public Canvas getCanvas() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            return mSurface.lockHardwareCanvas();
-        } else {
-            return mSurface.lockCanvas(mCanvasRect);
+        final EncoderMetrics metrics = mMetrics;
+        if (metrics == null) {
+            return lockCanvas();
+        }
+        metrics.beginSection("lockCanvas");
+        final long start = System.nanoTime();
+        try {
+            return lockCanvas();
+        } finally {
+            metrics.onCanvasLocked(System.nanoTime() - start);
+            metrics.endSection();
         }
     }
 
+    private Canvas lockCanvas() {
+        if (mInputSurface == null) {
+            throw new IllegalStateException("No Canvas with EncoderConfig.INPUT_BUFFER");
+        }
+        return mInputSurface.lockCanvas();
+    }
+
+    /**
+     * Converts RGBA frames for {@link EncoderConfig#INPUT_BUFFER}.  Set before start().
+     * @param yuvConverter null for {@link YuvConverter#getShared()}
+     */
+    public void setYuvConverter(final YuvConverter yuvConverter) {
+        mYuvConverter = yuvConverter;
+    }
+
+    /**
+     * How long release() waits for the end of stream in async mode before giving up with an error
+     */
+    public void setEndOfStreamTimeoutMs(final long timeoutMs) {
+        mEndOfStreamTimeoutMs = timeoutMs;
+    }
+
     public void createFrame(final Bitmap bitmap) {
-        final Canvas canvas = getCanvas();
-        canvas.drawBitmap(bitmap, 0f, 0f, null);
-        createFrame(canvas);
+        createFrame(bitmap, 1);
+    }
+
+    /**
+     * Show a still image for durationFrames frames.
+     * The image is encoded once and the sample's duration is extended, rather than encoding the same
+     * image durationFrames times.
+     */
+    public void createFrame(final Bitmap bitmap, final int durationFrames) {
+        if (durationFrames < 1) {
+            throw new IllegalArgumentException("durationFrames must be at least 1: " + durationFrames);
+        }
+        createFrame(bitmap, mNextPtsUs, durationFrames * mFrameUsec);
+    }
+
+    /**
+     * Add a frame at the caller's presentation time, i.e. for variable frame rate video.
+     * Times must increase, reordering for B-frames is handled here.
+     * The frame lasts until the next one, the last frame lasts one frame at the configured rate.
+     */
+    public void createFrameAt(final Bitmap bitmap, final long ptsUs) {
+        createFrame(bitmap, ptsUs, mFrameUsec);
     }
 
     /**
@@ -90,8 +334,264 @@ public class FrameEncoder {
      * @param canvas acquired from getCanvas()
      */
     public void createFrame(final Canvas canvas) {
-        mSurface.unlockCanvasAndPost(canvas);
-        drainEncoder(false);
+        createFrameAt(canvas, mNextPtsUs);
+    }
+
+    /**
+     * See {@link #createFrameAt(Bitmap, long)}
+     * @param canvas acquired from getCanvas()
+     */
+    public void createFrameAt(final Canvas canvas, final long ptsUs) {
+        checkPresentationTime(ptsUs);
+        mLastHashValid = false;
+        mHoldBitmap = null;
+        postFrame(canvas, ptsUs);
+        mNextPtsUs = ptsUs + mFrameUsec;
+    }
+
+    /**
+     * Add a raw frame with {@link EncoderConfig#INPUT_BUFFER}, see {@link #createFrameAt(ByteBuffer, int, long)}
+     */
+    public void createFrame(final ByteBuffer frame, final int format) {
+        createFrameAt(frame, format, mNextPtsUs);
+    }
+
+    /**
+     * Add a raw frame with {@link EncoderConfig#INPUT_BUFFER}.  The frame is converted or copied straight
+     * into the codec's input buffer, with no Bitmap or Canvas in between.
+     * @param frame tightly packed, the configured size, starting at index 0
+     * @param format {@link YuvConverter#FORMAT_RGBA}, {@link YuvConverter#FORMAT_I420} or {@link YuvConverter#FORMAT_NV12}
+     */
+    public void createFrameAt(final ByteBuffer frame, final int format, final long ptsUs) {
+        if (mInputSurface != null) {
+            throw new IllegalStateException("ByteBuffer frames need EncoderConfig.INPUT_BUFFER");
+        }
+        checkPresentationTime(ptsUs);
+        mLastHashValid = false;
+        mHoldBitmap = null;
+        final EncoderMetrics metrics = beginPost(ptsUs);
+        try {
+            queueFrame(frame, format, ptsUs);
+        } finally {
+            endPost(metrics);
+        }
+        onPosted();
+        mNextPtsUs = ptsUs + mFrameUsec;
+    }
+
+    private void createFrame(final Bitmap bitmap, final long ptsUs, final long durationUs) {
+        checkPresentationTime(ptsUs);
+        if (mDeduplicate) {
+            final long hash = hash(bitmap);
+            if (mLastHashValid && hash == mLastHash) {
+                // Same image as the last frame, just show that for longer
+                hold(bitmap);
+                mNextPtsUs = ptsUs + durationUs;
+                return;
+            }
+            mLastHash = hash;
+            mLastHashValid = true;
+        }
+        postFrame(bitmap, ptsUs);
+        mHoldBitmap = null;
+        mHoldStartUs = ptsUs;
+        mNextPtsUs = ptsUs + durationUs;
+        if (durationUs > mFrameUsec) {
+            hold(bitmap);
+        }
+    }
+
+    /**
+     * Skip encoding Bitmaps passed to createFrame() or createFrameAt() that are identical
+     * to the previous one, extending the previous frame instead.
+     * Costs a hash of every pixel per frame.
+     */
+    public void setDeduplicate(final boolean deduplicate) {
+        mDeduplicate = deduplicate;
+        mLastHashValid = false;
+    }
+
+    public boolean isDeduplicate() {
+        return mDeduplicate;
+    }
+
+    private void checkPresentationTime(final long ptsUs) {
+        if (ptsUs <= mLastPtsUs) {
+            throw new IllegalArgumentException("Presentation time " + ptsUs + "us is not after " + mLastPtsUs + "us");
+        }
+        mLastPtsUs = ptsUs;
+    }
+
+    private void postFrame(final Canvas canvas, final long ptsUs) {
+        final EncoderMetrics metrics = beginPost(ptsUs);
+        try {
+            mInputSurface.post(canvas, ptsUs);
+        } finally {
+            endPost(metrics);
+        }
+        onPosted();
+    }
+
+    private void postFrame(final Bitmap bitmap, final long ptsUs) {
+        final EncoderMetrics metrics = beginPost(ptsUs);
+        try {
+            if (mInputSurface == null) {
+                queueFrame(bitmap, ptsUs);
+            } else {
+                mInputSurface.post(bitmap, ptsUs);
+            }
+        } finally {
+            endPost(metrics);
+        }
+        onPosted();
+    }
+
+    private EncoderMetrics beginPost(final long ptsUs) {
+        final EncoderMetrics metrics = mMetrics;
+        mTimestamps.add(ptsUs);
+        if (metrics != null) {
+            metrics.beginSection("postFrame");
+        }
+        return metrics;
+    }
+
+    private void endPost(final EncoderMetrics metrics) {
+        if (metrics != null) {
+            metrics.endSection();
+        }
+    }
+
+    private void onPosted() {
+        if (mAsync) {
+            checkAsyncError();
+        } else {
+            drainEncoder(false);
+        }
+    }
+
+    /**
+     * Bitmaps go through an RGBA buffer, which is one copy less than drawing them on a Canvas
+     */
+    private void queueFrame(final Bitmap bitmap, final long ptsUs) {
+        final int width = mEncoderConfing.getWidth();
+        final int height = mEncoderConfing.getHeight();
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height ||
+                bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            throw new IllegalArgumentException("EncoderConfig.INPUT_BUFFER needs " + width + "x" + height +
+                    " ARGB_8888 Bitmaps");
+        }
+        if (mRgbaBuffer == null) {
+            mRgbaBuffer = ByteBuffer.allocateDirect(YuvConverter.getFrameSize(YuvConverter.FORMAT_RGBA, width, height));
+        }
+        mRgbaBuffer.clear();
+        bitmap.copyPixelsToBuffer(mRgbaBuffer);
+        queueFrame(mRgbaBuffer, YuvConverter.FORMAT_RGBA, ptsUs);
+    }
+
+    private void queueFrame(final ByteBuffer frame, final int format, final long ptsUs) {
+        final int index = dequeueInputBuffer();
+        // Image invalidates the ByteBuffer, so get its size first
+        final int size = mEncoder.getInputBuffer(index).capacity();
+        final Image image = mEncoder.getInputImage(index);
+        final Image.Plane[] planes = image.getPlanes();
+        mYuvConverter.convert(frame, format, mEncoderConfing.getWidth(), mEncoderConfing.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride());
+        mEncoder.queueInputBuffer(index, size, ptsUs, 0);
+    }
+
+    /**
+     * Waits for a free input buffer, draining output to make room
+     */
+    private int dequeueInputBuffer() {
+        if (mAsync) {
+            try {
+                while (true) {
+                    checkAsyncError();
+                    final Integer index = mInputBuffers.poll(TIMEOUT_USEC, TimeUnit.MICROSECONDS);
+                    if (index != null) {
+                        return index;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for an input buffer", e);
+            }
+        }
+        while (true) {
+            final int index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index >= 0) {
+                return index;
+            }
+            drainEncoder(false);
+        }
+    }
+
+    /**
+     * Input buffers end with an empty buffer flagged end of stream
+     */
+    private void signalEndOfInput() {
+        if (mInputSurface == null) {
+            mEncoder.queueInputBuffer(dequeueInputBuffer(), 0, mNextPtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        } else {
+            mEncoder.signalEndOfInputStream();
+        }
+    }
+
+    /**
+     * The last frame lasts more than one frame.
+     * The caller may reuse the Bitmap, so keep a copy in case we need to draw it again at the end.
+     */
+    private void hold(final Bitmap bitmap) {
+        if (mHoldBitmap == null) {
+            if (mHoldCopy == null || mHoldCopy.getWidth() != bitmap.getWidth() ||
+                    mHoldCopy.getHeight() != bitmap.getHeight()) {
+                if (mHoldCopy != null) {
+                    mHoldCopy.recycle();
+                }
+                mHoldCopy = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+                mHoldCanvas = new Canvas(mHoldCopy);
+            } else {
+                // Drawing blends, so start from transparent
+                mHoldCopy.eraseColor(Color.TRANSPARENT);
+            }
+            mHoldCanvas.drawBitmap(bitmap, 0f, 0f, null);
+            mHoldBitmap = mHoldCopy;
+        }
+    }
+
+    /**
+     * Muxers take the duration of the last sample from the one before it (or the frame rate),
+     * so end a held frame with two single frame samples.
+     */
+    private void finishHold() {
+        long ptsUs = Math.max(mHoldStartUs + mFrameUsec, mNextPtsUs - 2 * mFrameUsec);
+        for (; ptsUs < mNextPtsUs; ptsUs += mFrameUsec) {
+            postFrame(mHoldBitmap, ptsUs);
+        }
+        mHoldBitmap = null;
+    }
+
+    /**
+     * FNV-1a over the pixels
+     */
+    private long hash(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (mHashRow == null || mHashRow.length < width) {
+            mHashRow = new int[width];
+        }
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ width) * 0x100000001b3L;
+        hash = (hash ^ height) * 0x100000001b3L;
+        for (int y=0;y<height;y++) {
+            bitmap.getPixels(mHashRow, 0, width, 0, y, width, 1);
+            for (int x=0;x<width;x++) {
+                hash = (hash ^ mHashRow[x]) * 0x100000001b3L;
+            }
+        }
+        return hash;
     }
 
     /**
@@ -105,67 +605,52 @@ public class FrameEncoder {
      */
     private void drainEncoder(boolean endOfStream) {
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
-
+        final EncoderMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.beginSection("drainEncoder");
+        }
+        try {
+            drainLoop(endOfStream);
+        } finally {
+            if (metrics != null) {
+                metrics.endSection();
+            }
+        }
         if (endOfStream) {
-            // Add the audio track
+            // Video is complete, add the rest of the audio track
             mFrameMuxer.copyAudio();
+        }
+    }
 
+    private void drainLoop(final boolean endOfStream) {
+
+        if (endOfStream) {
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
-            mEncoder.signalEndOfInputStream();
+            signalEndOfInput();
         }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
         while (true) {
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
+                if (mMetrics != null) {
+                    mMetrics.onDrainSpin();
+                }
                 if (!endOfStream) {
                     break;      // out of while
                 } else {
                     if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
                 }
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
+                // not expected for an encoder, the codec refreshes its buffers
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mFrameMuxer.isStarted()) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mFrameMuxer.start(this);
+                startMuxer();
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
                 // let's ignore it
             } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
-                }
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mFrameMuxer.isStarted()) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-                    mFrameMuxer.muxVideoFrame(encodedData, mBufferInfo);
-                    if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
-                }
-
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (handleOutputBuffer(encoderStatus, mBufferInfo)) {
                     if (!endOfStream) {
                         Log.w(TAG, "reached end of stream unexpectedly");
                     } else {
@@ -177,17 +662,179 @@ public class FrameEncoder {
         }
     }
 
+    private void startMuxer() {
+        // should happen before receiving buffers, and should only happen once
+        if (mFrameMuxer.isStarted()) {
+            throw new RuntimeException("format changed twice");
+        }
+        MediaFormat newFormat = mEncoder.getOutputFormat();
+        Log.d(TAG, "encoder output format changed: " + newFormat);
+
+        // now that we have the Magic Goodies, start the muxer
+        mFrameMuxer.start(this);
+    }
+
+    /**
+     * Sends an encoded buffer to the muxer and returns it to the codec
+     * @return true if this was the end of stream buffer
+     */
+    private boolean handleOutputBuffer(final int index, final MediaCodec.BufferInfo bufferInfo) {
+        ByteBuffer encodedData = mEncoder.getOutputBuffer(index);
+        if (encodedData == null) {
+            throw new RuntimeException("encoderOutputBuffer " + index +
+                    " was null");
+        }
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            bufferInfo.size = 0;
+        }
+
+        if (bufferInfo.size != 0) {
+            if (!mFrameMuxer.isStarted()) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+            if (mInputSurface == null || mInputSurface.isTimestamped()) {
+                // Already the caller's time, only needed for the latency
+                mTimestamps.removePts(bufferInfo.presentationTimeUs);
+            } else {
+                bufferInfo.presentationTimeUs = mTimestamps.remove(bufferInfo.presentationTimeUs);
+            }
+            if (mMetrics == null) {
+                mFrameMuxer.muxVideoFrame(encodedData, bufferInfo);
+            } else {
+                muxWithMetrics(encodedData, bufferInfo);
+            }
+            if (VERBOSE) Log.d(TAG, "sent " + bufferInfo.size + " bytes to muxer");
+        }
+
+        mEncoder.releaseOutputBuffer(index);
+        return (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    private void muxWithMetrics(final ByteBuffer encodedData, final MediaCodec.BufferInfo bufferInfo) {
+        final EncoderMetrics metrics = mMetrics;
+        final long latencyUs = System.nanoTime() / 1000 - mTimestamps.getRemovedPostTimeUs();
+        // The muxer may change bufferInfo
+        final int size = bufferInfo.size;
+        final long ptsUs = bufferInfo.presentationTimeUs;
+        final boolean keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        metrics.beginSection("muxVideoFrame");
+        final long start = System.nanoTime();
+        try {
+            mFrameMuxer.muxVideoFrame(encodedData, bufferInfo);
+        } finally {
+            metrics.endSection();
+        }
+        metrics.onFrame(ptsUs, size, keyFrame, latencyUs, System.nanoTime() - start);
+    }
+
+    private void onAsyncError(final RuntimeException e) {
+        Log.e(TAG, "Async encoding failed", e);
+        if (mAsyncError == null) {
+            mAsyncError = e;
+        }
+        mEndOfStream.countDown();
+    }
+
+    private void checkAsyncError() {
+        final RuntimeException e = mAsyncError;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Signals EOS and waits for the callback thread to mux the last frame.
+     */
+    private void finishAsync() {
+        if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+        if (mAsyncError == null) {
+            signalEndOfInput();
+        }
+        try {
+            if (!mEndOfStream.await(mEndOfStreamTimeoutMs, TimeUnit.MILLISECONDS)) {
+                // i.e. the codec failed without calling onError
+                onAsyncError(new RuntimeException("No end of stream from the encoder after " +
+                        mEndOfStreamTimeoutMs + "ms"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onAsyncError(new RuntimeException("Interrupted waiting for the end of stream", e));
+        }
+        if (mAsyncError == null) {
+            // Video is complete, add the audio track
+            mFrameMuxer.copyAudio();
+        }
+    }
+
+    private EncoderCodec createEncoder(final String mimeType) throws IOException {
+        if (mCodecFactory instanceof EncoderCodec.NamedFactory) {
+            final EncoderCodec.NamedFactory namedFactory = (EncoderCodec.NamedFactory)mCodecFactory;
+            final String codecName = namedFactory.select(mEncoderConfing);
+            if (codecName != null) {
+                return namedFactory.createEncoder(codecName, mimeType);
+            }
+        }
+        return mCodecFactory.createEncoder(mimeType);
+    }
+
     /**
      * Releases encoder resources.  May be called after partial / failed initialization.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
-        if (mEncoder != null) {
-            //This line could be isn't only call, like flush() or something
-            drainEncoder(true);
-            mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
+        try {
+            if (mEncoder != null && mStarted) {
+                if (mHoldBitmap != null && mAsyncError == null) {
+                    finishHold();
+                }
+                if (mAsync) {
+                    finishAsync();
+                } else {
+                    drainEncoder(true);
+                }
+            }
+        } finally {
+            // Even if draining failed, a pooled codec must go back to its pool
+            releaseEncoder();
+            releaseResources();
+        }
+        checkAsyncError();
+    }
+
+    private void releaseEncoder() {
+        final EncoderCodec encoder = mEncoder;
+        mEncoder = null;
+        mStarted = false;
+        if (encoder == null) {
+            return;
+        }
+        try {
+            encoder.stop();
+        } catch (RuntimeException e) {
+            // i.e. the codec is in its error state, release() still frees it
+            Log.w(TAG, "Failed to stop encoder", e);
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private void releaseResources() {
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+        if (mHoldCopy != null) {
+            mHoldCopy.recycle();
+            mHoldCopy = null;
+            mHoldCanvas = null;
+        }
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
         }
         if (mSurface != null) {
             mSurface.release();
@@ -196,6 +843,9 @@ public class FrameEncoder {
         if (mFrameMuxer != null) {
             mFrameMuxer.release();
             mFrameMuxer = null;
+            if (mMetrics != null) {
+                mMetrics.onFinish();
+            }
         }
     }
 
@@ -2,6 +2,7 @@ package com.homesoft.encoder;
 
 import android.media.MediaCodec;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /*
@@ -21,11 +22,29 @@ import java.nio.ByteBuffer;
  */
 
 public interface FrameMuxer {
+    /**
+     * Plug a muxer in with {@link EncoderConfig#setFrameMuxerFactory(Factory)}
+     */
+    interface Factory {
+        FrameMuxer createFrameMuxer(final EncoderConfig encoderConfig) throws IOException;
+    }
+
+    /**
+     * A muxer that can continue a file from a checkpoint, see {@link EncoderConfig#setCheckpointInterval(long)}
+     */
+    interface Resumable {
+        /**
+         * @return presentation time of the key frame to continue encoding from, -1 for a new file
+         */
+        long getResumePtsUs();
+    }
+
     boolean isStarted();
     void start(final FrameEncoder frameEncoder);
 
     /**
-     * Copy audio track into video file.
+     * Copy the rest of the audio track into video file.
+     * Muxers may interleave audio as video frames arrive, this flushes whatever is left.
      * Should only be called once the video is encoded, if there is an audio track to add.
      */
     void copyAudio();
@@ -0,0 +1,29 @@
+package com.homesoft.encoder;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Supplies the frames of a video
+ */
+public interface FrameSource {
+    int getFrameCount();
+
+    /**
+     * Draw frame number frame with one of the FrameEncoder.createFrame() methods
+     */
+    void renderFrame(final FrameEncoder frameEncoder, final int frame);
+}
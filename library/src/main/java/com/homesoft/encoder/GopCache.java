@@ -0,0 +1,230 @@
+package com.homesoft.encoder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Disk cache of encoded GOPs, each stored as a small MP4 named by its key.
+ * <p>
+ * The least recently used GOPs are deleted when the cache grows past its size limit.  Use
+ * survives restarts through the files' modification times.  See {@link IncrementalEncoder}.
+ * One cache directory should only be used by one instance at a time.
+ */
+public class GopCache {
+    private static final String TAG = GopCache.class.getSimpleName();
+    private static final String SUFFIX = ".mp4";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    private final long mMaxBytes;
+    // Sizes in access order, least recently used first
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private long mBytes;
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    /**
+     * Snapshot of the cache's counters
+     */
+    public static class Stats {
+        private final int mHits;
+        private final int mMisses;
+        private final int mEvictions;
+        private final int mEntries;
+        private final long mBytes;
+
+        Stats(final int hits, final int misses, final int evictions, final int entries, final long bytes) {
+            mHits = hits;
+            mMisses = misses;
+            mEvictions = evictions;
+            mEntries = entries;
+            mBytes = bytes;
+        }
+
+        public int getHits() {
+            return mHits;
+        }
+
+        public int getMisses() {
+            return mMisses;
+        }
+
+        /**
+         * @return GOPs deleted to stay under the size limit
+         */
+        public int getEvictions() {
+            return mEvictions;
+        }
+
+        public int getEntries() {
+            return mEntries;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions + " entries=" + mEntries +
+                    " bytes=" + mBytes;
+        }
+    }
+
+    /**
+     * @param dir created if needed, GOPs already there are kept
+     */
+    public GopCache(final File dir, final long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Can't create " + dir);
+        }
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                final long m1 = f1.lastModified();
+                final long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left by an encode that didn't finish
+                file.delete();
+            } else if (name.endsWith(SUFFIX)) {
+                final long size = file.length();
+                mEntries.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                mBytes += size;
+            }
+        }
+        trim(null);
+    }
+
+    private File getFile(final String key) {
+        return new File(mDir, key + SUFFIX);
+    }
+
+    /**
+     * @return the GOP's file, or null if it isn't cached
+     */
+    public synchronized File get(final String key) {
+        if (mEntries.get(key) == null) {
+            mMisses++;
+            return null;
+        }
+        final File file = getFile(key);
+        if (!file.exists()) {
+            mBytes -= mEntries.remove(key);
+            mMisses++;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        mHits++;
+        return file;
+    }
+
+    /**
+     * @return a file in the cache directory to encode into, for {@link #put(String, File)}
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("gop", TEMP_SUFFIX, mDir);
+    }
+
+    /**
+     * Move an encoded GOP into the cache.  Older GOPs are evicted to make room, never this one, so
+     * a GOP larger than the limit on its own is kept until the next put.
+     * @param file from {@link #createTempFile()}
+     * @return the GOP's file in the cache, it may be evicted by later puts
+     */
+    public synchronized File put(final String key, final File file) throws IOException {
+        final File cacheFile = getFile(key);
+        final Long oldSize = mEntries.remove(key);
+        if (oldSize != null) {
+            mBytes -= oldSize;
+            cacheFile.delete();
+        }
+        if (!file.renameTo(cacheFile)) {
+            throw new IOException("Failed to move " + file + " to " + cacheFile);
+        }
+        final long size = cacheFile.length();
+        mEntries.put(key, size);
+        mBytes += size;
+        trim(key);
+        return cacheFile;
+    }
+
+    public synchronized void remove(final String key) {
+        final Long size = mEntries.remove(key);
+        if (size != null) {
+            mBytes -= size;
+            getFile(key).delete();
+        }
+    }
+
+    public synchronized void clear() {
+        for (String key : mEntries.keySet()) {
+            getFile(key).delete();
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mHits, mMisses, mEvictions, mEntries.size(), mBytes);
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Evict the least recently used GOPs until under the limit
+     * @param keep key of the GOP just put, which isn't evicted
+     */
+    private void trim(final String keep) {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            if (!getFile(entry.getKey()).delete()) {
+                Log.w(TAG, "Failed to delete " + entry.getKey());
+            }
+            mBytes -= entry.getValue();
+            iterator.remove();
+            mEvictions++;
+        }
+    }
+}
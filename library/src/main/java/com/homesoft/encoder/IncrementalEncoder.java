@@ -0,0 +1,202 @@
+package com.homesoft.encoder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Re-renders a video, encoding only the GOPs whose frames changed since an earlier render.
+ * <p>
+ * Each GOP is keyed by a hash of the encoder settings and its frames' keys.  GOPs found in the
+ * {@link GopCache} are copied as is, the rest are encoded on the {@link EncodeJobScheduler} and
+ * cached, then everything is joined as in {@link ParallelEncoder}.  Like ParallelEncoder, the
+ * output is a progressive MP4 and the frame source may be called from several threads at once.
+ */
+public class IncrementalEncoder {
+    private static final String TAG = IncrementalEncoder.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface KeyedFrameSource extends FrameSource {
+        /**
+         * @return identifies everything that goes into the frame, i.e. image, caption and duration.
+         * Frames with the same key must render identically.
+         */
+        String getFrameKey(final int frame);
+    }
+
+    public static class Result {
+        private final int mGops;
+        private final int mEncodedGops;
+        private final long mElapsedNs;
+
+        Result(final int gops, final int encodedGops, final long elapsedNs) {
+            mGops = gops;
+            mEncodedGops = encodedGops;
+            mElapsedNs = elapsedNs;
+        }
+
+        public int getGops() {
+            return mGops;
+        }
+
+        /**
+         * @return GOPs that weren't cached and had to be encoded
+         */
+        public int getEncodedGops() {
+            return mEncodedGops;
+        }
+
+        public long getElapsedNs() {
+            return mElapsedNs;
+        }
+
+        @Override
+        public String toString() {
+            return mEncodedGops + " of " + mGops + " GOPs encoded in " + (mElapsedNs / 1000000) + "ms";
+        }
+    }
+
+    private final EncodeJobScheduler mScheduler;
+    private final GopCache mGopCache;
+
+    public IncrementalEncoder(final EncodeJobScheduler scheduler, final GopCache gopCache) {
+        mScheduler = scheduler;
+        mGopCache = gopCache;
+    }
+
+    /**
+     * Encode the video to encoderConfig's path, blocking until it is written
+     */
+    public Result encode(final EncoderConfig encoderConfig, final KeyedFrameSource frameSource) throws IOException {
+        final long start = System.nanoTime();
+        final int frames = frameSource.getFrameCount();
+        final int gopFrames = ParallelEncoder.getGopFrames(encoderConfig);
+        final int gops = (frames + gopFrames - 1) / gopFrames;
+        final String settings = getSettingsKey(encoderConfig, gopFrames);
+
+        final String[] keys = new String[gops];
+        final File[] files = new File[gops];
+        // GOPs encoded by this call, moved into the cache once the output is written
+        final File[] encodedFiles = new File[gops];
+        for (int g = 0; g < gops; g++) {
+            keys[g] = getGopKey(settings, frameSource, g * gopFrames, Math.min(frames, (g + 1) * gopFrames));
+            files[g] = mGopCache.get(keys[g]);
+        }
+        try {
+            int encoded = encodeMissing(encoderConfig, frameSource, gopFrames, files, encodedFiles);
+            try {
+                ParallelEncoder.concatenate(encoderConfig, Arrays.asList(files));
+            } catch (IllegalArgumentException e) {
+                if (encoded == gops) {
+                    throw e;
+                }
+                // i.e. cached by a different encoder, with other parameter sets.  Start over.
+                Log.w(TAG, "Cached GOPs can't be joined, encoding all of them", e);
+                for (int g = 0; g < gops; g++) {
+                    if (encodedFiles[g] == null) {
+                        mGopCache.remove(keys[g]);
+                        files[g] = null;
+                    }
+                }
+                encoded += encodeMissing(encoderConfig, frameSource, gopFrames, files, encodedFiles);
+                ParallelEncoder.concatenate(encoderConfig, Arrays.asList(files));
+            }
+            for (int g = 0; g < gops; g++) {
+                if (encodedFiles[g] != null) {
+                    mGopCache.put(keys[g], encodedFiles[g]);
+                    encodedFiles[g] = null;
+                }
+            }
+            final Result result = new Result(gops, encoded, System.nanoTime() - start);
+            Log.d(TAG, encoderConfig.getPath() + ": " + result + ", " + mGopCache.getStats());
+            return result;
+        } finally {
+            for (File file : encodedFiles) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode the GOPs without a file, each on its own codec
+     * @return GOPs encoded
+     */
+    private int encodeMissing(final EncoderConfig encoderConfig, final FrameSource frameSource, final int gopFrames,
+                              final File[] files, final File[] encodedFiles) throws IOException {
+        final int frames = frameSource.getFrameCount();
+        final ArrayList<EncodeJobScheduler.Job> jobs = new ArrayList<>();
+        try {
+            for (int g = 0; g < files.length; g++) {
+                if (files[g] != null) {
+                    continue;
+                }
+                final File file = mGopCache.createTempFile();
+                files[g] = file;
+                encodedFiles[g] = file;
+                final int first = g * gopFrames;
+                jobs.add(mScheduler.schedule(new ParallelEncoder.ChunkConfig(encoderConfig, file.getPath()),
+                        new ParallelEncoder.ChunkSource(frameSource, first, Math.min(gopFrames, frames - first))));
+            }
+            for (EncodeJobScheduler.Job job : jobs) {
+                ParallelEncoder.await(job);
+            }
+        } finally {
+            // The caller deletes the files once this returns
+            ParallelEncoder.cancelAndWait(jobs);
+        }
+        return jobs.size();
+    }
+
+    /**
+     * Everything about the encoder that changes the encoded GOPs
+     */
+    private static String getSettingsKey(final EncoderConfig encoderConfig, final int gopFrames) {
+        final String codecName = encoderConfig.getCodecName() == null ?
+                EncoderSelector.getDefault().select(encoderConfig) : encoderConfig.getCodecName();
+        return encoderConfig.getVideoMediaFormat() + "\n" + gopFrames + "\n" + codecName;
+    }
+
+    private static String getGopKey(final String settings, final KeyedFrameSource frameSource, final int first,
+                                    final int end) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(settings.getBytes(UTF_8));
+        for (int i = first; i < end; i++) {
+            digest.update((byte)0);
+            digest.update(frameSource.getFrameKey(i).getBytes(UTF_8));
+        }
+        final StringBuilder sb = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package com.homesoft.encoder;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.view.Surface;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Puts frames into the encoder's input {@link Surface} for {@link FrameEncoder}.
+ * <p>
+ * {@link CanvasInputSurface} locks a Canvas on the Surface, {@link EglInputSurface} draws with
+ * OpenGL ES and passes the presentation time to the codec.  FrameEncoder only schedules frames
+ * through this interface, so it can run against a fake one.
+ * All methods are called on the thread that creates the frames.
+ */
+public interface InputSurface {
+
+    interface Factory {
+        /**
+         * @param surface from the codec, released by FrameEncoder after {@link #release()}
+         */
+        InputSurface createInputSurface(final Surface surface, final EncoderConfig encoderConfig);
+    }
+
+    /**
+     * @return a Canvas for the next frame, for {@link #post(Canvas, long)}
+     */
+    Canvas lockCanvas();
+
+    /**
+     * Send a frame drawn on the Canvas from {@link #lockCanvas()}
+     */
+    void post(final Canvas canvas, final long ptsUs);
+
+    /**
+     * Send a frame that is just the Bitmap, drawn at the top left
+     */
+    void post(final Bitmap bitmap, final long ptsUs);
+
+    /**
+     * @return true if the codec outputs the posted presentation times.
+     * Otherwise the codec timestamps frames when they are posted, and FrameEncoder maps them back.
+     */
+    boolean isTimestamped();
+
+    void release();
+}
@@ -0,0 +1,213 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.homesoft.encoder.mp4.AacSampleEntry;
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.HevcSampleEntry;
+import com.homesoft.encoder.mp4.Mp4Track;
+import com.homesoft.encoder.mp4.Mp4Writer;
+import com.homesoft.encoder.mp4.NalUnits;
+import com.homesoft.encoder.mp4.SampleEntry;
+import com.homesoft.encoder.mp4.SampleTable;
+import com.homesoft.encoder.mp4.SampleWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * MP4 muxer written in plain Java, so we control how the file is laid out.
+ * Only the MediaFormat/BufferInfo plumbing here is Android specific, see {@link SampleWriter}.
+ */
+public class IsoFrameMuxer implements FrameMuxer, FrameMuxer.Resumable, AudioSource.Writer {
+    private static final String TAG = IsoFrameMuxer.class.getSimpleName();
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private final long mFrameUsec;
+    private final AudioConfig mAudioConfig;
+    private final SampleWriter mWriter;
+    private final NalUnits mNalUnits = new NalUnits();
+
+    private AudioSource mAudio;
+
+    private Mp4Track mVideoTrack;
+    private Mp4Track mAudioTrack;
+
+    public IsoFrameMuxer(final String path, final String audioFilePath, final float fps) throws IOException {
+        this(new Mp4Writer(new File(path)), audioFilePath, fps);
+    }
+
+    public IsoFrameMuxer(final String path, final AudioConfig audioConfig, final float fps) throws IOException {
+        this(new Mp4Writer(new File(path)), audioConfig, fps);
+    }
+
+    /**
+     * @param writer i.e. a {@link com.homesoft.encoder.mp4.FragmentedMp4Writer} for fragmented output
+     */
+    public IsoFrameMuxer(final SampleWriter writer, final String audioFilePath, final float fps) {
+        this(writer, AudioConfig.fromPath(audioFilePath), fps);
+    }
+
+    /**
+     * @param audioConfig null for no audio
+     */
+    public IsoFrameMuxer(final SampleWriter writer, final AudioConfig audioConfig, final float fps) {
+        mAudioConfig = audioConfig;
+        mFrameUsec = FrameEncoder.getFrameTime(fps);
+        mWriter = writer;
+    }
+
+    /**
+     * @param format video output format of the encoder, with the codec specific data
+     */
+    public static SampleEntry createVideoSampleEntry(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        final int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        final int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (AvcEncoderConfig.MIME_TYPE.equals(mime)) {
+            return AvcSampleEntry.fromAnnexB(width, height, format.getByteBuffer("csd-0"),
+                    format.getByteBuffer("csd-1"));
+        } else if (HevcEncoderConfig.MIME_TYPE.equals(mime)) {
+            return HevcSampleEntry.fromAnnexB(width, height, format.getByteBuffer("csd-0"));
+        }
+        throw new IllegalArgumentException("Unsupported video type: " + mime);
+    }
+
+    /**
+     * @return the sample entry, or null if the track is not AAC
+     */
+    public static AacSampleEntry createAudioSampleEntry(final MediaFormat format) {
+        if (!MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME))) {
+            return null;
+        }
+        final ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+        final byte[] audioSpecificConfig = new byte[csd.remaining()];
+        csd.get(audioSpecificConfig);
+        return new AacSampleEntry(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), audioSpecificConfig);
+    }
+
+    /**
+     * From the encoder's output format, overridden by tests where MediaFormat is a stub
+     */
+    SampleEntry getVideoSampleEntry(final FrameEncoder frameEncoder) {
+        return createVideoSampleEntry(frameEncoder.getOutputFormat());
+    }
+
+    AacSampleEntry getAudioSampleEntry(final AudioSource audio) {
+        return createAudioSampleEntry(audio.getFormat());
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mWriter.isStarted();
+    }
+
+    @Override
+    public void start(FrameEncoder frameEncoder) {
+        mVideoTrack = mWriter.addTrack(getVideoSampleEntry(frameEncoder), mFrameUsec);
+
+        if (mAudioConfig != null) {
+            try {
+                mAudio = mAudioConfig.createAudioSource(mFrameUsec);
+                final AacSampleEntry sampleEntry = getAudioSampleEntry(mAudio);
+                if (sampleEntry == null) {
+                    Log.e(TAG, "Unsupported audio: " + mAudio.getFormat());
+                    mAudio.release();
+                    mAudio = null;
+                } else {
+                    mAudioTrack = mWriter.addTrack(sampleEntry,
+                            AAC_SAMPLES_PER_FRAME * 1000000L / sampleEntry.getSampleRate());
+                    final SampleTable recovered = mAudioTrack.getSampleTable();
+                    if (recovered.getCount() > 0) {
+                        // Resuming from a checkpoint, the file already has this audio
+                        mAudio.skip(recovered.getPresentationTimeUs(recovered.getCount() - 1) + 1);
+                    }
+                }
+            }
+            catch(IOException e) {
+                Log.e(TAG, "Failed to open audio", e);
+            }
+        }
+
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to start muxer", e);
+        }
+    }
+
+    /**
+     * @return where the {@link Mp4Writer} recovered from its journal to, -1 if it didn't
+     */
+    @Override
+    public long getResumePtsUs() {
+        return mWriter instanceof Mp4Writer ? ((Mp4Writer)mWriter).getResumePresentationTimeUs() : -1;
+    }
+
+    @Override
+    public void muxVideoFrame(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        encodedData.position(bufferInfo.offset);
+        encodedData.limit(bufferInfo.offset + bufferInfo.size);
+
+        if (mAudio != null) {
+            // Interleave the audio up to this frame, rather than all at the end
+            mAudio.writeUntil(bufferInfo.presentationTimeUs, this);
+        }
+        try {
+            mWriter.writeSample(mVideoTrack, mNalUnits.toLengthPrefixed(encodedData),
+                    bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write video frame", e);
+        }
+    }
+
+    @Override
+    public void writeAudioSample(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        try {
+            mWriter.writeSample(mAudioTrack, byteBuffer, bufferInfo.presentationTimeUs, true);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write audio", e);
+        }
+    }
+
+    @Override
+    public void copyAudio() {
+        if (mAudio != null) {
+            mAudio.finish(this);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.finish();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish", e);
+        }
+
+        if (mAudio != null) {
+            mAudio.release();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.homesoft.encoder;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * {@link EncoderCodec} backed by a real {@link MediaCodec}
+ */
+public class MediaCodecEncoder implements EncoderCodec {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public EncoderCodec createEncoder(String mimeType) throws IOException {
+            return new MediaCodecEncoder(MediaCodec.createEncoderByType(mimeType));
+        }
+    };
+
+    /**
+     * @param codecName i.e. from {@link EncoderSelector}
+     */
+    public static Factory forName(final String codecName) {
+        return new Factory() {
+            @Override
+            public EncoderCodec createEncoder(String mimeType) throws IOException {
+                return new MediaCodecEncoder(MediaCodec.createByCodecName(codecName));
+            }
+        };
+    }
+
+    private final MediaCodec mMediaCodec;
+    private ByteBuffer[] mOutputBuffers;
+
+    public MediaCodecEncoder(final MediaCodec mediaCodec) {
+        mMediaCodec = mediaCodec;
+    }
+
+    public MediaCodec getMediaCodec() {
+        return mMediaCodec;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public void setCallback(final Callback callback, final Handler handler) {
+        mMediaCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(MediaCodecEncoder.this, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(MediaCodecEncoder.this, index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(MediaCodecEncoder.this, e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(MediaCodecEncoder.this, format);
+            }
+        }, handler);
+    }
+
+    @Override
+    public void configure(MediaFormat mediaFormat) {
+        mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mOutputBuffers = mMediaCodec.getOutputBuffers();
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs) {
+        final int status = mMediaCodec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+        if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED && mOutputBuffers != null) {
+            // not expected for an encoder
+            mOutputBuffers = mMediaCodec.getOutputBuffers();
+        }
+        return status;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (mOutputBuffers == null) {
+            return mMediaCodec.getOutputBuffer(index);
+        } else {
+            return mOutputBuffers[index];
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mMediaCodec.getInputBuffer(index);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public Image getInputImage(int index) {
+        return mMediaCodec.getInputImage(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        mMediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mMediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mMediaCodec.getOutputFormat();
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+    }
+
+    @Override
+    public void reset() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            throw new UnsupportedOperationException("reset() requires API 21");
+        }
+        mOutputBuffers = null;
+        mMediaCodec.reset();
+    }
+
+    @Override
+    public void release() {
+        mOutputBuffers = null;
+        mMediaCodec.release();
+    }
+
+    @Override
+    public MediaCodecInfo getCodecInfo() {
+        return mMediaCodec.getCodecInfo();
+    }
+}
@@ -1,7 +1,6 @@
 package com.homesoft.encoder;
 
 import android.media.MediaCodec;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.util.Log;
@@ -25,21 +24,37 @@ import java.nio.ByteBuffer;
  * limitations under the License.
  */
 
-public class Mp4FrameMuxer implements FrameMuxer {
+public class Mp4FrameMuxer implements FrameMuxer, AudioSource.Writer {
+    private static final String TAG = Mp4FrameMuxer.class.getSimpleName();
+    private final AudioConfig mAudioConfig;
     private final long mFrameUsec;
-    private final String mAudioFilePath;
     private final MediaMuxer mMuxer;
 
-    private MediaExtractor mAudioExtractor;
+    private AudioSource mAudio;
 
     private boolean mStarted;
     private int mVideoTrackIndex;
     private int mAudioTrackIndex;
-    private int mFrame;
 
+    public Mp4FrameMuxer(final String path, final String audioFilePath) throws IOException {
+        this(path, AudioConfig.fromPath(audioFilePath), 0f);
+    }
+
+    /**
+     * @deprecated use {@link #Mp4FrameMuxer(String, AudioConfig, float)}
+     */
+    @Deprecated
     public Mp4FrameMuxer(final String path, final String audioFilePath, final float fps) throws IOException {
-        mAudioFilePath = audioFilePath;
-        mFrameUsec = FrameEncoder.getFrameTime(fps);
+        this(path, AudioConfig.fromPath(audioFilePath), fps);
+    }
+
+    /**
+     * @param audioConfig null for no audio
+     * @param fps for the duration of the last frame, when trimming the audio.  0 if unknown.
+     */
+    public Mp4FrameMuxer(final String path, final AudioConfig audioConfig, final float fps) throws IOException {
+        mAudioConfig = audioConfig;
+        mFrameUsec = fps > 0f ? FrameEncoder.getFrameTime(fps) : 0;
         mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
     }
 
@@ -50,28 +65,21 @@ public class Mp4FrameMuxer implements FrameMuxer {
 
     @Override
     public void start(FrameEncoder frameEncoder) {
-        MediaFormat newFormat = frameEncoder.getVideoMediaCodec().getOutputFormat();
+        MediaFormat newFormat = frameEncoder.getOutputFormat();
 
         // now that we have the Magic Goodies, start the muxer
         mVideoTrackIndex = mMuxer.addTrack(newFormat);
 
-        if (mAudioFilePath.length() > 0) {
+        if (mAudioConfig != null) {
             try {
-                mAudioExtractor = new MediaExtractor();
-                mAudioExtractor.setDataSource(mAudioFilePath);
-                mAudioExtractor.selectTrack(0);
+                mAudio = mAudioConfig.createAudioSource(mFrameUsec);
+                mAudioTrackIndex = mMuxer.addTrack(mAudio.getFormat());
             }
             catch(IOException e) {
-                Log.e("Mp4FrameMuxer", "File not found.");
-                return;
+                Log.e(TAG, "Failed to open audio", e);
             }
-
-            MediaFormat audioFormat = mAudioExtractor.getTrackFormat(0);
-            mAudioTrackIndex = mMuxer.addTrack(audioFormat);
-            mAudioExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
         }
 
-
         mMuxer.start();
         mStarted = true;
     }
@@ -82,36 +90,22 @@ public class Mp4FrameMuxer implements FrameMuxer {
         encodedData.position(bufferInfo.offset);
         encodedData.limit(bufferInfo.offset + bufferInfo.size);
 
-        //This code will break if the encoder supports B frames.
-        //Ideally we would use set the value in the encoder,
-        //don't know how to do that without using OpenGL
-        bufferInfo.presentationTimeUs = mFrameUsec * mFrame++;
+        if (mAudio != null) {
+            // Interleave the audio up to this frame, rather than all at the end
+            mAudio.writeUntil(bufferInfo.presentationTimeUs, this);
+        }
         mMuxer.writeSampleData(mVideoTrackIndex, encodedData, bufferInfo);
     }
 
     @Override
-    public void copyAudio() {
-        if (mAudioFilePath.length() == 0) {
-            return;
-        }
-
-        int maxChunkSize = 1024 * 1024;
-        ByteBuffer buffer = ByteBuffer.allocate(maxChunkSize);
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-
-        while (true) {
-            int chunkSize = mAudioExtractor.readSampleData(buffer, 0);
-
-            if (chunkSize >= 0) {
-                bufferInfo.presentationTimeUs = mAudioExtractor.getSampleTime();
-                bufferInfo.flags = mAudioExtractor.getSampleFlags();
-                bufferInfo.size = chunkSize;
+    public void writeAudioSample(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(mAudioTrackIndex, byteBuffer, bufferInfo);
+    }
 
-                mMuxer.writeSampleData(mAudioTrackIndex, buffer, bufferInfo);
-                mAudioExtractor.advance();
-            } else {
-                break;
-            }
+    @Override
+    public void copyAudio() {
+        if (mAudio != null) {
+            mAudio.finish(this);
         }
     }
 
@@ -120,8 +114,8 @@ public class Mp4FrameMuxer implements FrameMuxer {
         mMuxer.stop();
         mMuxer.release();
 
-        if (mAudioExtractor != null) {
-            mAudioExtractor.release();
+        if (mAudio != null) {
+            mAudio.release();
         }
     }
 }
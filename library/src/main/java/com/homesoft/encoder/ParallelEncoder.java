@@ -0,0 +1,282 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.homesoft.encoder.mp4.AacSampleEntry;
+import com.homesoft.encoder.mp4.Mp4Concatenator;
+import com.homesoft.encoder.mp4.Mp4Track;
+import com.homesoft.encoder.mp4.Mp4Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Encodes one long video on several codecs at once.
+ * <p>
+ * The frames are split into chunks of whole GOPs, each chunk is encoded to its own MP4 on a
+ * {@link EncodeJobScheduler} thread, and the chunks are joined with {@link Mp4Concatenator},
+ * without re-encoding.  The output is always a progressive MP4 (faststart if the config asks for it),
+ * whatever muxer the config selects.
+ * <p>
+ * The {@link FrameSource} is called from several threads at once, each rendering different frames,
+ * so it must be thread safe.
+ */
+public class ParallelEncoder {
+    private static final String TAG = ParallelEncoder.class.getSimpleName();
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private final EncodeJobScheduler mScheduler;
+    private int mChunks;
+
+    /**
+     * @param scheduler runs the chunks, as many at once as its {@link CodecPool} allows
+     */
+    public ParallelEncoder(final EncodeJobScheduler scheduler) {
+        mScheduler = scheduler;
+        mChunks = scheduler.getCodecPool().getMaxInstances();
+    }
+
+    /**
+     * @param chunks pieces to split the video into, by default one per codec.
+     *               More chunks even out chunks that take longer to render.
+     */
+    public void setChunkCount(final int chunks) {
+        if (chunks < 1) {
+            throw new IllegalArgumentException("chunks must be > 0");
+        }
+        mChunks = chunks;
+    }
+
+    public int getChunkCount() {
+        return mChunks;
+    }
+
+    /**
+     * Encode the video to encoderConfig's path, blocking until it is written
+     */
+    public EncodeJobScheduler.JobStats encode(final EncoderConfig encoderConfig, final FrameSource frameSource)
+            throws IOException {
+        final long start = System.nanoTime();
+        final int frames = frameSource.getFrameCount();
+        final int gopFrames = getGopFrames(encoderConfig);
+        final int gops = (frames + gopFrames - 1) / gopFrames;
+        // Whole GOPs per chunk, so key frames keep their spacing across the joins
+        final int chunks = Math.max(1, Math.min(mChunks, gops));
+        final int chunkFrames = Math.max(1, (gops + chunks - 1) / chunks * gopFrames);
+        final ArrayList<File> files = new ArrayList<>();
+        final ArrayList<EncodeJobScheduler.Job> jobs = new ArrayList<>();
+        try {
+            for (int first = 0; first < frames; first += chunkFrames) {
+                final File file = new File(encoderConfig.getPath() + ".part" + files.size());
+                files.add(file);
+                jobs.add(mScheduler.schedule(new ChunkConfig(encoderConfig, file.getPath()),
+                        new ChunkSource(frameSource, first, Math.min(chunkFrames, frames - first))));
+            }
+            for (EncodeJobScheduler.Job job : jobs) {
+                await(job);
+            }
+            final long encodeNs = System.nanoTime() - start;
+            concatenate(encoderConfig, files);
+            Log.d(TAG, files.size() + " chunks encoded in " + (encodeNs / 1000000) + "ms, joined in " +
+                    ((System.nanoTime() - start - encodeNs) / 1000000) + "ms");
+        } finally {
+            // The other chunks may still be writing their files
+            cancelAndWait(jobs);
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        return new EncodeJobScheduler.JobStats(frames, System.nanoTime() - start);
+    }
+
+    /**
+     * @return frames from one key frame to the next
+     */
+    static int getGopFrames(final EncoderConfig encoderConfig) {
+        float keyFrameInterval = encoderConfig.getKeyFrameInterval();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N_MR1) {
+            keyFrameInterval = (float)Math.ceil(keyFrameInterval);
+        }
+        return Math.max(1, Math.round(keyFrameInterval * encoderConfig.getFramePerSecond()));
+    }
+
+    static void await(final Future<EncodeJobScheduler.JobStats> future) throws IOException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException("Chunk failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a chunk", e);
+        }
+    }
+
+    /**
+     * Stop the jobs that are still running and wait until none of them is writing, whether they
+     * finished, failed or were cancelled
+     */
+    static void cancelAndWait(final List<EncodeJobScheduler.Job> jobs) {
+        for (EncodeJobScheduler.Job job : jobs) {
+            job.cancel(true);
+        }
+        for (EncodeJobScheduler.Job job : jobs) {
+            job.awaitFinished();
+        }
+    }
+
+    /**
+     * Join the chunks into encoderConfig's path, adding its audio
+     */
+    static void concatenate(final EncoderConfig encoderConfig, final List<File> files)
+            throws IOException {
+        final Mp4Concatenator concatenator = new Mp4Concatenator();
+        AudioSource audio = null;
+        try {
+            for (File file : files) {
+                concatenator.addChunk(file);
+            }
+            final AudioConfig audioConfig = encoderConfig.getAudioConfig();
+            if (audioConfig != null) {
+                try {
+                    audio = audioConfig.createAudioSource(FrameEncoder.getFrameTime(encoderConfig.getFramePerSecond()));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to open audio", e);
+                }
+            }
+            final AacSampleEntry audioSampleEntry = audio == null ? null :
+                    IsoFrameMuxer.createAudioSampleEntry(audio.getFormat());
+            if (audio != null && audioSampleEntry == null) {
+                Log.e(TAG, "Unsupported audio: " + audio.getFormat());
+                audio.release();
+                audio = null;
+            }
+
+            final Mp4Writer writer = new Mp4Writer(new File(encoderConfig.getPath()));
+            try {
+                if (encoderConfig.isFaststart()) {
+                    // Unlike a live encode, the sample counts are known up front
+                    final long audioSamples = audio == null ? 0 :
+                            concatenator.getDurationUs() * audioSampleEntry.getSampleRate() / 1000000 /
+                                    AAC_SAMPLES_PER_FRAME + 1;
+                    writer.setMoovReserve(Mp4Writer.estimateMoovSize(concatenator.getSampleCount(), audioSamples));
+                }
+                final Mp4Track videoTrack = concatenator.addTrack(writer);
+                final Mp4Track audioTrack = audio == null ? null : writer.addTrack(audioSampleEntry,
+                        AAC_SAMPLES_PER_FRAME * 1000000L / audioSampleEntry.getSampleRate());
+                final AudioSource.Writer audioWriter = new AudioSource.Writer() {
+                    @Override
+                    public void writeAudioSample(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+                        try {
+                            writer.writeSample(audioTrack, byteBuffer, bufferInfo.presentationTimeUs, true);
+                        } catch (IOException e) {
+                            throw new RuntimeException("Failed to write audio", e);
+                        }
+                    }
+                };
+                writer.start();
+                while (concatenator.hasNext()) {
+                    if (audio != null) {
+                        audio.writeUntil(concatenator.getNextPresentationTimeUs(), audioWriter);
+                    }
+                    concatenator.writeNext(writer, videoTrack);
+                }
+                if (audio != null) {
+                    audio.finish(audioWriter);
+                }
+                writer.finish();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            concatenator.close();
+            if (audio != null) {
+                audio.release();
+            }
+        }
+    }
+
+    /**
+     * Encodes a chunk the same way as the whole video, to an MP4 without audio
+     */
+    static class ChunkConfig extends EncoderConfig {
+        private final EncoderConfig mEncoderConfig;
+
+        ChunkConfig(final EncoderConfig encoderConfig, final String path) {
+            super(path, encoderConfig.getWidth(), encoderConfig.getHeight(), encoderConfig.getFramePerSecond(),
+                    encoderConfig.getBitRate(), "");
+            mEncoderConfig = encoderConfig;
+            setMuxer(MUXER_ISO);
+            setInputMode(encoderConfig.getInputMode());
+            setInputSurfaceFactory(encoderConfig.getInputSurfaceFactory());
+            setCodecName(encoderConfig.getCodecName());
+        }
+
+        @Override
+        public String getMimeType() {
+            return mEncoderConfig.getMimeType();
+        }
+
+        @Override
+        public MediaFormat getVideoMediaFormat() {
+            return mEncoderConfig.getVideoMediaFormat();
+        }
+
+        @Override
+        public void validate(MediaCodecInfo.CodecCapabilities capabilities) {
+            mEncoderConfig.validate(capabilities);
+        }
+    }
+
+    static class ChunkSource implements FrameSource {
+        private final FrameSource mFrameSource;
+        private final int mFirstFrame;
+        private final int mFrameCount;
+
+        ChunkSource(final FrameSource frameSource, final int firstFrame, final int frameCount) {
+            mFrameSource = frameSource;
+            mFirstFrame = firstFrame;
+            mFrameCount = frameCount;
+        }
+
+        @Override
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        @Override
+        public void renderFrame(FrameEncoder frameEncoder, int frame) {
+            mFrameSource.renderFrame(frameEncoder, mFirstFrame + frame);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Muxes on a dedicated I/O thread, so a slow write doesn't hold the codec's output buffer.
+ * <p>
+ * Each encoded frame is copied into the next slot of a ring of preallocated direct buffers and the
+ * codec buffer is released right away.  When every slot is full the encoder thread waits, the time
+ * spent waiting is reported by {@link #getStats()}.  Slots only grow (from the pool) when a frame
+ * is larger than any before it.
+ */
+public class PipelinedFrameMuxer implements FrameMuxer, FrameMuxer.Resumable {
+    private static final String TAG = PipelinedFrameMuxer.class.getSimpleName();
+
+    private final FrameMuxer mFrameMuxer;
+    private final ByteBufferPool mPool;
+    private final ByteBuffer[] mBuffers;
+    private final MediaCodec.BufferInfo[] mBufferInfos;
+    private Thread mThread;
+
+    private int mHead;
+    private int mCount;
+    private boolean mMuxing;
+    private boolean mStopped;
+    private RuntimeException mError;
+
+    private long mFrames;
+    private long mBytes;
+    private long mStalls;
+    private long mStallNs;
+    private int mMaxQueued;
+    private long mMuxNs;
+
+    /**
+     * Backpressure counters
+     */
+    public static class Stats {
+        private final long mFrames;
+        private final long mBytes;
+        private final long mStalls;
+        private final long mStallNs;
+        private final int mMaxQueued;
+        private final long mMuxNs;
+
+        Stats(final long frames, final long bytes, final long stalls, final long stallNs, final int maxQueued,
+              final long muxNs) {
+            mFrames = frames;
+            mBytes = bytes;
+            mStalls = stalls;
+            mStallNs = stallNs;
+            mMaxQueued = maxQueued;
+            mMuxNs = muxNs;
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return frames that had to wait for a free slot
+         */
+        public long getStalls() {
+            return mStalls;
+        }
+
+        /**
+         * @return time the encoder thread spent waiting for a free slot
+         */
+        public long getStallNs() {
+            return mStallNs;
+        }
+
+        /**
+         * @return most frames queued at once, the ring size if the muxer couldn't keep up
+         */
+        public int getMaxQueued() {
+            return mMaxQueued;
+        }
+
+        /**
+         * @return time the I/O thread spent in the wrapped muxer
+         */
+        public long getMuxNs() {
+            return mMuxNs;
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + mFrames + " bytes=" + mBytes + " stalls=" + mStalls + " stallMs=" +
+                    (mStallNs / 1000000) + " maxQueued=" + mMaxQueued + " muxMs=" + (mMuxNs / 1000000);
+        }
+    }
+
+    /**
+     * @param slots frames that can be queued
+     * @param slotCapacity initial bytes per slot, i.e. a few times the average frame size
+     */
+    public PipelinedFrameMuxer(final FrameMuxer frameMuxer, final int slots, final int slotCapacity) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("slots must be > 0");
+        }
+        mFrameMuxer = frameMuxer;
+        mPool = ByteBufferPool.getShared();
+        mBuffers = new ByteBuffer[slots];
+        mBufferInfos = new MediaCodec.BufferInfo[slots];
+        for (int i=0;i<slots;i++) {
+            mBuffers[i] = mPool.acquire(slotCapacity);
+            mBufferInfos[i] = new MediaCodec.BufferInfo();
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mFrameMuxer.isStarted();
+    }
+
+    @Override
+    public long getResumePtsUs() {
+        return mFrameMuxer instanceof Resumable ? ((Resumable)mFrameMuxer).getResumePtsUs() : -1;
+    }
+
+    @Override
+    public void start(FrameEncoder frameEncoder) {
+        // Before the I/O thread exists, so it happens before the I/O thread uses the muxer
+        mFrameMuxer.start(frameEncoder);
+        synchronized (this) {
+            if (mThread != null) {
+                throw new IllegalStateException("Already started");
+            }
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    muxLoop();
+                }
+            }, TAG);
+            mThread.start();
+        }
+    }
+
+    @Override
+    public void muxVideoFrame(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        final int slot;
+        synchronized (this) {
+            if (mThread == null) {
+                throw new IllegalStateException("Not started");
+            }
+            checkError();
+            if (mCount == mBuffers.length) {
+                mStalls++;
+                final long start = System.nanoTime();
+                boolean interrupted = false;
+                while (mCount == mBuffers.length && mError == null) {
+                    interrupted |= waitUninterruptibly();
+                }
+                mStallNs += System.nanoTime() - start;
+                restoreInterrupt(interrupted);
+                checkError();
+            }
+            slot = (mHead + mCount) % mBuffers.length;
+        }
+        // The slot isn't visible to the I/O thread until it is counted
+        if (mBuffers[slot].capacity() < bufferInfo.size) {
+            mPool.release(mBuffers[slot]);
+            mBuffers[slot] = mPool.acquire(bufferInfo.size);
+        }
+        final ByteBuffer copy = mBuffers[slot];
+        copy.clear();
+        byteBuffer.position(bufferInfo.offset);
+        byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+        copy.put(byteBuffer);
+        copy.flip();
+        final MediaCodec.BufferInfo info = mBufferInfos[slot];
+        info.offset = 0;
+        info.size = bufferInfo.size;
+        info.presentationTimeUs = bufferInfo.presentationTimeUs;
+        info.flags = bufferInfo.flags;
+        synchronized (this) {
+            mCount++;
+            mMaxQueued = Math.max(mMaxQueued, mCount);
+            mFrames++;
+            mBytes += bufferInfo.size;
+            notifyAll();
+        }
+    }
+
+    private void muxLoop() {
+        while (true) {
+            final int slot;
+            synchronized (this) {
+                // Only release() stops this thread, nobody else interrupts it
+                while (mCount == 0 && !mStopped) {
+                    waitUninterruptibly();
+                }
+                if (mCount == 0) {
+                    return;
+                }
+                slot = mHead;
+                mMuxing = true;
+            }
+            final long start = System.nanoTime();
+            RuntimeException error = null;
+            try {
+                mFrameMuxer.muxVideoFrame(mBuffers[slot], mBufferInfos[slot]);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Muxing failed", e);
+                error = e;
+            }
+            synchronized (this) {
+                mMuxNs += System.nanoTime() - start;
+                mHead = (mHead + 1) % mBuffers.length;
+                mCount--;
+                mMuxing = false;
+                if (error != null && mError == null) {
+                    mError = error;
+                }
+                notifyAll();
+                if (mError != null) {
+                    // Drop the rest, the encoder thread sees the error on its next call
+                    mCount = 0;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until every queued frame is muxed
+     */
+    private synchronized void drain() {
+        boolean interrupted = false;
+        while ((mCount > 0 || mMuxing) && mError == null) {
+            interrupted |= waitUninterruptibly();
+        }
+        restoreInterrupt(interrupted);
+        checkError();
+    }
+
+    /**
+     * Frames can't be dropped, so an interrupt doesn't end the wait.  The flag is cleared while
+     * waiting, else every wait() after the first would throw right away, and restored once done.
+     * @return true if interrupted
+     */
+    private boolean waitUninterruptibly() {
+        try {
+            wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static void restoreInterrupt(final boolean interrupted) {
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkError() {
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mFrames, mBytes, mStalls, mStallNs, mMaxQueued, mMuxNs);
+    }
+
+    @Override
+    public void copyAudio() {
+        // The audio goes after the video
+        drain();
+        mFrameMuxer.copyAudio();
+    }
+
+    @Override
+    public void release() {
+        try {
+            drain();
+        } finally {
+            final Thread thread;
+            synchronized (this) {
+                mStopped = true;
+                notifyAll();
+                thread = mThread;
+            }
+            if (thread != null) {
+                boolean interrupted = false;
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                restoreInterrupt(interrupted);
+            }
+            mFrameMuxer.release();
+            for (ByteBuffer byteBuffer : mBuffers) {
+                mPool.release(byteBuffer);
+            }
+            Log.d(TAG, getStats().toString());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.homesoft.encoder;
+
+import android.util.Log;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Presentation times of frames posted to the encoder, waiting for their encoded output.
+ * <p>
+ * A Canvas can't set the Surface timestamp, the Surface stamps each frame with the time it was
+ * queued.  So we note System.nanoTime() as each frame is posted and match the encoder's output time
+ * to the last frame posted before it.  This works for reordered (B-frame) output too.
+ * Synchronized, since output may be drained on the codec callback thread.
+ */
+class TimestampQueue {
+    private static final String TAG = TimestampQueue.class.getSimpleName();
+
+    private long[] mPostTimesUs = new long[16];
+    private long[] mPtsUs = new long[16];
+    private int mSize;
+    private long mRemovedPostTimeUs;
+
+    /**
+     * Call just before the frame is posted to the Surface
+     */
+    void add(final long ptsUs) {
+        add(ptsUs, System.nanoTime() / 1000);
+    }
+
+    /**
+     * @param postTimeUs System.nanoTime() / 1000 as the frame is posted, or the Surface's clock
+     */
+    synchronized void add(final long ptsUs, final long postTimeUs) {
+        if (mSize == mPtsUs.length) {
+            final long[] postTimes = new long[mSize * 2];
+            final long[] pts = new long[mSize * 2];
+            System.arraycopy(mPostTimesUs, 0, postTimes, 0, mSize);
+            System.arraycopy(mPtsUs, 0, pts, 0, mSize);
+            mPostTimesUs = postTimes;
+            mPtsUs = pts;
+        }
+        mPostTimesUs[mSize] = postTimeUs;
+        mPtsUs[mSize++] = ptsUs;
+    }
+
+    /**
+     * @param codecTimeUs presentationTimeUs of the encoder output
+     * @return the caller's presentation time for the frame
+     */
+    synchronized long remove(final long codecTimeUs) {
+        if (mSize == 0) {
+            throw new IllegalStateException("No frame is waiting");
+        }
+        int i = mSize - 1;
+        while (i >= 0 && mPostTimesUs[i] > codecTimeUs) {
+            i--;
+        }
+        if (i < 0) {
+            // The codec must have rebased its timestamps, assume output is in order
+            Log.w(TAG, "No frame posted before " + codecTimeUs + "us");
+            i = 0;
+        }
+        final long ptsUs = mPtsUs[i];
+        mRemovedPostTimeUs = mPostTimesUs[i];
+        mSize--;
+        System.arraycopy(mPostTimesUs, i + 1, mPostTimesUs, i, mSize - i);
+        System.arraycopy(mPtsUs, i + 1, mPtsUs, i, mSize - i);
+        return ptsUs;
+    }
+
+    /**
+     * For input surfaces that pass the presentation time through to the codec
+     * @return false if no frame with this time is waiting
+     */
+    synchronized boolean removePts(final long ptsUs) {
+        for (int i = 0; i < mSize; i++) {
+            if (mPtsUs[i] == ptsUs) {
+                mRemovedPostTimeUs = mPostTimesUs[i];
+                mSize--;
+                System.arraycopy(mPostTimesUs, i + 1, mPostTimesUs, i, mSize - i);
+                System.arraycopy(mPtsUs, i + 1, mPtsUs, i, mSize - i);
+                return true;
+            }
+        }
+        Log.w(TAG, "No frame posted at " + ptsUs + "us");
+        return false;
+    }
+
+    /**
+     * @return System.nanoTime() / 1000 when the frame last removed was posted
+     */
+    synchronized long getRemovedPostTimeUs() {
+        return mRemovedPostTimeUs;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized void clear() {
+        mSize = 0;
+    }
+}
@@ -0,0 +1,193 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.homesoft.encoder.mp4.AacSampleEntry;
+import com.homesoft.encoder.ts.TsWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * MPEG-TS muxer for streaming, see {@link TsWriter}.
+ * Unlike MP4 there is no index to keep or finalize, the output is complete after every frame.
+ */
+public class TsFrameMuxer implements FrameMuxer, AudioSource.Writer {
+    private static final String TAG = TsFrameMuxer.class.getSimpleName();
+
+    private final TsWriter mWriter;
+    private final AudioConfig mAudioConfig;
+    private final long mFrameUsec;
+    private final long mReorderDelayUs;
+    // Presentation times not yet used as a decode time, ascending
+    private final long[] mPendingPtsUs;
+
+    private AudioSource mAudio;
+    private boolean mStarted;
+    private int mVideoStream;
+    private int mAudioStream;
+    private int mPendingCount;
+    private long mFrame;
+    private long mFirstPtsUs;
+    private long mLastDtsUs = -1;
+
+    /**
+     * @param maxBFrames from the config, B-frames need decode times ahead of the presentation times
+     */
+    public TsFrameMuxer(final TsWriter writer, final String audioFilePath, final float fps, final int maxBFrames) {
+        this(writer, AudioConfig.fromPath(audioFilePath), fps, maxBFrames);
+    }
+
+    /**
+     * @param audioConfig null for no audio
+     */
+    public TsFrameMuxer(final TsWriter writer, final AudioConfig audioConfig, final float fps, final int maxBFrames) {
+        mWriter = writer;
+        mAudioConfig = audioConfig;
+        mFrameUsec = FrameEncoder.getFrameTime(fps);
+        mReorderDelayUs = maxBFrames * mFrameUsec;
+        mPendingPtsUs = new long[maxBFrames + 1];
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void start(FrameEncoder frameEncoder) {
+        final MediaFormat format = frameEncoder.getOutputFormat();
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        final int streamType;
+        if (AvcEncoderConfig.MIME_TYPE.equals(mime)) {
+            streamType = TsWriter.STREAM_TYPE_H264;
+        } else if (HevcEncoderConfig.MIME_TYPE.equals(mime)) {
+            streamType = TsWriter.STREAM_TYPE_H265;
+        } else {
+            throw new IllegalArgumentException("Unsupported video type: " + mime);
+        }
+        final ByteBuffer csd0 = format.getByteBuffer("csd-0").duplicate();
+        final ByteBuffer csd1 = format.containsKey("csd-1") ? format.getByteBuffer("csd-1").duplicate() : null;
+        final byte[] parameterSets = new byte[csd0.remaining() + (csd1 == null ? 0 : csd1.remaining())];
+        final int csd0Length = csd0.remaining();
+        csd0.get(parameterSets, 0, csd0Length);
+        if (csd1 != null) {
+            csd1.get(parameterSets, csd0Length, csd1.remaining());
+        }
+        mVideoStream = mWriter.addVideoStream(streamType, parameterSets);
+
+        if (mAudioConfig != null) {
+            try {
+                mAudio = mAudioConfig.createAudioSource(mFrameUsec);
+                final AacSampleEntry sampleEntry = IsoFrameMuxer.createAudioSampleEntry(mAudio.getFormat());
+                if (sampleEntry == null) {
+                    Log.e(TAG, "Unsupported audio: " + mAudio.getFormat());
+                    mAudio.release();
+                    mAudio = null;
+                } else {
+                    mAudioStream = mWriter.addAacStream(sampleEntry.getAudioSpecificConfig());
+                }
+            }
+            catch(IOException e) {
+                Log.e(TAG, "Failed to open audio", e);
+            }
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void muxVideoFrame(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        encodedData.position(bufferInfo.offset);
+        encodedData.limit(bufferInfo.offset + bufferInfo.size);
+
+        if (mAudio != null) {
+            mAudio.writeUntil(bufferInfo.presentationTimeUs, this);
+        }
+        final long ptsUs = bufferInfo.presentationTimeUs + mReorderDelayUs;
+        long dtsUs = -1;
+        if (mReorderDelayUs > 0) {
+            dtsUs = Math.max(getDecodeTimeUs(bufferInfo.presentationTimeUs) + mReorderDelayUs, mLastDtsUs + 1);
+            // Never decoded after it is shown
+            dtsUs = Math.min(dtsUs, ptsUs);
+            mLastDtsUs = dtsUs;
+        }
+        try {
+            mWriter.writeSample(mVideoStream, encodedData, ptsUs, dtsUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write video frame", e);
+        }
+    }
+
+    /**
+     * Frames arrive in decode order.  As in {@link com.homesoft.encoder.mp4.SampleTiming}, the decode times
+     * are the presentation times sorted, here delayed by the reorder depth so a frame's decode time is only
+     * taken once every frame that could present before it has arrived.  Hold frames and variable frame
+     * times are followed exactly, the frame rate is only used before the first sorted time is known.
+     */
+    private long getDecodeTimeUs(final long ptsUs) {
+        if (mFrame++ == 0) {
+            mFirstPtsUs = ptsUs;
+        }
+        int i = mPendingCount++;
+        for (; i > 0 && mPendingPtsUs[i - 1] > ptsUs; i--) {
+            mPendingPtsUs[i] = mPendingPtsUs[i - 1];
+        }
+        mPendingPtsUs[i] = ptsUs;
+        if (mPendingCount < mPendingPtsUs.length) {
+            // Lead in before the key frame's time, one frame apart
+            return mFirstPtsUs - (mPendingPtsUs.length - mFrame) * mFrameUsec;
+        }
+        final long dtsUs = mPendingPtsUs[0];
+        mPendingCount--;
+        System.arraycopy(mPendingPtsUs, 1, mPendingPtsUs, 0, mPendingCount);
+        return dtsUs;
+    }
+
+    @Override
+    public void writeAudioSample(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        try {
+            mWriter.writeSample(mAudioStream, byteBuffer, bufferInfo.presentationTimeUs + mReorderDelayUs, -1, true);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write audio", e);
+        }
+    }
+
+    @Override
+    public void copyAudio() {
+        if (mAudio != null) {
+            mAudio.finish(this);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close", e);
+        }
+
+        if (mAudio != null) {
+            mAudio.release();
+        }
+    }
+}
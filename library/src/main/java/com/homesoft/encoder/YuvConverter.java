@@ -0,0 +1,377 @@
+package com.homesoft.encoder;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Converts RGBA frames to YUV 4:2:0 (BT.601, limited range) and copies I420 / NV12 frames into
+ * codec input planes of any stride.
+ * <p>
+ * Rows are split into bands that are converted in parallel, one per thread.  The worker threads
+ * are started once and nothing is allocated per frame.  One conversion runs at a time, so
+ * concurrent callers take turns.  No Android dependencies, so it is benchmarked on a plain JVM.
+ * <p>
+ * The destination is three planes, as in {@link android.media.Image}: Y, then U and V with the
+ * same row and pixel stride.  For NV12 the U and V buffers are views of the same memory,
+ * one byte apart, with a pixel stride of 2.
+ */
+public class YuvConverter implements Closeable {
+    /** R, G, B, A bytes per pixel, as from Bitmap.copyPixelsToBuffer() on an ARGB_8888 Bitmap */
+    public static final int FORMAT_RGBA = 0;
+    /** Y plane, then the U plane, then the V plane */
+    public static final int FORMAT_I420 = 1;
+    /** Y plane, then interleaved U and V */
+    public static final int FORMAT_NV12 = 2;
+
+    private static YuvConverter sShared;
+
+    private final Object mLock = new Object();
+    private final Thread[] mWorkers;
+    private int mGeneration;
+    private int mBands;
+    private int mPending;
+    private boolean mClosed;
+    private RuntimeException mError;
+
+    // The conversion in progress, published to the workers under mLock
+    private ByteBuffer mSrc;
+    private int mSrcFormat;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private int mYRowStride;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+
+    /**
+     * @param threads threads to convert on, including the caller's
+     */
+    public YuvConverter(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be > 0");
+        }
+        mWorkers = new Thread[threads - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int band = i + 1;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(band);
+                }
+            }, YuvConverter.class.getSimpleName() + "-" + band);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * @return a converter with a thread per core, shared by every encoder.  Don't close it.
+     */
+    public static synchronized YuvConverter getShared() {
+        if (sShared == null) {
+            sShared = new YuvConverter(Runtime.getRuntime().availableProcessors());
+        }
+        return sShared;
+    }
+
+    public int getThreadCount() {
+        return mWorkers.length + 1;
+    }
+
+    /**
+     * @return bytes in a tightly packed frame of this format
+     */
+    public static int getFrameSize(final int format, final int width, final int height) {
+        if (format == FORMAT_RGBA) {
+            return width * height * 4;
+        }
+        return width * height + 2 * getChromaWidth(width) * getChromaHeight(height);
+    }
+
+    static int getChromaWidth(final int width) {
+        return (width + 1) / 2;
+    }
+
+    static int getChromaHeight(final int height) {
+        return (height + 1) / 2;
+    }
+
+    /**
+     * Convert or copy a tightly packed frame into the Y, U and V planes.
+     * The buffers' positions and limits are ignored and left unchanged.
+     * @param src frame in one of the FORMAT_ constants, starting at index 0
+     */
+    public synchronized void convert(final ByteBuffer src, final int srcFormat, final int width, final int height,
+                                     final ByteBuffer y, final int yRowStride,
+                                     final ByteBuffer u, final ByteBuffer v,
+                                     final int uvRowStride, final int uvPixelStride) {
+        if (srcFormat != FORMAT_RGBA && srcFormat != FORMAT_I420 && srcFormat != FORMAT_NV12) {
+            throw new IllegalArgumentException("Unknown format " + srcFormat);
+        }
+        if (src.capacity() < getFrameSize(srcFormat, width, height)) {
+            throw new IllegalArgumentException("Frame is " + src.capacity() + " bytes, " +
+                    getFrameSize(srcFormat, width, height) + " needed for " + width + "x" + height);
+        }
+        mSrc = src;
+        mSrcFormat = srcFormat;
+        mWidth = width;
+        mHeight = height;
+        mY = y;
+        mYRowStride = yRowStride;
+        mU = u;
+        mV = v;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+        try {
+            final int bands = Math.min(getThreadCount(), getChromaHeight(height));
+            if (bands <= 1) {
+                convertBand(0, 1);
+                return;
+            }
+            synchronized (mLock) {
+                if (mClosed) {
+                    throw new IllegalStateException("YuvConverter is closed");
+                }
+                mBands = bands;
+                mPending = bands - 1;
+                mError = null;
+                mGeneration++;
+                mLock.notifyAll();
+            }
+            RuntimeException error = null;
+            try {
+                convertBand(0, bands);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            // The workers are writing to the caller's buffers, so wait for them even if interrupted
+            boolean interrupted = false;
+            synchronized (mLock) {
+                while (mPending > 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (error == null) {
+                    error = mError;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            mSrc = mY = mU = mV = null;
+        }
+    }
+
+    private void work(final int band) {
+        int generation = 0;
+        while (true) {
+            final int bands;
+            synchronized (mLock) {
+                while (generation == mGeneration && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only close() stops the workers
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                generation = mGeneration;
+                bands = mBands;
+            }
+            if (band >= bands) {
+                continue;
+            }
+            try {
+                convertBand(band, bands);
+            } catch (RuntimeException e) {
+                synchronized (mLock) {
+                    mError = e;
+                }
+            } finally {
+                synchronized (mLock) {
+                    if (--mPending == 0) {
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Bands are whole row pairs, so each chroma row is written by one thread
+     */
+    private void convertBand(final int band, final int bands) {
+        final int pairs = getChromaHeight(mHeight);
+        final int start = (int)((long)pairs * band / bands);
+        final int end = (int)((long)pairs * (band + 1) / bands);
+        switch (mSrcFormat) {
+            case FORMAT_RGBA:
+                rgbaToYuv(start, end);
+                break;
+            case FORMAT_I420:
+                copyYuv(start, end, mWidth * mHeight, mWidth * mHeight + getChromaWidth(mWidth) * getChromaHeight(mHeight), 1);
+                break;
+            case FORMAT_NV12:
+                copyYuv(start, end, mWidth * mHeight, mWidth * mHeight + 1, 2);
+                break;
+        }
+    }
+
+    private void rgbaToYuv(final int startPair, final int endPair) {
+        final ByteBuffer src = mSrc;
+        final ByteBuffer y = mY;
+        final ByteBuffer u = mU;
+        final ByteBuffer v = mV;
+        final int width = mWidth;
+        final int height = mHeight;
+        final int srcStride = width * 4;
+        // A pixel at a time, whichever byte order the buffer has
+        final boolean bigEndian = src.order() == ByteOrder.BIG_ENDIAN;
+        final int rShift = bigEndian ? 24 : 0;
+        final int gShift = bigEndian ? 16 : 8;
+        final int bShift = bigEndian ? 8 : 16;
+        for (int pair = startPair; pair < endPair; pair++) {
+            final int row0 = pair * 2;
+            // Repeat the last row of an odd height
+            final int row1 = Math.min(row0 + 1, height - 1);
+            int s0 = row0 * srcStride;
+            int s1 = row1 * srcStride;
+            int y0 = row0 * mYRowStride;
+            int y1 = row1 * mYRowStride;
+            int uv = pair * mUvRowStride;
+            for (int x = 0; x < width; x += 2) {
+                final int p00 = src.getInt(s0);
+                final int p10 = src.getInt(s1);
+                final int r00 = (p00 >>> rShift) & 0xff;
+                final int g00 = (p00 >>> gShift) & 0xff;
+                final int b00 = (p00 >>> bShift) & 0xff;
+                final int r10 = (p10 >>> rShift) & 0xff;
+                final int g10 = (p10 >>> gShift) & 0xff;
+                final int b10 = (p10 >>> bShift) & 0xff;
+                int r = r00 + r10;
+                int g = g00 + g10;
+                int b = b00 + b10;
+                y.put(y0, luma(r00, g00, b00));
+                y.put(y1, luma(r10, g10, b10));
+                if (x + 1 < width) {
+                    final int p01 = src.getInt(s0 + 4);
+                    final int p11 = src.getInt(s1 + 4);
+                    final int r01 = (p01 >>> rShift) & 0xff;
+                    final int g01 = (p01 >>> gShift) & 0xff;
+                    final int b01 = (p01 >>> bShift) & 0xff;
+                    final int r11 = (p11 >>> rShift) & 0xff;
+                    final int g11 = (p11 >>> gShift) & 0xff;
+                    final int b11 = (p11 >>> bShift) & 0xff;
+                    r += r01 + r11;
+                    g += g01 + g11;
+                    b += b01 + b11;
+                    y.put(y0 + 1, luma(r01, g01, b01));
+                    y.put(y1 + 1, luma(r11, g11, b11));
+                } else {
+                    // Odd width, the last column counts twice
+                    r *= 2;
+                    g *= 2;
+                    b *= 2;
+                }
+                // Sums of 4 pixels, so shift by 2 more
+                u.put(uv, (byte)(((-38 * r - 74 * g + 112 * b + 512) >> 10) + 128));
+                v.put(uv, (byte)(((112 * r - 94 * g - 18 * b + 512) >> 10) + 128));
+                s0 += 8;
+                s1 += 8;
+                y0 += 2;
+                y1 += 2;
+                uv += mUvPixelStride;
+            }
+        }
+    }
+
+    private static byte luma(final int r, final int g, final int b) {
+        return (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+    }
+
+    /**
+     * @param uStart index of the first U sample in mSrc
+     * @param vStart index of the first V sample in mSrc
+     * @param srcPixelStride 1 for planar, 2 for interleaved
+     */
+    private void copyYuv(final int startPair, final int endPair, final int uStart, final int vStart,
+                         final int srcPixelStride) {
+        final ByteBuffer src = mSrc;
+        final int width = mWidth;
+        final int height = mHeight;
+        final int chromaWidth = getChromaWidth(width);
+        final int srcUvStride = chromaWidth * srcPixelStride;
+        final int endRow = Math.min(endPair * 2, height);
+        for (int row = startPair * 2; row < endRow; row++) {
+            copyRow(src, row * width, mY, row * mYRowStride, width);
+        }
+        for (int pair = startPair; pair < endPair; pair++) {
+            final int srcOffset = pair * srcUvStride;
+            final int dstOffset = pair * mUvRowStride;
+            if (mUvPixelStride == 1 && srcPixelStride == 1) {
+                copyRow(src, uStart + srcOffset, mU, dstOffset, chromaWidth);
+                copyRow(src, vStart + srcOffset, mV, dstOffset, chromaWidth);
+            } else {
+                for (int x = 0; x < chromaWidth; x++) {
+                    final int s = srcOffset + x * srcPixelStride;
+                    final int d = dstOffset + x * mUvPixelStride;
+                    mU.put(d, src.get(uStart + s));
+                    mV.put(d, src.get(vStart + s));
+                }
+            }
+        }
+    }
+
+    private static void copyRow(final ByteBuffer src, final int srcOffset, final ByteBuffer dst, final int dstOffset,
+                                final int length) {
+        int i = 0;
+        if (src.order() == dst.order()) {
+            // Absolute gets and puts leave the positions alone, which other bands share
+            for (; i + 8 <= length; i += 8) {
+                dst.putLong(dstOffset + i, src.getLong(srcOffset + i));
+            }
+        }
+        for (; i < length; i++) {
+            dst.put(dstOffset + i, src.get(srcOffset + i));
+        }
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.homesoft.encoder.audio;
+
+import java.nio.ShortBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Mixes interleaved 16 bit PCM sources with gains, a chunk at a time, and cuts the mix at an
+ * end frame with a short fade out so the cut doesn't click.
+ * <p>
+ * For each chunk call {@link #begin(int)}, {@link #add(ShortBuffer, float)} for each source, then
+ * {@link #end(ShortBuffer)}.  Sources that run out are silent for the rest of the chunk.
+ * Nothing is allocated after construction.
+ */
+public class PcmMixer {
+    private static final int GAIN_ONE = 1 << 16;
+
+    private final int mChannelCount;
+    private final int[] mMix;
+
+    private long mPosition;
+    private long mEndFrame = Long.MAX_VALUE;
+    private int mFadeFrames;
+    private int mFrames;
+
+    /**
+     * @param chunkFrames most frames mixed at once
+     */
+    public PcmMixer(final int channelCount, final int chunkFrames) {
+        if (channelCount < 1 || chunkFrames < 1) {
+            throw new IllegalArgumentException("Bad mixer size " + channelCount + "x" + chunkFrames);
+        }
+        mChannelCount = channelCount;
+        mMix = new int[channelCount * chunkFrames];
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getChunkFrames() {
+        return mMix.length / mChannelCount;
+    }
+
+    /**
+     * @return frames mixed so far
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Stop the mix at endFrame, i.e. the end of the video
+     * @param fadeFrames the last frames before the end ramp down to silence
+     */
+    public void setEnd(final long endFrame, final int fadeFrames) {
+        mEndFrame = endFrame;
+        mFadeFrames = fadeFrames;
+    }
+
+    public long getEnd() {
+        return mEndFrame;
+    }
+
+    public boolean isEnded() {
+        return mPosition >= mEndFrame;
+    }
+
+    /**
+     * Start a chunk
+     * @return frames in the chunk, fewer than asked at the end or if more than a chunk is asked
+     */
+    public int begin(final int frames) {
+        mFrames = (int)Math.max(0, Math.min(Math.min(frames, getChunkFrames()), mEndFrame - mPosition));
+        for (int i = 0, samples = mFrames * mChannelCount; i < samples; i++) {
+            mMix[i] = 0;
+        }
+        return mFrames;
+    }
+
+    /**
+     * Add up to a chunk of frames from in
+     * @param gain 1 for unchanged
+     * @return frames taken from in
+     */
+    public int add(final ShortBuffer in, final float gain) {
+        final int frames = Math.min(in.remaining() / mChannelCount, mFrames);
+        final int samples = frames * mChannelCount;
+        final int position = in.position();
+        if (gain == 1f) {
+            for (int i = 0; i < samples; i++) {
+                mMix[i] += in.get(position + i);
+            }
+        } else {
+            final long fixedGain = (long)(gain * GAIN_ONE);
+            for (int i = 0; i < samples; i++) {
+                mMix[i] += (int)((in.get(position + i) * fixedGain) >> 16);
+            }
+        }
+        in.position(position + samples);
+        return frames;
+    }
+
+    /**
+     * Write the chunk, clipped to 16 bits and faded if it is near the end
+     * @return frames written
+     */
+    public int end(final ShortBuffer out) {
+        final long fadeStart = mEndFrame - mFadeFrames;
+        int i = 0;
+        for (int frame = 0; frame < mFrames; frame++) {
+            final long position = mPosition + frame;
+            final boolean fade = position >= fadeStart;
+            for (int c = 0; c < mChannelCount; c++, i++) {
+                int sample = mMix[i];
+                if (fade) {
+                    sample = (int)(sample * (mEndFrame - position) / mFadeFrames);
+                }
+                out.put((short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample)));
+            }
+        }
+        mPosition += mFrames;
+        final int frames = mFrames;
+        mFrames = 0;
+        return frames;
+    }
+
+    /**
+     * @return the frame at or after timeUs
+     */
+    public static long toFrames(final long timeUs, final int sampleRate) {
+        return (timeUs * sampleRate + 999999) / 1000000;
+    }
+
+    public static long toTimeUs(final long frames, final int sampleRate) {
+        return frames * 1000000 / sampleRate;
+    }
+}
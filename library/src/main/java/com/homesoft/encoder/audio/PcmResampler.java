@@ -0,0 +1,152 @@
+package com.homesoft.encoder.audio;
+
+import java.nio.ShortBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Converts interleaved 16 bit PCM between sample rates and channel counts, a chunk at a time.
+ * <p>
+ * Rates are converted by linear interpolation, which keeps the state between chunks down to the
+ * last input frame.  Mono is copied to every channel, other layouts are mixed down to mono, or
+ * keep their first channels.
+ */
+public class PcmResampler {
+    private final int mInRate;
+    private final int mInChannels;
+    private final int mOutRate;
+    private final int mOutChannels;
+
+    // The last input frame read, mapped to the output channels
+    private final int[] mPrevious;
+    private final int[] mNext;
+    private boolean mHasPrevious;
+    // Position of the next output frame after mPrevious, in 1/mOutRate input frames
+    private long mPhase;
+
+    public PcmResampler(final int inRate, final int inChannels, final int outRate, final int outChannels) {
+        if (inRate <= 0 || outRate <= 0 || inChannels <= 0 || outChannels <= 0) {
+            throw new IllegalArgumentException("Bad format " + inRate + "Hz x" + inChannels + " to " +
+                    outRate + "Hz x" + outChannels);
+        }
+        mInRate = inRate;
+        mInChannels = inChannels;
+        mOutRate = outRate;
+        mOutChannels = outChannels;
+        mPrevious = new int[outChannels];
+        mNext = new int[outChannels];
+    }
+
+    public int getInRate() {
+        return mInRate;
+    }
+
+    public int getInChannels() {
+        return mInChannels;
+    }
+
+    /**
+     * Convert as much of in as fits in out.  Whatever is left in in should be passed again.
+     * @return frames written
+     */
+    public int resample(final ShortBuffer in, final ShortBuffer out) {
+        if (mInRate == mOutRate) {
+            return copy(in, out);
+        }
+        int frames = 0;
+        while (true) {
+            // Move through the input until the output frame falls between mPrevious and the next frame
+            while (mPhase >= mOutRate || !mHasPrevious) {
+                if (in.remaining() < mInChannels) {
+                    return frames;
+                }
+                readFrame(in, in.position(), mPrevious);
+                in.position(in.position() + mInChannels);
+                if (mHasPrevious) {
+                    mPhase -= mOutRate;
+                } else {
+                    mHasPrevious = true;
+                }
+            }
+            if (in.remaining() < mInChannels || out.remaining() < mOutChannels) {
+                return frames;
+            }
+            readFrame(in, in.position(), mNext);
+            for (int c = 0; c < mOutChannels; c++) {
+                out.put((short)(mPrevious[c] + (mNext[c] - mPrevious[c]) * mPhase / mOutRate));
+            }
+            mPhase += mInRate;
+            frames++;
+        }
+    }
+
+    /**
+     * At the end of the input, write the frames that fall after the last input frame
+     * @return frames written
+     */
+    public int flush(final ShortBuffer out) {
+        int frames = 0;
+        while (mHasPrevious && mPhase < mOutRate && out.remaining() >= mOutChannels) {
+            for (int c = 0; c < mOutChannels; c++) {
+                out.put((short)mPrevious[c]);
+            }
+            mPhase += mInRate;
+            frames++;
+        }
+        return frames;
+    }
+
+    private int copy(final ShortBuffer in, final ShortBuffer out) {
+        final int frames = Math.min(in.remaining() / mInChannels, out.remaining() / mOutChannels);
+        if (mInChannels == mOutChannels) {
+            final int limit = in.limit();
+            in.limit(in.position() + frames * mInChannels);
+            out.put(in);
+            in.limit(limit);
+            return frames;
+        }
+        int position = in.position();
+        for (int i = 0; i < frames; i++) {
+            readFrame(in, position, mNext);
+            position += mInChannels;
+            for (int c = 0; c < mOutChannels; c++) {
+                out.put((short)mNext[c]);
+            }
+        }
+        in.position(position);
+        return frames;
+    }
+
+    private void readFrame(final ShortBuffer in, final int position, final int[] frame) {
+        if (mInChannels == 1) {
+            final int sample = in.get(position);
+            for (int c = 0; c < mOutChannels; c++) {
+                frame[c] = sample;
+            }
+        } else if (mOutChannels == 1) {
+            int sum = 0;
+            for (int c = 0; c < mInChannels; c++) {
+                sum += in.get(position + c);
+            }
+            frame[0] = sum / mInChannels;
+        } else {
+            for (int c = 0; c < mOutChannels; c++) {
+                frame[c] = in.get(position + Math.min(c, mInChannels - 1));
+            }
+        }
+    }
+}
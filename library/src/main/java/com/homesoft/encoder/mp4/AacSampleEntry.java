@@ -0,0 +1,131 @@
+package com.homesoft.encoder.mp4;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * AAC sample entry with its esds (ISO/IEC 14496-14 5.6)
+ */
+public class AacSampleEntry extends SampleEntry {
+    private static final int OBJECT_TYPE_AAC = 0x40;
+    private static final int STREAM_TYPE_AUDIO = 0x05;
+    private static final int AUDIO_OBJECT_TYPE_AAC_LC = 2;
+    private static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000,
+            22050, 16000, 12000, 11025, 8000, 7350};
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final byte[] mAudioSpecificConfig;
+
+    /**
+     * @param audioSpecificConfig MediaFormat csd-0
+     */
+    public AacSampleEntry(final int sampleRate, final int channelCount, final byte[] audioSpecificConfig) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mAudioSpecificConfig = audioSpecificConfig;
+    }
+
+    /**
+     * @return AAC-LC AudioSpecificConfig (ISO/IEC 14496-3 1.6.2.1), the same as an encoder's csd-0
+     * @throws IllegalArgumentException if AAC has no frequency index for the sample rate
+     */
+    public static byte[] createAudioSpecificConfig(final int sampleRate, final int channelCount) {
+        int frequencyIndex = 0;
+        while (frequencyIndex < SAMPLE_RATES.length && SAMPLE_RATES[frequencyIndex] != sampleRate) {
+            frequencyIndex++;
+        }
+        if (frequencyIndex == SAMPLE_RATES.length) {
+            throw new IllegalArgumentException("Unsupported AAC sample rate " + sampleRate);
+        }
+        if (channelCount < 1 || channelCount > 7) {
+            throw new IllegalArgumentException("Unsupported AAC channel count " + channelCount);
+        }
+        return new byte[] {
+                (byte)((AUDIO_OBJECT_TYPE_AAC_LC << 3) | (frequencyIndex >> 1)),
+                (byte)(((frequencyIndex & 1) << 7) | (channelCount << 3))
+        };
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public byte[] getAudioSpecificConfig() {
+        return mAudioSpecificConfig;
+    }
+
+    /**
+     * mp4a.40.N, N being the audio object type from the AudioSpecificConfig (2 for AAC-LC)
+     */
+    @Override
+    public String getCodecs() {
+        return "mp4a.40." + ((mAudioSpecificConfig[0] >> 3) & 0x1f);
+    }
+
+    @Override
+    public String getHandlerType() {
+        return HANDLER_SOUND;
+    }
+
+    @Override
+    public int getTimescale() {
+        return mSampleRate;
+    }
+
+    @Override
+    public void write(BoxSink boxWriter) {
+        boxWriter.start("mp4a");
+        boxWriter.putZeros(6).putShort(1); // data_reference_index
+        boxWriter.putZeros(8);
+        boxWriter.putShort(mChannelCount);
+        boxWriter.putShort(16); // samplesize
+        boxWriter.putInt(0);
+        boxWriter.putInt(mSampleRate << 16);
+
+        boxWriter.startFull("esds", 0, 0);
+        final int decoderSpecificInfo = 2 + mAudioSpecificConfig.length;
+        final int decoderConfig = 2 + 13 + decoderSpecificInfo;
+        putDescriptorHeader(boxWriter, 0x03, 3 + decoderConfig + 3);
+        boxWriter.putShort(0); // ES_ID
+        boxWriter.putByte(0);
+        putDescriptorHeader(boxWriter, 0x04, 13 + decoderSpecificInfo);
+        boxWriter.putByte(OBJECT_TYPE_AAC);
+        boxWriter.putByte((STREAM_TYPE_AUDIO << 2) | 1);
+        boxWriter.putInt24(0); // bufferSizeDB
+        boxWriter.putInt(0); // maxBitrate
+        boxWriter.putInt(0); // avgBitrate
+        putDescriptorHeader(boxWriter, 0x05, mAudioSpecificConfig.length);
+        boxWriter.put(mAudioSpecificConfig);
+        putDescriptorHeader(boxWriter, 0x06, 1);
+        boxWriter.putByte(0x02); // SLConfig predefined MP4
+        boxWriter.end();
+
+        boxWriter.end();
+    }
+
+    private static void putDescriptorHeader(final BoxSink boxWriter, final int tag, final int size) {
+        if (size > 0x7f) {
+            throw new IllegalArgumentException("Descriptor too large: " + size);
+        }
+        boxWriter.putByte(tag);
+        boxWriter.putByte(size);
+    }
+}
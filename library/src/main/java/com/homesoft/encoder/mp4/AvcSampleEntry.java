@@ -0,0 +1,105 @@
+package com.homesoft.encoder.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * H.264 sample entry with its avcC decoder configuration
+ */
+public class AvcSampleEntry extends VideoSampleEntry {
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private final List<byte[]> mSps;
+    private final List<byte[]> mPps;
+
+    public AvcSampleEntry(final int width, final int height, final List<byte[]> sps, final List<byte[]> pps) {
+        super(width, height);
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("SPS and PPS are required");
+        }
+        mSps = sps;
+        mPps = pps;
+    }
+
+    /**
+     * @param csd Annex-B parameter sets, i.e. MediaFormat csd-0 and csd-1
+     */
+    public static AvcSampleEntry fromAnnexB(final int width, final int height, final ByteBuffer... csd) {
+        final ArrayList<byte[]> sps = new ArrayList<>();
+        final ArrayList<byte[]> pps = new ArrayList<>();
+        for (ByteBuffer byteBuffer : csd) {
+            for (byte[] nal : NalUnits.split(byteBuffer.duplicate())) {
+                switch (nal[0] & 0x1f) {
+                    case NAL_SPS:
+                        sps.add(nal);
+                        break;
+                    case NAL_PPS:
+                        pps.add(nal);
+                        break;
+                }
+            }
+        }
+        return new AvcSampleEntry(width, height, sps, pps);
+    }
+
+    public List<byte[]> getSps() {
+        return mSps;
+    }
+
+    public List<byte[]> getPps() {
+        return mPps;
+    }
+
+    /**
+     * avc1.PPCCLL from the SPS profile_idc, constraint flags and level_idc
+     */
+    @Override
+    public String getCodecs() {
+        final byte[] sps = mSps.get(0);
+        return String.format(Locale.US, "avc1.%02x%02x%02x", sps[1] & 0xff, sps[2] & 0xff, sps[3] & 0xff);
+    }
+
+    @Override
+    protected String getType() {
+        return "avc1";
+    }
+
+    @Override
+    protected void writeDecoderConfig(BoxSink boxWriter) {
+        final byte[] sps = mSps.get(0);
+        boxWriter.start("avcC");
+        boxWriter.putByte(1);
+        boxWriter.putByte(sps[1]); // profile_idc
+        boxWriter.putByte(sps[2]); // constraint flags
+        boxWriter.putByte(sps[3]); // level_idc
+        boxWriter.putByte(0xff); // 4 byte NAL lengths
+        boxWriter.putByte(0xe0 | mSps.size());
+        for (byte[] nal : mSps) {
+            boxWriter.putShort(nal.length).put(nal);
+        }
+        boxWriter.putByte(mPps.size());
+        for (byte[] nal : mPps) {
+            boxWriter.putShort(nal.length).put(nal);
+        }
+        boxWriter.end();
+    }
+}
@@ -0,0 +1,53 @@
+package com.homesoft.encoder.mp4;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Where boxes are written, either to the heap ({@link BoxWriter}) or through to a channel
+ * ({@link ChannelBoxWriter}).
+ */
+public interface BoxSink {
+    BoxSink start(final String type);
+    BoxSink startFull(final String type, final int version, final int flags);
+
+    /**
+     * Close the box opened last, its size is the bytes written since it was started
+     */
+    BoxSink end();
+
+    BoxSink putByte(final int value);
+    BoxSink putShort(final int value);
+    BoxSink putInt24(final int value);
+    BoxSink putInt(final int value);
+    BoxSink putLong(final long value);
+    BoxSink put(final byte[] bytes);
+    BoxSink put(final ByteBuffer byteBuffer);
+    BoxSink putZeros(final int count);
+    BoxSink putFourCC(final String fourCC);
+
+    /**
+     * Null terminated UTF-8 string, as used by hdlr
+     */
+    BoxSink putString(final String s);
+
+    /**
+     * Unity transformation matrix used by mvhd and tkhd
+     */
+    BoxSink putMatrix();
+}
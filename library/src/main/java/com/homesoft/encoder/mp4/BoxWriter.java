@@ -0,0 +1,204 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.Checksum;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Builds ISO-BMFF boxes into a growable heap buffer.
+ * Box sizes are patched when the box is closed with {@link #end()}.
+ */
+public class BoxWriter implements BoxSink {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    static final int MAX_DEPTH = 16;
+
+    private final int[] mStarts = new int[MAX_DEPTH];
+    private int mDepth;
+    ByteBuffer mBuffer;
+
+    public BoxWriter(final int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    @Override
+    public BoxWriter start(final String type) {
+        if (mDepth == MAX_DEPTH) {
+            throw new IllegalStateException("Boxes nested too deep");
+        }
+        mStarts[mDepth++] = mBuffer.position();
+        putInt(0);
+        return putFourCC(type);
+    }
+
+    @Override
+    public BoxWriter startFull(final String type, final int version, final int flags) {
+        start(type);
+        return putInt((version << 24) | (flags & 0xffffff));
+    }
+
+    @Override
+    public BoxWriter end() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("No open box");
+        }
+        final int start = mStarts[--mDepth];
+        mBuffer.putInt(start, mBuffer.position() - start);
+        return this;
+    }
+
+    @Override
+    public BoxWriter putByte(final int value) {
+        ensure(1);
+        mBuffer.put((byte)value);
+        return this;
+    }
+
+    @Override
+    public BoxWriter putShort(final int value) {
+        ensure(2);
+        mBuffer.putShort((short)value);
+        return this;
+    }
+
+    @Override
+    public BoxWriter putInt24(final int value) {
+        ensure(3);
+        mBuffer.put((byte)(value >> 16));
+        mBuffer.putShort((short)value);
+        return this;
+    }
+
+    @Override
+    public BoxWriter putInt(final int value) {
+        ensure(4);
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    @Override
+    public BoxWriter putLong(final long value) {
+        ensure(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    @Override
+    public BoxWriter put(final byte[] bytes) {
+        ensure(bytes.length);
+        mBuffer.put(bytes);
+        return this;
+    }
+
+    @Override
+    public BoxWriter put(final ByteBuffer byteBuffer) {
+        ensure(byteBuffer.remaining());
+        mBuffer.put(byteBuffer);
+        return this;
+    }
+
+    @Override
+    public BoxWriter putZeros(final int count) {
+        ensure(count);
+        for (int i=0;i<count;i++) {
+            mBuffer.put((byte)0);
+        }
+        return this;
+    }
+
+    @Override
+    public BoxWriter putFourCC(final String fourCC) {
+        if (fourCC.length() != 4) {
+            throw new IllegalArgumentException("Not a FourCC: " + fourCC);
+        }
+        return put(fourCC.getBytes(ASCII));
+    }
+
+    /**
+     * Null terminated UTF-8 string, as used by hdlr
+     */
+    @Override
+    public BoxWriter putString(final String s) {
+        put(s.getBytes(Charset.forName("UTF-8")));
+        return putByte(0);
+    }
+
+    /**
+     * Unity transformation matrix used by mvhd and tkhd
+     */
+    @Override
+    public BoxWriter putMatrix() {
+        putInt(0x00010000).putInt(0).putInt(0);
+        putInt(0).putInt(0x00010000).putInt(0);
+        return putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    public int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Overwrite a previously written int, i.e. an offset that was not known at the time
+     */
+    public void setInt(final int position, final int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    public void clear() {
+        mDepth = 0;
+        mBuffer.clear();
+    }
+
+    /**
+     * @return a read only view of the bytes written so far
+     */
+    public ByteBuffer getBuffer() {
+        final ByteBuffer byteBuffer = mBuffer.duplicate();
+        byteBuffer.flip();
+        return byteBuffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Feed the bytes written so far to a checksum, straight from the backing array
+     */
+    void updateChecksum(final Checksum checksum) {
+        checksum.update(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+    }
+
+    public void writeTo(final WritableByteChannel channel) throws IOException {
+        if (mDepth != 0) {
+            throw new IllegalStateException(mDepth + " boxes still open");
+        }
+        final ByteBuffer byteBuffer = getBuffer();
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+    }
+
+    void ensure(final int bytes) {
+        if (mBuffer.remaining() < bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2,
+                    mBuffer.position() + bytes));
+            mBuffer.flip();
+            grown.put(mBuffer);
+            mBuffer = grown;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes boxes to a channel through a small buffer, so a moov with millions of samples never has
+ * to fit in the heap.
+ * <p>
+ * A box's size is written before its payload, so the boxes are written twice: first to a writer
+ * from {@link #measure(int)}, which only records the sizes, then to the writer returned by
+ * {@link #replay(WritableByteChannel)}.  Both passes must write the same bytes.
+ */
+public class ChannelBoxWriter implements BoxSink {
+    private final WritableByteChannel mChannel;
+    private final FlushingBuffer mBuffer;
+    private final long[] mStarts = new long[BoxWriter.MAX_DEPTH];
+    private final int[] mBoxes = new int[BoxWriter.MAX_DEPTH];
+    private int[] mSizes;
+    private int mBoxCount;
+    private int mDepth;
+    private int mBox;
+    private long mFlushed;
+
+    /**
+     * Heap buffer that is written out to the channel when full
+     */
+    private class FlushingBuffer extends BoxWriter {
+        FlushingBuffer(final int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        void ensure(final int bytes) {
+            if (mBuffer.remaining() < bytes) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to write the boxes", e);
+                }
+                // Only grows for a single put larger than the buffer
+                super.ensure(bytes);
+            }
+        }
+    }
+
+    private ChannelBoxWriter(final int capacity, final WritableByteChannel channel, final int[] sizes,
+                             final int boxCount) {
+        mBuffer = new FlushingBuffer(capacity);
+        mChannel = channel;
+        mSizes = sizes;
+        mBoxCount = boxCount;
+    }
+
+    /**
+     * @return a writer that discards what is written, keeping the box sizes for {@link #replay(WritableByteChannel)}
+     */
+    public static ChannelBoxWriter measure(final int capacity) {
+        return new ChannelBoxWriter(capacity, null, new int[64], 0);
+    }
+
+    /**
+     * @return a writer that writes the same boxes again to the channel, at its position
+     */
+    public ChannelBoxWriter replay(final WritableByteChannel channel) {
+        if (mChannel != null || mDepth != 0) {
+            throw new IllegalStateException("Not a finished measure");
+        }
+        return new ChannelBoxWriter(mBuffer.mBuffer.capacity(), channel, mSizes, mBoxCount);
+    }
+
+    @Override
+    public ChannelBoxWriter start(final String type) {
+        if (mDepth == BoxWriter.MAX_DEPTH) {
+            throw new IllegalStateException("Boxes nested too deep");
+        }
+        final int box;
+        if (mChannel == null) {
+            if (mBoxCount == mSizes.length) {
+                mSizes = Arrays.copyOf(mSizes, mSizes.length * 2);
+            }
+            box = mBoxCount++;
+        } else if (mBox == mBoxCount) {
+            throw new IllegalStateException("More boxes than were measured");
+        } else {
+            box = mBox++;
+        }
+        mBoxes[mDepth] = box;
+        mStarts[mDepth++] = getPosition();
+        mBuffer.putInt(mSizes[box]);
+        return putFourCC(type);
+    }
+
+    @Override
+    public ChannelBoxWriter startFull(final String type, final int version, final int flags) {
+        start(type);
+        return putInt((version << 24) | (flags & 0xffffff));
+    }
+
+    @Override
+    public ChannelBoxWriter end() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("No open box");
+        }
+        mDepth--;
+        final long size = getPosition() - mStarts[mDepth];
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Box too large: " + size);
+        }
+        final int box = mBoxes[mDepth];
+        if (mChannel == null) {
+            mSizes[box] = (int)size;
+        } else if (mSizes[box] != size) {
+            throw new IllegalStateException("Box size changed from " + mSizes[box] + " to " + size);
+        }
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putByte(final int value) {
+        mBuffer.putByte(value);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putShort(final int value) {
+        mBuffer.putShort(value);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putInt24(final int value) {
+        mBuffer.putInt24(value);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putInt(final int value) {
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putLong(final long value) {
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter put(final byte[] bytes) {
+        mBuffer.put(bytes);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter put(final ByteBuffer byteBuffer) {
+        mBuffer.put(byteBuffer);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putZeros(final int count) {
+        mBuffer.putZeros(count);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putFourCC(final String fourCC) {
+        mBuffer.putFourCC(fourCC);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putString(final String s) {
+        mBuffer.putString(s);
+        return this;
+    }
+
+    @Override
+    public ChannelBoxWriter putMatrix() {
+        mBuffer.putMatrix();
+        return this;
+    }
+
+    /**
+     * @return bytes written so far, including what was flushed
+     */
+    public long getPosition() {
+        return mFlushed + mBuffer.position();
+    }
+
+    /**
+     * Write what is buffered to the channel
+     */
+    public void flush() throws IOException {
+        final ByteBuffer buffer = mBuffer.mBuffer;
+        if (mChannel != null) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+        mFlushed += buffer.position();
+        buffer.clear();
+    }
+}
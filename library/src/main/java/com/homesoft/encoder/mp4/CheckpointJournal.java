@@ -0,0 +1,318 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Sidecar file that lets an {@link Mp4Writer} recover from a crash.
+ * <p>
+ * After a header, the journal is a series of blocks, each its payload length, CRC32 and payload.
+ * The start block describes the tracks and where the mdat is.  Each checkpoint block adds the
+ * samples written since the previous one, the end of their data in the MP4 and the key frame to
+ * continue from.  Blocks are only appended after the samples they list are on disk, so a torn
+ * last block is simply ignored.
+ */
+class CheckpointJournal {
+    private static final int MAGIC = 0x6232766a; // b2vj
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int TYPE_START = 1;
+    private static final int TYPE_CHECKPOINT = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final BoxWriter mPayload = new BoxWriter(64 * 1024);
+    private final CRC32 mCrc = new CRC32();
+    private int[] mJournaledCounts;
+
+    // What was recovered, see open()
+    private long mMdatStart;
+    private long mReserveStart;
+    private int mMoovReserve;
+    private long mDataEnd;
+    private long mResumePtsUs;
+    private final ArrayList<Mp4Track> mTracks = new ArrayList<>();
+
+    private CheckpointJournal(final File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    /**
+     * Start a new journal, replacing any old one
+     */
+    static CheckpointJournal create(final File file) throws IOException {
+        final CheckpointJournal journal = new CheckpointJournal(file);
+        journal.mRandomAccessFile.setLength(0);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        journal.writeFully(header);
+        return journal;
+    }
+
+    /**
+     * Read the journal up to its last complete checkpoint and cut off anything after it
+     * @return null if there is no journal or it has no checkpoint
+     */
+    static CheckpointJournal open(final File file, final int memorySamples, final File spillDirectory)
+            throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        final CheckpointJournal journal = new CheckpointJournal(file);
+        boolean recovered = false;
+        try {
+            recovered = journal.read(memorySamples, spillDirectory);
+        } finally {
+            if (!recovered) {
+                journal.close();
+            }
+        }
+        return recovered ? journal : null;
+    }
+
+    private boolean read(final int memorySamples, final File spillDirectory) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.limit(HEADER_SIZE);
+        if (!readFully(header, 0) || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            return false;
+        }
+        long position = HEADER_SIZE;
+        long checkpointEnd = -1;
+        ByteBuffer payload = ByteBuffer.allocate(0);
+        while (true) {
+            header.clear().limit(BLOCK_HEADER_SIZE);
+            if (!readFully(header, position)) {
+                break;
+            }
+            final int length = header.getInt(0);
+            if (length <= 0 || position + BLOCK_HEADER_SIZE + length > mChannel.size()) {
+                break;
+            }
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+            payload.clear().limit(length);
+            if (!readFully(payload, position + BLOCK_HEADER_SIZE)) {
+                break;
+            }
+            mCrc.reset();
+            mCrc.update(payload.array(), 0, length);
+            if ((int)mCrc.getValue() != header.getInt(4)) {
+                break;
+            }
+            payload.flip();
+            final int type = payload.get();
+            if (type == TYPE_START && mJournaledCounts == null) {
+                readStart(payload, memorySamples, spillDirectory);
+            } else if (type == TYPE_CHECKPOINT && mJournaledCounts != null) {
+                readCheckpoint(payload);
+                checkpointEnd = position + BLOCK_HEADER_SIZE + length;
+            } else {
+                break;
+            }
+            position += BLOCK_HEADER_SIZE + length;
+        }
+        if (checkpointEnd < 0) {
+            return false;
+        }
+        // Drop a torn block, so new ones follow the last good checkpoint
+        mChannel.truncate(checkpointEnd);
+        mChannel.position(checkpointEnd);
+        return true;
+    }
+
+    private void readStart(final ByteBuffer payload, final int memorySamples, final File spillDirectory) {
+        mMdatStart = payload.getLong();
+        mReserveStart = payload.getLong();
+        mMoovReserve = payload.getInt();
+        final int trackCount = payload.getInt();
+        for (int i = 0; i < trackCount; i++) {
+            final int trackId = payload.getInt();
+            final long defaultSampleDurationUs = payload.getLong();
+            final int timescale = payload.getInt();
+            final String handlerType = getString(payload);
+            final String codecs = getString(payload);
+            final byte[] box = new byte[payload.getInt()];
+            payload.get(box);
+            mTracks.add(new Mp4Track(trackId, StoredSampleEntry.create(handlerType, timescale, codecs, box),
+                    defaultSampleDurationUs, new SampleTable(memorySamples, spillDirectory)));
+        }
+        mJournaledCounts = new int[trackCount];
+    }
+
+    private void readCheckpoint(final ByteBuffer payload) throws IOException {
+        mDataEnd = payload.getLong();
+        mResumePtsUs = payload.getLong();
+        for (int t = 0; t < mTracks.size(); t++) {
+            final SampleTable sampleTable = mTracks.get(t).getSampleTable();
+            final int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+                final long offset = payload.getLong();
+                final int size = payload.getInt();
+                final long presentationTimeUs = payload.getLong();
+                sampleTable.add(offset, size, presentationTimeUs, payload.get() != 0);
+            }
+            mJournaledCounts[t] += count;
+        }
+    }
+
+    private static String getString(final ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.getShort()];
+        payload.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void putString(final String s) {
+        final byte[] bytes = s.getBytes(UTF_8);
+        mPayload.putShort(bytes.length).put(bytes);
+    }
+
+    void writeStart(final long mdatStart, final long reserveStart, final int moovReserve,
+                    final List<Mp4Track> tracks) throws IOException {
+        mPayload.clear();
+        mPayload.putByte(TYPE_START);
+        mPayload.putLong(mdatStart).putLong(reserveStart).putInt(moovReserve);
+        mPayload.putInt(tracks.size());
+        for (Mp4Track track : tracks) {
+            final SampleEntry sampleEntry = track.getSampleEntry();
+            mPayload.putInt(track.getTrackId()).putLong(track.getDefaultSampleDurationUs());
+            mPayload.putInt(sampleEntry.getTimescale());
+            putString(sampleEntry.getHandlerType());
+            putString(sampleEntry.getCodecs());
+            final byte[] box = StoredSampleEntry.toBytes(sampleEntry);
+            mPayload.putInt(box.length).put(box);
+        }
+        mJournaledCounts = new int[tracks.size()];
+        writeBlock();
+    }
+
+    /**
+     * Append the samples added since the last checkpoint.  Their data must already be on disk.
+     * @param dataEnd end of the sample data in the MP4
+     * @param resumePtsUs the key frame that follows the samples
+     */
+    void writeCheckpoint(final long dataEnd, final long resumePtsUs, final List<Mp4Track> tracks)
+            throws IOException {
+        mPayload.clear();
+        mPayload.putByte(TYPE_CHECKPOINT);
+        mPayload.putLong(dataEnd).putLong(resumePtsUs);
+        for (int t = 0; t < tracks.size(); t++) {
+            final SampleTable sampleTable = tracks.get(t).getSampleTable();
+            final int count = sampleTable.getCount();
+            mPayload.putInt(count - mJournaledCounts[t]);
+            for (int i = mJournaledCounts[t]; i < count; i++) {
+                mPayload.putLong(sampleTable.getOffset(i)).putInt(sampleTable.getSize(i));
+                mPayload.putLong(sampleTable.getPresentationTimeUs(i));
+                mPayload.putByte(sampleTable.isSync(i) ? 1 : 0);
+            }
+        }
+        writeBlock();
+        for (int t = 0; t < tracks.size(); t++) {
+            mJournaledCounts[t] = tracks.get(t).getSampleTable().getCount();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        final ByteBuffer payload = mPayload.getBuffer();
+        final int length = payload.remaining();
+        mCrc.reset();
+        mPayload.updateChecksum(mCrc);
+        final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putInt(length).putInt((int)mCrc.getValue()).flip();
+        writeFully(header);
+        writeFully(payload);
+        mChannel.force(false);
+    }
+
+    private void writeFully(final ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            mChannel.write(byteBuffer);
+        }
+    }
+
+    /**
+     * @return false if the file ended first
+     */
+    private boolean readFully(final ByteBuffer byteBuffer, long position) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            final int read = mChannel.read(byteBuffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    long getMdatStart() {
+        return mMdatStart;
+    }
+
+    long getReserveStart() {
+        return mReserveStart;
+    }
+
+    int getMoovReserve() {
+        return mMoovReserve;
+    }
+
+    /**
+     * @return end of the sample data at the last checkpoint, the MP4 is cut here
+     */
+    long getDataEnd() {
+        return mDataEnd;
+    }
+
+    long getResumePtsUs() {
+        return mResumePtsUs;
+    }
+
+    /**
+     * @return the recovered tracks, with the samples up to the last checkpoint
+     */
+    List<Mp4Track> getTracks() {
+        return mTracks;
+    }
+
+    void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * Close and delete the journal, once the MP4 is complete
+     */
+    void delete() throws IOException {
+        close();
+        if (!mFile.delete()) {
+            throw new IOException("Unable to delete " + mFile);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes fragmented MP4 (ISO/IEC 14496-12 8.8): an init segment (ftyp + moov without samples),
+ * then a moof/mdat pair per fragment.
+ * <p>
+ * Each fragment is playable as soon as it is written, so a crash only loses the pending fragment,
+ * and only the pending fragment's samples are held in memory.
+ */
+public class FragmentedMp4Writer implements SampleWriter {
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int TRUN_DATA_OFFSET = 0x1;
+    private static final int TRUN_SAMPLE_DURATION = 0x100;
+    private static final int TRUN_SAMPLE_SIZE = 0x200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x400;
+    private static final int TRUN_COMPOSITION_OFFSETS = 0x800;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x20000;
+
+    private final ArrayList<FragmentTrack> mTracks = new ArrayList<>();
+    private final BoxWriter mBoxWriter = new BoxWriter(4096);
+    private WritableByteChannel mChannel;
+
+    private long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+    private int mFragmentSamples = Integer.MAX_VALUE;
+    private int mSequenceNumber;
+    private boolean mStarted;
+    private long mBytesWritten;
+
+    public FragmentedMp4Writer(final OutputStream outputStream) {
+        this(Channels.newChannel(outputStream));
+    }
+
+    public FragmentedMp4Writer(final WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * For subclasses that set the output with {@link #setChannel(WritableByteChannel)}
+     */
+    protected FragmentedMp4Writer() {
+    }
+
+    protected void setChannel(final WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    public long getFragmentDurationUs() {
+        return mFragmentDurationUs;
+    }
+
+    /**
+     * @return the longest a fragment can be, if its samples keep their spacing
+     */
+    public long getMaxFragmentDurationUs() {
+        return mFragmentDurationUs * 2;
+    }
+
+    /**
+     * A new fragment is started at the first sync sample of the first track once either limit is reached.
+     * If no sync sample arrives in time, the fragment is cut anyway before it passes twice the limit.
+     * @param durationUs maximum fragment duration
+     * @param samples maximum samples of the first track in a fragment
+     */
+    public void setFragmentLimits(final long durationUs, final int samples) {
+        mFragmentDurationUs = durationUs;
+        mFragmentSamples = samples;
+    }
+
+    @Override
+    public Mp4Track addTrack(final SampleEntry sampleEntry, final long defaultSampleDurationUs) {
+        if (mStarted) {
+            throw new IllegalStateException("Already started");
+        }
+        final Mp4Track track = new Mp4Track(mTracks.size() + 1, sampleEntry, defaultSampleDurationUs);
+        mTracks.add(new FragmentTrack(track));
+        return track;
+    }
+
+    @Override
+    public List<Mp4Track> getTracks() {
+        final ArrayList<Mp4Track> tracks = new ArrayList<>(mTracks.size());
+        for (FragmentTrack fragmentTrack : mTracks) {
+            tracks.add(fragmentTrack.mTrack);
+        }
+        return Collections.unmodifiableList(tracks);
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Write the init segment
+     */
+    @Override
+    public void start() throws IOException {
+        mBoxWriter.clear();
+        writeInitSegment(mBoxWriter, getTracks());
+        write(mBoxWriter.getBuffer());
+        mStarted = true;
+    }
+
+    static void writeInitSegment(final BoxWriter boxWriter, final List<Mp4Track> tracks) {
+        boxWriter.start("ftyp");
+        boxWriter.putFourCC("iso6");
+        boxWriter.putInt(0);
+        boxWriter.putFourCC("iso6").putFourCC("cmfc").putFourCC("mp41");
+        boxWriter.end();
+        new MovieBoxWriter(boxWriter).writeFragmented(tracks);
+    }
+
+    /**
+     * Queue a sample for the current fragment, writing the previous fragment if it is full
+     */
+    @Override
+    public void writeSample(final Mp4Track track, final ByteBuffer sample, final long presentationTimeUs,
+                            final boolean sync) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started");
+        }
+        final FragmentTrack fragmentTrack = mTracks.get(track.getTrackId() - 1);
+        // Fragments are cut on the first track's sync samples, other tracks only force a cut
+        // when they overflow, i.e. audio appended after the video
+        final boolean primary = fragmentTrack == mTracks.get(0);
+        if (isFragmentFull(fragmentTrack, presentationTimeUs, primary && sync)) {
+            if (primary && presentationTimeUs - fragmentTrack.mPresentationTimesUs[0] > getMaxFragmentDurationUs() &&
+                    fragmentTrack.isLastLatest()) {
+                // The last sample lasts longer than expected (i.e. a held frame), so it starts the next fragment
+                final long lastUs = fragmentTrack.mPresentationTimesUs[fragmentTrack.mCount - 1];
+                final boolean lastSync = fragmentTrack.mSync[fragmentTrack.mCount - 1];
+                final ByteBuffer last = fragmentTrack.removeLast();
+                flushFragment(lastUs);
+                fragmentTrack.add(last, lastUs, lastSync);
+            } else {
+                flushFragment(primary ? presentationTimeUs : -1);
+            }
+        }
+        fragmentTrack.add(sample, presentationTimeUs, sync);
+    }
+
+    private boolean isFragmentFull(final FragmentTrack fragmentTrack, final long presentationTimeUs, final boolean canCut) {
+        if (fragmentTrack.mCount == 0) {
+            return false;
+        }
+        final long durationUs = presentationTimeUs - fragmentTrack.mPresentationTimesUs[0];
+        if (canCut && (durationUs >= mFragmentDurationUs || fragmentTrack.mCount >= mFragmentSamples)) {
+            return true;
+        }
+        // Forced cut, assuming this sample lasts as long as the gap before it
+        final long sampleUs = Math.max(0,
+                presentationTimeUs - fragmentTrack.mPresentationTimesUs[fragmentTrack.mCount - 1]);
+        return durationUs + sampleUs > getMaxFragmentDurationUs() || fragmentTrack.mCount >= 2L * mFragmentSamples;
+    }
+
+    /**
+     * Write the pending samples as a fragment
+     * @param nextPresentationTimeUs start of the next sample of the first track,
+     *                               used for the duration of the last one. -1 if unknown.
+     */
+    public void flushFragment(final long nextPresentationTimeUs) throws IOException {
+        int dataSize = 0;
+        for (FragmentTrack fragmentTrack : mTracks) {
+            dataSize += fragmentTrack.mData.position();
+        }
+        if (dataSize == 0) {
+            return;
+        }
+        final FragmentTrack firstTrack = mTracks.get(0);
+        final long startUs = firstTrack.getDecodeTimeUs();
+        onFragmentStart(mSequenceNumber + 1);
+        mBoxWriter.clear();
+        mBoxWriter.start("moof");
+        mBoxWriter.startFull("mfhd", 0, 0);
+        mBoxWriter.putInt(++mSequenceNumber);
+        mBoxWriter.end();
+        final int[] dataOffsetPositions = new int[mTracks.size()];
+        for (int t=0;t<mTracks.size();t++) {
+            final FragmentTrack fragmentTrack = mTracks.get(t);
+            if (fragmentTrack.mCount == 0) {
+                dataOffsetPositions[t] = -1;
+                continue;
+            }
+            dataOffsetPositions[t] = fragmentTrack.writeTraf(mBoxWriter,
+                    t == 0 ? nextPresentationTimeUs : -1);
+        }
+        mBoxWriter.end();
+
+        // Data offsets are relative to the start of the moof
+        int dataOffset = mBoxWriter.position() + 8;
+        for (int t=0;t<mTracks.size();t++) {
+            if (dataOffsetPositions[t] >= 0) {
+                mBoxWriter.setInt(dataOffsetPositions[t], dataOffset);
+                dataOffset += mTracks.get(t).mData.position();
+            }
+        }
+        mBoxWriter.putInt(8 + dataSize);
+        mBoxWriter.putFourCC("mdat");
+        write(mBoxWriter.getBuffer());
+        for (FragmentTrack fragmentTrack : mTracks) {
+            final ByteBuffer data = fragmentTrack.mData;
+            data.flip();
+            write(data);
+            fragmentTrack.reset();
+        }
+        long durationUs = firstTrack.getDecodeTimeUs() - startUs;
+        if (durationUs == 0) {
+            // i.e. audio left over after the video
+            for (FragmentTrack fragmentTrack : mTracks) {
+                durationUs = Math.max(durationUs, fragmentTrack.getDecodeTimeUs() - startUs);
+            }
+        }
+        onFragmentEnd(mSequenceNumber, startUs, durationUs);
+    }
+
+    /**
+     * Called before a fragment is written, i.e. to switch the output
+     */
+    protected void onFragmentStart(final int sequenceNumber) throws IOException {
+    }
+
+    /**
+     * Called once a fragment is written
+     * @param startUs decode time of the fragment on the first track
+     */
+    protected void onFragmentEnd(final int sequenceNumber, final long startUs, final long durationUs) throws IOException {
+    }
+
+    /**
+     * @return total bytes written to the sink
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Write the last fragment
+     */
+    @Override
+    public void finish() throws IOException {
+        if (mStarted) {
+            flushFragment(-1);
+        }
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private void write(final ByteBuffer byteBuffer) throws IOException {
+        mBytesWritten += byteBuffer.remaining();
+        while (byteBuffer.hasRemaining()) {
+            mChannel.write(byteBuffer);
+        }
+    }
+
+    private static class FragmentTrack {
+        private static final int INITIAL_SAMPLES = 64;
+
+        final Mp4Track mTrack;
+        ByteBuffer mData = ByteBuffer.allocate(256 * 1024);
+        int[] mSizes = new int[INITIAL_SAMPLES];
+        long[] mPresentationTimesUs = new long[INITIAL_SAMPLES];
+        boolean[] mSync = new boolean[INITIAL_SAMPLES];
+        int mCount;
+
+        long mDecodeTime;
+
+        FragmentTrack(final Mp4Track track) {
+            mTrack = track;
+        }
+
+        void add(final ByteBuffer sample, final long presentationTimeUs, final boolean sync) {
+            if (mCount == mSizes.length) {
+                final int capacity = mCount * 2;
+                mSizes = Arrays.copyOf(mSizes, capacity);
+                mPresentationTimesUs = Arrays.copyOf(mPresentationTimesUs, capacity);
+                mSync = Arrays.copyOf(mSync, capacity);
+            }
+            final int size = sample.remaining();
+            if (mData.remaining() < size) {
+                final ByteBuffer grown = ByteBuffer.allocate(Math.max(mData.capacity() * 2, mData.position() + size));
+                mData.flip();
+                grown.put(mData);
+                mData = grown;
+            }
+            mData.put(sample);
+            mSizes[mCount] = size;
+            mPresentationTimesUs[mCount] = presentationTimeUs;
+            mSync[mCount] = sync;
+            mCount++;
+        }
+
+        /**
+         * @return true if the last sample can end the fragment, i.e. nothing presents after it
+         */
+        boolean isLastLatest() {
+            if (mCount < 2) {
+                return false;
+            }
+            for (int i=0;i<mCount - 1;i++) {
+                if (mPresentationTimesUs[i] >= mPresentationTimesUs[mCount - 1]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return a copy of the last sample, which is no longer pending
+         */
+        ByteBuffer removeLast() {
+            final int size = mSizes[--mCount];
+            final ByteBuffer data = mData.duplicate();
+            data.flip();
+            data.position(data.limit() - size);
+            final ByteBuffer sample = ByteBuffer.allocate(size);
+            sample.put(data);
+            sample.flip();
+            mData.position(mData.position() - size);
+            return sample;
+        }
+
+        /**
+         * @return the position of the trun data_offset, to be patched once the moof size is known
+         */
+        int writeTraf(final BoxWriter boxWriter, final long nextPresentationTimeUs) {
+            final long[] presentationTimes = new long[mCount];
+            for (int i=0;i<mCount;i++) {
+                presentationTimes[i] = mTrack.toTimescale(mPresentationTimesUs[i]);
+            }
+            // Decode order is presentation order sorted, as fragments start with a sync sample
+            final long[] decodeTimes = Arrays.copyOf(presentationTimes, mCount);
+            Arrays.sort(decodeTimes);
+            boolean reordered = false;
+            for (int i=0;i<mCount;i++) {
+                reordered |= decodeTimes[i] != presentationTimes[i];
+            }
+
+            boxWriter.start("traf");
+            boxWriter.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            boxWriter.putInt(mTrack.getTrackId());
+            boxWriter.end();
+            boxWriter.startFull("tfdt", 1, 0);
+            boxWriter.putLong(mDecodeTime);
+            boxWriter.end();
+
+            int flags = TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS;
+            if (reordered) {
+                flags |= TRUN_COMPOSITION_OFFSETS;
+            }
+            // Version 1 allows negative composition offsets, so no edit list is needed
+            boxWriter.startFull("trun", 1, flags);
+            boxWriter.putInt(mCount);
+            final int dataOffsetPosition = boxWriter.position();
+            boxWriter.putInt(0);
+            final long lastDuration = nextPresentationTimeUs < 0 ?
+                    mTrack.toTimescale(mTrack.getDefaultSampleDurationUs()) :
+                    mTrack.toTimescale(nextPresentationTimeUs) - decodeTimes[mCount - 1];
+            for (int i=0;i<mCount;i++) {
+                final long duration = i + 1 < mCount ? decodeTimes[i + 1] - decodeTimes[i] : lastDuration;
+                boxWriter.putInt((int)duration);
+                boxWriter.putInt(mSizes[i]);
+                boxWriter.putInt(mSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                if (reordered) {
+                    boxWriter.putInt((int)(presentationTimes[i] - decodeTimes[i]));
+                }
+                mDecodeTime += duration;
+            }
+            boxWriter.end();
+            boxWriter.end();
+            return dataOffsetPosition;
+        }
+
+        long getDecodeTimeUs() {
+            return mDecodeTime * 1000000L / mTrack.getTimescale();
+        }
+
+        void reset() {
+            mData.clear();
+            mCount = 0;
+        }
+    }
+}
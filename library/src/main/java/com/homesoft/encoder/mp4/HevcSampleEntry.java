@@ -0,0 +1,183 @@
+package com.homesoft.encoder.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * H.265 sample entry with its hvcC decoder configuration (ISO/IEC 14496-15 8.3.3)
+ */
+public class HevcSampleEntry extends VideoSampleEntry {
+    private static final int NAL_VPS = 32;
+    private static final int NAL_SPS = 33;
+    private static final int NAL_PPS = 34;
+
+    private final List<byte[]> mVps;
+    private final List<byte[]> mSps;
+    private final List<byte[]> mPps;
+
+    private final byte[] mGeneralProfileTierLevel = new byte[12];
+    private int mMaxSubLayers;
+    private boolean mTemporalIdNested;
+    private int mChromaFormat = 1;
+    private int mBitDepthLumaMinus8;
+    private int mBitDepthChromaMinus8;
+
+    public HevcSampleEntry(final int width, final int height, final List<byte[]> vps, final List<byte[]> sps, final List<byte[]> pps) {
+        super(width, height);
+        if (vps.isEmpty() || sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("VPS, SPS and PPS are required");
+        }
+        mVps = vps;
+        mSps = sps;
+        mPps = pps;
+        parseSps(NalUnits.unescape(sps.get(0)));
+    }
+
+    /**
+     * @param csd Annex-B parameter sets, i.e. MediaFormat csd-0
+     */
+    public static HevcSampleEntry fromAnnexB(final int width, final int height, final ByteBuffer... csd) {
+        final ArrayList<byte[]> vps = new ArrayList<>();
+        final ArrayList<byte[]> sps = new ArrayList<>();
+        final ArrayList<byte[]> pps = new ArrayList<>();
+        for (ByteBuffer byteBuffer : csd) {
+            for (byte[] nal : NalUnits.split(byteBuffer.duplicate())) {
+                switch (getNalType(nal)) {
+                    case NAL_VPS:
+                        vps.add(nal);
+                        break;
+                    case NAL_SPS:
+                        sps.add(nal);
+                        break;
+                    case NAL_PPS:
+                        pps.add(nal);
+                        break;
+                }
+            }
+        }
+        return new HevcSampleEntry(width, height, vps, sps, pps);
+    }
+
+    static int getNalType(final byte[] nal) {
+        return (nal[0] >> 1) & 0x3f;
+    }
+
+    private void parseSps(final byte[] rbsp) {
+        // 2 byte NAL header, then sps_video_parameter_set_id(4) sps_max_sub_layers_minus1(3)
+        // sps_temporal_id_nesting_flag(1)
+        mMaxSubLayers = ((rbsp[2] >> 1) & 7) + 1;
+        mTemporalIdNested = (rbsp[2] & 1) != 0;
+        System.arraycopy(rbsp, 3, mGeneralProfileTierLevel, 0, mGeneralProfileTierLevel.length);
+        final NalUnits.BitReader reader = new NalUnits.BitReader(rbsp, 3 + mGeneralProfileTierLevel.length);
+        final int subLayers = mMaxSubLayers - 1;
+        final boolean[] profilePresent = new boolean[subLayers];
+        final boolean[] levelPresent = new boolean[subLayers];
+        for (int i=0;i<subLayers;i++) {
+            profilePresent[i] = reader.readBit() == 1;
+            levelPresent[i] = reader.readBit() == 1;
+        }
+        if (subLayers > 0) {
+            reader.skipBits(2 * (8 - subLayers));
+        }
+        for (int i=0;i<subLayers;i++) {
+            if (profilePresent[i]) {
+                reader.skipBits(88);
+            }
+            if (levelPresent[i]) {
+                reader.skipBits(8);
+            }
+        }
+        reader.readUE(); // sps_seq_parameter_set_id
+        mChromaFormat = reader.readUE();
+        if (mChromaFormat == 3) {
+            reader.skipBits(1); // separate_colour_plane_flag
+        }
+        reader.readUE(); // pic_width_in_luma_samples
+        reader.readUE(); // pic_height_in_luma_samples
+        if (reader.readBit() == 1) {
+            // conformance window offsets
+            for (int i=0;i<4;i++) {
+                reader.readUE();
+            }
+        }
+        mBitDepthLumaMinus8 = reader.readUE();
+        mBitDepthChromaMinus8 = reader.readUE();
+    }
+
+    /**
+     * ISO/IEC 14496-15 E.3, i.e. hvc1.1.6.L93.B0
+     */
+    @Override
+    public String getCodecs() {
+        final byte[] ptl = mGeneralProfileTierLevel;
+        final StringBuilder sb = new StringBuilder("hvc1.");
+        final int profileSpace = (ptl[0] >> 6) & 3;
+        if (profileSpace > 0) {
+            sb.append((char)('A' + profileSpace - 1));
+        }
+        sb.append(ptl[0] & 0x1f);
+        final int compatibility = ((ptl[1] & 0xff) << 24) | ((ptl[2] & 0xff) << 16) | ((ptl[3] & 0xff) << 8) | (ptl[4] & 0xff);
+        sb.append('.').append(Integer.toHexString(Integer.reverse(compatibility)).toUpperCase(Locale.US));
+        sb.append('.').append((ptl[0] & 0x20) == 0 ? 'L' : 'H').append(ptl[11] & 0xff);
+        // Constraint flags, trailing zero bytes left out
+        int last = 10;
+        while (last >= 5 && ptl[last] == 0) {
+            last--;
+        }
+        for (int i=5;i<=last;i++) {
+            sb.append('.').append(Integer.toHexString(ptl[i] & 0xff).toUpperCase(Locale.US));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    protected String getType() {
+        return "hvc1";
+    }
+
+    @Override
+    protected void writeDecoderConfig(BoxSink boxWriter) {
+        boxWriter.start("hvcC");
+        boxWriter.putByte(1);
+        // profile_space, tier, profile_idc, compatibility flags, constraint flags, level_idc
+        boxWriter.put(mGeneralProfileTierLevel);
+        boxWriter.putShort(0xf000); // min_spatial_segmentation_idc
+        boxWriter.putByte(0xfc); // parallelismType unknown
+        boxWriter.putByte(0xfc | mChromaFormat);
+        boxWriter.putByte(0xf8 | mBitDepthLumaMinus8);
+        boxWriter.putByte(0xf8 | mBitDepthChromaMinus8);
+        boxWriter.putShort(0); // avgFrameRate
+        boxWriter.putByte((mMaxSubLayers << 3) | (mTemporalIdNested ? 4 : 0) | 3);
+        boxWriter.putByte(3);
+        writeArray(boxWriter, NAL_VPS, mVps);
+        writeArray(boxWriter, NAL_SPS, mSps);
+        writeArray(boxWriter, NAL_PPS, mPps);
+        boxWriter.end();
+    }
+
+    private static void writeArray(final BoxSink boxWriter, final int nalType, final List<byte[]> nals) {
+        boxWriter.putByte(0x80 | nalType); // array_completeness
+        boxWriter.putShort(nals.size());
+        for (byte[] nal : nals) {
+            boxWriter.putShort(nal.length).put(nal);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.homesoft.encoder.mp4;
+
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes the moov box (ISO/IEC 14496-12 8.2) describing tracks whose samples are already in the file
+ */
+public class MovieBoxWriter {
+    public static final int MOVIE_TIMESCALE = 1000;
+    private static final int LANGUAGE_UNDETERMINED = 0x55c4;
+
+    private final BoxSink mBoxWriter;
+
+    public MovieBoxWriter(final BoxSink boxWriter) {
+        mBoxWriter = boxWriter;
+    }
+
+    public void write(final List<Mp4Track> tracks) {
+        final SampleTiming[] timings = createTimings(tracks);
+        try {
+            write(tracks, timings);
+        } finally {
+            release(timings);
+        }
+    }
+
+    /**
+     * Write the moov with timings from {@link #createTimings(List)}, so that a moov written twice
+     * (see {@link ChannelBoxWriter}) only sorts the sample times once
+     */
+    public void write(final List<Mp4Track> tracks, final SampleTiming[] timings) {
+        long duration = 0;
+        for (int i=0;i<timings.length;i++) {
+            duration = Math.max(duration, toMovieTimescale(timings[i].getMediaDuration() -
+                    timings[i].getMediaTime(), tracks.get(i)));
+        }
+        mBoxWriter.start("moov");
+        writeMvhd(duration, getNextTrackId(tracks));
+        for (int i=0;i<timings.length;i++) {
+            writeTrak(tracks.get(i), timings[i]);
+        }
+        mBoxWriter.end();
+    }
+
+    public static SampleTiming[] createTimings(final List<Mp4Track> tracks) {
+        final SampleTiming[] timings = new SampleTiming[tracks.size()];
+        try {
+            for (int i=0;i<timings.length;i++) {
+                timings[i] = new SampleTiming(tracks.get(i));
+            }
+        } catch (RuntimeException e) {
+            release(timings);
+            throw e;
+        }
+        return timings;
+    }
+
+    public static void release(final SampleTiming[] timings) {
+        for (SampleTiming timing : timings) {
+            if (timing != null) {
+                timing.release();
+            }
+        }
+    }
+
+    /**
+     * Write the moov of a fragmented file's init segment: empty sample tables plus an mvex
+     */
+    public void writeFragmented(final List<Mp4Track> tracks) {
+        mBoxWriter.start("moov");
+        writeMvhd(0, getNextTrackId(tracks));
+        for (Mp4Track track : tracks) {
+            writeTrak(track, null);
+        }
+        mBoxWriter.start("mvex");
+        for (Mp4Track track : tracks) {
+            mBoxWriter.startFull("trex", 0, 0);
+            mBoxWriter.putInt(track.getTrackId());
+            mBoxWriter.putInt(1); // default_sample_description_index
+            mBoxWriter.putInt(0).putInt(0).putInt(0);
+            mBoxWriter.end();
+        }
+        mBoxWriter.end();
+        mBoxWriter.end();
+    }
+
+    public static long toMovieTimescale(final long duration, final Mp4Track track) {
+        return duration * MOVIE_TIMESCALE / track.getTimescale();
+    }
+
+    static int getNextTrackId(final List<Mp4Track> tracks) {
+        int trackId = 0;
+        for (Mp4Track track : tracks) {
+            trackId = Math.max(trackId, track.getTrackId());
+        }
+        return trackId + 1;
+    }
+
+    void writeMvhd(final long duration, final int nextTrackId) {
+        final boolean v1 = duration > 0xffffffffL;
+        mBoxWriter.startFull("mvhd", v1 ? 1 : 0, 0);
+        putTimes(v1);
+        mBoxWriter.putInt(MOVIE_TIMESCALE);
+        putDuration(v1, duration);
+        mBoxWriter.putInt(0x00010000); // rate 1.0
+        mBoxWriter.putShort(0x0100); // volume 1.0
+        mBoxWriter.putZeros(10);
+        mBoxWriter.putMatrix();
+        mBoxWriter.putZeros(24);
+        mBoxWriter.putInt(nextTrackId);
+        mBoxWriter.end();
+    }
+
+    /**
+     * @param timing null for a track without samples, i.e. in a fragmented file
+     */
+    void writeTrak(final Mp4Track track, final SampleTiming timing) {
+        final SampleEntry sampleEntry = track.getSampleEntry();
+        final long mediaDuration = timing == null ? 0 : timing.getMediaDuration();
+        final long mediaTime = timing == null ? 0 : timing.getMediaTime();
+        final long duration = toMovieTimescale(mediaDuration - mediaTime, track);
+        mBoxWriter.start("trak");
+
+        final boolean v1 = duration > 0xffffffffL;
+        mBoxWriter.startFull("tkhd", v1 ? 1 : 0, 3); // enabled, in movie
+        putTimes(v1);
+        mBoxWriter.putInt(track.getTrackId());
+        mBoxWriter.putInt(0);
+        putDuration(v1, duration);
+        mBoxWriter.putZeros(8);
+        mBoxWriter.putShort(0); // layer
+        mBoxWriter.putShort(0); // alternate_group
+        mBoxWriter.putShort(sampleEntry.isVideo() ? 0 : 0x0100);
+        mBoxWriter.putShort(0);
+        mBoxWriter.putMatrix();
+        if (sampleEntry instanceof VideoSampleEntry) {
+            final VideoSampleEntry videoSampleEntry = (VideoSampleEntry)sampleEntry;
+            mBoxWriter.putInt(videoSampleEntry.getWidth() << 16);
+            mBoxWriter.putInt(videoSampleEntry.getHeight() << 16);
+        } else {
+            mBoxWriter.putInt(0).putInt(0);
+        }
+        mBoxWriter.end();
+
+        if (mediaTime != 0) {
+            mBoxWriter.start("edts");
+            mBoxWriter.startFull("elst", 0, 0);
+            mBoxWriter.putInt(1);
+            mBoxWriter.putInt((int)duration);
+            mBoxWriter.putInt((int)mediaTime);
+            mBoxWriter.putInt(0x00010000);
+            mBoxWriter.end();
+            mBoxWriter.end();
+        }
+
+        mBoxWriter.start("mdia");
+        final boolean mdhdV1 = mediaDuration > 0xffffffffL;
+        mBoxWriter.startFull("mdhd", mdhdV1 ? 1 : 0, 0);
+        putTimes(mdhdV1);
+        mBoxWriter.putInt(track.getTimescale());
+        putDuration(mdhdV1, mediaDuration);
+        mBoxWriter.putShort(LANGUAGE_UNDETERMINED);
+        mBoxWriter.putShort(0);
+        mBoxWriter.end();
+
+        mBoxWriter.startFull("hdlr", 0, 0);
+        mBoxWriter.putInt(0);
+        mBoxWriter.putFourCC(sampleEntry.getHandlerType());
+        mBoxWriter.putZeros(12);
+        mBoxWriter.putString(sampleEntry.isVideo() ? "VideoHandler" : "SoundHandler");
+        mBoxWriter.end();
+
+        mBoxWriter.start("minf");
+        if (sampleEntry.isVideo()) {
+            mBoxWriter.startFull("vmhd", 0, 1);
+            mBoxWriter.putZeros(8);
+        } else {
+            mBoxWriter.startFull("smhd", 0, 0);
+            mBoxWriter.putInt(0);
+        }
+        mBoxWriter.end();
+        mBoxWriter.start("dinf");
+        mBoxWriter.startFull("dref", 0, 0);
+        mBoxWriter.putInt(1);
+        mBoxWriter.startFull("url ", 0, 1).end(); // media is in this file
+        mBoxWriter.end();
+        mBoxWriter.end();
+        writeStbl(track, timing);
+        mBoxWriter.end(); // minf
+
+        mBoxWriter.end(); // mdia
+        mBoxWriter.end(); // trak
+    }
+
+    private void writeStbl(final Mp4Track track, final SampleTiming timing) {
+        final SampleTable sampleTable = track.getSampleTable();
+        final int count = timing == null ? 0 : sampleTable.getCount();
+        mBoxWriter.start("stbl");
+
+        mBoxWriter.startFull("stsd", 0, 0);
+        mBoxWriter.putInt(1);
+        track.getSampleEntry().write(mBoxWriter);
+        mBoxWriter.end();
+
+        // Entry counts come first, so each table is scanned once to count and once to write
+        // Decode time deltas
+        mBoxWriter.startFull("stts", 0, 0);
+        mBoxWriter.putInt(putDurations(timing, count, false));
+        putDurations(timing, count, true);
+        mBoxWriter.end();
+
+        if (timing != null && timing.hasCompositionOffsets()) {
+            mBoxWriter.startFull("ctts", 0, 0);
+            mBoxWriter.putInt(putCompositionOffsets(timing, count, false));
+            putCompositionOffsets(timing, count, true);
+            mBoxWriter.end();
+        }
+
+        if (!sampleTable.isAllSync()) {
+            mBoxWriter.startFull("stss", 0, 0);
+            mBoxWriter.putInt(putSyncSamples(sampleTable, count, false));
+            putSyncSamples(sampleTable, count, true);
+            mBoxWriter.end();
+        }
+
+        mBoxWriter.startFull("stsz", 0, 0);
+        mBoxWriter.putInt(0);
+        mBoxWriter.putInt(count);
+        for (int i=0;i<count;i++) {
+            mBoxWriter.putInt(sampleTable.getSize(i));
+        }
+        mBoxWriter.end();
+
+        // A chunk is a run of samples that are contiguous in the file
+        boolean largeOffsets = false;
+        int chunks = 0;
+        for (int i=0;i<count;i++) {
+            if (isChunkStart(sampleTable, i)) {
+                chunks++;
+                largeOffsets |= sampleTable.getOffset(i) > 0xffffffffL;
+            }
+        }
+
+        mBoxWriter.startFull("stsc", 0, 0);
+        mBoxWriter.putInt(putSamplesPerChunk(sampleTable, count, false));
+        putSamplesPerChunk(sampleTable, count, true);
+        mBoxWriter.end();
+
+        mBoxWriter.startFull(largeOffsets ? "co64" : "stco", 0, 0);
+        mBoxWriter.putInt(chunks);
+        for (int i=0;i<count;i++) {
+            if (isChunkStart(sampleTable, i)) {
+                if (largeOffsets) {
+                    mBoxWriter.putLong(sampleTable.getOffset(i));
+                } else {
+                    mBoxWriter.putInt((int)sampleTable.getOffset(i));
+                }
+            }
+        }
+        mBoxWriter.end();
+
+        mBoxWriter.end(); // stbl
+    }
+
+    /**
+     * @param put false to only count the stts entries
+     * @return the number of entries
+     */
+    private int putDurations(final SampleTiming timing, final int count, final boolean put) {
+        int entries = 0;
+        for (int i=0;i<count;) {
+            final long delta = timing.getDuration(i);
+            int run = 1;
+            while (i + run < count && timing.getDuration(i + run) == delta) {
+                run++;
+            }
+            if (put) {
+                mBoxWriter.putInt(run).putInt((int)delta);
+            }
+            entries++;
+            i += run;
+        }
+        return entries;
+    }
+
+    private int putCompositionOffsets(final SampleTiming timing, final int count, final boolean put) {
+        int entries = 0;
+        for (int i=0;i<count;) {
+            final int offset = timing.getCompositionOffset(i);
+            int run = 1;
+            while (i + run < count && timing.getCompositionOffset(i + run) == offset) {
+                run++;
+            }
+            if (put) {
+                mBoxWriter.putInt(run).putInt(offset);
+            }
+            entries++;
+            i += run;
+        }
+        return entries;
+    }
+
+    private int putSyncSamples(final SampleTable sampleTable, final int count, final boolean put) {
+        int entries = 0;
+        for (int i=0;i<count;i++) {
+            if (sampleTable.isSync(i)) {
+                if (put) {
+                    mBoxWriter.putInt(i + 1);
+                }
+                entries++;
+            }
+        }
+        return entries;
+    }
+
+    private int putSamplesPerChunk(final SampleTable sampleTable, final int count, final boolean put) {
+        int entries = 0;
+        int chunk = 0;
+        int lastSamplesPerChunk = -1;
+        for (int i=0;i<count;) {
+            int samplesPerChunk = 1;
+            while (i + samplesPerChunk < count && !isChunkStart(sampleTable, i + samplesPerChunk)) {
+                samplesPerChunk++;
+            }
+            chunk++;
+            if (samplesPerChunk != lastSamplesPerChunk) {
+                if (put) {
+                    mBoxWriter.putInt(chunk).putInt(samplesPerChunk).putInt(1);
+                }
+                entries++;
+                lastSamplesPerChunk = samplesPerChunk;
+            }
+            i += samplesPerChunk;
+        }
+        return entries;
+    }
+
+    private static boolean isChunkStart(final SampleTable sampleTable, final int sample) {
+        return sample == 0 || sampleTable.getOffset(sample) !=
+                sampleTable.getOffset(sample - 1) + sampleTable.getSize(sample - 1);
+    }
+
+    private void putTimes(final boolean v1) {
+        if (v1) {
+            mBoxWriter.putLong(0).putLong(0);
+        } else {
+            mBoxWriter.putInt(0).putInt(0);
+        }
+    }
+
+    private void putDuration(final boolean v1, final long duration) {
+        if (v1) {
+            mBoxWriter.putLong(duration);
+        } else {
+            mBoxWriter.putInt((int)duration);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Joins MP4 files with the same video format into one, without re-encoding.
+ * <p>
+ * The video sample table of each file is read from its moov, and the samples are copied to a
+ * {@link SampleWriter} with their presentation times moved to follow the previous file.
+ * Each file must start with a key frame and have the same sample description (parameter sets),
+ * as the chunks of one encode on identically configured codecs do.  Other tracks are ignored.
+ */
+public class Mp4Concatenator implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int BOX_HEADER_SIZE = 8;
+    // Box header, reserved, data_reference_index and the visual sample entry fields
+    private static final int VISUAL_SAMPLE_ENTRY_SIZE = 86;
+
+    private final ArrayList<Chunk> mChunks = new ArrayList<>();
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(256 * 1024);
+    private long mDurationUs;
+    private int mSampleCount;
+    private int mChunk;
+    private int mSample;
+
+    private static class Chunk {
+        final File mFile;
+        final RandomAccessFile mRandomAccessFile;
+        final FileChannel mChannel;
+        byte[] mSampleEntry;
+        long[] mOffsets;
+        int[] mSizes;
+        long[] mPresentationTimesUs;
+        boolean[] mSync;
+        long mLastDurationUs;
+
+        Chunk(final File file) throws IOException {
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "r");
+            mChannel = mRandomAccessFile.getChannel();
+        }
+    }
+
+    /**
+     * Read a file's video sample table.  Files are joined in the order they are added.
+     * @throws IllegalArgumentException if the file has no video or it can't be joined to the previous files
+     */
+    public void addChunk(final File file) throws IOException {
+        final Chunk chunk = new Chunk(file);
+        try {
+            readVideoTrack(chunk);
+            if (chunk.mSizes.length == 0) {
+                throw new IllegalArgumentException(file + " has no video samples");
+            }
+            if (!chunk.mSync[0]) {
+                throw new IllegalArgumentException(file + " doesn't start with a key frame");
+            }
+            if (!mChunks.isEmpty() && !Arrays.equals(mChunks.get(0).mSampleEntry, chunk.mSampleEntry)) {
+                throw new IllegalArgumentException(file + " has a different sample description than " +
+                        mChunks.get(0).mFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            chunk.mRandomAccessFile.close();
+            throw e;
+        }
+        // Start where the previous chunk ends
+        long firstUs = Long.MAX_VALUE;
+        long endUs = Long.MIN_VALUE;
+        final long[] presentationTimesUs = chunk.mPresentationTimesUs;
+        for (int i = 0; i < presentationTimesUs.length; i++) {
+            firstUs = Math.min(firstUs, presentationTimesUs[i]);
+            endUs = Math.max(endUs, presentationTimesUs[i]);
+        }
+        for (int i = 0; i < presentationTimesUs.length; i++) {
+            presentationTimesUs[i] += mDurationUs - firstUs;
+        }
+        mDurationUs += endUs - firstUs + chunk.mLastDurationUs;
+        mSampleCount += presentationTimesUs.length;
+        mChunks.add(chunk);
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * Add the video track to the output, before it is started
+     */
+    public Mp4Track addTrack(final SampleWriter writer) {
+        if (mChunks.isEmpty()) {
+            throw new IllegalStateException("No chunks");
+        }
+        final Chunk last = mChunks.get(mChunks.size() - 1);
+        return writer.addTrack(new RawVideoSampleEntry(mChunks.get(0).mSampleEntry), last.mLastDurationUs);
+    }
+
+    public boolean hasNext() {
+        return mChunk < mChunks.size();
+    }
+
+    /**
+     * @return output presentation time of the next sample, i.e. to interleave audio up to it
+     */
+    public long getNextPresentationTimeUs() {
+        return mChunks.get(mChunk).mPresentationTimesUs[mSample];
+    }
+
+    /**
+     * Copy the next sample, in decode order
+     */
+    public void writeNext(final SampleWriter writer, final Mp4Track track) throws IOException {
+        final Chunk chunk = mChunks.get(mChunk);
+        final int size = chunk.mSizes[mSample];
+        if (mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocateDirect(size);
+        }
+        mBuffer.clear();
+        mBuffer.limit(size);
+        final long offset = chunk.mOffsets[mSample];
+        while (mBuffer.hasRemaining()) {
+            if (chunk.mChannel.read(mBuffer, offset + mBuffer.position()) < 0) {
+                throw new IOException("Sample " + mSample + " is past the end of " + chunk.mFile);
+            }
+        }
+        mBuffer.flip();
+        writer.writeSample(track, mBuffer, chunk.mPresentationTimesUs[mSample], chunk.mSync[mSample]);
+        if (++mSample == chunk.mSizes.length) {
+            mSample = 0;
+            mChunk++;
+        }
+    }
+
+    public void writeAll(final SampleWriter writer, final Mp4Track track) throws IOException {
+        while (hasNext()) {
+            writeNext(writer, track);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Chunk chunk : mChunks) {
+            chunk.mRandomAccessFile.close();
+        }
+    }
+
+    private static void readVideoTrack(final Chunk chunk) throws IOException {
+        final ByteBuffer moov = readMoov(chunk);
+        ByteBuffer trak;
+        while ((trak = nextBox(moov, "trak")) != null) {
+            final ByteBuffer mdia = findBox(trak, "mdia");
+            final ByteBuffer hdlr = findBox(mdia, "hdlr");
+            if (hdlr == null || !SampleEntry.HANDLER_VIDEO.equals(getFourCC(hdlr, 8))) {
+                continue;
+            }
+            readSampleTable(chunk, trak, mdia);
+            return;
+        }
+        throw new IllegalArgumentException(chunk.mFile + " has no video track");
+    }
+
+    private static ByteBuffer readMoov(final Chunk chunk) throws IOException {
+        final FileChannel channel = chunk.mChannel;
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        final long length = channel.size();
+        while (position + BOX_HEADER_SIZE <= length) {
+            header.clear();
+            readFully(channel, header, position);
+            long size = header.getInt(0) & 0xffffffffL;
+            final String type = getFourCC(header, 4);
+            int headerSize = BOX_HEADER_SIZE;
+            if (size == 1) {
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+            if (size < headerSize) {
+                break;
+            }
+            if (type.equals("moov")) {
+                final ByteBuffer moov = ByteBuffer.allocate((int)(size - headerSize));
+                readFully(channel, moov, position + headerSize);
+                moov.flip();
+                return moov;
+            }
+            position += size;
+        }
+        throw new IllegalArgumentException(chunk.mFile + " has no moov");
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer byteBuffer, final long position)
+            throws IOException {
+        final int start = byteBuffer.position();
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer, position + byteBuffer.position() - start) < 0) {
+                break;
+            }
+        }
+    }
+
+    private static void readSampleTable(final Chunk chunk, final ByteBuffer trak, final ByteBuffer mdia) {
+        final ByteBuffer mdhd = findBox(mdia, "mdhd");
+        final int timescale = mdhd.getInt(mdhd.get(0) == 1 ? 20 : 12);
+        final ByteBuffer stbl = findBox(findBox(mdia, "minf"), "stbl");
+        final long mediaTime = readMediaTime(trak);
+
+        final ByteBuffer stsd = findBox(stbl, "stsd");
+        final int entrySize = stsd.getInt(8);
+        chunk.mSampleEntry = new byte[entrySize];
+        stsd.position(8);
+        stsd.get(chunk.mSampleEntry);
+
+        // Sizes
+        final ByteBuffer stsz = findBox(stbl, "stsz");
+        final int sampleSize = stsz.getInt(4);
+        final int count = stsz.getInt(8);
+        final int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = sampleSize == 0 ? stsz.getInt(12 + i * 4) : sampleSize;
+        }
+
+        // Offsets, from the chunk offsets and the samples per chunk
+        ByteBuffer stco = findBox(stbl, "stco");
+        final boolean co64 = stco == null;
+        if (co64) {
+            stco = findBox(stbl, "co64");
+        }
+        final ByteBuffer stsc = findBox(stbl, "stsc");
+        final int stscEntries = stsc.getInt(4);
+        final int chunkCount = stco.getInt(4);
+        final long[] offsets = new long[count];
+        int sample = 0;
+        for (int entry = 0; entry < stscEntries; entry++) {
+            final int firstChunk = stsc.getInt(8 + entry * 12);
+            final int samplesPerChunk = stsc.getInt(12 + entry * 12);
+            final int endChunk = entry + 1 < stscEntries ? stsc.getInt(8 + (entry + 1) * 12) : chunkCount + 1;
+            for (int c = firstChunk; c < endChunk; c++) {
+                long offset = co64 ? stco.getLong(8 + (c - 1) * 8) : stco.getInt(8 + (c - 1) * 4) & 0xffffffffL;
+                for (int s = 0; s < samplesPerChunk && sample < count; s++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+        }
+
+        // Decode times plus composition offsets, less the edit list shift
+        final long[] times = new long[count];
+        final ByteBuffer stts = findBox(stbl, "stts");
+        final int sttsEntries = stts.getInt(4);
+        long decodeTime = 0;
+        long lastDelta = 0;
+        sample = 0;
+        for (int entry = 0; entry < sttsEntries; entry++) {
+            final int run = stts.getInt(8 + entry * 8);
+            lastDelta = stts.getInt(12 + entry * 8) & 0xffffffffL;
+            for (int i = 0; i < run && sample < count; i++) {
+                times[sample++] = decodeTime;
+                decodeTime += lastDelta;
+            }
+        }
+        final ByteBuffer ctts = findBox(stbl, "ctts");
+        if (ctts != null) {
+            final int cttsEntries = ctts.getInt(4);
+            sample = 0;
+            for (int entry = 0; entry < cttsEntries; entry++) {
+                final int run = ctts.getInt(8 + entry * 8);
+                final int offset = ctts.getInt(12 + entry * 8);
+                for (int i = 0; i < run && sample < count; i++) {
+                    times[sample++] += offset;
+                }
+            }
+        }
+        final long[] presentationTimesUs = new long[count];
+        for (int i = 0; i < count; i++) {
+            presentationTimesUs[i] = toUs(times[i] - mediaTime, timescale);
+        }
+
+        final boolean[] sync = new boolean[count];
+        final ByteBuffer stss = findBox(stbl, "stss");
+        if (stss == null) {
+            Arrays.fill(sync, true);
+        } else {
+            final int syncCount = stss.getInt(4);
+            for (int i = 0; i < syncCount; i++) {
+                final int number = stss.getInt(8 + i * 4);
+                if (number >= 1 && number <= count) {
+                    sync[number - 1] = true;
+                }
+            }
+        }
+
+        chunk.mOffsets = offsets;
+        chunk.mSizes = sizes;
+        chunk.mPresentationTimesUs = presentationTimesUs;
+        chunk.mSync = sync;
+        chunk.mLastDurationUs = toUs(lastDelta, timescale);
+    }
+
+    /**
+     * @return the media time of the first edit, 0 if there is none
+     */
+    private static long readMediaTime(final ByteBuffer trak) {
+        final ByteBuffer edts = findBox(trak, "edts");
+        final ByteBuffer elst = edts == null ? null : findBox(edts, "elst");
+        if (elst == null) {
+            return 0;
+        }
+        final boolean v1 = elst.get(0) == 1;
+        final int entries = elst.getInt(4);
+        final int entrySize = v1 ? 20 : 12;
+        for (int i = 0; i < entries; i++) {
+            final int position = 8 + i * entrySize;
+            final long mediaTime = v1 ? elst.getLong(position + 8) : elst.getInt(position + 4);
+            // -1 is an empty edit
+            if (mediaTime >= 0) {
+                return mediaTime;
+            }
+        }
+        return 0;
+    }
+
+    private static long toUs(final long time, final int timescale) {
+        return Math.round(time * 1000000.0 / timescale);
+    }
+
+    /**
+     * @return the payload of the first child box of this type, or null
+     */
+    private static ByteBuffer findBox(final ByteBuffer parent, final String type) {
+        if (parent == null) {
+            return null;
+        }
+        final ByteBuffer byteBuffer = parent.duplicate();
+        byteBuffer.position(0);
+        return nextBox(byteBuffer, type);
+    }
+
+    /**
+     * Advance to the next child box of this type
+     * @return its payload, or null if there are no more
+     */
+    private static ByteBuffer nextBox(final ByteBuffer parent, final String type) {
+        while (parent.remaining() >= BOX_HEADER_SIZE) {
+            final int start = parent.position();
+            long size = parent.getInt(start) & 0xffffffffL;
+            int headerSize = BOX_HEADER_SIZE;
+            if (size == 1) {
+                size = parent.getLong(start + BOX_HEADER_SIZE);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = parent.remaining();
+            }
+            if (size < headerSize || size > parent.remaining()) {
+                throw new IllegalArgumentException("Bad " + getFourCC(parent, start + 4) + " box");
+            }
+            parent.position((int)(start + size));
+            if (getFourCC(parent, start + 4).equals(type)) {
+                final ByteBuffer payload = parent.duplicate();
+                payload.position(start + headerSize).limit((int)(start + size));
+                return payload.slice();
+            }
+        }
+        return null;
+    }
+
+    private static String getFourCC(final ByteBuffer byteBuffer, final int position) {
+        final byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = byteBuffer.get(position + i);
+        }
+        return new String(bytes, ASCII);
+    }
+
+    /**
+     * The sample entry box of the source files, written as is
+     */
+    private static class RawVideoSampleEntry extends VideoSampleEntry {
+        private final byte[] mBox;
+
+        RawVideoSampleEntry(final byte[] box) {
+            super(getShort(box, 32), getShort(box, 34));
+            mBox = box;
+        }
+
+        private static int getShort(final byte[] bytes, final int position) {
+            return ((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff);
+        }
+
+        @Override
+        protected String getType() {
+            return new String(mBox, 4, 4, ASCII);
+        }
+
+        @Override
+        protected void writeDecoderConfig(final BoxSink boxWriter) {
+        }
+
+        @Override
+        public void write(final BoxSink boxWriter) {
+            boxWriter.put(mBox);
+        }
+
+        /**
+         * Only AVC has the profile and level, otherwise just the sample entry type
+         */
+        @Override
+        public String getCodecs() {
+            final ByteBuffer entry = ByteBuffer.wrap(mBox);
+            entry.position(Math.min(VISUAL_SAMPLE_ENTRY_SIZE, mBox.length));
+            final ByteBuffer avcC = nextBox(entry.slice(), "avcC");
+            if (avcC != null && avcC.remaining() >= 4) {
+                return String.format(Locale.US, "%s.%02x%02x%02x", getType(), avcC.get(1) & 0xff,
+                        avcC.get(2) & 0xff, avcC.get(3) & 0xff);
+            }
+            return getType();
+        }
+    }
+}
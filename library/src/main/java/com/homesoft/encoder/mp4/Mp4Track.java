@@ -0,0 +1,63 @@
+package com.homesoft.encoder.mp4;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class Mp4Track {
+    private final int mTrackId;
+    private final SampleEntry mSampleEntry;
+    private final SampleTable mSampleTable;
+    private final long mDefaultSampleDurationUs;
+
+    /**
+     * @param defaultSampleDurationUs duration of the last sample, which can't be derived from the timestamps
+     */
+    public Mp4Track(final int trackId, final SampleEntry sampleEntry, final long defaultSampleDurationUs) {
+        this(trackId, sampleEntry, defaultSampleDurationUs, new SampleTable());
+    }
+
+    public Mp4Track(final int trackId, final SampleEntry sampleEntry, final long defaultSampleDurationUs,
+                    final SampleTable sampleTable) {
+        mTrackId = trackId;
+        mSampleTable = sampleTable;
+        mSampleEntry = sampleEntry;
+        mDefaultSampleDurationUs = defaultSampleDurationUs;
+    }
+
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    public SampleEntry getSampleEntry() {
+        return mSampleEntry;
+    }
+
+    public SampleTable getSampleTable() {
+        return mSampleTable;
+    }
+
+    public long getDefaultSampleDurationUs() {
+        return mDefaultSampleDurationUs;
+    }
+
+    public int getTimescale() {
+        return mSampleEntry.getTimescale();
+    }
+
+    public long toTimescale(final long us) {
+        return Math.round(us * (double)getTimescale() / 1000000.0);
+    }
+}
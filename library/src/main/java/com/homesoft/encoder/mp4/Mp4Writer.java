@@ -0,0 +1,410 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes a progressive MP4 file: ftyp, mdat, then moov once all samples are known.
+ * <p>
+ * The mdat header is written up front with a 64 bit size so the payload never has to move.
+ * Small samples are coalesced in a direct buffer so the file sees large sequential writes.
+ * <p>
+ * For faststart (moov before mdat) space can be reserved after the ftyp, see {@link #setMoovReserve(int)}.
+ * <p>
+ * Until the moov is written the file is unplayable, so long recordings can keep a journal of the
+ * sample index to recover from a crash, see {@link #openJournaled(File, File, long)}.
+ */
+public class Mp4Writer implements SampleWriter {
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final int MDAT_HEADER_SIZE = 16;
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int MOOV_BASE_SIZE = 4096;
+    private static final int MOOV_BYTES_PER_VIDEO_SAMPLE = 32;
+    private static final int MOOV_BYTES_PER_AUDIO_SAMPLE = 16;
+    private static final int MOOV_BUFFER_SIZE = 64 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ArrayList<Mp4Track> mTracks = new ArrayList<>();
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+    private File mSpillDirectory;
+    private int mMemorySamples = SampleTable.DEFAULT_MEMORY_SAMPLES;
+    private long mMdatStart = -1;
+    private long mPosition;
+    private int mMoovReserve;
+    private long mReserveStart;
+    private boolean mFaststart;
+    private boolean mClosed;
+
+    private File mJournalFile;
+    private CheckpointJournal mJournal;
+    // Set while the tracks recovered from the journal are being added again
+    private CheckpointJournal mRecovery;
+    private long mCheckpointIntervalUs;
+    private long mLastCheckpointUs;
+    private long mResumePtsUs = -1;
+
+    public Mp4Writer(final File file) throws IOException {
+        this(file, true);
+    }
+
+    private Mp4Writer(final File file, final boolean truncate) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        if (truncate) {
+            mFile.setLength(0);
+        }
+        mChannel = mFile.getChannel();
+        // The output's volume has room for the file, so it has room for its sample tables
+        mSpillDirectory = file.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Open the file with a journal of its sample index, updated at the first video key frame after
+     * each checkpointIntervalUs.  A crash loses at most the media since the last checkpoint.
+     * <p>
+     * If the journal has a checkpoint from a run that didn't finish, the file is cut back to it.
+     * Add the same tracks and {@link #start()} to continue writing from
+     * {@link #getResumePresentationTimeUs()}, or just {@link #finish()} to keep what was recovered.
+     * Otherwise the file is written from scratch.  The journal is deleted once the file is finished.
+     */
+    public static Mp4Writer openJournaled(final File file, final File journal, final long checkpointIntervalUs)
+            throws IOException {
+        final Mp4Writer writer;
+        final CheckpointJournal recovery = file.isFile() ? CheckpointJournal.open(journal,
+                SampleTable.DEFAULT_MEMORY_SAMPLES, file.getAbsoluteFile().getParentFile()) : null;
+        if (recovery == null) {
+            writer = new Mp4Writer(file);
+        } else if (file.length() < recovery.getDataEnd()) {
+            // The samples the journal lists aren't all there, i.e. the file was replaced
+            recovery.close();
+            writer = new Mp4Writer(file);
+        } else {
+            writer = new Mp4Writer(file, false);
+            writer.recover(recovery);
+        }
+        writer.mJournalFile = journal;
+        writer.mCheckpointIntervalUs = checkpointIntervalUs;
+        return writer;
+    }
+
+    private void recover(final CheckpointJournal recovery) throws IOException {
+        mRecovery = recovery;
+        // Drop the samples after the checkpoint and anything a failed finish() left behind
+        mChannel.truncate(recovery.getDataEnd());
+        if (recovery.getMoovReserve() > 0) {
+            writeFree(recovery.getReserveStart(), recovery.getMoovReserve());
+        }
+        mResumePtsUs = recovery.getResumePtsUs();
+    }
+
+    /**
+     * @return the presentation time of the video key frame to continue from, after recovering from
+     * the journal.  -1 if nothing was recovered.
+     */
+    public long getResumePresentationTimeUs() {
+        return mResumePtsUs;
+    }
+
+    /**
+     * Bound the heap used by the sample tables of very long recordings, see {@link SampleTable}
+     * @param memorySamples samples per track to keep on the heap before spilling to disk
+     * @param directory where to create the temp files, defaults to the output file's directory
+     */
+    public void setSampleTableSpill(final int memorySamples, final File directory) {
+        if (!mTracks.isEmpty()) {
+            throw new IllegalStateException("Tracks already added");
+        }
+        mMemorySamples = memorySamples;
+        mSpillDirectory = directory;
+    }
+
+    /**
+     * Reserve space between the ftyp and mdat so the moov can be written at the front of the file,
+     * as needed for progressive playback over HTTP.  If the moov turns out to be too large it is
+     * appended to the end of the file as usual.
+     * @param bytes space to reserve, see {@link #estimateMoovSize(long, long)}
+     */
+    public void setMoovReserve(final int bytes) {
+        if (isStarted()) {
+            throw new IllegalStateException("Already started");
+        }
+        mMoovReserve = bytes;
+    }
+
+    /**
+     * Generous estimate of the moov size
+     */
+    public static int estimateMoovSize(final long videoSamples, final long audioSamples) {
+        return (int)Math.min(Integer.MAX_VALUE, MOOV_BASE_SIZE + videoSamples * MOOV_BYTES_PER_VIDEO_SAMPLE +
+                audioSamples * MOOV_BYTES_PER_AUDIO_SAMPLE);
+    }
+
+    @Override
+    public Mp4Track addTrack(final SampleEntry sampleEntry, final long defaultSampleDurationUs) {
+        if (isStarted()) {
+            throw new IllegalStateException("Already started");
+        }
+        if (mRecovery != null) {
+            return addRecoveredTrack(sampleEntry);
+        }
+        final Mp4Track track = new Mp4Track(mTracks.size() + 1, sampleEntry, defaultSampleDurationUs,
+                new SampleTable(mMemorySamples, mSpillDirectory));
+        mTracks.add(track);
+        return track;
+    }
+
+    private Mp4Track addRecoveredTrack(final SampleEntry sampleEntry) {
+        final List<Mp4Track> recovered = mRecovery.getTracks();
+        final int index = mTracks.size();
+        if (index >= recovered.size() ||
+                !StoredSampleEntry.matches(recovered.get(index).getSampleEntry(), sampleEntry)) {
+            throw new IllegalStateException("Track " + (index + 1) + " doesn't match the journal");
+        }
+        final Mp4Track track = recovered.get(index);
+        mTracks.add(track);
+        return track;
+    }
+
+    @Override
+    public List<Mp4Track> getTracks() {
+        return Collections.unmodifiableList(mTracks);
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mMdatStart >= 0;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (mRecovery != null) {
+            resume();
+            return;
+        }
+        final BoxWriter boxWriter = new BoxWriter(64);
+        writeFtyp(boxWriter);
+        boxWriter.writeTo(mChannel);
+        mPosition = mChannel.position();
+
+        if (mMoovReserve > 0) {
+            mReserveStart = mPosition;
+            writeFree(mReserveStart, mMoovReserve);
+            mPosition += mMoovReserve;
+            mChannel.position(mPosition);
+        }
+
+        mMdatStart = mPosition;
+        mWriteBuffer.putInt(1); // size is in largesize
+        mWriteBuffer.put((byte)'m').put((byte)'d').put((byte)'a').put((byte)'t');
+        mWriteBuffer.putLong(0);
+        mPosition += MDAT_HEADER_SIZE;
+
+        if (mJournalFile != null) {
+            mJournal = CheckpointJournal.create(mJournalFile);
+            mJournal.writeStart(mMdatStart, mReserveStart, mMoovReserve, mTracks);
+        }
+    }
+
+    /**
+     * Continue after the last checkpoint, with the journal's tracks and layout
+     */
+    private void resume() throws IOException {
+        if (mTracks.size() != mRecovery.getTracks().size()) {
+            throw new IllegalStateException("The journal has " + mRecovery.getTracks().size() + " tracks");
+        }
+        mMoovReserve = mRecovery.getMoovReserve();
+        mReserveStart = mRecovery.getReserveStart();
+        mMdatStart = mRecovery.getMdatStart();
+        mPosition = mRecovery.getDataEnd();
+        mChannel.position(mPosition);
+        mLastCheckpointUs = mResumePtsUs;
+        mJournal = mRecovery;
+        mRecovery = null;
+    }
+
+    static void writeFtyp(final BoxWriter boxWriter) {
+        boxWriter.start("ftyp");
+        boxWriter.putFourCC("isom");
+        boxWriter.putInt(0x200);
+        boxWriter.putFourCC("isom").putFourCC("iso2").putFourCC("avc1").putFourCC("mp41");
+        boxWriter.end();
+    }
+
+    /**
+     * Append a sample to the mdat
+     */
+    @Override
+    public void writeSample(final Mp4Track track, final ByteBuffer sample, final long presentationTimeUs,
+                            final boolean sync) throws IOException {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        final int size = sample.remaining();
+        if (mJournal != null && sync && track.getSampleEntry().isVideo() &&
+                presentationTimeUs - mLastCheckpointUs >= mCheckpointIntervalUs) {
+            checkpoint(presentationTimeUs);
+        }
+        track.getSampleTable().add(mPosition, size, presentationTimeUs, sync);
+        if (size > mWriteBuffer.remaining()) {
+            flush();
+            if (size > mWriteBuffer.capacity() / 2) {
+                // Large sample, skip the extra copy
+                writeFully(sample);
+                mPosition += size;
+                return;
+            }
+        }
+        mWriteBuffer.put(sample);
+        mPosition += size;
+    }
+
+    /**
+     * Make the samples so far durable and journal them, just before a key frame
+     */
+    private void checkpoint(final long keyFramePtsUs) throws IOException {
+        flush();
+        mChannel.force(false);
+        mJournal.writeCheckpoint(mPosition, keyFramePtsUs, mTracks);
+        mLastCheckpointUs = keyFramePtsUs;
+    }
+
+    /**
+     * @return bytes written to the file so far, including buffered bytes
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    public void flush() throws IOException {
+        mWriteBuffer.flip();
+        writeFully(mWriteBuffer);
+        mWriteBuffer.clear();
+    }
+
+    private void writeFully(final ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            mChannel.write(byteBuffer);
+        }
+    }
+
+    /**
+     * Patch the mdat size, write the moov and close the file
+     */
+    @Override
+    public void finish() throws IOException {
+        if (mRecovery != null) {
+            // Keep what was recovered without adding anything
+            mTracks.clear();
+            mTracks.addAll(mRecovery.getTracks());
+            resume();
+        }
+        if (!isStarted()) {
+            close();
+            return;
+        }
+        flush();
+        final ByteBuffer mdatSize = ByteBuffer.allocate(8);
+        mdatSize.putLong(0, mPosition - mMdatStart);
+        mChannel.write(mdatSize, mMdatStart + 8);
+
+        // The moov is measured, then streamed to the file, so its sample tables never sit in the heap
+        final SampleTiming[] timings = MovieBoxWriter.createTimings(mTracks);
+        try {
+            final ChannelBoxWriter measure = ChannelBoxWriter.measure(MOOV_BUFFER_SIZE);
+            new MovieBoxWriter(measure).write(mTracks, timings);
+            final long moovSize = measure.getPosition();
+            // The rest of the reserve must fit a free box header
+            final boolean faststart = moovSize == mMoovReserve || moovSize + BOX_HEADER_SIZE <= mMoovReserve;
+            mChannel.position(faststart ? mReserveStart : mPosition);
+            final ChannelBoxWriter boxWriter = measure.replay(mChannel);
+            new MovieBoxWriter(boxWriter).write(mTracks, timings);
+            boxWriter.flush();
+            if (faststart && moovSize < mMoovReserve) {
+                writeFree(mReserveStart + moovSize, mMoovReserve - (int)moovSize);
+            }
+            mFaststart = faststart;
+        } finally {
+            MovieBoxWriter.release(timings);
+        }
+        try {
+            if (mJournal != null) {
+                // The journal is the only way back until the moov is on disk
+                mChannel.force(true);
+                mJournal.delete();
+                mJournal = null;
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * @return true if the moov was written to the reserved space, only valid after {@link #finish()}
+     */
+    public boolean isFaststart() {
+        return mFaststart;
+    }
+
+    /**
+     * Fill the space with a free box.  The payload is left as is, the OS fills new space with zeros.
+     */
+    private void writeFree(final long position, final int size) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(BOX_HEADER_SIZE);
+        header.putInt(size);
+        header.put((byte)'f').put((byte)'r').put((byte)'e').put((byte)'e');
+        header.flip();
+        while (header.hasRemaining()) {
+            mChannel.write(header, position + header.position());
+        }
+    }
+
+    /**
+     * Close the file.  Unless {@link #finish()} was called first, any journal is kept for recovery.
+     * Safe to call again, i.e. after {@link #finish()}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (Mp4Track track : mTracks) {
+            track.getSampleTable().release();
+        }
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+        if (mRecovery != null) {
+            for (Mp4Track track : mRecovery.getTracks()) {
+                track.getSampleTable().release();
+            }
+            mRecovery.close();
+            mRecovery = null;
+        }
+        mFile.close();
+    }
+}
@@ -0,0 +1,191 @@
+package com.homesoft.encoder.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Helpers for H.264/H.265 NAL units.
+ * MediaCodec emits Annex-B (start code delimited) NALs, MP4 wants them length prefixed.
+ */
+public class NalUnits {
+    private ByteBuffer mScratch;
+
+    /**
+     * @return the offset of the next 3 byte start code (00 00 01) at or after from, or -1
+     */
+    public static int findStartCode(final ByteBuffer byteBuffer, int from, final int limit) {
+        for (;from + 2 < limit; from++) {
+            if (byteBuffer.get(from) == 0 && byteBuffer.get(from + 1) == 0 && byteBuffer.get(from + 2) == 1) {
+                return from;
+            }
+        }
+        return -1;
+    }
+
+    public static boolean isAnnexB(final ByteBuffer byteBuffer) {
+        final int p = byteBuffer.position();
+        if (byteBuffer.remaining() < 4 || byteBuffer.get(p) != 0 || byteBuffer.get(p + 1) != 0) {
+            return false;
+        }
+        return byteBuffer.get(p + 2) == 1 || (byteBuffer.get(p + 2) == 0 && byteBuffer.get(p + 3) == 1);
+    }
+
+    /**
+     * Split Annex-B data (i.e. csd-0) into NAL units without start codes
+     */
+    public static List<byte[]> split(final ByteBuffer annexB) {
+        final ArrayList<byte[]> list = new ArrayList<>();
+        final int limit = annexB.limit();
+        int start = findStartCode(annexB, annexB.position(), limit);
+        while (start >= 0) {
+            final int nalStart = start + 3;
+            int next = findStartCode(annexB, nalStart, limit);
+            int nalEnd = next < 0 ? limit : next;
+            // A 4 byte start code leaves a zero behind, as would trailing_zero_8bits
+            while (nalEnd > nalStart && annexB.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            final byte[] nal = new byte[nalEnd - nalStart];
+            for (int i=0;i<nal.length;i++) {
+                nal[i] = annexB.get(nalStart + i);
+            }
+            list.add(nal);
+            start = next;
+        }
+        return list;
+    }
+
+    /**
+     * Remove emulation prevention bytes (00 00 03 -> 00 00) so the payload can be parsed
+     */
+    public static byte[] unescape(final byte[] nal) {
+        final byte[] rbsp = new byte[nal.length];
+        int zeros = 0;
+        int length = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            rbsp[length++] = b;
+        }
+        final byte[] result = new byte[length];
+        System.arraycopy(rbsp, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Convert an Annex-B access unit to 4 byte length prefixed NALs.
+     * When the buffer is writable and every start code is 4 bytes the conversion is done in place.
+     * Otherwise the result is copied to a scratch buffer owned by this instance.
+     * MediaCodec output buffers are read only on API 21+, so expect the copy.
+     * @return a buffer with position and limit set to the converted data
+     */
+    public ByteBuffer toLengthPrefixed(final ByteBuffer annexB) {
+        final int position = annexB.position();
+        final int limit = annexB.limit();
+        if (!isAnnexB(annexB)) {
+            return annexB;
+        }
+        if (!annexB.isReadOnly() && isFourByteStartCodes(annexB, position, limit)) {
+            int start = position;
+            while (start >= 0) {
+                int next = findStartCode(annexB, start + 4, limit);
+                // Back up to the 4 byte start code
+                final int end = next < 0 ? limit : next - 1;
+                annexB.putInt(start, end - start - 4);
+                start = next < 0 ? -1 : next - 1;
+            }
+            return annexB;
+        }
+        final int capacity = annexB.remaining() * 4 / 3 + 16;
+        if (mScratch == null || mScratch.capacity() < capacity) {
+            mScratch = ByteBuffer.allocateDirect(capacity);
+        }
+        mScratch.clear();
+        int start = findStartCode(annexB, position, limit);
+        while (start >= 0) {
+            final int nalStart = start + 3;
+            int next = findStartCode(annexB, nalStart, limit);
+            int nalEnd = next < 0 ? limit : next;
+            while (nalEnd > nalStart && annexB.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            mScratch.putInt(nalEnd - nalStart);
+            final ByteBuffer nal = annexB.duplicate();
+            nal.limit(nalEnd).position(nalStart);
+            mScratch.put(nal);
+            start = next;
+        }
+        mScratch.flip();
+        return mScratch;
+    }
+
+    private static boolean isFourByteStartCodes(final ByteBuffer byteBuffer, final int position, final int limit) {
+        int start = findStartCode(byteBuffer, position, limit);
+        while (start >= 0) {
+            if (start == position || byteBuffer.get(start - 1) != 0) {
+                return false;
+            }
+            start = findStartCode(byteBuffer, start + 3, limit);
+        }
+        return true;
+    }
+
+    /**
+     * Reads Exp-Golomb coded fields from an unescaped NAL payload
+     */
+    public static class BitReader {
+        private final byte[] mData;
+        private int mBit;
+
+        public BitReader(final byte[] data, final int byteOffset) {
+            mData = data;
+            mBit = byteOffset * 8;
+        }
+
+        public int readBit() {
+            final int value = (mData[mBit >> 3] >> (7 - (mBit & 7))) & 1;
+            mBit++;
+            return value;
+        }
+
+        public int readBits(int count) {
+            int value = 0;
+            while (count-- > 0) {
+                value = (value << 1) | readBit();
+            }
+            return value;
+        }
+
+        public void skipBits(final int count) {
+            mBit += count;
+        }
+
+        public int readUE() {
+            int zeros = 0;
+            while (readBit() == 0) {
+                zeros++;
+            }
+            return (1 << zeros) - 1 + readBits(zeros);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.homesoft.encoder.mp4;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Describes the coded samples of a track (the single entry of its stsd box)
+ */
+public abstract class SampleEntry {
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_SOUND = "soun";
+
+    public abstract String getHandlerType();
+
+    /**
+     * @return ticks per second for the track's media timeline
+     */
+    public abstract int getTimescale();
+
+    /**
+     * Write the sample entry box (i.e. avc1, hvc1, mp4a)
+     */
+    public abstract void write(final BoxSink boxWriter);
+
+    /**
+     * @return RFC 6381 codecs parameter, i.e. "avc1.64001f", for playlists and manifests
+     */
+    public abstract String getCodecs();
+
+    public boolean isVideo() {
+        return HANDLER_VIDEO.equals(getHandlerType());
+    }
+}
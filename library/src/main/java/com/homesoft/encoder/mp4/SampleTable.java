@@ -0,0 +1,135 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Per sample file offset, size, presentation time and sync flag, in decode order.
+ * <p>
+ * Samples are packed into fixed size chunks of primitive records, so nothing is boxed and nothing
+ * is copied as the table grows.  Past {@link #DEFAULT_MEMORY_SAMPLES} (about 5MB) the chunks are
+ * memory-mapped from a temp file, keeping the heap flat for recordings of any length.
+ */
+public class SampleTable {
+    /**
+     * Over 2 hours of 30fps video
+     */
+    public static final int DEFAULT_MEMORY_SAMPLES = 1 << 18;
+
+    // offset, presentation time, size with the sync flag in the top bit
+    private static final int RECORD_SIZE = 20;
+    private static final int PTS_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int SYNC_FLAG = 0x80000000;
+
+    private final int mMemorySamples;
+    private final File mSpillDirectory;
+    private final SpillableRecords mRecords;
+    private int mCount;
+    private boolean mAllSync = true;
+
+    public SampleTable() {
+        this(DEFAULT_MEMORY_SAMPLES, null);
+    }
+
+    /**
+     * @param memorySamples samples to keep on the heap before spilling to disk
+     * @param spillDirectory where to create the temp file, null for java.io.tmpdir
+     */
+    public SampleTable(final int memorySamples, final File spillDirectory) {
+        mMemorySamples = memorySamples;
+        mSpillDirectory = spillDirectory;
+        mRecords = new SpillableRecords(RECORD_SIZE, memorySamples, spillDirectory);
+    }
+
+    /**
+     * @throws IOException if the table had to spill and the temp file couldn't be mapped
+     */
+    public void add(final long offset, final int size, final long presentationTimeUs, final boolean sync)
+            throws IOException {
+        mRecords.ensureCapacity(mCount + 1);
+        final ByteBuffer chunk = mRecords.getChunk(mCount);
+        final int position = mRecords.getPosition(mCount);
+        chunk.putLong(position, offset);
+        chunk.putLong(position + PTS_OFFSET, presentationTimeUs);
+        chunk.putInt(position + SIZE_OFFSET, sync ? size | SYNC_FLAG : size);
+        mAllSync &= sync;
+        mCount++;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getOffset(final int sample) {
+        return mRecords.getChunk(sample).getLong(mRecords.getPosition(sample));
+    }
+
+    public int getSize(final int sample) {
+        return getSizeAndSync(sample) & ~SYNC_FLAG;
+    }
+
+    public long getPresentationTimeUs(final int sample) {
+        return mRecords.getChunk(sample).getLong(mRecords.getPosition(sample) + PTS_OFFSET);
+    }
+
+    public boolean isSync(final int sample) {
+        return (getSizeAndSync(sample) & SYNC_FLAG) != 0;
+    }
+
+    private int getSizeAndSync(final int sample) {
+        return mRecords.getChunk(sample).getInt(mRecords.getPosition(sample) + SIZE_OFFSET);
+    }
+
+    public boolean isAllSync() {
+        return mAllSync;
+    }
+
+    /**
+     * @return samples held in the memory-mapped temp file rather than on the heap
+     */
+    public long getSpilledCount() {
+        return Math.max(0, mCount - mRecords.getMemoryCapacity());
+    }
+
+    int getMemorySamples() {
+        return mMemorySamples;
+    }
+
+    File getSpillDirectory() {
+        return mSpillDirectory;
+    }
+
+    /**
+     * Remove the samples, keeping the chunks for reuse
+     */
+    public void clear() {
+        mCount = 0;
+        mAllSync = true;
+    }
+
+    /**
+     * Remove the samples and free the chunks, deleting the temp file if there is one
+     */
+    public void release() {
+        clear();
+        mRecords.release();
+    }
+}
@@ -0,0 +1,208 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.IOException;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Derives decode times and composition offsets for a track from its presentation times.
+ * <p>
+ * Samples are stored in decode order.  If the encoder reordered frames (B-frames) the
+ * presentation times are not monotonic, so decode times are taken from the sorted presentation
+ * times, shifted back far enough that no sample is decoded after it is presented.
+ * The shift is reported as the edit list media time.
+ * <p>
+ * Reordering only reaches a few frames, so the sort streams through a small heap instead of
+ * copying every timestamp, and the sorted times spill to disk like the {@link SampleTable}.
+ * Without reordering nothing is stored at all.
+ */
+public class SampleTiming {
+    private static final int INITIAL_REORDER_WINDOW = 32;
+
+    private final Mp4Track mTrack;
+    private final SampleTable mSampleTable;
+    private final int mCount;
+    // Sorted presentation times in the track timescale, null if already in order
+    private final SpillableRecords mSortedTimes;
+    private final long mLastDuration;
+    private final long mMediaTime;
+
+    public SampleTiming(final Mp4Track track) {
+        mTrack = track;
+        mSampleTable = track.getSampleTable();
+        mCount = mSampleTable.getCount();
+        mLastDuration = track.toTimescale(track.getDefaultSampleDurationUs());
+
+        boolean ordered = true;
+        for (int i=1;i<mCount && ordered;i++) {
+            ordered = mSampleTable.getPresentationTimeUs(i) >= mSampleTable.getPresentationTimeUs(i - 1);
+        }
+        if (ordered) {
+            mSortedTimes = null;
+            mMediaTime = 0;
+            return;
+        }
+        mSortedTimes = new SpillableRecords(8, mSampleTable.getMemorySamples(),
+                mSampleTable.getSpillDirectory());
+        try {
+            long shift;
+            int window = INITIAL_REORDER_WINDOW;
+            // A window too small for the reordering is detected and retried, ending in a full heap sort
+            while ((shift = sort(window)) < 0) {
+                window = (int)Math.min(mCount, window * 4L);
+            }
+            mMediaTime = shift;
+        } catch (IOException e) {
+            mSortedTimes.release();
+            throw new RuntimeException("Unable to spill the sorted sample times", e);
+        }
+    }
+
+    private long getPresentationTime(final int sample) {
+        return mTrack.toTimescale(mSampleTable.getPresentationTimeUs(sample));
+    }
+
+    /**
+     * Sort the presentation times into {@link #mSortedTimes} through a min-heap of window entries
+     * @return the decode time shift, or -1 if a sample was reordered further than the window
+     */
+    private long sort(final int window) throws IOException {
+        mSortedTimes.ensureCapacity(mCount);
+        final long[] heap = new long[window];
+        // The times of the samples in the heap by decode order, they are never more than a window back
+        final long[] recent = new long[window];
+        int heapSize = 0;
+        int sorted = 0;
+        long shift = 0;
+        long last = Long.MIN_VALUE;
+        for (int i=0;i<mCount || heapSize > 0;) {
+            if (i < mCount && heapSize < window) {
+                final long time = getPresentationTime(i);
+                recent[i % window] = time;
+                siftUp(heap, heapSize++, time);
+                i++;
+                continue;
+            }
+            final long min = heap[0];
+            if (min < last) {
+                return -1;
+            }
+            last = min;
+            siftDown(heap, --heapSize, heap[heapSize]);
+            putSortedTime(sorted, min);
+            shift = Math.max(shift, min - recent[sorted % window]);
+            sorted++;
+        }
+        return shift;
+    }
+
+    private static void siftUp(final long[] heap, int index, final long value) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+    }
+
+    /**
+     * Put value at the root of a heap of size entries and restore the order
+     */
+    private static void siftDown(final long[] heap, final int size, final long value) {
+        int index = 0;
+        int child;
+        while ((child = index * 2 + 1) < size) {
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (value <= heap[child]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+
+    private void putSortedTime(final int sample, final long time) {
+        mSortedTimes.getChunk(sample).putLong(mSortedTimes.getPosition(sample), time);
+    }
+
+    private long getSortedTime(final int sample) {
+        if (mSortedTimes == null) {
+            return getPresentationTime(sample);
+        }
+        return mSortedTimes.getChunk(sample).getLong(mSortedTimes.getPosition(sample));
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the sample's duration in the track timescale
+     */
+    public long getDuration(final int sample) {
+        if (sample + 1 < mCount) {
+            return getSortedTime(sample + 1) - getSortedTime(sample);
+        }
+        return mLastDuration;
+    }
+
+    /**
+     * @return true if there are composition offsets (a ctts box is needed)
+     */
+    public boolean hasCompositionOffsets() {
+        return mMediaTime > 0;
+    }
+
+    public int getCompositionOffset(final int sample) {
+        if (mMediaTime == 0) {
+            return 0;
+        }
+        return (int)(getPresentationTime(sample) - getSortedTime(sample) + mMediaTime);
+    }
+
+    /**
+     * @return the media time that should be presented first, in the track timescale
+     */
+    public long getMediaTime() {
+        return mMediaTime;
+    }
+
+    /**
+     * @return sum of the sample durations in the track timescale
+     */
+    public long getMediaDuration() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return getSortedTime(mCount - 1) - getSortedTime(0) + mLastDuration;
+    }
+
+    /**
+     * Free the sorted times, deleting their temp file if there is one
+     */
+    public void release() {
+        if (mSortedTimes != null) {
+            mSortedTimes.release();
+        }
+    }
+}
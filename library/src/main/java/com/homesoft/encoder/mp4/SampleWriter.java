@@ -0,0 +1,47 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Destination for encoded samples, i.e. a progressive or fragmented MP4 file
+ */
+public interface SampleWriter extends Closeable {
+    /**
+     * Tracks must be added before {@link #start()}
+     * @param defaultSampleDurationUs duration of a sample whose successor is unknown, i.e. the last one
+     */
+    Mp4Track addTrack(final SampleEntry sampleEntry, final long defaultSampleDurationUs);
+    List<Mp4Track> getTracks();
+    boolean isStarted();
+    void start() throws IOException;
+
+    /**
+     * @param sample the bytes from position to limit are written, position is advanced
+     */
+    void writeSample(final Mp4Track track, final ByteBuffer sample, final long presentationTimeUs,
+                     final boolean sync) throws IOException;
+
+    /**
+     * Write any pending data and close the output
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,265 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes fragmented MP4 as separate segment files in a directory, for live HLS and/or DASH.
+ * <p>
+ * Each fragment goes to its own segment file, cut at key frames (see
+ * {@link #setFragmentLimits(long, int)}).  The HLS playlist and DASH manifest are rewritten as each
+ * segment is closed, via a temp file and rename, so a player never reads half a playlist.
+ * Segment durations only match the limit if the key frame interval divides it.
+ */
+public class SegmentedMp4Writer extends FragmentedMp4Writer {
+    public static final int PLAYLIST_HLS = 1;
+    public static final int PLAYLIST_DASH = 2;
+
+    public static final String INIT_SEGMENT = "init.mp4";
+    public static final String HLS_PLAYLIST = "index.m3u8";
+    public static final String DASH_MANIFEST = "manifest.mpd";
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String SEGMENT_SUFFIX = ".m4s";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final int mPlaylists;
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+    private int mWindowSegments;
+    private long mTargetDurationS;
+    private long mTotalBytes;
+    private long mTotalDurationUs;
+    private long mAvailabilityStartMs;
+    private long mSegmentStartBytes;
+    private boolean mFinished;
+
+    private static class Segment {
+        final int mSequenceNumber;
+        final long mStartUs;
+        final long mDurationUs;
+
+        Segment(final int sequenceNumber, final long startUs, final long durationUs) {
+            mSequenceNumber = sequenceNumber;
+            mStartUs = startUs;
+            mDurationUs = durationUs;
+        }
+    }
+
+    /**
+     * @param playlists {@link #PLAYLIST_HLS} and/or {@link #PLAYLIST_DASH}
+     */
+    public SegmentedMp4Writer(final File directory, final int playlists) {
+        mDirectory = directory;
+        mPlaylists = playlists;
+    }
+
+    /**
+     * Only list the last segments, for a rolling live window.  Older segments are deleted once
+     * they have been out of the window for as long again, so slow players can still fetch them.
+     * @param segments 0 to keep every segment (the default)
+     */
+    public void setWindow(final int segments) {
+        mWindowSegments = segments;
+    }
+
+    public static String getSegmentName(final int sequenceNumber) {
+        return SEGMENT_PREFIX + sequenceNumber + SEGMENT_SUFFIX;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        // Players read the target once, so it is fixed at the forced cut length, not raised as segments end
+        mTargetDurationS = (getMaxFragmentDurationUs() + 999999) / 1000000;
+        setChannel(new FileOutputStream(new File(mDirectory, INIT_SEGMENT)).getChannel());
+        super.start();
+        close();
+        mAvailabilityStartMs = System.currentTimeMillis();
+    }
+
+    @Override
+    protected void onFragmentStart(final int sequenceNumber) throws IOException {
+        setChannel(new FileOutputStream(new File(mDirectory, getSegmentName(sequenceNumber))).getChannel());
+        mSegmentStartBytes = getBytesWritten();
+    }
+
+    @Override
+    protected void onFragmentEnd(final int sequenceNumber, final long startUs, final long durationUs) throws IOException {
+        close();
+        mSegments.add(new Segment(sequenceNumber, startUs, durationUs));
+        mTotalBytes += getBytesWritten() - mSegmentStartBytes;
+        mTotalDurationUs += durationUs;
+        if (mWindowSegments > 0) {
+            final int expired = sequenceNumber - 2 * mWindowSegments;
+            if (expired > 0) {
+                new File(mDirectory, getSegmentName(expired)).delete();
+            }
+        }
+        writePlaylists();
+    }
+
+    /**
+     * Write the last segment and mark the playlists complete
+     */
+    @Override
+    public void finish() throws IOException {
+        super.finish();
+        mFinished = true;
+        writePlaylists();
+    }
+
+    private List<Segment> getWindow() {
+        if (mWindowSegments == 0 || mSegments.size() <= mWindowSegments) {
+            return mSegments;
+        }
+        return mSegments.subList(mSegments.size() - mWindowSegments, mSegments.size());
+    }
+
+    private void writePlaylists() throws IOException {
+        if ((mPlaylists & PLAYLIST_HLS) != 0) {
+            writeAtomically(HLS_PLAYLIST, getHlsPlaylist());
+        }
+        if ((mPlaylists & PLAYLIST_DASH) != 0) {
+            writeAtomically(DASH_MANIFEST, getDashManifest());
+        }
+    }
+
+    String getHlsPlaylist() {
+        final List<Segment> window = getWindow();
+        final StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:7\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(mTargetDurationS).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(window.isEmpty() ? 1 : window.get(0).mSequenceNumber).append('\n');
+        if (mWindowSegments == 0) {
+            sb.append("#EXT-X-PLAYLIST-TYPE:").append(mFinished ? "VOD" : "EVENT").append('\n');
+        }
+        sb.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        sb.append("#EXT-X-MAP:URI=\"").append(INIT_SEGMENT).append("\"\n");
+        for (Segment segment : window) {
+            sb.append(String.format(Locale.US, "#EXTINF:%.6f,\n", segment.mDurationUs / 1000000.0));
+            sb.append(getSegmentName(segment.mSequenceNumber)).append('\n');
+        }
+        if (mFinished) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        return sb.toString();
+    }
+
+    String getDashManifest() {
+        final List<Segment> window = getWindow();
+        final List<Mp4Track> tracks = getTracks();
+        final StringBuilder codecs = new StringBuilder();
+        VideoSampleEntry video = null;
+        for (Mp4Track track : tracks) {
+            if (codecs.length() > 0) {
+                codecs.append(',');
+            }
+            codecs.append(track.getSampleEntry().getCodecs());
+            if (video == null && track.getSampleEntry() instanceof VideoSampleEntry) {
+                video = (VideoSampleEntry)track.getSampleEntry();
+            }
+        }
+        final long bandwidth = mTotalDurationUs == 0 ? 1 : Math.max(1, mTotalBytes * 8 * 1000000 / mTotalDurationUs);
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\"");
+        if (mFinished) {
+            sb.append(" type=\"static\" mediaPresentationDuration=\"").append(getDuration(mTotalDurationUs)).append('"');
+        } else {
+            sb.append(" type=\"dynamic\" availabilityStartTime=\"").append(getDateTime(mAvailabilityStartMs)).append('"');
+            sb.append(" publishTime=\"").append(getDateTime(System.currentTimeMillis())).append('"');
+            sb.append(" minimumUpdatePeriod=\"").append(getDuration(getFragmentDurationUs())).append('"');
+            if (mWindowSegments > 0) {
+                long windowUs = 0;
+                for (Segment segment : window) {
+                    windowUs += segment.mDurationUs;
+                }
+                sb.append(" timeShiftBufferDepth=\"").append(getDuration(windowUs)).append('"');
+            }
+        }
+        sb.append(" minBufferTime=\"").append(getDuration(getFragmentDurationUs())).append("\">\n");
+        sb.append("  <Period id=\"0\" start=\"PT0S\">\n");
+        sb.append("    <AdaptationSet segmentAlignment=\"true\" startWithSAP=\"1\">\n");
+        sb.append("      <Representation id=\"0\" mimeType=\"").append(video == null ? "audio/mp4" : "video/mp4").append('"');
+        sb.append(" codecs=\"").append(codecs).append('"');
+        sb.append(" bandwidth=\"").append(bandwidth).append('"');
+        if (video != null) {
+            sb.append(" width=\"").append(video.getWidth()).append("\" height=\"").append(video.getHeight()).append('"');
+        }
+        sb.append(">\n");
+        sb.append("        <SegmentTemplate timescale=\"1000000\" initialization=\"").append(INIT_SEGMENT).append('"');
+        sb.append(" media=\"").append(SEGMENT_PREFIX).append("$Number$").append(SEGMENT_SUFFIX).append('"');
+        sb.append(" startNumber=\"").append(window.isEmpty() ? 1 : window.get(0).mSequenceNumber).append("\">\n");
+        sb.append("          <SegmentTimeline>\n");
+        for (Segment segment : window) {
+            sb.append("            <S t=\"").append(segment.mStartUs).append("\" d=\"").append(segment.mDurationUs).append("\"/>\n");
+        }
+        sb.append("          </SegmentTimeline>\n");
+        sb.append("        </SegmentTemplate>\n");
+        sb.append("      </Representation>\n");
+        sb.append("    </AdaptationSet>\n");
+        sb.append("  </Period>\n");
+        sb.append("</MPD>\n");
+        return sb.toString();
+    }
+
+    private static String getDuration(final long us) {
+        return String.format(Locale.US, "PT%.3fS", us / 1000000.0);
+    }
+
+    private static String getDateTime(final long ms) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(ms));
+    }
+
+    /**
+     * Write to a temp file and rename it over the old one, so readers see the old or the new file
+     */
+    private void writeAtomically(final String name, final String content) throws IOException {
+        final File file = new File(mDirectory, name);
+        final File temp = new File(mDirectory, name + ".tmp");
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(content.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // Rename can't replace on some file systems
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+        }
+    }
+}
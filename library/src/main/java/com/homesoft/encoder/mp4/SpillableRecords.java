@@ -0,0 +1,127 @@
+package com.homesoft.encoder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Append-only store of fixed size records, kept in fixed size chunks so it never copies as it grows.
+ * <p>
+ * The first chunks are on the heap.  Past the memory limit further chunks are mapped from a temp
+ * file, so the heap stays flat however many records there are and the OS pages them as needed.
+ */
+class SpillableRecords {
+    static final int CHUNK_SHIFT = 14;
+    static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_RECORDS - 1;
+
+    private final int mRecordSize;
+    private final int mMemoryChunks;
+    private final File mSpillDirectory;
+
+    private ByteBuffer[] mChunks = new ByteBuffer[16];
+    private int mChunkCount;
+    private File mSpillFile;
+    private RandomAccessFile mSpill;
+    private FileChannel mSpillChannel;
+
+    /**
+     * @param memoryRecords records to keep on the heap, rounded up to whole chunks
+     * @param spillDirectory where to create the temp file, null for java.io.tmpdir
+     */
+    SpillableRecords(final int recordSize, final int memoryRecords, final File spillDirectory) {
+        mRecordSize = recordSize;
+        mMemoryChunks = (int)(((long)memoryRecords + CHUNK_MASK) >>> CHUNK_SHIFT);
+        mSpillDirectory = spillDirectory;
+    }
+
+    /**
+     * Add chunks until there is room for this many records
+     */
+    void ensureCapacity(final int records) throws IOException {
+        while ((long)mChunkCount << CHUNK_SHIFT < records) {
+            if (mChunkCount == mChunks.length) {
+                mChunks = Arrays.copyOf(mChunks, mChunkCount * 2);
+            }
+            final int chunkBytes = CHUNK_RECORDS * mRecordSize;
+            if (mChunkCount < mMemoryChunks) {
+                mChunks[mChunkCount] = ByteBuffer.allocate(chunkBytes);
+            } else {
+                final long position = (long)(mChunkCount - mMemoryChunks) * chunkBytes;
+                mChunks[mChunkCount] = getSpillChannel().map(FileChannel.MapMode.READ_WRITE, position, chunkBytes);
+            }
+            mChunkCount++;
+        }
+    }
+
+    private FileChannel getSpillChannel() throws IOException {
+        if (mSpillChannel == null) {
+            mSpillFile = File.createTempFile("samples", ".tmp", mSpillDirectory);
+            mSpill = new RandomAccessFile(mSpillFile, "rw");
+            mSpillChannel = mSpill.getChannel();
+            // The mappings keep the data alive, so unlink now rather than leak the file on a crash
+            if (mSpillFile.delete()) {
+                mSpillFile = null;
+            }
+        }
+        return mSpillChannel;
+    }
+
+    /**
+     * @return the chunk holding the record, read and write it at {@link #getPosition(int)}
+     */
+    ByteBuffer getChunk(final int record) {
+        return mChunks[record >>> CHUNK_SHIFT];
+    }
+
+    int getPosition(final int record) {
+        return (record & CHUNK_MASK) * mRecordSize;
+    }
+
+    /**
+     * @return records that fit on the heap, beyond this they are in the temp file
+     */
+    long getMemoryCapacity() {
+        return (long)mMemoryChunks << CHUNK_SHIFT;
+    }
+
+    /**
+     * Drop the chunks and delete the temp file
+     */
+    void release() {
+        Arrays.fill(mChunks, null);
+        mChunkCount = 0;
+        if (mSpill != null) {
+            try {
+                mSpill.close();
+            } catch (IOException e) {
+                // Nothing was written that needs flushing
+            }
+            mSpill = null;
+            mSpillChannel = null;
+        }
+        if (mSpillFile != null) {
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+    }
+}
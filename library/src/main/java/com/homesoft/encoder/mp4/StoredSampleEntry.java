@@ -0,0 +1,127 @@
+package com.homesoft.encoder.mp4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A sample entry read back from a {@link CheckpointJournal}, written out exactly as it was journaled
+ */
+class StoredSampleEntry extends SampleEntry {
+    // Offset of the width in a visual sample entry box, the height follows
+    private static final int VIDEO_WIDTH_OFFSET = 32;
+
+    private final String mHandlerType;
+    private final int mTimescale;
+    private final String mCodecs;
+    private final byte[] mBox;
+
+    private StoredSampleEntry(final String handlerType, final int timescale, final String codecs, final byte[] box) {
+        mHandlerType = handlerType;
+        mTimescale = timescale;
+        mCodecs = codecs;
+        mBox = box;
+    }
+
+    /**
+     * @param box the sample entry box from {@link #toBytes(SampleEntry)}
+     * @return a {@link VideoSampleEntry} for video, so the track header gets the dimensions
+     */
+    static SampleEntry create(final String handlerType, final int timescale, final String codecs, final byte[] box) {
+        if (HANDLER_VIDEO.equals(handlerType)) {
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(box);
+            return new Video(byteBuffer.getShort(VIDEO_WIDTH_OFFSET) & 0xffff,
+                    byteBuffer.getShort(VIDEO_WIDTH_OFFSET + 2) & 0xffff, codecs, box);
+        }
+        return new StoredSampleEntry(handlerType, timescale, codecs, box);
+    }
+
+    /**
+     * @return the sample entry box, as written to the stsd
+     */
+    static byte[] toBytes(final SampleEntry sampleEntry) {
+        final BoxWriter boxWriter = new BoxWriter(256);
+        sampleEntry.write(boxWriter);
+        final ByteBuffer byteBuffer = boxWriter.getBuffer();
+        final byte[] box = new byte[byteBuffer.remaining()];
+        byteBuffer.get(box);
+        return box;
+    }
+
+    /**
+     * @return true if both write the same box, i.e. the encoder's parameter sets didn't change
+     */
+    static boolean matches(final SampleEntry a, final SampleEntry b) {
+        return a.getHandlerType().equals(b.getHandlerType()) && a.getTimescale() == b.getTimescale() &&
+                Arrays.equals(toBytes(a), toBytes(b));
+    }
+
+    @Override
+    public String getHandlerType() {
+        return mHandlerType;
+    }
+
+    @Override
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    @Override
+    public void write(final BoxSink boxWriter) {
+        boxWriter.put(mBox);
+    }
+
+    @Override
+    public String getCodecs() {
+        return mCodecs;
+    }
+
+    private static class Video extends VideoSampleEntry {
+        private final String mCodecs;
+        private final byte[] mBox;
+
+        Video(final int width, final int height, final String codecs, final byte[] box) {
+            super(width, height);
+            mCodecs = codecs;
+            mBox = box;
+        }
+
+        @Override
+        public void write(final BoxSink boxWriter) {
+            boxWriter.put(mBox);
+        }
+
+        @Override
+        public String getCodecs() {
+            return mCodecs;
+        }
+
+        @Override
+        protected String getType() {
+            return new String(mBox, 4, 4, Charset.forName("US-ASCII"));
+        }
+
+        /**
+         * Already in the stored box, see {@link #write(BoxSink)}
+         */
+        @Override
+        protected void writeDecoderConfig(final BoxSink boxWriter) {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.homesoft.encoder.mp4;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Common part of visual sample entries (ISO/IEC 14496-12 12.1.3)
+ */
+public abstract class VideoSampleEntry extends SampleEntry {
+    public static final int TIMESCALE = 90000;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    protected VideoSampleEntry(final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public String getHandlerType() {
+        return HANDLER_VIDEO;
+    }
+
+    @Override
+    public int getTimescale() {
+        return TIMESCALE;
+    }
+
+    protected abstract String getType();
+    protected abstract void writeDecoderConfig(final BoxSink boxWriter);
+
+    @Override
+    public void write(final BoxSink boxWriter) {
+        boxWriter.start(getType());
+        boxWriter.putZeros(6).putShort(1); // data_reference_index
+        boxWriter.putZeros(16);
+        boxWriter.putShort(mWidth).putShort(mHeight);
+        boxWriter.putInt(0x00480000).putInt(0x00480000); // 72 dpi
+        boxWriter.putInt(0);
+        boxWriter.putShort(1); // frame_count
+        boxWriter.putZeros(32); // compressorname
+        boxWriter.putShort(0x18); // depth
+        boxWriter.putShort(-1);
+        writeDecoderConfig(boxWriter);
+        boxWriter.end();
+    }
+}
@@ -0,0 +1,371 @@
+package com.homesoft.encoder.ts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes an MPEG-2 transport stream (ISO/IEC 13818-1) with one program.
+ * <p>
+ * Samples are packetized straight into 188 byte packets in a reusable direct buffer, nothing is
+ * indexed, so memory stays constant however long the stream runs.  PAT/PMT are repeated before
+ * each video key frame and at least every 100ms, PCR is carried on the first stream.
+ * Video samples are Annex-B, AAC samples are raw frames (an ADTS header is added here).
+ */
+public class TsWriter implements Closeable {
+    public static final int STREAM_TYPE_AAC = 0x0f;
+    public static final int STREAM_TYPE_H264 = 0x1b;
+    public static final int STREAM_TYPE_H265 = 0x24;
+
+    public static final int PACKET_SIZE = 188;
+    private static final int PAYLOAD_SIZE = PACKET_SIZE - 4;
+    private static final int PID_PAT = 0;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_FIRST_STREAM = 0x100;
+    private static final int PROGRAM_NUMBER = 1;
+    // Timestamps start here so the PCR can run ahead of the decode time
+    private static final long TIMESTAMP_OFFSET_90K = 63000;
+    private static final long PCR_INTERVAL_90K = 3600;
+    private static final long PSI_INTERVAL_90K = 9000;
+    // 33 bit timestamps wrap after ~26.5h, clocks are kept unwrapped and only masked when written
+    private static final long TIMESTAMP_MASK = 0x1ffffffffL;
+    private static final int BUFFER_PACKETS = 1024;
+
+    private static final byte[] AUD_H264 = {0, 0, 0, 1, 0x09, (byte)0xf0};
+    private static final byte[] AUD_H265 = {0, 0, 0, 1, 0x46, 0x01, 0x50};
+    private static final int[] AAC_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000,
+            22050, 16000, 12000, 11025, 8000, 7350};
+
+    private static final int[] CRC_TABLE = new int[256];
+    static {
+        for (int i=0;i<256;i++) {
+            int crc = i << 24;
+            for (int j=0;j<8;j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(PACKET_SIZE * BUFFER_PACKETS);
+    private ByteBuffer mPrefix = ByteBuffer.allocate(256);
+    private final byte[] mSection = new byte[PAYLOAD_SIZE];
+    private final ArrayList<Stream> mStreams = new ArrayList<>();
+    private int mPatContinuity;
+    private int mPmtContinuity;
+    private boolean mStarted;
+    private long mLastPcr90k = Long.MIN_VALUE;
+    private long mLastPsi90k = Long.MIN_VALUE;
+    private long mBytesWritten;
+
+    private static class Stream {
+        final int mPid;
+        final int mStreamType;
+        final int mStreamId;
+        final byte[] mAccessUnitDelimiter;
+        final byte[] mParameterSets;
+        final byte[] mAdtsHeader;
+        int mContinuity;
+
+        Stream(final int pid, final int streamType, final int streamId, final byte[] accessUnitDelimiter,
+               final byte[] parameterSets, final byte[] adtsHeader) {
+            mPid = pid;
+            mStreamType = streamType;
+            mStreamId = streamId;
+            mAccessUnitDelimiter = accessUnitDelimiter;
+            mParameterSets = parameterSets;
+            mAdtsHeader = adtsHeader;
+        }
+
+        boolean isVideo() {
+            return mAdtsHeader == null;
+        }
+    }
+
+    public TsWriter(final OutputStream outputStream) {
+        this(Channels.newChannel(outputStream));
+    }
+
+    public TsWriter(final WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * @param streamType {@link #STREAM_TYPE_H264} or {@link #STREAM_TYPE_H265}
+     * @param parameterSets Annex-B SPS/PPS (and VPS), repeated before each key frame
+     * @return the stream index for {@link #writeSample(int, ByteBuffer, long, long, boolean)}
+     */
+    public int addVideoStream(final int streamType, final byte[] parameterSets) {
+        final byte[] aud = streamType == STREAM_TYPE_H265 ? AUD_H265 : AUD_H264;
+        if (mPrefix.capacity() < 64 + parameterSets.length) {
+            // PES header, AUD and the parameter sets
+            mPrefix = ByteBuffer.allocate(64 + parameterSets.length);
+        }
+        return addStream(new Stream(PID_FIRST_STREAM + mStreams.size(), streamType,
+                0xe0 + mStreams.size(), aud, parameterSets, null));
+    }
+
+    /**
+     * @param audioSpecificConfig from the AAC encoder (csd-0)
+     */
+    public int addAacStream(final byte[] audioSpecificConfig) {
+        final int objectType = (audioSpecificConfig[0] >> 3) & 0x1f;
+        final int frequencyIndex = ((audioSpecificConfig[0] & 7) << 1) | ((audioSpecificConfig[1] >> 7) & 1);
+        final int channelConfig = (audioSpecificConfig[1] >> 3) & 0xf;
+        if (frequencyIndex >= AAC_SAMPLE_RATES.length) {
+            throw new IllegalArgumentException("Unsupported AAC sampling frequency index " + frequencyIndex);
+        }
+        // The frame length is filled in per sample
+        final byte[] adts = new byte[7];
+        adts[0] = (byte)0xff;
+        adts[1] = (byte)0xf1; // MPEG-4, no CRC
+        adts[2] = (byte)(((objectType - 1) << 6) | (frequencyIndex << 2) | (channelConfig >> 2));
+        adts[3] = (byte)((channelConfig & 3) << 6);
+        adts[5] = (byte)0x1f; // buffer fullness 0x7ff
+        adts[6] = (byte)0xfc;
+        return addStream(new Stream(PID_FIRST_STREAM + mStreams.size(), STREAM_TYPE_AAC,
+                0xc0 + mStreams.size(), null, null, adts));
+    }
+
+    private int addStream(final Stream stream) {
+        if (mStarted) {
+            throw new IllegalStateException("Streams must be added before the first sample");
+        }
+        mStreams.add(stream);
+        return mStreams.size() - 1;
+    }
+
+    /**
+     * @param dtsUs decode time if it differs from the presentation time (B-frames), else -1
+     */
+    public void writeSample(final int streamIndex, final ByteBuffer sample, final long ptsUs, final long dtsUs,
+                            final boolean sync) throws IOException {
+        mStarted = true;
+        final Stream stream = mStreams.get(streamIndex);
+        final long pts90k = toTimestamp(ptsUs);
+        final long dts90k = dtsUs < 0 ? pts90k : toTimestamp(dtsUs);
+        final boolean pcrStream = streamIndex == 0;
+        if (mLastPsi90k == Long.MIN_VALUE || (stream.isVideo() && sync) ||
+                dts90k - mLastPsi90k >= PSI_INTERVAL_90K) {
+            writePsi();
+            mLastPsi90k = dts90k;
+        }
+
+        mPrefix.clear();
+        mPrefix.put((byte)0).put((byte)0).put((byte)1).put((byte)stream.mStreamId);
+        final int lengthPosition = mPrefix.position();
+        mPrefix.putShort((short)0);
+        mPrefix.put((byte)0x80); // marker bits
+        if (dts90k != pts90k) {
+            mPrefix.put((byte)0xc0).put((byte)10);
+            putTimestamp(mPrefix, 3, pts90k);
+            putTimestamp(mPrefix, 1, dts90k);
+        } else {
+            mPrefix.put((byte)0x80).put((byte)5);
+            putTimestamp(mPrefix, 2, pts90k);
+        }
+        if (stream.isVideo()) {
+            mPrefix.put(stream.mAccessUnitDelimiter);
+            if (sync) {
+                mPrefix.put(stream.mParameterSets);
+            }
+        } else {
+            final int frameLength = stream.mAdtsHeader.length + sample.remaining();
+            stream.mAdtsHeader[3] = (byte)((stream.mAdtsHeader[3] & 0xfc) | (frameLength >> 11));
+            stream.mAdtsHeader[4] = (byte)(frameLength >> 3);
+            stream.mAdtsHeader[5] = (byte)(((frameLength & 7) << 5) | 0x1f);
+            mPrefix.put(stream.mAdtsHeader);
+        }
+        final int pesLength = mPrefix.position() - 6 + sample.remaining();
+        if (!stream.isVideo() && pesLength <= 0xffff) {
+            // Video may exceed the 16 bit length, 0 means unbounded
+            mPrefix.putShort(lengthPosition, (short)pesLength);
+        }
+        mPrefix.flip();
+
+        boolean first = true;
+        while (mPrefix.hasRemaining() || sample.hasRemaining()) {
+            long pcr90k = -1;
+            if (first && pcrStream && (mLastPcr90k == Long.MIN_VALUE || dts90k - mLastPcr90k >= PCR_INTERVAL_90K || sync)) {
+                pcr90k = (dts90k - TIMESTAMP_OFFSET_90K) & TIMESTAMP_MASK;
+                mLastPcr90k = dts90k;
+            }
+            writePesPacket(stream, first, first && sync, pcr90k, sample);
+            first = false;
+        }
+    }
+
+    private static long toTimestamp(final long us) {
+        return us * 9 / 100 + TIMESTAMP_OFFSET_90K;
+    }
+
+    private static void putTimestamp(final ByteBuffer byteBuffer, final int prefix, final long timestamp) {
+        final long ts = timestamp & TIMESTAMP_MASK;
+        byteBuffer.put((byte)((prefix << 4) | ((ts >> 29) & 0x0e) | 1));
+        byteBuffer.put((byte)(ts >> 22));
+        byteBuffer.put((byte)(((ts >> 14) & 0xfe) | 1));
+        byteBuffer.put((byte)(ts >> 7));
+        byteBuffer.put((byte)(((ts << 1) & 0xfe) | 1));
+    }
+
+    /**
+     * One packet of PES data, taken from mPrefix and then the sample
+     */
+    private void writePesPacket(final Stream stream, final boolean start, final boolean randomAccess,
+                                final long pcr90k, final ByteBuffer sample) throws IOException {
+        final int required = pcr90k >= 0 ? 8 : randomAccess ? 2 : 0;
+        final int payload = Math.min(mPrefix.remaining() + sample.remaining(), PAYLOAD_SIZE - required);
+        final int adaptationLength = PAYLOAD_SIZE - payload;
+        final ByteBuffer buffer = startPacket(stream.mPid, start, adaptationLength > 0, stream.mContinuity);
+        stream.mContinuity = (stream.mContinuity + 1) & 0xf;
+        if (adaptationLength > 0) {
+            buffer.put((byte)(adaptationLength - 1));
+            if (adaptationLength > 1) {
+                buffer.put((byte)((randomAccess ? 0x40 : 0) | (pcr90k >= 0 ? 0x10 : 0)));
+                int stuffing = adaptationLength - 2;
+                if (pcr90k >= 0) {
+                    buffer.put((byte)(pcr90k >> 25));
+                    buffer.put((byte)(pcr90k >> 17));
+                    buffer.put((byte)(pcr90k >> 9));
+                    buffer.put((byte)(pcr90k >> 1));
+                    buffer.put((byte)(((pcr90k & 1) << 7) | 0x7e));
+                    buffer.put((byte)0);
+                    stuffing -= 6;
+                }
+                for (int i=0;i<stuffing;i++) {
+                    buffer.put((byte)0xff);
+                }
+            }
+        }
+        int remaining = payload;
+        final int fromPrefix = Math.min(remaining, mPrefix.remaining());
+        if (fromPrefix > 0) {
+            final int limit = mPrefix.limit();
+            mPrefix.limit(mPrefix.position() + fromPrefix);
+            buffer.put(mPrefix);
+            mPrefix.limit(limit);
+            remaining -= fromPrefix;
+        }
+        if (remaining > 0) {
+            final int limit = sample.limit();
+            sample.limit(sample.position() + remaining);
+            buffer.put(sample);
+            sample.limit(limit);
+        }
+    }
+
+    /**
+     * @return the buffer, with room for the rest of the packet
+     */
+    private ByteBuffer startPacket(final int pid, final boolean payloadStart, final boolean adaptation,
+                                   final int continuity) throws IOException {
+        if (mBuffer.remaining() < PACKET_SIZE) {
+            flush();
+        }
+        mBuffer.put((byte)0x47);
+        mBuffer.put((byte)((payloadStart ? 0x40 : 0) | (pid >> 8)));
+        mBuffer.put((byte)pid);
+        mBuffer.put((byte)((adaptation ? 0x30 : 0x10) | continuity));
+        return mBuffer;
+    }
+
+    private void writePsi() throws IOException {
+        // PAT
+        int length = startSection(0, 1);
+        length = putShort(length, PROGRAM_NUMBER);
+        length = putShort(length, 0xe000 | PID_PMT);
+        writeSection(PID_PAT, length, mPatContinuity);
+        mPatContinuity = (mPatContinuity + 1) & 0xf;
+
+        // PMT
+        length = startSection(2, PROGRAM_NUMBER);
+        length = putShort(length, 0xe000 | mStreams.get(0).mPid); // PCR PID
+        length = putShort(length, 0xf000); // no program info
+        for (Stream stream : mStreams) {
+            mSection[length++] = (byte)stream.mStreamType;
+            length = putShort(length, 0xe000 | stream.mPid);
+            length = putShort(length, 0xf000);
+        }
+        writeSection(PID_PMT, length, mPmtContinuity);
+        mPmtContinuity = (mPmtContinuity + 1) & 0xf;
+    }
+
+    private int startSection(final int tableId, final int tableIdExtension) {
+        mSection[0] = (byte)tableId;
+        // section_length is filled in by writeSection
+        int length = 3;
+        length = putShort(length, tableIdExtension);
+        mSection[length++] = (byte)0xc1; // version 0, current
+        mSection[length++] = 0; // section_number
+        mSection[length++] = 0; // last_section_number
+        return length;
+    }
+
+    private int putShort(final int offset, final int value) {
+        mSection[offset] = (byte)(value >> 8);
+        mSection[offset + 1] = (byte)value;
+        return offset + 2;
+    }
+
+    private void writeSection(final int pid, int length, final int continuity) throws IOException {
+        final int sectionLength = length - 3 + 4;
+        mSection[1] = (byte)(0xb0 | (sectionLength >> 8));
+        mSection[2] = (byte)sectionLength;
+        int crc = 0xffffffff;
+        for (int i=0;i<length;i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ mSection[i]) & 0xff];
+        }
+        length = putShort(length, crc >>> 16);
+        length = putShort(length, crc);
+
+        final ByteBuffer buffer = startPacket(pid, true, false, continuity);
+        buffer.put((byte)0); // pointer_field
+        buffer.put(mSection, 0, length);
+        for (int i=length + 1;i<PAYLOAD_SIZE;i++) {
+            buffer.put((byte)0xff);
+        }
+    }
+
+    /**
+     * Write the buffered packets to the channel
+     */
+    public void flush() throws IOException {
+        mBuffer.flip();
+        mBytesWritten += mBuffer.remaining();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten + mBuffer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        mChannel.close();
+    }
+}
@@ -0,0 +1,59 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Async mode against a codec much slower than the caller: createFrame() returns as soon as the
+ * frame is posted, and release() still gets every frame and a single end of stream.
+ */
+public class AsyncEncodeTest {
+    private static final int FRAMES = 5;
+    private static final long ENCODE_NS = 50000000;
+
+    @Test(timeout = 10000)
+    public void createFrameDoesntWaitForTheEncoder() throws Exception {
+        final FakeEncoderCodec.Factory codecFactory = new FakeEncoderCodec.Factory(ENCODE_NS, 0);
+        final FakeFrameMuxer muxer = new FakeFrameMuxer(0);
+        final EncoderConfig config = new TestEncoderConfig(30f);
+        config.setInputSurfaceFactory(codecFactory);
+        config.setFrameMuxerFactory(muxer);
+        final FrameEncoder frameEncoder = new FrameEncoder(config, codecFactory, true);
+        frameEncoder.start();
+        for (int i = 0; i < FRAMES; i++) {
+            frameEncoder.createFrame(frameEncoder.getCanvas());
+        }
+        // Posting takes microseconds, the first frame takes the encode time to come out
+        assertEquals(0, muxer.getFrames());
+        frameEncoder.release();
+
+        final long frameUs = FrameEncoder.getFrameTime(30f);
+        assertEquals(FRAMES, muxer.getFrames());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(i * frameUs, (long)muxer.mPresentationTimesUs.get(i));
+            assertNotSame(Thread.currentThread(), muxer.mThreads.get(i));
+        }
+        // The end of stream was seen once: one audio copy, one release, one extra buffer
+        assertEquals(1, muxer.mAudioCopies);
+        assertEquals(1, muxer.mReleases);
+        assertEquals(FRAMES + 1, codecFactory.getLast().mBuffersReleased);
+    }
+}
@@ -0,0 +1,68 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Sync vs async throughput with a fake codec that takes as long to encode a frame as the caller
+ * takes to draw one.  Sync mode waits for each frame's output after posting it (and then for the
+ * drain timeout), async mode overlaps drawing with encoding.
+ * <p>
+ * Wall clock timing, so it only runs with -Pbenchmark, see library/build.gradle.
+ * {@link AsyncEncodeTest} covers the behaviour.
+ */
+public class AsyncThroughputBenchmark {
+    private static final int FRAMES = 60;
+    private static final long DRAW_NS = 3000000;
+    private static final long ENCODE_NS = 3000000;
+
+    private static long encode(final boolean async) throws Exception {
+        final FakeEncoderCodec.Factory codecFactory = new FakeEncoderCodec.Factory(ENCODE_NS, 0);
+        final FakeFrameMuxer muxer = new FakeFrameMuxer(0);
+        final EncoderConfig config = new TestEncoderConfig(30f);
+        config.setInputSurfaceFactory(codecFactory);
+        config.setFrameMuxerFactory(muxer);
+        final FrameEncoder frameEncoder = new FrameEncoder(config, codecFactory, async);
+        final long start = System.nanoTime();
+        frameEncoder.start();
+        for (int i = 0; i < FRAMES; i++) {
+            FakeEncoderCodec.spinNs(DRAW_NS);
+            frameEncoder.createFrame(frameEncoder.getCanvas());
+        }
+        frameEncoder.release();
+        final long elapsedNs = System.nanoTime() - start;
+        assertEquals(FRAMES, muxer.getFrames());
+        return elapsedNs;
+    }
+
+    @Test
+    public void syncVsAsync() throws Exception {
+        // Warm up
+        encode(false);
+        encode(true);
+
+        final long syncNs = encode(false);
+        final long asyncNs = encode(true);
+        System.out.println("sync:  " + (FRAMES * 1000000000L / syncNs) + " fps, " +
+                (syncNs / FRAMES / 1000) + "us/frame");
+        System.out.println("async: " + (FRAMES * 1000000000L / asyncNs) + " fps, " +
+                (asyncNs / FRAMES / 1000) + "us/frame");
+    }
+}
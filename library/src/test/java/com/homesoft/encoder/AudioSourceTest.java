@@ -0,0 +1,164 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class AudioSourceTest {
+    private static final long SAMPLE_US = 23220;
+
+    /**
+     * AAC-sized samples every 23.22ms, for as long as asked
+     */
+    static class FakeAudioSource extends AudioSource {
+        final List<Long> mSampleTimesUs = new ArrayList<>();
+        private long mNextUs;
+        long mEndUs = -1;
+        int mReleases;
+
+        FakeAudioSource(final long frameUsec, final boolean trim) {
+            super(frameUsec, trim);
+        }
+
+        @Override
+        MediaFormat getFormat() {
+            return null;
+        }
+
+        @Override
+        void write(final long untilUs, final Writer writer) {
+            while (mNextUs < untilUs) {
+                final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+                bufferInfo.presentationTimeUs = mNextUs;
+                writer.writeAudioSample(null, bufferInfo);
+                mNextUs += SAMPLE_US;
+            }
+        }
+
+        @Override
+        void writeRemaining(final long endUs, final Writer writer) {
+            mEndUs = endUs;
+            // The source runs out after 10s
+            write(Math.min(endUs, 10000000), writer);
+        }
+
+        @Override
+        void release() {
+            mReleases++;
+        }
+    }
+
+    private final List<Long> mWrittenUs = new ArrayList<>();
+    private final AudioSource.Writer mWriter = new AudioSource.Writer() {
+        @Override
+        public void writeAudioSample(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+            mWrittenUs.add(bufferInfo.presentationTimeUs);
+        }
+    };
+
+    private long getLastUs() {
+        return mWrittenUs.get(mWrittenUs.size() - 1);
+    }
+
+    @Test
+    public void writesUpToAndIncludingTheVideoFrame() {
+        final FakeAudioSource source = new FakeAudioSource(0, true);
+        source.writeUntil(0, mWriter);
+        assertEquals(1, mWrittenUs.size());
+        source.writeUntil(SAMPLE_US - 1, mWriter);
+        assertEquals(1, mWrittenUs.size());
+        // A sample at the same time as the frame goes before it
+        source.writeUntil(SAMPLE_US, mWriter);
+        assertEquals(2, mWrittenUs.size());
+        assertEquals(SAMPLE_US, getLastUs());
+    }
+
+    @Test
+    public void trimsAtTheEndOfTheLastFrame() {
+        final FakeAudioSource source = new FakeAudioSource(33333, true);
+        for (int i = 0; i < 30; i++) {
+            source.writeUntil(i * 33333L, mWriter);
+        }
+        source.finish(mWriter);
+        // The last frame starts at 966657 and lasts 33333
+        assertEquals(999990, source.mEndUs);
+        // Every sample that starts before the end, the next one wouldn't
+        assertEquals(44, mWrittenUs.size());
+        assertEquals(43 * SAMPLE_US, getLastUs());
+        assertTrue(getLastUs() + SAMPLE_US >= source.mEndUs);
+    }
+
+    @Test
+    public void lastFrameDurationFromTheFramesBefore() {
+        final FakeAudioSource source = new FakeAudioSource(0, true);
+        source.writeUntil(0, mWriter);
+        source.writeUntil(40000, mWriter);
+        source.writeUntil(80000, mWriter);
+        // An earlier time doesn't change the end
+        source.writeUntil(60000, mWriter);
+        source.finish(mWriter);
+        assertEquals(80000 + 40000, source.mEndUs);
+        assertEquals(6, mWrittenUs.size());
+        assertEquals(5 * SAMPLE_US, getLastUs());
+    }
+
+    @Test
+    public void endOnASampleBoundary() {
+        final FakeAudioSource source = new FakeAudioSource(SAMPLE_US, true);
+        source.writeUntil(9 * SAMPLE_US, mWriter);
+        source.finish(mWriter);
+        // A sample starting exactly at the end is dropped
+        assertEquals(10 * SAMPLE_US, source.mEndUs);
+        assertEquals(10, mWrittenUs.size());
+        assertEquals(9 * SAMPLE_US, getLastUs());
+    }
+
+    @Test
+    public void noTrimWritesEverything() {
+        final FakeAudioSource source = new FakeAudioSource(33333, false);
+        source.writeUntil(0, mWriter);
+        source.finish(mWriter);
+        assertEquals(Long.MAX_VALUE, source.mEndUs);
+        assertEquals(431, mWrittenUs.size());
+    }
+
+    @Test
+    public void noVideoWritesEverything() {
+        final FakeAudioSource source = new FakeAudioSource(33333, true);
+        source.finish(mWriter);
+        assertEquals(Long.MAX_VALUE, source.mEndUs);
+    }
+
+    @Test
+    public void skipDropsWithoutWriting() {
+        final FakeAudioSource source = new FakeAudioSource(33333, true);
+        source.skip(100000);
+        source.writeUntil(120000, mWriter);
+        assertEquals(1, mWrittenUs.size());
+        assertEquals(5 * SAMPLE_US, getLastUs());
+    }
+}
@@ -0,0 +1,158 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.homesoft.encoder.mp4.AacSampleEntry;
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.SampleEntry;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * End of stream stall of {@link IsoFrameMuxer} with a long audio track, which it interleaves with
+ * the video, vs the time to read the whole track, which copying it at the end would cost.
+ * Reading a sample takes a while, like an extractor read from storage.
+ * The order it writes in is checked by {@link IsoFrameMuxerTest}.
+ */
+public class AudioStallBenchmark {
+    private static final int FRAMES = 600;
+    private static final long SAMPLE_US = 23220;
+    private static final long READ_NS = 200000;
+
+    /**
+     * AAC sized samples that take a while to read, as long as the video
+     */
+    static class SlowAudioSource extends AudioSource {
+        private final long mDurationUs;
+        private long mNextUs;
+        int mSamples;
+
+        SlowAudioSource(final long frameUsec, final long durationUs) {
+            super(frameUsec, true);
+            mDurationUs = durationUs;
+        }
+
+        @Override
+        MediaFormat getFormat() {
+            return null;
+        }
+
+        @Override
+        void write(final long untilUs, final Writer writer) {
+            final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            while (mNextUs < untilUs) {
+                FakeEncoderCodec.spinNs(READ_NS);
+                bufferInfo.presentationTimeUs = mNextUs;
+                writer.writeAudioSample(null, bufferInfo);
+                mNextUs += SAMPLE_US;
+                mSamples++;
+            }
+        }
+
+        @Override
+        void writeRemaining(final long endUs, final Writer writer) {
+            write(Math.min(endUs, mDurationUs), writer);
+        }
+
+        @Override
+        void release() {
+        }
+    }
+
+    private static long readAll(final long frameUs) {
+        final SlowAudioSource source = new SlowAudioSource(frameUs, FRAMES * frameUs);
+        final long start = System.nanoTime();
+        source.writeRemaining(Long.MAX_VALUE, new AudioSource.Writer() {
+            @Override
+            public void writeAudioSample(final ByteBuffer byteBuffer, final MediaCodec.BufferInfo bufferInfo) {
+            }
+        });
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return time from the last frame to the end of the file
+     */
+    private static long encode() throws Exception {
+        final FakeEncoderCodec.Factory codecFactory = new FakeEncoderCodec.Factory(0, 0);
+        final long frameUs = FrameEncoder.getFrameTime(30f);
+        final SlowAudioSource[] audio = new SlowAudioSource[1];
+        final AudioConfig audioConfig = new AudioConfig() {
+            @Override
+            AudioSource createAudioSource(final long frameUsec) {
+                audio[0] = new SlowAudioSource(frameUsec, FRAMES * frameUsec);
+                return audio[0];
+            }
+        };
+        final IsoFrameMuxerTest.RecordingSampleWriter writer = new IsoFrameMuxerTest.RecordingSampleWriter();
+        final IsoFrameMuxer muxer = new IsoFrameMuxer(writer, audioConfig, 30f) {
+            @Override
+            SampleEntry getVideoSampleEntry(final FrameEncoder frameEncoder) {
+                return new AvcSampleEntry(320, 240, Collections.singletonList(new byte[]{0x67, 0x42, 0, 0x1e}),
+                        Collections.singletonList(new byte[]{0x68, (byte)0xce, 0x3c, (byte)0x80}));
+            }
+
+            @Override
+            AacSampleEntry getAudioSampleEntry(final AudioSource audio) {
+                return new AacSampleEntry(44100, 2, AacSampleEntry.createAudioSpecificConfig(44100, 2));
+            }
+        };
+        final EncoderConfig config = new TestEncoderConfig(30f);
+        config.setInputSurfaceFactory(codecFactory);
+        config.setFrameMuxerFactory(new FrameMuxer.Factory() {
+            @Override
+            public FrameMuxer createFrameMuxer(final EncoderConfig encoderConfig) {
+                return muxer;
+            }
+        });
+        final FrameEncoder frameEncoder = new FrameEncoder(config, codecFactory, true);
+        frameEncoder.start();
+        for (int i = 0; i < FRAMES; i++) {
+            frameEncoder.createFrame(frameEncoder.getCanvas());
+            // Drawing, long enough for the audio to keep up
+            FakeEncoderCodec.spinNs(1000000);
+        }
+        final long start = System.nanoTime();
+        frameEncoder.release();
+        final long stallNs = System.nanoTime() - start;
+
+        final long endUs = FRAMES * frameUs;
+        assertEquals((endUs + SAMPLE_US - 1) / SAMPLE_US, audio[0].mSamples);
+        assertEquals(FRAMES + audio[0].mSamples, writer.mSampleTracks.size());
+        return stallNs;
+    }
+
+    @Test
+    public void endOfStreamStall() throws Exception {
+        // Warm up
+        encode();
+
+        final long frameUs = FrameEncoder.getFrameTime(30f);
+        final long readAllNs = readAll(frameUs);
+        final long stallNs = encode();
+        System.out.println("reading the whole track: " + (readAllNs / 1000) + "us");
+        System.out.println("interleaved stall:       " + (stallNs / 1000) + "us");
+    }
+}
@@ -0,0 +1,424 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class CodecPoolTest {
+    private static final String AVC = AvcEncoderConfig.MIME_TYPE;
+    private static final String HEVC = HevcEncoderConfig.MIME_TYPE;
+    private static final String HARDWARE = "c2.vendor.avc.encoder";
+    private static final String SOFTWARE = "c2.android.avc.encoder";
+
+    /**
+     * Picks the hardware codec unless the config pins one, and knows each codec's instance limit
+     */
+    static class NamedFactory extends FakeEncoderCodec.Factory implements EncoderCodec.NamedFactory {
+        final HashMap<String, Integer> mMaxInstances = new HashMap<>();
+
+        NamedFactory() {
+            super(0, 0);
+        }
+
+        @Override
+        public String select(final EncoderConfig config) {
+            return config.getCodecName() == null ? HARDWARE : config.getCodecName();
+        }
+
+        @Override
+        public EncoderCodec createEncoder(final String codecName, final String mimeType) throws IOException {
+            return create(codecName);
+        }
+
+        @Override
+        public int getMaxSupportedInstances(final String codecName, final String mimeType) {
+            final Integer max = mMaxInstances.get(codecName);
+            return max == null ? 0 : max;
+        }
+    }
+
+    private final NamedFactory mFactory = new NamedFactory();
+
+    /**
+     * @return the fake codec behind the pooled one
+     */
+    private FakeEncoderCodec getCodec(final int index) {
+        return mFactory.mCodecs.get(index);
+    }
+
+    @Test
+    public void reusesReleasedCodec() throws IOException {
+        final CodecPool codecPool = new CodecPool(mFactory, 2);
+        final EncoderCodec first = codecPool.createEncoder(AVC);
+        first.release();
+        final EncoderCodec second = codecPool.createEncoder(AVC);
+        assertSame(first, second);
+        assertEquals(1, mFactory.mCodecs.size());
+        assertEquals(1, codecPool.getStats().getHits());
+        assertEquals(1, codecPool.getStats().getMisses());
+        assertEquals(0, getCodec(0).mReleased);
+
+        second.release();
+        codecPool.close();
+        assertEquals(1, getCodec(0).mReleased);
+    }
+
+    @Test
+    public void resetsAsyncCodecBeforeReuse() throws IOException {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        final EncoderCodec codec = codecPool.createEncoder(AVC);
+        codec.setCallback(null, null);
+        codec.release();
+        // Release twice is harmless
+        codec.release();
+        assertEquals(1, getCodec(0).mResets);
+        assertSame(codec, codecPool.createEncoder(AVC));
+        codecPool.close();
+    }
+
+    @Test
+    public void evictsIdleCodecOfAnotherType() throws IOException {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        codecPool.createEncoder(AVC).release();
+        final EncoderCodec hevc = codecPool.createEncoder(HEVC);
+        assertEquals(2, mFactory.mCodecs.size());
+        assertEquals(1, getCodec(0).mReleased);
+        assertEquals(1, codecPool.getStats().getEvictions());
+        hevc.release();
+        codecPool.close();
+        assertEquals(1, getCodec(1).mReleased);
+    }
+
+    @Test(timeout = 10000)
+    public void blocksUntilACodecIsReleased() throws Exception {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        final EncoderCodec held = codecPool.createEncoder(AVC);
+        final AtomicReference<EncoderCodec> acquired = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(codecPool.createEncoder(AVC));
+                } catch (IOException e) {
+                    // acquired stays null
+                }
+                done.countDown();
+            }
+        });
+        thread.start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        held.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertSame(held, acquired.get());
+        codecPool.close();
+    }
+
+    @Test(timeout = 10000)
+    public void closeWakesWaiters() throws Exception {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        final EncoderCodec held = codecPool.createEncoder(AVC);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    codecPool.createEncoder(HEVC);
+                } catch (IOException | IllegalStateException e) {
+                    error.set(e);
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+        codecPool.close();
+        thread.join();
+        assertTrue(error.get() instanceof IllegalStateException);
+        assertEquals(1, mFactory.mCodecs.size());
+        // Codecs still in use are destroyed on release
+        held.release();
+        assertEquals(1, getCodec(0).mReleased);
+    }
+
+    @Test
+    public void keepsCodecsByName() throws IOException {
+        final CodecPool codecPool = new CodecPool(mFactory, 2);
+        final EncoderConfig pinned = new TestEncoderConfig(30f).setCodecName(SOFTWARE);
+        final EncoderConfig chosen = new TestEncoderConfig(30f);
+        assertEquals(SOFTWARE, codecPool.select(pinned));
+        assertEquals(HARDWARE, codecPool.select(chosen));
+
+        final EncoderCodec software = codecPool.createEncoder(SOFTWARE, AVC);
+        final EncoderCodec hardware = codecPool.createEncoder(HARDWARE, AVC);
+        assertEquals(SOFTWARE, getCodec(0).getName());
+        assertEquals(HARDWARE, getCodec(1).getName());
+        software.release();
+        hardware.release();
+
+        // Same MIME type, but only the codec with the same name is reused
+        assertSame(hardware, codecPool.createEncoder(HARDWARE, AVC));
+        assertSame(software, codecPool.createEncoder(SOFTWARE, AVC));
+        assertEquals(2, mFactory.mCodecs.size());
+        codecPool.close();
+    }
+
+    @Test(timeout = 10000)
+    public void limitsInstancesPerName() throws Exception {
+        mFactory.mMaxInstances.put(HARDWARE, 1);
+        final CodecPool codecPool = new CodecPool(mFactory, 3);
+        final EncoderCodec hardware = codecPool.createEncoder(HARDWARE, AVC);
+        // Another codec still fits in the pool
+        final EncoderCodec software = codecPool.createEncoder(SOFTWARE, AVC);
+        assertNotSame(hardware, software);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<EncoderCodec> acquired = new AtomicReference<>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(codecPool.createEncoder(HARDWARE, AVC));
+                } catch (IOException e) {
+                    // acquired stays null
+                }
+                done.countDown();
+            }
+        });
+        thread.start();
+        // The pool has room, but the hardware codec is at its limit
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        hardware.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertSame(hardware, acquired.get());
+        assertEquals(2, mFactory.mCodecs.size());
+        codecPool.close();
+    }
+
+    @Test
+    public void byTypeWithoutNamedFactory() throws IOException {
+        final FakeEncoderCodec.Factory factory = new FakeEncoderCodec.Factory(0, 0);
+        final CodecPool codecPool = new CodecPool(factory, 1);
+        assertEquals(null, codecPool.select(new TestEncoderConfig(30f)));
+        // The name is ignored, so it is the same codec as by type
+        codecPool.createEncoder(HARDWARE, AVC).release();
+        codecPool.createEncoder(AVC).release();
+        assertEquals(1, factory.mCodecs.size());
+        assertEquals("fake." + AVC, factory.getLast().getName());
+        assertEquals(1, codecPool.getStats().getHits());
+        codecPool.close();
+    }
+
+    @Test
+    public void createAfterCloseThrows() throws IOException {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        codecPool.close();
+        try {
+            codecPool.createEncoder(AVC);
+            fail("Created after close");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, mFactory.mCodecs.size());
+        assertEquals(0, codecPool.getStats().getMisses());
+    }
+
+    @Test
+    public void frameEncoderUsesTheConfigsCodec() throws Exception {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        final FakeFrameMuxer muxer = new FakeFrameMuxer(0);
+        final EncoderConfig config = new TestEncoderConfig(30f).setCodecName(SOFTWARE);
+        config.setInputSurfaceFactory(mFactory);
+        config.setFrameMuxerFactory(muxer);
+
+        final FrameEncoder frameEncoder = new FrameEncoder(config, codecPool, false);
+        frameEncoder.start();
+        frameEncoder.createFrame(frameEncoder.getCanvas());
+        frameEncoder.release();
+        assertEquals(SOFTWARE, getCodec(0).getName());
+        assertEquals(1, muxer.getFrames());
+
+        // The next encode with the same codec reuses it
+        config.setFrameMuxerFactory(new FakeFrameMuxer(0));
+        frameEncoder.start();
+        frameEncoder.release();
+        assertEquals(1, mFactory.mCodecs.size());
+        assertEquals(1, codecPool.getStats().getHits());
+        codecPool.close();
+    }
+
+    /**
+     * Renders its frames, optionally failing part way through
+     */
+    private static FrameSource frameSource(final int frames, final int failAt) {
+        return new FrameSource() {
+            @Override
+            public int getFrameCount() {
+                return frames;
+            }
+
+            @Override
+            public void renderFrame(final FrameEncoder frameEncoder, final int frame) {
+                if (frame == failAt) {
+                    throw new IllegalStateException("Render failed");
+                }
+                frameEncoder.createFrame(frameEncoder.getCanvas());
+            }
+        };
+    }
+
+    /**
+     * Fails at the end of stream, while the encoder is being released
+     */
+    static class FailingAudioMuxer extends FakeFrameMuxer {
+        FailingAudioMuxer() {
+            super(0);
+        }
+
+        @Override
+        public synchronized void copyAudio() {
+            throw new IllegalStateException("Audio failed");
+        }
+    }
+
+    private EncoderConfig jobConfig(final FakeFrameMuxer muxer) {
+        final EncoderConfig config = new TestEncoderConfig(30f);
+        config.setInputSurfaceFactory(mFactory);
+        config.setFrameMuxerFactory(muxer);
+        return config;
+    }
+
+    @Test(timeout = 10000)
+    public void failedReleaseStillReturnsTheCodec() throws IOException {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        final FakeFrameMuxer failing = new FailingAudioMuxer();
+        final FrameEncoder frameEncoder = new FrameEncoder(jobConfig(failing), codecPool, false);
+        frameEncoder.start();
+        frameEncoder.createFrame(frameEncoder.getCanvas());
+        try {
+            frameEncoder.release();
+            fail("Drain error not thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Audio failed", e.getMessage());
+        }
+        assertNull(frameEncoder.getCodecName());
+        assertEquals(1, failing.mReleases);
+        // Back in the pool: a pool of one would block here otherwise
+        codecPool.createEncoder(HARDWARE, AVC).release();
+        assertEquals(1, codecPool.getStats().getHits());
+        assertEquals(1, mFactory.mCodecs.size());
+        codecPool.close();
+    }
+
+    @Test(timeout = 20000)
+    public void failedJobsDontLeakPooledCodecs() throws Exception {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        final EncodeJobScheduler scheduler = new EncodeJobScheduler(codecPool);
+        // More failures than the pool has codecs, failing while rendering and while releasing
+        for (int i = 0; i < 3; i++) {
+            try {
+                scheduler.submit(jobConfig(new FakeFrameMuxer(0)), frameSource(3, 1)).get();
+                fail("Job didn't fail");
+            } catch (ExecutionException e) {
+                assertEquals("Render failed", e.getCause().getMessage());
+            }
+            try {
+                scheduler.submit(jobConfig(new FailingAudioMuxer()), frameSource(3, -1)).get();
+                fail("Job didn't fail");
+            } catch (ExecutionException e) {
+                assertEquals("Audio failed", e.getCause().getMessage());
+            }
+        }
+        final FakeFrameMuxer muxer = new FakeFrameMuxer(0);
+        assertEquals(3, scheduler.submit(jobConfig(muxer), frameSource(3, -1)).get().getFrames());
+        assertEquals(3, muxer.getFrames());
+        assertEquals(1, mFactory.mCodecs.size());
+        assertEquals(6, codecPool.getStats().getHits());
+
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, getCodec(0).mReleased);
+    }
+
+    @Test(timeout = 20000)
+    public void cancelWaitsForTheWorkers() throws Exception {
+        final CodecPool codecPool = new CodecPool(mFactory, 1);
+        final EncodeJobScheduler scheduler = new EncodeJobScheduler(codecPool);
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch rendered = new CountDownLatch(1);
+        // A render that doesn't stop when interrupted
+        final FrameSource slow = new FrameSource() {
+            @Override
+            public int getFrameCount() {
+                return 1;
+            }
+
+            @Override
+            public void renderFrame(final FrameEncoder frameEncoder, final int frame) {
+                rendering.countDown();
+                while (true) {
+                    try {
+                        rendered.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // keep rendering
+                    }
+                }
+                frameEncoder.createFrame(frameEncoder.getCanvas());
+            }
+        };
+        final EncodeJobScheduler.Job running = scheduler.schedule(jobConfig(new FakeFrameMuxer(0)), slow);
+        final FakeFrameMuxer queuedMuxer = new FakeFrameMuxer(0);
+        final EncodeJobScheduler.Job queued = scheduler.schedule(jobConfig(queuedMuxer), frameSource(3, -1));
+        rendering.await();
+
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ParallelEncoder.cancelAndWait(Arrays.asList(running, queued));
+                cancelled.countDown();
+            }
+        });
+        thread.start();
+        // Future.get() would already throw CancellationException, yet the worker is still rendering
+        assertFalse(cancelled.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(running.isCancelled());
+        rendered.countDown();
+        thread.join();
+        // The queued job never started
+        assertEquals(0, queuedMuxer.getFrames());
+
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
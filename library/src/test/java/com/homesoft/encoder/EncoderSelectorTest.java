@@ -0,0 +1,158 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class EncoderSelectorTest {
+    private static final String AVC = AvcEncoderConfig.MIME_TYPE;
+    private static final String HEVC = HevcEncoderConfig.MIME_TYPE;
+
+    /**
+     * An entry of a synthetic codec list
+     */
+    static class Candidate implements EncoderSelector.Candidate {
+        private final String mName;
+        private final String mMimeType;
+        private final boolean mHardwareAccelerated;
+        private final int mMaxWidth;
+        private final double mFrameRate;
+        private final int mMaxInstances;
+
+        Candidate(final String name, final String mimeType, final boolean hardwareAccelerated, final int maxWidth,
+                  final double frameRate, final int maxInstances) {
+            mName = name;
+            mMimeType = mimeType;
+            mHardwareAccelerated = hardwareAccelerated;
+            mMaxWidth = maxWidth;
+            mFrameRate = frameRate;
+            mMaxInstances = maxInstances;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public boolean supportsType(final String mimeType) {
+            return mMimeType.equalsIgnoreCase(mimeType);
+        }
+
+        @Override
+        public boolean isHardwareAccelerated() {
+            return mHardwareAccelerated;
+        }
+
+        @Override
+        public boolean isSupported(final EncoderConfig config) {
+            return config.getWidth() <= mMaxWidth;
+        }
+
+        @Override
+        public double getFrameRate(final EncoderConfig config) {
+            return mFrameRate;
+        }
+
+        @Override
+        public int getMaxSupportedInstances(final String mimeType) {
+            return mMaxInstances;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private static EncoderConfig config(final int width) {
+        return new AvcEncoderConfig("test.mp4", width, width * 9 / 16, 30f, 2000000, "");
+    }
+
+    private static String names(final List<EncoderSelector.Candidate> candidates) {
+        final StringBuilder sb = new StringBuilder();
+        for (EncoderSelector.Candidate candidate : candidates) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(candidate.getName());
+        }
+        return sb.toString();
+    }
+
+    // In codec list order, software first like many devices
+    private final EncoderSelector mSelector = new EncoderSelector(Arrays.<EncoderSelector.Candidate>asList(
+            new Candidate("sw.avc", AVC, false, 4096, 500, 16),
+            new Candidate("hw.avc.slow", AVC, true, 3840, 60, 4),
+            new Candidate("hw.hevc", HEVC, true, 3840, 240, 2),
+            new Candidate("hw.avc.fast", AVC, true, 1920, 240, 2),
+            new Candidate("hw.avc.same", AVC, true, 1920, 240, 8)));
+
+    @Test
+    public void ranksHardwareFirstThenBySpeed() {
+        // Ties keep codec list order
+        assertEquals("hw.avc.fast,hw.avc.same,hw.avc.slow,sw.avc", names(mSelector.rank(config(1280))));
+    }
+
+    @Test
+    public void ranksOnlyEncodersThatSupportTheConfig() {
+        assertEquals("hw.avc.slow,sw.avc", names(mSelector.rank(config(3840))));
+        assertEquals("sw.avc", names(mSelector.rank(config(4096))));
+        assertTrue(mSelector.rank(config(8192)).isEmpty());
+    }
+
+    @Test
+    public void selectsTheBestOrThePinnedEncoder() {
+        assertEquals("hw.avc.fast", mSelector.select(config(1280)));
+        assertEquals("hw.avc.slow", mSelector.select(config(3840)));
+        assertNull(mSelector.select(config(8192)));
+        // Pinned wins, even if it isn't the fastest
+        assertEquals("sw.avc", mSelector.select(config(1280).setCodecName("sw.avc")));
+    }
+
+    @Test
+    public void filtersByType() {
+        assertEquals("sw.avc,hw.avc.slow,hw.avc.fast,hw.avc.same", names(mSelector.getEncoders(AVC)));
+        assertEquals("hw.hevc", names(mSelector.getEncoders("VIDEO/HEVC")));
+        assertTrue(mSelector.isSupported(HEVC));
+        assertFalse(mSelector.isSupported("video/x-vnd.on2.vp9"));
+    }
+
+    @Test
+    public void prefersHardwareForTheType() {
+        assertEquals("hw.avc.slow", mSelector.getPreferred(AVC).getName());
+        assertNull(mSelector.getPreferred("video/x-vnd.on2.vp9"));
+        final EncoderSelector softwareOnly = new EncoderSelector(Arrays.<EncoderSelector.Candidate>asList(
+                new Candidate("sw.avc", AVC, false, 4096, 500, 16)));
+        assertEquals("sw.avc", softwareOnly.getPreferred(AVC).getName());
+    }
+
+    @Test
+    public void maxInstancesOfTheNamedEncoder() {
+        assertEquals(2, mSelector.getMaxSupportedInstances("hw.avc.fast", AVC));
+        assertEquals(4, mSelector.getMaxSupportedInstances("hw.avc.slow", AVC));
+        assertEquals(0, mSelector.getMaxSupportedInstances("unknown", AVC));
+    }
+}
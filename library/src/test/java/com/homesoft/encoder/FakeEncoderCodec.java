@@ -0,0 +1,400 @@
+package com.homesoft.encoder;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Stands in for a MediaCodec encoder fed by a Surface.
+ * <p>
+ * Frames posted to its {@link InputSurface} are "encoded" on a worker thread, taking the encode time
+ * each, like a hardware encoder working alongside the caller.  In async mode the worker delivers the
+ * callbacks itself, the Handler is ignored as there is no Looper on the JVM.
+ * With reordering every other frame comes out after the next one, like a B-frame.
+ */
+class FakeEncoderCodec implements EncoderCodec {
+    static final int SAMPLE_SIZE = 64;
+    private static final long END_OF_STREAM = Long.MIN_VALUE;
+
+    private final String mName;
+    private final long mEncodeNs;
+    private final boolean mReorder;
+    private final LinkedBlockingQueue<Long> mInput = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Integer> mOutput = new LinkedBlockingQueue<>();
+    private final HashMap<Integer, MediaCodec.BufferInfo> mBufferInfos = new HashMap<>();
+    private Callback mCallback;
+    private Thread mWorker;
+    private int mNextIndex;
+    private int mPendingIndex = -1;
+    private boolean mFormatReported;
+    private int mFailAfterFrames = -1;
+    private volatile boolean mDropEndOfStream;
+    private long mLastPtsUs;
+
+    int mConfigured;
+    int mStarted;
+    int mStopped;
+    int mResets;
+    int mReleased;
+    int mFrames;
+    int mBuffersReleased;
+
+    FakeEncoderCodec(final String name, final long encodeNs, final boolean reorder) {
+        mName = name;
+        mEncodeNs = encodeNs;
+        mReorder = reorder;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Report an encoder error instead of encoding this frame
+     */
+    void failAfter(final int frames) {
+        mFailAfterFrames = frames;
+    }
+
+    /**
+     * Never output the end of stream buffer, like a codec that failed without reporting it
+     */
+    void dropEndOfStream() {
+        mDropEndOfStream = true;
+    }
+
+    void queueFrame(final long ptsUs) {
+        mInput.add(ptsUs);
+    }
+
+    @Override
+    public void setCallback(final Callback callback, final Handler handler) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(final MediaFormat mediaFormat) {
+        mConfigured++;
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void start() {
+        mStarted++;
+        mFormatReported = false;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encode();
+            }
+        }, mName);
+        mWorker.start();
+    }
+
+    private void encode() {
+        int inputFrames = 0;
+        long heldPtsUs = END_OF_STREAM;
+        try {
+            while (true) {
+                final long ptsUs = mInput.take();
+                if (ptsUs == END_OF_STREAM) {
+                    if (heldPtsUs != END_OF_STREAM) {
+                        outputFrame(heldPtsUs);
+                    }
+                    if (!mDropEndOfStream) {
+                        output(mLastPtsUs, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    }
+                    return;
+                }
+                sleepNs(mEncodeNs);
+                if (mFailAfterFrames >= 0 && mFrames >= mFailAfterFrames) {
+                    final Callback callback = mCallback;
+                    if (callback != null) {
+                        callback.onError(this, new IllegalStateException("Fake encoder failed"));
+                    }
+                    return;
+                }
+                if (mReorder && inputFrames++ % 2 == 1) {
+                    heldPtsUs = ptsUs;
+                    continue;
+                }
+                outputFrame(ptsUs);
+                if (heldPtsUs != END_OF_STREAM) {
+                    outputFrame(heldPtsUs);
+                    heldPtsUs = END_OF_STREAM;
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void outputFrame(final long ptsUs) {
+        output(ptsUs, SAMPLE_SIZE, mFrames == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mLastPtsUs = ptsUs;
+        mFrames++;
+    }
+
+    private void output(final long ptsUs, final int size, final int flags) {
+        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        bufferInfo.offset = 0;
+        bufferInfo.size = size;
+        bufferInfo.presentationTimeUs = ptsUs;
+        bufferInfo.flags = flags;
+        final int index;
+        synchronized (this) {
+            index = mNextIndex++;
+            mBufferInfos.put(index, bufferInfo);
+        }
+        final Callback callback = mCallback;
+        if (callback == null) {
+            mOutput.add(index);
+        } else {
+            if (!mFormatReported) {
+                mFormatReported = true;
+                callback.onOutputFormatChanged(this, getOutputFormat());
+            }
+            callback.onOutputBufferAvailable(this, index, bufferInfo);
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final MediaCodec.BufferInfo bufferInfo, final long timeoutUs) {
+        int index = mPendingIndex;
+        mPendingIndex = -1;
+        if (index < 0) {
+            try {
+                final Integer polled = mOutput.poll(timeoutUs, TimeUnit.MICROSECONDS);
+                if (polled == null) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+                index = polled;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            if (!mFormatReported) {
+                // The format comes out just before the first buffer
+                mFormatReported = true;
+                mPendingIndex = index;
+                return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            }
+        }
+        final MediaCodec.BufferInfo info;
+        synchronized (this) {
+            info = mBufferInfos.get(index);
+        }
+        bufferInfo.offset = info.offset;
+        bufferInfo.size = info.size;
+        bufferInfo.presentationTimeUs = info.presentationTimeUs;
+        bufferInfo.flags = info.flags;
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return ByteBuffer.allocate(SAMPLE_SIZE);
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Image getInputImage(final int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int size, final long presentationTimeUs, final int flags) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        synchronized (this) {
+            mBufferInfos.remove(index);
+            mBuffersReleased++;
+        }
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return new MediaFormat();
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mInput.add(END_OF_STREAM);
+    }
+
+    @Override
+    public void stop() {
+        mStopped++;
+        stopWorker();
+    }
+
+    @Override
+    public void reset() {
+        mResets++;
+        stopWorker();
+        mCallback = null;
+    }
+
+    @Override
+    public void release() {
+        mReleased++;
+        stopWorker();
+    }
+
+    private void stopWorker() {
+        if (mWorker != null) {
+            mWorker.interrupt();
+            try {
+                mWorker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWorker = null;
+        }
+        mInput.clear();
+        mOutput.clear();
+        mPendingIndex = -1;
+    }
+
+    @Override
+    public MediaCodecInfo getCodecInfo() {
+        return null;
+    }
+
+    static void sleepNs(final long ns) throws InterruptedException {
+        if (ns > 0) {
+            Thread.sleep(ns / 1000000, (int)(ns % 1000000));
+        }
+    }
+
+    /**
+     * Busy work on the caller's thread, i.e. drawing a frame
+     */
+    static void spinNs(final long ns) {
+        final long end = System.nanoTime() + ns;
+        while (System.nanoTime() < end) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Creates fake codecs, and the input surfaces that feed them
+     */
+    static class Factory implements EncoderCodec.Factory, InputSurface.Factory {
+        private final long mEncodeNs;
+        private final long mCreateNs;
+        final List<FakeEncoderCodec> mCodecs = new ArrayList<>();
+        // Pass the presentation time to the codec, as EglInputSurface does
+        boolean mTimestamped = true;
+        boolean mReorder;
+
+        /**
+         * @param encodeNs time each frame takes to come out of the encoder
+         * @param createNs time to create a codec
+         */
+        Factory(final long encodeNs, final long createNs) {
+            mEncodeNs = encodeNs;
+            mCreateNs = createNs;
+        }
+
+        @Override
+        public EncoderCodec createEncoder(final String mimeType) throws IOException {
+            return create("fake." + mimeType);
+        }
+
+        synchronized FakeEncoderCodec create(final String name) throws IOException {
+            try {
+                sleepNs(mCreateNs);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            final FakeEncoderCodec codec = new FakeEncoderCodec(name, mEncodeNs, mReorder);
+            mCodecs.add(codec);
+            return codec;
+        }
+
+        synchronized FakeEncoderCodec getLast() {
+            return mCodecs.get(mCodecs.size() - 1);
+        }
+
+        /**
+         * Feeds the last codec created, FrameEncoder creates its input surface right after the codec.
+         * Unless timestamped, frames are stamped with the time they are posted, as a Canvas Surface does.
+         */
+        @Override
+        public InputSurface createInputSurface(final Surface surface, final EncoderConfig encoderConfig) {
+            final FakeEncoderCodec codec = getLast();
+            final boolean timestamped = mTimestamped;
+            return new InputSurface() {
+                @Override
+                public Canvas lockCanvas() {
+                    return new Canvas();
+                }
+
+                @Override
+                public void post(final Canvas canvas, final long ptsUs) {
+                    codec.queueFrame(timestamped ? ptsUs : System.nanoTime() / 1000);
+                }
+
+                @Override
+                public void post(final Bitmap bitmap, final long ptsUs) {
+                    post((Canvas)null, ptsUs);
+                }
+
+                @Override
+                public boolean isTimestamped() {
+                    return timestamped;
+                }
+
+                @Override
+                public void release() {
+                }
+            };
+        }
+    }
+}
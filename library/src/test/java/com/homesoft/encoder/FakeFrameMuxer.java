@@ -0,0 +1,85 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Records what it is given, optionally taking a while per frame like a slow disk
+ */
+class FakeFrameMuxer implements FrameMuxer, FrameMuxer.Factory {
+    private final long mWriteNs;
+    final List<Long> mPresentationTimesUs = new ArrayList<>();
+    final List<Integer> mSizes = new ArrayList<>();
+    final List<Thread> mThreads = new ArrayList<>();
+    private boolean mStarted;
+    int mStarts;
+    int mAudioCopies;
+    int mReleases;
+
+    FakeFrameMuxer(final long writeNs) {
+        mWriteNs = writeNs;
+    }
+
+    @Override
+    public FrameMuxer createFrameMuxer(final EncoderConfig encoderConfig) {
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public synchronized void start(final FrameEncoder frameEncoder) {
+        mStarted = true;
+        mStarts++;
+    }
+
+    @Override
+    public synchronized void copyAudio() {
+        mAudioCopies++;
+    }
+
+    @Override
+    public void muxVideoFrame(final ByteBuffer byteBuffer, final MediaCodec.BufferInfo bufferInfo) {
+        try {
+            FakeEncoderCodec.sleepNs(mWriteNs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            mPresentationTimesUs.add(bufferInfo.presentationTimeUs);
+            mSizes.add(bufferInfo.size);
+            mThreads.add(Thread.currentThread());
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        mReleases++;
+    }
+
+    synchronized int getFrames() {
+        return mPresentationTimesUs.size();
+    }
+}
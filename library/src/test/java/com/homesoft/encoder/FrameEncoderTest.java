@@ -0,0 +1,220 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class FrameEncoderTest {
+    private static final float FPS = 30f;
+    private static final int FRAMES = 30;
+    private static final long[] IRREGULAR_US = {0, 10000, 45000, 46000, 100000, 1000000};
+    // Decode order, every other frame swapped with the next
+    private static final List<Long> REORDERED_US = Arrays.asList(0L, 45000L, 10000L, 100000L, 46000L, 1000000L);
+
+    private final FakeEncoderCodec.Factory mCodecFactory = new FakeEncoderCodec.Factory(1000000, 0);
+    private final FakeFrameMuxer mMuxer = new FakeFrameMuxer(0);
+
+    private FrameEncoder createFrameEncoder(final boolean async) {
+        final EncoderConfig config = new TestEncoderConfig(FPS);
+        config.setInputSurfaceFactory(mCodecFactory);
+        config.setFrameMuxerFactory(mMuxer);
+        return new FrameEncoder(config, mCodecFactory, async);
+    }
+
+    private void encode(final FrameEncoder frameEncoder, final int frames) throws Exception {
+        frameEncoder.start();
+        for (int i = 0; i < frames; i++) {
+            frameEncoder.createFrame(frameEncoder.getCanvas());
+        }
+        frameEncoder.release();
+    }
+
+    private void assertAllFrames(final int frames) {
+        final long frameUs = FrameEncoder.getFrameTime(FPS);
+        assertEquals(frames, mMuxer.getFrames());
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i * frameUs, (long)mMuxer.mPresentationTimesUs.get(i));
+            assertEquals(FakeEncoderCodec.SAMPLE_SIZE, (int)mMuxer.mSizes.get(i));
+        }
+        assertEquals(1, mMuxer.mStarts);
+        assertEquals(1, mMuxer.mAudioCopies);
+        assertEquals(1, mMuxer.mReleases);
+
+        final FakeEncoderCodec codec = mCodecFactory.getLast();
+        assertEquals(1, codec.mConfigured);
+        assertEquals(1, codec.mStopped);
+        assertEquals(1, codec.mReleased);
+        // Every frame plus the end of stream buffer went back to the codec
+        assertEquals(frames + 1, codec.mBuffersReleased);
+    }
+
+    @Test
+    public void syncEncodesEveryFrame() throws Exception {
+        encode(createFrameEncoder(false), FRAMES);
+        assertAllFrames(FRAMES);
+        for (Thread thread : mMuxer.mThreads) {
+            assertSame(Thread.currentThread(), thread);
+        }
+    }
+
+    @Test
+    public void asyncEncodesEveryFrame() throws Exception {
+        final FrameEncoder frameEncoder = createFrameEncoder(true);
+        assertTrue(frameEncoder.isAsync());
+        encode(frameEncoder, FRAMES);
+        assertAllFrames(FRAMES);
+        // Muxed from the codec's callbacks, not the caller
+        for (Thread thread : mMuxer.mThreads) {
+            assertNotSame(Thread.currentThread(), thread);
+        }
+    }
+
+    @Test
+    public void asyncEmptyStream() throws Exception {
+        encode(createFrameEncoder(true), 0);
+        assertEquals(0, mMuxer.getFrames());
+        assertEquals(1, mCodecFactory.getLast().mReleased);
+    }
+
+    /**
+     * Post frames at irregular times to a codec that outputs every other frame late, like B-frames
+     * @return the times muxed
+     */
+    private List<Long> encodeAt(final boolean async, final long[] ptsUs) throws Exception {
+        mCodecFactory.mReorder = true;
+        final FrameEncoder frameEncoder = createFrameEncoder(async);
+        frameEncoder.start();
+        for (long frameUs : ptsUs) {
+            frameEncoder.createFrameAt(frameEncoder.getCanvas(), frameUs);
+            // Post times a clear step apart, for the Canvas surface
+            FakeEncoderCodec.spinNs(200000);
+        }
+        frameEncoder.release();
+        return mMuxer.mPresentationTimesUs;
+    }
+
+    @Test
+    public void timestampedSurfaceKeepsTheCallersTimes() throws Exception {
+        assertEquals(REORDERED_US, encodeAt(true, IRREGULAR_US));
+    }
+
+    @Test
+    public void timestampedSurfaceKeepsTheCallersTimesSync() throws Exception {
+        assertEquals(REORDERED_US, encodeAt(false, IRREGULAR_US));
+    }
+
+    @Test
+    public void canvasSurfaceTimesAreMappedBack() throws Exception {
+        mCodecFactory.mTimestamped = false;
+        assertEquals(REORDERED_US, encodeAt(true, IRREGULAR_US));
+    }
+
+    @Test
+    public void canvasSurfaceTimesAreMappedBackSync() throws Exception {
+        mCodecFactory.mTimestamped = false;
+        assertEquals(REORDERED_US, encodeAt(false, IRREGULAR_US));
+    }
+
+    @Test(timeout = 10000)
+    public void asyncErrorIsThrownToTheCaller() throws Exception {
+        final FrameEncoder frameEncoder = createFrameEncoder(true);
+        frameEncoder.start();
+        mCodecFactory.getLast().failAfter(5);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                frameEncoder.createFrame(frameEncoder.getCanvas());
+                Thread.sleep(1);
+            }
+            fail("Encoder error was not reported");
+        } catch (RuntimeException e) {
+            assertEquals("Encoder error", e.getMessage());
+        }
+        try {
+            frameEncoder.release();
+            fail("Encoder error was not reported on release");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        // Released without waiting for an end of stream that won't come
+        assertEquals(1, mCodecFactory.getLast().mReleased);
+        assertEquals(5, mMuxer.getFrames());
+    }
+
+    @Test(timeout = 10000)
+    public void asyncMissingEndOfStreamTimesOut() throws Exception {
+        final FrameEncoder frameEncoder = createFrameEncoder(true);
+        frameEncoder.setEndOfStreamTimeoutMs(200);
+        frameEncoder.start();
+        mCodecFactory.getLast().dropEndOfStream();
+        for (int i = 0; i < 3; i++) {
+            frameEncoder.createFrame(frameEncoder.getCanvas());
+        }
+        try {
+            frameEncoder.release();
+            fail("Missing end of stream not reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No end of stream"));
+        }
+        assertEquals(1, mCodecFactory.getLast().mReleased);
+        assertEquals(1, mMuxer.mReleases);
+        // Without the whole video, the audio isn't added
+        assertEquals(0, mMuxer.mAudioCopies);
+    }
+
+    @Test(timeout = 10000)
+    public void asyncReuseAfterAnErrorStartsAfresh() throws Exception {
+        final EncoderConfig config = new TestEncoderConfig(FPS);
+        config.setInputSurfaceFactory(mCodecFactory);
+        config.setFrameMuxerFactory(new FakeFrameMuxer(0));
+        final FrameEncoder frameEncoder = new FrameEncoder(config, mCodecFactory, true);
+        frameEncoder.start();
+        mCodecFactory.getLast().failAfter(0);
+        frameEncoder.createFrame(frameEncoder.getCanvas());
+        try {
+            frameEncoder.release();
+            fail("Encoder error was not reported on release");
+        } catch (RuntimeException e) {
+            assertEquals("Encoder error", e.getMessage());
+        }
+
+        config.setFrameMuxerFactory(mMuxer);
+        encode(frameEncoder, FRAMES);
+        assertAllFrames(FRAMES);
+    }
+
+    @Test
+    public void inputBufferBelowApi21IsRejectedByTheConfig() {
+        final EncoderConfig config = new TestEncoderConfig(FPS);
+        try {
+            // The JVM stubs report API 0
+            config.setInputMode(EncoderConfig.INPUT_BUFFER);
+            fail("INPUT_BUFFER accepted below API 21");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(EncoderConfig.INPUT_SURFACE, config.getInputMode());
+    }
+}
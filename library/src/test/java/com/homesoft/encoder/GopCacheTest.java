@@ -0,0 +1,87 @@
+package com.homesoft.encoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class GopCacheTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("gops").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static File put(final GopCache gopCache, final String key, final int size) throws IOException {
+        final File file = gopCache.createTempFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return gopCache.put(key, file);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() throws IOException {
+        final GopCache gopCache = new GopCache(mDir, 250);
+        put(gopCache, "a", 100);
+        put(gopCache, "b", 100);
+        gopCache.get("a");
+        put(gopCache, "c", 100);
+        assertNull(gopCache.get("b"));
+        assertTrue(gopCache.get("a").exists());
+        assertTrue(gopCache.get("c").exists());
+        assertEquals(1, gopCache.getStats().getEvictions());
+    }
+
+    @Test
+    public void gopOverTheLimitIsKeptUntilTheNextPut() throws IOException {
+        final GopCache gopCache = new GopCache(mDir, 100);
+        put(gopCache, "a", 50);
+        final File big = put(gopCache, "big", 200);
+        assertTrue(big.exists());
+        assertEquals(200, gopCache.getStats().getBytes());
+        assertNull(gopCache.get("a"));
+
+        final File next = put(gopCache, "next", 50);
+        assertTrue(next.exists());
+        assertFalse(big.exists());
+        assertEquals(50, gopCache.getStats().getBytes());
+    }
+}
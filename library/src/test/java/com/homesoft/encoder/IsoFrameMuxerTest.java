@@ -0,0 +1,206 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+
+import com.homesoft.encoder.mp4.AacSampleEntry;
+import com.homesoft.encoder.mp4.AvcSampleEntry;
+import com.homesoft.encoder.mp4.Mp4Track;
+import com.homesoft.encoder.mp4.SampleEntry;
+import com.homesoft.encoder.mp4.SampleWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Audio interleaving of the real {@link IsoFrameMuxer}, against a writer that records the sample order
+ */
+public class IsoFrameMuxerTest {
+    private static final int FRAMES = 30;
+    private static final long FRAME_US = FrameEncoder.getFrameTime(30f);
+    private static final long SAMPLE_US = 23220;
+    private static final byte[] SPS = {0x67, 0x42, 0, 0x1e};
+    private static final byte[] PPS = {0x68, (byte)0xce, 0x3c, (byte)0x80};
+
+    /**
+     * Records the samples in the order they are written
+     */
+    static class RecordingSampleWriter implements SampleWriter {
+        final List<Mp4Track> mTracks = new ArrayList<>();
+        final List<Mp4Track> mSampleTracks = new ArrayList<>();
+        final List<Long> mSampleTimesUs = new ArrayList<>();
+        boolean mStarted;
+        int mFinishes;
+
+        @Override
+        public Mp4Track addTrack(final SampleEntry sampleEntry, final long defaultSampleDurationUs) {
+            final Mp4Track track = new Mp4Track(mTracks.size() + 1, sampleEntry, defaultSampleDurationUs);
+            mTracks.add(track);
+            return track;
+        }
+
+        @Override
+        public List<Mp4Track> getTracks() {
+            return mTracks;
+        }
+
+        @Override
+        public boolean isStarted() {
+            return mStarted;
+        }
+
+        @Override
+        public void start() {
+            mStarted = true;
+        }
+
+        @Override
+        public void writeSample(final Mp4Track track, final ByteBuffer sample, final long presentationTimeUs,
+                                final boolean sync) {
+            assertTrue(mStarted);
+            mSampleTracks.add(track);
+            mSampleTimesUs.add(presentationTimeUs);
+        }
+
+        @Override
+        public void finish() {
+            mFinishes++;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private final RecordingSampleWriter mWriter = new RecordingSampleWriter();
+    private AudioSourceTest.FakeAudioSource mAudio;
+    private IsoFrameMuxer mMuxer;
+
+    @Before
+    public void setUp() {
+        final AudioConfig audioConfig = new AudioConfig() {
+            @Override
+            AudioSource createAudioSource(final long frameUsec) {
+                mAudio = new AudioSourceTest.FakeAudioSource(frameUsec, true);
+                return mAudio;
+            }
+        };
+        // MediaFormat is a stub here, so the sample entries don't come from the formats
+        mMuxer = new IsoFrameMuxer(mWriter, audioConfig, 30f) {
+            @Override
+            SampleEntry getVideoSampleEntry(final FrameEncoder frameEncoder) {
+                return new AvcSampleEntry(320, 240, Collections.singletonList(SPS),
+                        Collections.singletonList(PPS));
+            }
+
+            @Override
+            AacSampleEntry getAudioSampleEntry(final AudioSource audio) {
+                return new AacSampleEntry(44100, 2, AacSampleEntry.createAudioSpecificConfig(44100, 2));
+            }
+        };
+        mMuxer.start(null);
+    }
+
+    private void muxFrames() {
+        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        for (int i = 0; i < FRAMES; i++) {
+            final byte[] frame = {0, 0, 0, 1, 0x65, (byte)0x88, (byte)i};
+            bufferInfo.offset = 0;
+            bufferInfo.size = frame.length;
+            bufferInfo.presentationTimeUs = i * FRAME_US;
+            bufferInfo.flags = i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            mMuxer.muxVideoFrame(ByteBuffer.wrap(frame), bufferInfo);
+        }
+    }
+
+    private int count(final Mp4Track track) {
+        return Collections.frequency(mWriter.mSampleTracks, track);
+    }
+
+    @Test
+    public void audioUpToEachFrameIsWrittenBeforeIt() {
+        final Mp4Track video = mWriter.mTracks.get(0);
+        final Mp4Track audio = mWriter.mTracks.get(1);
+        muxFrames();
+
+        int frames = 0;
+        int samples = 0;
+        long lastAudioUs = -1;
+        for (int i = 0; i < mWriter.mSampleTracks.size(); i++) {
+            final long ptsUs = mWriter.mSampleTimesUs.get(i);
+            if (mWriter.mSampleTracks.get(i) == video) {
+                assertEquals(frames * FRAME_US, ptsUs);
+                // Every sample starting at or before the frame, and none after
+                assertEquals(ptsUs / SAMPLE_US + 1, samples);
+                frames++;
+            } else {
+                assertTrue(mWriter.mSampleTracks.get(i) == audio);
+                assertTrue(ptsUs > lastAudioUs);
+                lastAudioUs = ptsUs;
+                samples++;
+            }
+        }
+        assertEquals(FRAMES, frames);
+    }
+
+    @Test
+    public void copyAudioWritesOnlyTheTail() {
+        final Mp4Track audio = mWriter.mTracks.get(1);
+        muxFrames();
+        final long lastFrameUs = (FRAMES - 1) * FRAME_US;
+        final int interleaved = count(audio);
+        assertEquals(lastFrameUs / SAMPLE_US + 1, interleaved);
+
+        mMuxer.copyAudio();
+        // Trimmed at the end of the last frame
+        final long endUs = lastFrameUs + FRAME_US;
+        assertEquals(endUs, mAudio.mEndUs);
+        final int total = count(audio);
+        assertEquals((endUs + SAMPLE_US - 1) / SAMPLE_US, total);
+        // Only the samples within the last frame were left for the end
+        for (int i = mWriter.mSampleTracks.size() - (total - interleaved); i < mWriter.mSampleTracks.size(); i++) {
+            assertTrue(mWriter.mSampleTracks.get(i) == audio);
+            final long ptsUs = mWriter.mSampleTimesUs.get(i);
+            assertTrue(ptsUs > lastFrameUs && ptsUs < endUs);
+        }
+        assertEquals(FRAMES, count(mWriter.mTracks.get(0)));
+
+        mMuxer.release();
+        assertEquals(1, mWriter.mFinishes);
+        assertEquals(1, mAudio.mReleases);
+    }
+
+    @Test
+    public void releaseWithoutFramesFinishesOnce() {
+        mMuxer.copyAudio();
+        mMuxer.release();
+        assertEquals(1, mWriter.mFinishes);
+        assertEquals(1, mAudio.mReleases);
+        // No video to trim to, so the source's audio is written whole
+        assertEquals(Long.MAX_VALUE, mAudio.mEndUs);
+    }
+}
@@ -0,0 +1,201 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PipelinedFrameMuxerTest {
+    private static final long FRAME_US = 33333;
+
+    /**
+     * Doesn't write anything until the gate opens
+     */
+    static class GatedMuxer extends FakeFrameMuxer {
+        final CountDownLatch mGate = new CountDownLatch(1);
+
+        GatedMuxer() {
+            super(0);
+        }
+
+        @Override
+        public void muxVideoFrame(final ByteBuffer byteBuffer, final MediaCodec.BufferInfo bufferInfo) {
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.muxVideoFrame(byteBuffer, bufferInfo);
+        }
+    }
+
+    private final GatedMuxer mSink = new GatedMuxer();
+
+    @After
+    public void openGate() {
+        mSink.mGate.countDown();
+    }
+
+    private static void mux(final FrameMuxer frameMuxer, final int frame) {
+        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        bufferInfo.offset = 0;
+        bufferInfo.size = FakeEncoderCodec.SAMPLE_SIZE - frame;
+        bufferInfo.presentationTimeUs = frame * FRAME_US;
+        bufferInfo.flags = frame == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        frameMuxer.muxVideoFrame(ByteBuffer.allocate(FakeEncoderCodec.SAMPLE_SIZE), bufferInfo);
+    }
+
+    /**
+     * Mux a frame on another thread, it waits if the ring is full
+     */
+    private static Thread muxLater(final FrameMuxer frameMuxer, final int frame, final CountDownLatch done,
+                                   final AtomicBoolean interrupted) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mux(frameMuxer, frame);
+                interrupted.set(Thread.currentThread().isInterrupted());
+                done.countDown();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test(timeout = 10000)
+    public void muxReturnsBeforeTheSinkWrites() {
+        final PipelinedFrameMuxer pipelined = new PipelinedFrameMuxer(mSink, 4, 16);
+        pipelined.start(null);
+        for (int i = 0; i < 3; i++) {
+            mux(pipelined, i);
+        }
+        assertEquals(0, mSink.getFrames());
+
+        mSink.mGate.countDown();
+        pipelined.release();
+        // Every queued frame is written, in order, before the sink is released
+        assertEquals(Arrays.asList(0L, FRAME_US, 2 * FRAME_US), mSink.mPresentationTimesUs);
+        assertEquals(Arrays.asList(64, 63, 62), mSink.mSizes);
+        assertEquals(1, mSink.mStarts);
+        assertEquals(1, mSink.mReleases);
+        final PipelinedFrameMuxer.Stats stats = pipelined.getStats();
+        assertEquals(3, stats.getFrames());
+        assertEquals(64 + 63 + 62, stats.getBytes());
+        assertEquals(0, stats.getStalls());
+    }
+
+    @Test(timeout = 10000)
+    public void fullRingWaitsForTheSink() throws Exception {
+        final PipelinedFrameMuxer pipelined = new PipelinedFrameMuxer(mSink, 2, 16);
+        pipelined.start(null);
+        // A frame keeps its slot until the sink has written it
+        mux(pipelined, 0);
+        mux(pipelined, 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        muxLater(pipelined, 2, done, new AtomicBoolean());
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+        mSink.mGate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pipelined.release();
+        assertEquals(3, mSink.getFrames());
+        assertEquals(1, pipelined.getStats().getStalls());
+    }
+
+    @Test(timeout = 10000)
+    public void interruptedCallerKeepsWaitingWithoutSpinning() throws Exception {
+        final PipelinedFrameMuxer pipelined = new PipelinedFrameMuxer(mSink, 1, 16);
+        pipelined.start(null);
+        mux(pipelined, 0);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final Thread thread = muxLater(pipelined, 1, done, interrupted);
+        Thread.sleep(50);
+        thread.interrupt();
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long cpuStart = threads.getThreadCpuTime(thread.getId());
+        assertFalse("Interrupt dropped a frame", done.await(200, TimeUnit.MILLISECONDS));
+        if (cpuStart >= 0) {
+            // A wait() that throws right away would burn the whole 200ms
+            assertTrue("Waiting thread is spinning",
+                    threads.getThreadCpuTime(thread.getId()) - cpuStart < 100000000L);
+        }
+
+        mSink.mGate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // The interrupt is kept for the caller
+        assertTrue(interrupted.get());
+        pipelined.release();
+        assertEquals(2, mSink.getFrames());
+    }
+
+    @Test
+    public void muxBeforeStartThrows() {
+        final PipelinedFrameMuxer pipelined = new PipelinedFrameMuxer(mSink, 1, 16);
+        try {
+            mux(pipelined, 0);
+            fail("Muxed without an I/O thread");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // Never started, so there is no thread to stop
+        pipelined.release();
+        assertEquals(1, mSink.mReleases);
+    }
+
+    @Test(timeout = 10000)
+    public void sinkErrorReachesTheCaller() throws Exception {
+        final FakeFrameMuxer failing = new FakeFrameMuxer(0) {
+            @Override
+            public void muxVideoFrame(final ByteBuffer byteBuffer, final MediaCodec.BufferInfo bufferInfo) {
+                throw new IllegalStateException("Disk full");
+            }
+        };
+        final PipelinedFrameMuxer pipelined = new PipelinedFrameMuxer(failing, 2, 16);
+        pipelined.start(null);
+        mux(pipelined, 0);
+        try {
+            pipelined.copyAudio();
+            fail("Sink error not reported");
+        } catch (IllegalStateException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+        try {
+            pipelined.release();
+            fail("Sink error not reported on release");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, failing.mReleases);
+    }
+}
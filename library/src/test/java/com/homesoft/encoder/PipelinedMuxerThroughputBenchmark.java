@@ -0,0 +1,122 @@
+package com.homesoft.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Encode time against a slow sink that stalls now and then, like a flash write, muxed directly
+ * on the encoder's thread vs through a {@link PipelinedFrameMuxer}.  The ring absorbs the stalls
+ * as long as the sink keeps up on average.
+ * <p>
+ * Wall clock timing, so it only runs with -Pbenchmark, see library/build.gradle.
+ * {@link PipelinedFrameMuxerTest} covers the behaviour.
+ */
+public class PipelinedMuxerThroughputBenchmark {
+    private static final int FRAMES = 60;
+    private static final long DRAW_NS = 2000000;
+    private static final long ENCODE_NS = 1000000;
+    private static final long WRITE_NS = 500000;
+    private static final int STALL_EVERY = 10;
+    private static final long STALL_NS = 20000000;
+    private static final int SLOTS = 16;
+
+    /**
+     * A sink that takes much longer for every STALL_EVERY-th frame
+     */
+    static class StallingMuxer extends FakeFrameMuxer {
+        private int mWrites;
+
+        StallingMuxer() {
+            super(WRITE_NS);
+        }
+
+        @Override
+        public void muxVideoFrame(final ByteBuffer byteBuffer, final MediaCodec.BufferInfo bufferInfo) {
+            if (++mWrites % STALL_EVERY == 0) {
+                try {
+                    FakeEncoderCodec.sleepNs(STALL_NS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.muxVideoFrame(byteBuffer, bufferInfo);
+        }
+    }
+
+    private PipelinedFrameMuxer mPipelined;
+
+    private long encode(final boolean async, final boolean pipelined) throws Exception {
+        final FakeEncoderCodec.Factory codecFactory = new FakeEncoderCodec.Factory(ENCODE_NS, 0);
+        final StallingMuxer sink = new StallingMuxer();
+        final EncoderConfig config = new TestEncoderConfig(30f);
+        config.setInputSurfaceFactory(codecFactory);
+        if (pipelined) {
+            config.setFrameMuxerFactory(new FrameMuxer.Factory() {
+                @Override
+                public FrameMuxer createFrameMuxer(final EncoderConfig encoderConfig) {
+                    mPipelined = new PipelinedFrameMuxer(sink, SLOTS, FakeEncoderCodec.SAMPLE_SIZE);
+                    return mPipelined;
+                }
+            });
+        } else {
+            config.setFrameMuxerFactory(sink);
+        }
+        final FrameEncoder frameEncoder = new FrameEncoder(config, codecFactory, async);
+        final long start = System.nanoTime();
+        frameEncoder.start();
+        for (int i = 0; i < FRAMES; i++) {
+            FakeEncoderCodec.spinNs(DRAW_NS);
+            frameEncoder.createFrame(frameEncoder.getCanvas());
+        }
+        frameEncoder.release();
+        final long elapsedNs = System.nanoTime() - start;
+
+        assertEquals(FRAMES, sink.getFrames());
+        assertEquals(1, sink.mReleases);
+        return elapsedNs;
+    }
+
+    private void compare(final boolean async) throws Exception {
+        // Warm up
+        encode(async, false);
+        encode(async, true);
+
+        final long directNs = encode(async, false);
+        final long pipelinedNs = encode(async, true);
+        final PipelinedFrameMuxer.Stats stats = mPipelined.getStats();
+        final String mode = async ? "async" : "sync";
+        System.out.println(mode + " direct:    " + (directNs / FRAMES / 1000) + "us/frame");
+        System.out.println(mode + " pipelined: " + (pipelinedNs / FRAMES / 1000) + "us/frame " + stats);
+    }
+
+    @Test
+    public void sinkStallsSync() throws Exception {
+        compare(false);
+    }
+
+    @Test
+    public void sinkStallsAsync() throws Exception {
+        compare(true);
+    }
+}
@@ -0,0 +1,54 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import static com.homesoft.encoder.StartupLatencyTest.CLIPS;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Start latency of consecutive short encodes, each creating its codec vs reusing one from a
+ * {@link CodecPool}.  The fake codec takes as long to create as a slow hardware encoder.
+ */
+public class StartupLatencyBenchmark {
+    private static final long CREATE_NS = 50000000;
+
+    private static long averageUs(final long[] latenciesNs, final int from) {
+        long sum = 0;
+        for (int i = from; i < latenciesNs.length; i++) {
+            sum += latenciesNs[i];
+        }
+        return sum / (latenciesNs.length - from) / 1000;
+    }
+
+    @Test
+    public void createdVsPooled() throws Exception {
+        final StartupLatencyTest.NamedFactory codecFactory = new StartupLatencyTest.NamedFactory(CREATE_NS);
+        final long[] createdNs = StartupLatencyTest.encodeClips(codecFactory, codecFactory);
+
+        final CodecPool codecPool = new CodecPool(codecFactory, 1);
+        final long[] pooledNs;
+        try {
+            pooledNs = StartupLatencyTest.encodeClips(codecPool, codecFactory);
+        } finally {
+            codecPool.close();
+        }
+        System.out.println("created: " + averageUs(createdNs, 0) + "us/start over " + CLIPS + " clips");
+        System.out.println("pooled:  first " + (pooledNs[0] / 1000) + "us, then " + averageUs(pooledNs, 1) +
+                "us/start " + codecPool.getStats());
+    }
+}
@@ -0,0 +1,105 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Consecutive short encodes reusing one codec from a {@link CodecPool}, rather than each creating
+ * its own.  See {@link StartupLatencyBenchmark} for what that saves.
+ */
+public class StartupLatencyTest {
+    static final int CLIPS = 8;
+    static final int FRAMES = 3;
+
+    private static final String CODEC_NAME = "c2.vendor.avc.encoder";
+
+    /**
+     * Always picks the one codec, as EncoderSelector does on a device with one hardware encoder
+     */
+    static class NamedFactory extends FakeEncoderCodec.Factory implements EncoderCodec.NamedFactory {
+        NamedFactory(final long createNs) {
+            super(0, createNs);
+        }
+
+        @Override
+        public String select(final EncoderConfig config) {
+            return CODEC_NAME;
+        }
+
+        @Override
+        public EncoderCodec createEncoder(final String codecName, final String mimeType) throws IOException {
+            return create(codecName);
+        }
+
+        @Override
+        public int getMaxSupportedInstances(final String codecName, final String mimeType) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return start latency of each clip
+     */
+    static long[] encodeClips(final EncoderCodec.Factory codecFactory,
+                              final FakeEncoderCodec.Factory surfaceFactory) throws Exception {
+        final long[] latenciesNs = new long[CLIPS];
+        for (int c = 0; c < CLIPS; c++) {
+            final FakeFrameMuxer muxer = new FakeFrameMuxer(0);
+            final EncoderConfig config = new TestEncoderConfig(30f);
+            config.setInputSurfaceFactory(surfaceFactory);
+            config.setFrameMuxerFactory(muxer);
+            final FrameEncoder frameEncoder = new FrameEncoder(config, codecFactory, true);
+            frameEncoder.start();
+            for (int i = 0; i < FRAMES; i++) {
+                frameEncoder.createFrame(frameEncoder.getCanvas());
+            }
+            frameEncoder.release();
+            assertEquals(FRAMES, muxer.getFrames());
+            latenciesNs[c] = frameEncoder.getStartLatencyNs();
+        }
+        return latenciesNs;
+    }
+
+    @Test
+    public void withoutAPoolEachClipCreatesACodec() throws Exception {
+        final NamedFactory codecFactory = new NamedFactory(0);
+        encodeClips(codecFactory, codecFactory);
+        assertEquals(CLIPS, codecFactory.mCodecs.size());
+    }
+
+    @Test
+    public void pooledClipsReuseOneCodec() throws Exception {
+        final NamedFactory codecFactory = new NamedFactory(0);
+        final CodecPool codecPool = new CodecPool(codecFactory, 1);
+        try {
+            encodeClips(codecPool, codecFactory);
+        } finally {
+            codecPool.close();
+        }
+        final CodecPool.Stats stats = codecPool.getStats();
+        // Only the first clip had to create one
+        assertEquals(1, stats.getMisses());
+        assertEquals(CLIPS - 1, stats.getHits());
+        assertEquals(0, stats.getEvictions());
+        assertEquals(1, codecFactory.mCodecs.size());
+    }
+}
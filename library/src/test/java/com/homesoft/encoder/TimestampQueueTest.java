@@ -0,0 +1,97 @@
+package com.homesoft.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TimestampQueueTest {
+    private final TimestampQueue mTimestamps = new TimestampQueue();
+
+    @Test
+    public void mapsCodecTimesBackInOrder() {
+        mTimestamps.add(0, 1000);
+        mTimestamps.add(40000, 2000);
+        mTimestamps.add(80000, 3000);
+        assertEquals(0, mTimestamps.remove(1000));
+        assertEquals(1000, mTimestamps.getRemovedPostTimeUs());
+        assertEquals(40000, mTimestamps.remove(2000));
+        assertEquals(80000, mTimestamps.remove(3000));
+        assertEquals(0, mTimestamps.size());
+    }
+
+    @Test
+    public void mapsReorderedOutput() {
+        // Decode order I P B: the P frame comes out before the B frame posted ahead of it
+        mTimestamps.add(0, 1000);
+        mTimestamps.add(33333, 2000);
+        mTimestamps.add(66666, 3000);
+        assertEquals(0, mTimestamps.remove(1000));
+        assertEquals(66666, mTimestamps.remove(3000));
+        assertEquals(33333, mTimestamps.remove(2000));
+    }
+
+    @Test
+    public void matchesTheLastFramePostedBeforeTheCodecTime() {
+        // The Surface may stamp a frame a little after it was posted
+        mTimestamps.add(0, 1000);
+        mTimestamps.add(40000, 2000);
+        assertEquals(40000, mTimestamps.remove(2500));
+        assertEquals(0, mTimestamps.remove(1500));
+    }
+
+    @Test
+    public void rebasedCodecTimesAreTakenInOrder() {
+        mTimestamps.add(0, 1000000);
+        mTimestamps.add(40000, 2000000);
+        assertEquals(0, mTimestamps.remove(5));
+        assertEquals(40000, mTimestamps.remove(6));
+    }
+
+    @Test
+    public void removesExactPresentationTimes() {
+        mTimestamps.add(0, 1000);
+        mTimestamps.add(10000, 2000);
+        mTimestamps.add(45000, 3000);
+        assertTrue(mTimestamps.removePts(45000));
+        assertEquals(3000, mTimestamps.getRemovedPostTimeUs());
+        assertFalse(mTimestamps.removePts(20000));
+        assertTrue(mTimestamps.removePts(0));
+        assertEquals(1, mTimestamps.size());
+        assertEquals(10000, mTimestamps.remove(2000));
+    }
+
+    @Test
+    public void grows() {
+        for (int i = 0; i < 100; i++) {
+            mTimestamps.add(i * 1000L, i);
+        }
+        for (int i = 99; i >= 0; i--) {
+            assertEquals(i * 1000L, mTimestamps.remove(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void removeWithNothingWaiting() {
+        mTimestamps.add(0, 1000);
+        mTimestamps.clear();
+        mTimestamps.remove(1000);
+    }
+}
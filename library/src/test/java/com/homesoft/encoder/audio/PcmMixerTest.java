@@ -0,0 +1,153 @@
+package com.homesoft.encoder.audio;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PcmMixerTest {
+    private static ShortBuffer constant(final int samples, final int value) {
+        final ShortBuffer buffer = ShortBuffer.allocate(samples);
+        for (int i = 0; i < samples; i++) {
+            buffer.put(i, (short)value);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void clipsTheSum() {
+        final PcmMixer mixer = new PcmMixer(2, 4);
+        final ShortBuffer out = ShortBuffer.allocate(8);
+        assertEquals(4, mixer.begin(4));
+        final ShortBuffer loud = ShortBuffer.wrap(new short[] {30000, -30000, 30000, -30000, 100, -100, 0, 0});
+        final ShortBuffer other = ShortBuffer.wrap(new short[] {30000, -30000, 2767, -2768, 100, -100, 0, 0});
+        assertEquals(4, mixer.add(loud, 1f));
+        assertEquals(4, mixer.add(other, 1f));
+        assertEquals(4, mixer.end(out));
+        assertEquals(Short.MAX_VALUE, out.get(0));
+        assertEquals(Short.MIN_VALUE, out.get(1));
+        // Exactly at the limits
+        assertEquals(Short.MAX_VALUE, out.get(2));
+        assertEquals(Short.MIN_VALUE, out.get(3));
+        assertEquals(200, out.get(4));
+        assertEquals(-200, out.get(5));
+        assertEquals(4, mixer.getPosition());
+    }
+
+    @Test
+    public void appliesGain() {
+        final PcmMixer mixer = new PcmMixer(1, 4);
+        final ShortBuffer out = ShortBuffer.allocate(4);
+        mixer.begin(4);
+        mixer.add(ShortBuffer.wrap(new short[] {1000, -1000, 32767, -32768}), 0.5f);
+        mixer.end(out);
+        assertEquals(500, out.get(0));
+        assertEquals(-500, out.get(1));
+        assertEquals(16383, out.get(2));
+        assertEquals(-16384, out.get(3));
+    }
+
+    @Test
+    public void shortSourceIsSilentForTheRestOfTheChunk() {
+        final PcmMixer mixer = new PcmMixer(2, 8);
+        final ShortBuffer out = ShortBuffer.allocate(16);
+        assertEquals(5, mixer.begin(5));
+        final ShortBuffer shortSource = constant(6, 1000);
+        // A partial frame isn't taken
+        shortSource.limit(5);
+        assertEquals(2, mixer.add(shortSource, 1f));
+        assertEquals(4, shortSource.position());
+        assertEquals(5, mixer.add(constant(100, 10), 1f));
+        assertEquals(5, mixer.end(out));
+        assertEquals(10, out.position());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i < 4 ? 1010 : 10, out.get(i));
+        }
+    }
+
+    @Test
+    public void chunksAreLimitedToTheBuffer() {
+        final PcmMixer mixer = new PcmMixer(1, 4);
+        assertEquals(4, mixer.begin(10));
+        assertEquals(4, mixer.end(ShortBuffer.allocate(4)));
+        assertEquals(0, mixer.begin(0));
+        assertEquals(0, mixer.end(ShortBuffer.allocate(4)));
+        assertEquals(4, mixer.getPosition());
+    }
+
+    @Test
+    public void cutsAndFadesAtTheEnd() {
+        final PcmMixer mixer = new PcmMixer(1, 4);
+        mixer.setEnd(10, 4);
+        final ShortBuffer out = ShortBuffer.allocate(16);
+        final ShortBuffer in = constant(16, 1000);
+        while (!mixer.isEnded()) {
+            mixer.begin(4);
+            mixer.add(in, 1f);
+            mixer.end(out);
+        }
+        // Stops on the end frame, not the chunk boundary
+        assertEquals(10, mixer.getPosition());
+        assertEquals(10, out.position());
+        assertEquals(10, in.position());
+        final short[] expected = {1000, 1000, 1000, 1000, 1000, 1000, 1000, 750, 500, 250};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("frame " + i, expected[i], out.get(i));
+        }
+        assertEquals(0, mixer.begin(4));
+    }
+
+    @Test
+    public void endBeforeTheStart() {
+        final PcmMixer mixer = new PcmMixer(1, 4);
+        mixer.setEnd(0, 0);
+        assertTrue(mixer.isEnded());
+        assertEquals(0, mixer.begin(4));
+    }
+
+    @Test
+    public void notEndedWithoutAnEnd() {
+        final PcmMixer mixer = new PcmMixer(1, 4);
+        mixer.begin(4);
+        mixer.end(ShortBuffer.allocate(4));
+        assertFalse(mixer.isEnded());
+        assertEquals(Long.MAX_VALUE, mixer.getEnd());
+    }
+
+    @Test
+    public void framesRoundUp() {
+        assertEquals(0, PcmMixer.toFrames(0, 44100));
+        // The first frame at or after 1us
+        assertEquals(1, PcmMixer.toFrames(1, 44100));
+        assertEquals(44100, PcmMixer.toFrames(1000000, 44100));
+        assertEquals(44101, PcmMixer.toFrames(1000001, 44100));
+        // 1/30s isn't a whole number of frames
+        assertEquals(1470, PcmMixer.toFrames(33333, 44100));
+        assertEquals(1000000, PcmMixer.toTimeUs(44100, 44100));
+        assertEquals(22, PcmMixer.toTimeUs(1, 44100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoChannels() {
+        new PcmMixer(0, 4);
+    }
+}
@@ -0,0 +1,149 @@
+package com.homesoft.encoder.audio;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PcmResamplerTest {
+    /**
+     * @return mono samples 0, 1, 2...
+     */
+    private static ShortBuffer ramp(final int frames) {
+        final ShortBuffer buffer = ShortBuffer.allocate(frames);
+        for (int i = 0; i < frames; i++) {
+            buffer.put(i, (short)i);
+        }
+        return buffer;
+    }
+
+    /**
+     * Feed in a few frames at a time into a small output buffer, then flush
+     * @return all output frames
+     */
+    private static ShortBuffer resampleInChunks(final PcmResampler resampler, final ShortBuffer in,
+                                                final int chunkSamples, final int outChannels) {
+        final ShortBuffer out = ShortBuffer.allocate(in.capacity() * 4 * outChannels + 64);
+        final ShortBuffer chunk = ShortBuffer.allocate(16 * outChannels);
+        final int end = in.limit();
+        while (in.position() < end) {
+            in.limit(Math.min(end, in.position() + chunkSamples));
+            chunk.clear();
+            resampler.resample(in, chunk);
+            chunk.flip();
+            out.put(chunk);
+            // Whatever the resampler left is passed again with the next chunk
+        }
+        do {
+            chunk.clear();
+            resampler.flush(chunk);
+            chunk.flip();
+            out.put(chunk);
+        } while (chunk.limit() > 0);
+        out.flip();
+        return out;
+    }
+
+    @Test
+    public void upsampleLengthAndPhase() {
+        final PcmResampler resampler = new PcmResampler(22050, 1, 44100, 1);
+        final ShortBuffer out = resampleInChunks(resampler, ramp(1000), 7, 1);
+        assertEquals(2000, out.limit());
+        for (int k = 0; k < 1998; k++) {
+            assertEquals("frame " + k, k / 2, out.get(k));
+        }
+        // Past the last input frame it is held
+        assertEquals(999, out.get(1998));
+        assertEquals(999, out.get(1999));
+    }
+
+    @Test
+    public void downsampleLengthAndPhase() {
+        final PcmResampler resampler = new PcmResampler(48000, 1, 44100, 1);
+        final ShortBuffer out = resampleInChunks(resampler, ramp(4800), 13, 1);
+        // 0.1s either way
+        assertEquals(4410, out.limit());
+        for (int k = 0; k < out.limit(); k++) {
+            assertEquals("frame " + k, Math.min(k * 48000L / 44100, 4799), out.get(k));
+        }
+    }
+
+    @Test
+    public void lengthIsTheSameInOneGo() {
+        final PcmResampler resampler = new PcmResampler(44100, 1, 48000, 1);
+        final ShortBuffer in = ramp(4410);
+        final ShortBuffer out = ShortBuffer.allocate(8000);
+        resampler.resample(in, out);
+        resampler.flush(out);
+        assertEquals(0, in.remaining());
+        assertEquals(4800, out.position());
+        out.flip();
+        assertEquals(resampleInChunks(new PcmResampler(44100, 1, 48000, 1), ramp(4410), 5, 1), out);
+    }
+
+    @Test
+    public void leavesInputThatDoesntFit() {
+        final PcmResampler resampler = new PcmResampler(22050, 1, 44100, 1);
+        final ShortBuffer in = ramp(100);
+        final ShortBuffer out = ShortBuffer.allocate(10);
+        assertEquals(10, resampler.resample(in, out));
+        // The 6th input frame is kept as the previous one, the rest is left
+        assertEquals(6, in.position());
+        out.clear();
+        assertEquals(10, resampler.resample(in, out));
+        for (int k = 0; k < 10; k++) {
+            assertEquals("frame " + (k + 10), (k + 10) / 2, out.get(k));
+        }
+    }
+
+    @Test
+    public void monoToStereo() {
+        final PcmResampler resampler = new PcmResampler(44100, 1, 44100, 2);
+        final ShortBuffer out = ShortBuffer.allocate(6);
+        assertEquals(3, resampler.resample(ShortBuffer.wrap(new short[] {1, -2, 3}), out));
+        assertEquals(ShortBuffer.wrap(new short[] {1, 1, -2, -2, 3, 3}), out.flip());
+    }
+
+    @Test
+    public void stereoToMonoAverages() {
+        final PcmResampler resampler = new PcmResampler(44100, 2, 44100, 1);
+        final ShortBuffer out = ShortBuffer.allocate(3);
+        final ShortBuffer in = ShortBuffer.wrap(new short[] {32767, 32767, -32768, -32768, 100, -300, 7});
+        assertEquals(3, resampler.resample(in, out));
+        assertEquals(ShortBuffer.wrap(new short[] {32767, -32768, -100}), out.flip());
+        // Half a frame is left
+        assertEquals(1, in.remaining());
+    }
+
+    @Test
+    public void stereoResampled() {
+        final PcmResampler resampler = new PcmResampler(22050, 2, 44100, 2);
+        final ShortBuffer in = ShortBuffer.wrap(new short[] {0, 1000, 100, -1000});
+        final ShortBuffer out = ShortBuffer.allocate(8);
+        assertEquals(2, resampler.resample(in, out));
+        assertEquals(2, resampler.flush(out));
+        assertEquals(ShortBuffer.wrap(new short[] {0, 1000, 50, 0, 100, -1000, 100, -1000}), out.flip());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadRate() {
+        new PcmResampler(0, 1, 44100, 1);
+    }
+}
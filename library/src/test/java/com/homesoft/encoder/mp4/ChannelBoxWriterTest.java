@@ -0,0 +1,138 @@
+package com.homesoft.encoder.mp4;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class ChannelBoxWriterTest {
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1e, (byte)0xab, 0x40, 0x50, 0x1e, (byte)0xc8};
+    private static final byte[] PPS = {0x68, (byte)0xce, 0x3c, (byte)0x80};
+    private static final long FRAME_US = 40000;
+    // Smaller than most boxes, so they are flushed part way through
+    private static final int BUFFER_SIZE = 16;
+
+    private static byte[] toBytes(final BoxWriter boxWriter) {
+        final ByteBuffer byteBuffer = boxWriter.getBuffer();
+        final byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBoxes(final BoxSink boxWriter) {
+        boxWriter.start("moov");
+        boxWriter.startFull("mvhd", 0, 0).putLong(1).putZeros(20).end();
+        boxWriter.start("trak");
+        // Larger than the buffer in one put
+        boxWriter.start("udta").put(new byte[100]).end();
+        boxWriter.end();
+        boxWriter.end();
+    }
+
+    @Test
+    public void replayWritesTheSameBytes() throws IOException {
+        final BoxWriter heap = new BoxWriter(16);
+        writeBoxes(heap);
+
+        final ChannelBoxWriter measure = ChannelBoxWriter.measure(BUFFER_SIZE);
+        writeBoxes(measure);
+        assertEquals(heap.position(), measure.getPosition());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ChannelBoxWriter boxWriter = measure.replay(Channels.newChannel(out));
+        writeBoxes(boxWriter);
+        boxWriter.flush();
+        assertArrayEquals(toBytes(heap), out.toByteArray());
+    }
+
+    @Test
+    public void replayMustMatchTheMeasure() throws IOException {
+        final ChannelBoxWriter measure = ChannelBoxWriter.measure(BUFFER_SIZE);
+        measure.start("free").putInt(0).end();
+        final ChannelBoxWriter boxWriter = measure.replay(Channels.newChannel(new ByteArrayOutputStream()));
+        boxWriter.start("free").putLong(0);
+        try {
+            boxWriter.end();
+            fail("Size change not detected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void manyBoxes() throws IOException {
+        final BoxWriter heap = new BoxWriter(16);
+        final ChannelBoxWriter measure = ChannelBoxWriter.measure(BUFFER_SIZE);
+        for (int i = 0; i < 200; i++) {
+            heap.start("free").putZeros(i).end();
+            measure.start("free").putZeros(i).end();
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ChannelBoxWriter boxWriter = measure.replay(Channels.newChannel(out));
+        for (int i = 0; i < 200; i++) {
+            boxWriter.start("free").putZeros(i).end();
+        }
+        boxWriter.flush();
+        assertArrayEquals(toBytes(heap), out.toByteArray());
+        try {
+            boxWriter.start("free");
+            fail("Extra box not detected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void streamedMoovMatchesHeapMoov() throws IOException {
+        final Mp4Track track = new Mp4Track(1, new AvcSampleEntry(320, 240, Collections.singletonList(SPS),
+                Collections.singletonList(PPS)), FRAME_US);
+        final SampleTable sampleTable = track.getSampleTable();
+        // B-frames, so there is a ctts and an edit list, and a gap so there are two chunks
+        final int[] order = {0, 3, 1, 2, 6, 4, 5};
+        long offset = 0;
+        for (int i = 0; i < order.length; i++) {
+            final int size = 100 + i * 7;
+            sampleTable.add(offset, size, order[i] * FRAME_US, i % 4 == 0);
+            offset += size + (i == 3 ? 1000 : 0);
+        }
+        final List<Mp4Track> tracks = Arrays.asList(track);
+
+        final BoxWriter heap = new BoxWriter(64);
+        new MovieBoxWriter(heap).write(tracks);
+
+        final SampleTiming[] timings = MovieBoxWriter.createTimings(tracks);
+        final ChannelBoxWriter measure = ChannelBoxWriter.measure(BUFFER_SIZE);
+        new MovieBoxWriter(measure).write(tracks, timings);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ChannelBoxWriter boxWriter = measure.replay(Channels.newChannel(out));
+        new MovieBoxWriter(boxWriter).write(tracks, timings);
+        boxWriter.flush();
+        MovieBoxWriter.release(timings);
+        sampleTable.release();
+        assertArrayEquals(toBytes(heap), out.toByteArray());
+    }
+}
@@ -0,0 +1,358 @@
+package com.homesoft.encoder.mp4;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/*
+ * Copyright (C) 2019 Homesoft, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes chunks with {@link Mp4Writer}, joins them and reads the joined sample table back
+ */
+public class Mp4ConcatenatorTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long FRAME_US = 40000;
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1e, (byte)0xab, 0x40, 0x50, 0x1e, (byte)0xc8};
+    private static final byte[] PPS = {0x68, (byte)0xce, 0x3c, (byte)0x80};
+
+    // Decode order of I P B B P B B, in frames
+    private static final int[] B_FRAME_PTS = {0, 3, 1, 2, 6, 4, 5};
+
+    private final List<File> mFiles = new ArrayList<>();
+
+    /**
+     * The joined file, read back
+     */
+    private static class Samples {
+        final List<Long> mPresentationTimesUs = new ArrayList<>();
+        final List<Boolean> mSync = new ArrayList<>();
+        final List<Long> mOffsets = new ArrayList<>();
+        final List<Integer> mSizes = new ArrayList<>();
+        boolean mHasCompositionOffsets;
+        long mMediaTime;
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    private File createFile() throws IOException {
+        final File file = File.createTempFile("concat", ".mp4");
+        mFiles.add(file);
+        return file;
+    }
+
+    private static Mp4Track addTrack(final SampleWriter writer) {
+        return writer.addTrack(new AvcSampleEntry(320, 240, Collections.singletonList(SPS),
+                Collections.singletonList(PPS)), FRAME_US);
+    }
+
+    /**
+     * @return a sample whose size and bytes identify it
+     */
+    private static ByteBuffer createSample(final int id) {
+        final ByteBuffer sample = ByteBuffer.allocate(100 + id * 7);
+        while (sample.hasRemaining()) {
+            sample.put((byte)id);
+        }
+        sample.flip();
+        return sample;
+    }
+
+    /**
+     * Write a chunk starting at time 0, as a chunk encoder would
+     * @param firstId id of its first sample
+     */
+    private File writeChunk(final int firstId, final int[] ptsFrames, final boolean[] sync) throws IOException {
+        final File file = createFile();
+        final Mp4Writer writer = new Mp4Writer(file);
+        try {
+            final Mp4Track track = addTrack(writer);
+            writer.start();
+            for (int i = 0; i < ptsFrames.length; i++) {
+                writer.writeSample(track, createSample(firstId + i), ptsFrames[i] * FRAME_US, sync[i]);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private File concatenate(final File... chunks) throws IOException {
+        final File file = createFile();
+        final Mp4Concatenator concatenator = new Mp4Concatenator();
+        try {
+            for (File chunk : chunks) {
+                concatenator.addChunk(chunk);
+            }
+            final Mp4Writer writer = new Mp4Writer(file);
+            try {
+                final Mp4Track track = concatenator.addTrack(writer);
+                writer.start();
+                concatenator.writeAll(writer, track);
+                writer.finish();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            concatenator.close();
+        }
+        return file;
+    }
+
+    private static int[] sequence(final int count) {
+        final int[] frames = new int[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = i;
+        }
+        return frames;
+    }
+
+    private static boolean[] syncEvery(final int count, final int gop) {
+        final boolean[] sync = new boolean[count];
+        for (int i = 0; i < count; i += gop) {
+            sync[i] = true;
+        }
+        return sync;
+    }
+
+    @Test
+    public void joinsInOrderSamples() throws IOException {
+        final File first = writeChunk(0, sequence(6), syncEvery(6, 3));
+        final File second = writeChunk(6, sequence(4), syncEvery(4, 4));
+        final File file = concatenate(first, second);
+        final Samples samples = readVideoSamples(file);
+
+        assertEquals(10, samples.mSizes.size());
+        assertFalse(samples.mHasCompositionOffsets);
+        assertEquals(0, samples.mMediaTime);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("pts " + i, i * FRAME_US, (long)samples.mPresentationTimesUs.get(i));
+            assertEquals("sync " + i, i == 0 || i == 3 || i == 6, samples.mSync.get(i));
+        }
+        assertSampleData(file, samples);
+    }
+
+    @Test
+    public void joinsBFrames() throws IOException {
+        final boolean[] sync = syncEvery(B_FRAME_PTS.length, B_FRAME_PTS.length);
+        final File first = writeChunk(0, B_FRAME_PTS, sync);
+        final File second = writeChunk(B_FRAME_PTS.length, B_FRAME_PTS, sync);
+        // The chunks themselves are shifted by an edit list, which the join must undo
+        final Samples chunk = readVideoSamples(first);
+        assertEquals(true, chunk.mHasCompositionOffsets);
+        assertEquals(true, chunk.mMediaTime > 0);
+
+        final File file = concatenate(first, second);
+        final Samples samples = readVideoSamples(file);
+        assertEquals(true, samples.mHasCompositionOffsets);
+        assertEquals(chunk.mMediaTime, samples.mMediaTime);
+        assertEquals(14, samples.mSizes.size());
+        for (int i = 0; i < 14; i++) {
+            final int c = i / B_FRAME_PTS.length;
+            final long ptsUs = (c * B_FRAME_PTS.length + B_FRAME_PTS[i % B_FRAME_PTS.length]) * FRAME_US;
+            assertEquals("pts " + i, ptsUs, (long)samples.mPresentationTimesUs.get(i));
+            assertEquals("sync " + i, i % B_FRAME_PTS.length == 0, samples.mSync.get(i));
+        }
+        assertSampleData(file, samples);
+    }
+
+    @Test
+    public void durationAndNextTime() throws IOException {
+        final Mp4Concatenator concatenator = new Mp4Concatenator();
+        try {
+            concatenator.addChunk(writeChunk(0, sequence(5), syncEvery(5, 5)));
+            concatenator.addChunk(writeChunk(5, B_FRAME_PTS, syncEvery(7, 7)));
+            assertEquals(12, concatenator.getSampleCount());
+            // Each chunk lasts until the end of its last frame
+            assertEquals(12 * FRAME_US, concatenator.getDurationUs());
+
+            final Mp4Writer writer = new Mp4Writer(createFile());
+            try {
+                final Mp4Track track = concatenator.addTrack(writer);
+                writer.start();
+                for (int i = 0; i < 5; i++) {
+                    concatenator.writeNext(writer, track);
+                }
+                // The second chunk's key frame follows the first chunk
+                assertEquals(5 * FRAME_US, concatenator.getNextPresentationTimeUs());
+                concatenator.writeNext(writer, track);
+                assertEquals(8 * FRAME_US, concatenator.getNextPresentationTimeUs());
+                concatenator.writeAll(writer, track);
+                writer.finish();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            concatenator.close();
+        }
+    }
+
+    @Test
+    public void rejectsAChunkWithoutAKeyFrame() throws IOException {
+        final File chunk = writeChunk(0, sequence(3), new boolean[3]);
+        final Mp4Concatenator concatenator = new Mp4Concatenator();
+        try {
+            concatenator.addChunk(chunk);
+            fail("Joined a chunk starting with a delta frame");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            concatenator.close();
+        }
+    }
+
+    /**
+     * Each sample at its offset has the size and bytes it was written with
+     */
+    private static void assertSampleData(final File file, final Samples samples) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            for (int i = 0; i < samples.mSizes.size(); i++) {
+                final byte[] expected = createSample(i).array();
+                assertEquals("size " + i, expected.length, (int)samples.mSizes.get(i));
+                final byte[] actual = new byte[expected.length];
+                randomAccessFile.seek(samples.mOffsets.get(i));
+                randomAccessFile.readFully(actual);
+                assertArrayEquals("sample " + i, expected, actual);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static Samples readVideoSamples(final File file) throws IOException {
+        final byte[] bytes = new byte[(int)file.length()];
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.readFully(bytes);
+        } finally {
+            randomAccessFile.close();
+        }
+        final ByteBuffer trak = findBox(findBox(ByteBuffer.wrap(bytes), "moov"), "trak");
+        final ByteBuffer mdia = findBox(trak, "mdia");
+        final int timescale = findBox(mdia, "mdhd").getInt(12);
+        final ByteBuffer stbl = findBox(findBox(mdia, "minf"), "stbl");
+        final Samples samples = new Samples();
+
+        final ByteBuffer elst = findBox(findBox(trak, "edts"), "elst");
+        if (elst != null) {
+            assertEquals(1, elst.getInt(4));
+            samples.mMediaTime = elst.getInt(12);
+        }
+
+        final ByteBuffer stsz = findBox(stbl, "stsz");
+        final int count = stsz.getInt(8);
+        for (int i = 0; i < count; i++) {
+            samples.mSizes.add(stsz.getInt(4) != 0 ? stsz.getInt(4) : stsz.getInt(12 + i * 4));
+        }
+
+        final ByteBuffer stsc = findBox(stbl, "stsc");
+        final ByteBuffer stco = findBox(stbl, "stco");
+        final int chunks = stco.getInt(4);
+        for (int c = 1, entry = 0, sample = 0; c <= chunks; c++) {
+            if (entry + 1 < stsc.getInt(4) && stsc.getInt(8 + (entry + 1) * 12) == c) {
+                entry++;
+            }
+            long offset = stco.getInt(4 + c * 4) & 0xffffffffL;
+            for (int s = 0; s < stsc.getInt(12 + entry * 12); s++, sample++) {
+                samples.mOffsets.add(offset);
+                offset += samples.mSizes.get(sample);
+            }
+        }
+        assertEquals(count, samples.mOffsets.size());
+
+        final long[] times = new long[count];
+        final ByteBuffer stts = findBox(stbl, "stts");
+        long decodeTime = 0;
+        for (int entry = 0, sample = 0; entry < stts.getInt(4); entry++) {
+            for (int i = 0; i < stts.getInt(8 + entry * 8); i++) {
+                times[sample++] = decodeTime;
+                decodeTime += stts.getInt(12 + entry * 8);
+            }
+        }
+        final ByteBuffer ctts = findBox(stbl, "ctts");
+        if (ctts != null) {
+            samples.mHasCompositionOffsets = true;
+            for (int entry = 0, sample = 0; entry < ctts.getInt(4); entry++) {
+                for (int i = 0; i < ctts.getInt(8 + entry * 8); i++) {
+                    times[sample++] += ctts.getInt(12 + entry * 8);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            samples.mPresentationTimesUs.add((times[i] - samples.mMediaTime) * 1000000 / timescale);
+        }
+
+        final ByteBuffer stss = findBox(stbl, "stss");
+        for (int i = 0; i < count; i++) {
+            samples.mSync.add(stss == null);
+        }
+        if (stss != null) {
+            for (int i = 0; i < stss.getInt(4); i++) {
+                samples.mSync.set(stss.getInt(8 + i * 4) - 1, true);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return the payload of the first child box of this type, or null
+     */
+    private static ByteBuffer findBox(final ByteBuffer parent, final String type) {
+        if (parent == null) {
+            return null;
+        }
+        int position = 0;
+        while (position + 8 <= parent.limit()) {
+            int size = parent.getInt(position);
+            int headerSize = 8;
+            if (size == 1) {
+                // The mdat's largesize
+                size = (int)parent.getLong(position + 8);
+                headerSize = 16;
+            }
+            if (size < headerSize) {
+                break;
+            }
+            if (new String(parent.array(), parent.arrayOffset() + position + 4, 4, ASCII).equals(type)) {
+                final ByteBuffer payload = parent.duplicate();
+                payload.position(position + headerSize).limit(position + size);
+                return payload.slice();
+            }
+            position += size;
+        }
+        return null;
+    }
+}